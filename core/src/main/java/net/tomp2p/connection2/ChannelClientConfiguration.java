@@ -30,6 +30,13 @@ public class ChannelClientConfiguration {
 
     private PipelineFilter pipelineFilter;
     private SignatureFactory signatureFactory;
+    private CryptoStage cryptoStage = null;
+
+    private boolean sharedUDP = false;
+
+    private int maxPooledTCP = 0;
+    private int maxPooledTCPPerPeer = 0;
+    private int pooledTCPIdleMillis = ConnectionBean.DEFAULT_POOLED_TCP_IDLE_MILLIS;
 
     /**
      * @return The maximum number of permanent (long-lived) connections
@@ -115,4 +122,95 @@ public class ChannelClientConfiguration {
         this.signatureFactory = signatureFactory;
         return this;
     }
+
+    /**
+     * @return The stage that signs and verifies messages off the event loop, or null if this is done in the event
+     *         loop
+     */
+    public CryptoStage cryptoStage() {
+        return cryptoStage;
+    }
+
+    /**
+     * @param cryptoStage
+     *            The stage that signs and verifies messages off the event loop, or null if this should be done in the
+     *            event loop. The default is null. A stage keeps the order of the messages on a channel, but drops
+     *            messages if it is overloaded
+     * @return This class
+     */
+    public ChannelClientConfiguration cryptoStage(final CryptoStage cryptoStage) {
+        this.cryptoStage = cryptoStage;
+        return this;
+    }
+
+    /**
+     * @return True if all outgoing UDP requests are sent over one long-lived datagram channel instead of a channel per
+     *         request
+     */
+    public boolean isSharedUDP() {
+        return sharedUDP;
+    }
+
+    /**
+     * @param sharedUDP
+     *            Set to true if all outgoing UDP requests should be sent over one long-lived datagram channel. Replies
+     *            are matched by their message id.
+     * @return This class
+     */
+    public ChannelClientConfiguration sharedUDP(final boolean sharedUDP) {
+        this.sharedUDP = sharedUDP;
+        return this;
+    }
+
+    /**
+     * @return The maximum number of idle TCP connections kept in the pool, 0 disables pooling
+     */
+    public int maxPooledTCP() {
+        return maxPooledTCP;
+    }
+
+    /**
+     * @param maxPooledTCP
+     *            The maximum number of idle TCP connections kept in the pool, 0 disables pooling
+     * @return This class
+     */
+    public ChannelClientConfiguration maxPooledTCP(final int maxPooledTCP) {
+        this.maxPooledTCP = maxPooledTCP;
+        return this;
+    }
+
+    /**
+     * @return The maximum number of idle TCP connections kept in the pool for a single peer
+     */
+    public int maxPooledTCPPerPeer() {
+        return maxPooledTCPPerPeer;
+    }
+
+    /**
+     * @param maxPooledTCPPerPeer
+     *            The maximum number of idle TCP connections kept in the pool for a single peer
+     * @return This class
+     */
+    public ChannelClientConfiguration maxPooledTCPPerPeer(final int maxPooledTCPPerPeer) {
+        this.maxPooledTCPPerPeer = maxPooledTCPPerPeer;
+        return this;
+    }
+
+    /**
+     * @return The time an idle TCP connection stays in the pool before it is closed
+     */
+    public int pooledTCPIdleMillis() {
+        return pooledTCPIdleMillis;
+    }
+
+    /**
+     * @param pooledTCPIdleMillis
+     *            The time an idle TCP connection stays in the pool before it is closed. This should be lower than the
+     *            idle time of the server, otherwise the server closes the connection first
+     * @return This class
+     */
+    public ChannelClientConfiguration pooledTCPIdleMillis(final int pooledTCPIdleMillis) {
+        this.pooledTCPIdleMillis = pooledTCPIdleMillis;
+        return this;
+    }
 }
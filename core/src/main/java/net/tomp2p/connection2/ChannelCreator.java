@@ -22,6 +22,7 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.FixedRecvByteBufAllocator;
 import io.netty.channel.group.ChannelGroup;
@@ -29,19 +30,25 @@ import io.netty.channel.group.ChannelGroupFuture;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.AttributeKey;
 import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.concurrent.GlobalEventExecutor;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,8 +66,29 @@ public class ChannelCreator {
     private static final AtomicInteger CREATED_TCP_CONNECTIONS = new AtomicInteger(0);
     private static final AtomicInteger CREATED_UDP_CONNECTIONS = new AtomicInteger(0);
 
+    /**
+     * The channel creator that currently holds the TCP permit of a channel. A pooled channel may be used by several
+     * channel creators over its lifetime.
+     */
+    public static final AttributeKey<ChannelCreator> CHANNEL_CREATOR_KEY = new AttributeKey<ChannelCreator>(
+            "channelCreator");
+
+    // added once per TCP channel, releases the permit of the creator that holds the channel when its closed
+    private static final GenericFutureListener<ChannelFuture> CLOSE_LISTENER_TCP = new GenericFutureListener<ChannelFuture>() {
+        @Override
+        public void operationComplete(final ChannelFuture future) throws Exception {
+            final ChannelCreator channelCreator = future.channel().attr(CHANNEL_CREATOR_KEY).get();
+            if (channelCreator != null) {
+                channelCreator.detachTCP(future.channel());
+            }
+        }
+    };
+
     private final EventLoopGroup workerGroup;
     private final ChannelGroup recipients = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    // requests that are in-flight on the shared UDP channel, they have no channel of their own to close
+    private final Set<FutureResponse> sharedUDPRequests = Collections
+            .newSetFromMap(new ConcurrentHashMap<FutureResponse, Boolean>());
 
     private final int maxPermitsUDP;
     private final int maxPermitsTCP;
@@ -161,6 +189,39 @@ public class ChannelCreator {
         }
     }
 
+    /**
+     * Reserves an in-flight slot for a request that is sent over the shared UDP channel. The slot uses the same UDP
+     * permit as {@link #createUDP(SocketAddress, boolean, Map)} and is released once the future completes.
+     * 
+     * @param futureResponse
+     *            The future of the request that is sent over the shared UDP channel
+     * @return True if the slot was reserved, false if we are shut down
+     */
+    public boolean createSharedUDP(final FutureResponse futureResponse) {
+        readUDP.lock();
+        try {
+            if (shutdownUDP) {
+                return false;
+            }
+            if (!semaphoreUPD.tryAcquire()) {
+                LOG.error("Tried to acquire more resources (UDP) than announced!");
+                throw new RuntimeException("Tried to acquire more resources (UDP) than announced!");
+            }
+            sharedUDPRequests.add(futureResponse);
+            futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                @Override
+                public void operationComplete(final FutureResponse future) throws Exception {
+                    if (sharedUDPRequests.remove(future)) {
+                        semaphoreUPD.release();
+                    }
+                }
+            });
+            return true;
+        } finally {
+            readUDP.unlock();
+        }
+    }
+
     /**
      * Creates a channel to the given address. This will setup the TCP connection
      * 
@@ -196,7 +257,10 @@ public class ChannelCreator {
 
             ChannelFuture channelFuture = b.connect(socketAddress);
 
-            setupCloseListener(channelFuture, semaphoreTCP);
+            final Channel channel = channelFuture.channel();
+            channel.attr(CHANNEL_CREATOR_KEY).set(this);
+            channel.closeFuture().addListener(CLOSE_LISTENER_TCP);
+            recipients.add(channel);
             CREATED_TCP_CONNECTIONS.incrementAndGet();
             return channelFuture;
         } finally {
@@ -204,6 +268,68 @@ public class ChannelCreator {
         }
     }
 
+    /**
+     * Reuses an idle TCP channel from the {@link ChannelPoolTCP}. The channel gets a permit from this creator and the
+     * handlers of the pipeline are replaced with the given handlers.
+     * 
+     * @param channel
+     *            The idle channel that was taken out of the pool
+     * @param channelHandlers
+     *            The handlers to set
+     * @return The succeeded channel future or null if we are shut down or the channel was closed meanwhile
+     */
+    public ChannelFuture reuseTCP(final Channel channel, final Map<String, ChannelHandler> channelHandlers) {
+        readTCP.lock();
+        try {
+            if (shutdownTCP) {
+                return null;
+            }
+            if (!semaphoreTCP.tryAcquire()) {
+                LOG.error("Tried to acquire more resources (TCP) than announced!");
+                throw new RuntimeException("Tried to acquire more resources (TCP) than announced!");
+            }
+            if (!channel.attr(CHANNEL_CREATOR_KEY).compareAndSet(null, this)) {
+                semaphoreTCP.release();
+                LOG.warn("pooled channel {} is still in use", channel);
+                return null;
+            }
+            recipients.add(channel);
+            if (!channel.isActive()) {
+                // the close listener may have run before we set the attribute
+                detachTCP(channel);
+                return null;
+            }
+            channelClientConfiguration.pipelineFilter().filter(channelHandlers, true, true);
+            final ChannelPipeline pipeline = channel.pipeline();
+            for (String name : pipeline.toMap().keySet()) {
+                pipeline.remove(name);
+            }
+            for (Map.Entry<String, ChannelHandler> entry : channelHandlers.entrySet()) {
+                pipeline.addLast(entry.getKey(), entry.getValue());
+            }
+            return channel.newSucceededFuture();
+        } finally {
+            readTCP.unlock();
+        }
+    }
+
+    /**
+     * Releases the TCP permit of a channel without closing it. This is used when a channel is put into the
+     * {@link ChannelPoolTCP}, and when the channel is closed.
+     * 
+     * @param channel
+     *            The channel that was created or reused by this creator
+     * @return True if this creator held the permit of the channel
+     */
+    boolean detachTCP(final Channel channel) {
+        if (!channel.attr(CHANNEL_CREATOR_KEY).compareAndSet(this, null)) {
+            return false;
+        }
+        recipients.remove(channel);
+        semaphoreTCP.release();
+        return true;
+    }
+
     /**
      * Since we want to add multiple handlers, we need to do this with the pipeline.
      * 
@@ -264,6 +390,14 @@ public class ChannelCreator {
             writeUDP.unlock();
         }
 
+        // the shared UDP channel stays open, so we need to fail the in-flight requests to get the permits back
+        for (FutureResponse futureResponse : sharedUDPRequests) {
+            futureResponse.setFailed("shutting down");
+            if (sharedUDPRequests.remove(futureResponse)) {
+                semaphoreUPD.release();
+            }
+        }
+
         recipients.close().addListener(new GenericFutureListener<ChannelGroupFuture>() {
             @Override
             public void operationComplete(final ChannelGroupFuture future) throws Exception {
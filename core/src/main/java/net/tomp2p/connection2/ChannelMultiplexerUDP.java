@@ -0,0 +1,213 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection2;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Timer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message2;
+import net.tomp2p.message.TomP2POutbound;
+import net.tomp2p.message.TomP2PSinglePacketUDP;
+import net.tomp2p.peers.PeerStatusListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends all outgoing UDP requests over one long-lived datagram channel. Unlike {@link ChannelCreator#createUDP}, no
+ * channel is created or closed per request. Replies are matched to their {@link RequestHandler} by the
+ * {@link RequestMultiplexer}. Layer 2 broadcasts still use their own channel, since they need to be bound with
+ * SO_BROADCAST.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class ChannelMultiplexerUDP {
+    private static final Logger LOG = LoggerFactory.getLogger(ChannelMultiplexerUDP.class);
+
+    // statistics
+    private static final AtomicInteger SENT_UDP_MESSAGES = new AtomicInteger(0);
+
+    private final EventLoopGroup workerGroup;
+    private final ChannelClientConfiguration channelClientConfiguration;
+    private final RequestMultiplexer requestMultiplexer;
+
+    private final FutureDone<Void> futureMultiplexerDone = new FutureDone<Void>();
+
+    private volatile Channel channel;
+
+    /**
+     * Creates the multiplexer. Call {@link #startup()} before sending messages.
+     *
+     * @param workerGroup
+     *            The worker group for netty that is shared between TCP and UDP. This workergroup is not shutdown if
+     *            this class is shutdown
+     * @param channelClientConfiguration
+     *            The configuration that contains the pipeline filter and the signature factory
+     * @param peerStatusListeners
+     *            The listeners that get notified when a timeout happend
+     * @param timer
+     *            The timer of the peer that runs the timeouts
+     */
+    public ChannelMultiplexerUDP(final EventLoopGroup workerGroup,
+            final ChannelClientConfiguration channelClientConfiguration,
+            final PeerStatusListener[] peerStatusListeners, final Timer timer) {
+        this.workerGroup = workerGroup;
+        this.channelClientConfiguration = channelClientConfiguration;
+        this.requestMultiplexer = new RequestMultiplexer(peerStatusListeners, timer);
+    }
+
+    /**
+     * Binds the shared datagram channel to an ephemeral port on all interfaces.
+     *
+     * @throws IOException
+     *             If the bind failed
+     */
+    public void startup() throws IOException {
+        final Bootstrap b = new Bootstrap();
+        b.group(workerGroup);
+        b.channel(NioDatagramChannel.class);
+        b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(ConnectionBean.UDP_LIMIT));
+        b.handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(final Channel ch) throws Exception {
+                ch.pipeline().addLast("decoder",
+                        new TomP2PSinglePacketUDP(channelClientConfiguration.signatureFactory(),
+                                channelClientConfiguration.cryptoStage()));
+                ch.pipeline().addLast("encoder",
+                        new TomP2POutbound(false, channelClientConfiguration.signatureFactory(),
+                                channelClientConfiguration.cryptoStage()));
+                ch.pipeline().addLast("handler", requestMultiplexer.createHandler());
+            }
+        });
+        final ChannelFuture future = b.bind(new InetSocketAddress(0));
+        try {
+            future.await();
+        } catch (InterruptedException e) {
+            throw new IOException("could not bind the shared UDP channel", e);
+        }
+        if (!future.isSuccess()) {
+            throw new IOException("could not bind the shared UDP channel", future.cause());
+        }
+        channel = future.channel();
+        LOG.debug("shared UDP channel bound to {}", channel.localAddress());
+    }
+
+    /**
+     * Sends a message over the shared channel. The in-flight slot must have been reserved with
+     * {@link ChannelCreator#createSharedUDP(FutureResponse)}.
+     *
+     * @param handler
+     *            The handler that deals with the reply or null for fire and forget
+     * @param futureResponse
+     *            The future to set the response
+     * @param message
+     *            The message to send
+     * @param idleUDPSeconds
+     *            The time until we give up waiting for a reply
+     */
+    public void send(final RequestHandler<? extends FutureResponse> handler, final FutureResponse futureResponse,
+            final Message2 message, final int idleUDPSeconds) {
+        final Channel ch = channel;
+        if (ch == null || !ch.isActive()) {
+            futureResponse.setFailed("shared UDP channel is not open");
+            return;
+        }
+        final boolean fireAndForget = handler == null;
+        if (!fireAndForget) {
+            requestMultiplexer.register(handler, idleUDPSeconds);
+        }
+        futureResponse.setProgressHandler(new ProgresHandler() {
+            @Override
+            public void progres() {
+                SENT_UDP_MESSAGES.incrementAndGet();
+                ch.writeAndFlush(message).addListener(new GenericFutureListener<ChannelFuture>() {
+                    @Override
+                    public void operationComplete(final ChannelFuture future) throws Exception {
+                        if (!future.isSuccess()) {
+                            LOG.warn("Failed to write channel the request {}", message, future.cause());
+                            futureResponse.setFailed(future.cause());
+                        } else if (fireAndForget) {
+                            futureResponse.setResponse();
+                        }
+                    }
+                });
+            }
+        });
+        try {
+            // this needs to be called first before all other progress
+            futureResponse.progressFirst();
+        } catch (InterruptedException e) {
+            futureResponse.setFailed(e);
+        }
+    }
+
+    /**
+     * @return The number of in-flight requests that wait for a reply
+     */
+    public int pendingRequests() {
+        return requestMultiplexer.pendingRequests();
+    }
+
+    /**
+     * Closes the shared channel and fails all in-flight requests.
+     *
+     * @return The future when the shutdown is complete
+     */
+    public FutureDone<Void> shutdown() {
+        requestMultiplexer.failAll("shutting down");
+        final Channel ch = channel;
+        if (ch == null) {
+            return shutdownFuture().setDone();
+        }
+        ch.close().addListener(new GenericFutureListener<ChannelFuture>() {
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                shutdownFuture().setDone();
+            }
+        });
+        return shutdownFuture();
+    }
+
+    /**
+     * @return The shutdown future that is used when calling {@link #shutdown()}
+     */
+    public FutureDone<Void> shutdownFuture() {
+        return futureMultiplexerDone;
+    }
+
+    /**
+     * @return The number of messages sent over *all* shared UDP channels
+     */
+    public static int sentMessageCount() {
+        return SENT_UDP_MESSAGES.get();
+    }
+}
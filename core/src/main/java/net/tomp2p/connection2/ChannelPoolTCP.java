@@ -0,0 +1,237 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection2;
+
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.peers.PeerSocketAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps idle TCP connections to other peers open, so that the next request to the same peer can skip the TCP
+ * handshake. A connection in this pool does not hold a permit of the {@link Reservation}. It gets a permit again once
+ * a {@link ChannelCreator} takes it out with {@link ChannelCreator#reuseTCP(Channel, Map)}. The number of connections
+ * in use is thus limited by the reservation, while this pool limits the number of idle connections.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class ChannelPoolTCP {
+    private static final Logger LOG = LoggerFactory.getLogger(ChannelPoolTCP.class);
+
+    private final Map<PeerSocketAddress, Deque<PooledChannel>> idleChannels = new HashMap<PeerSocketAddress, Deque<PooledChannel>>();
+
+    private final int maxPooledTCP;
+    private final int maxPooledTCPPerPeer;
+    private final int pooledTCPIdleMillis;
+
+    // statistics
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    // guarded by idleChannels
+    private int idleCount = 0;
+    private boolean shutdown = false;
+
+    /**
+     * Creates a pool with the limits from the configuration.
+     *
+     * @param channelClientConfiguration
+     *            The configuration with the maximum number of idle connections and the idle time
+     */
+    public ChannelPoolTCP(final ChannelClientConfiguration channelClientConfiguration) {
+        this.maxPooledTCP = channelClientConfiguration.maxPooledTCP();
+        this.maxPooledTCPPerPeer = channelClientConfiguration.maxPooledTCPPerPeer() <= 0 ? maxPooledTCP
+                : channelClientConfiguration.maxPooledTCPPerPeer();
+        this.pooledTCPIdleMillis = channelClientConfiguration.pooledTCPIdleMillis();
+    }
+
+    /**
+     * Takes an idle connection to the given peer out of the pool.
+     *
+     * @param peerSocketAddress
+     *            The address of the peer
+     * @return An active channel or null if there is no idle connection to this peer
+     */
+    public Channel poll(final PeerSocketAddress peerSocketAddress) {
+        synchronized (idleChannels) {
+            final Deque<PooledChannel> deque = idleChannels.get(peerSocketAddress);
+            while (!shutdown && deque != null && !deque.isEmpty()) {
+                // the most recently used connection is the least likely to be closed by the other side
+                final PooledChannel pooledChannel = deque.pollLast();
+                idleCount--;
+                if (deque.isEmpty()) {
+                    idleChannels.remove(peerSocketAddress);
+                }
+                pooledChannel.eviction.cancel(false);
+                if (pooledChannel.channel.isActive()) {
+                    hits.incrementAndGet();
+                    return pooledChannel.channel;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Puts an idle connection into the pool. The connection must not be used by a {@link ChannelCreator} anymore.
+     *
+     * @param peerSocketAddress
+     *            The address of the peer
+     * @param channel
+     *            The idle connection
+     * @return True if the connection was added, false if the pool is full. In this case, the caller needs to close
+     *         the connection.
+     */
+    public boolean offer(final PeerSocketAddress peerSocketAddress, final Channel channel) {
+        if (!channel.isActive()) {
+            return false;
+        }
+        final PooledChannel pooledChannel = new PooledChannel(peerSocketAddress, channel);
+        pooledChannel.eviction = channel.eventLoop().schedule(new Runnable() {
+            @Override
+            public void run() {
+                evict(pooledChannel);
+            }
+        }, pooledTCPIdleMillis, TimeUnit.MILLISECONDS);
+        synchronized (idleChannels) {
+            if (!shutdown && idleCount < maxPooledTCP) {
+                Deque<PooledChannel> deque = idleChannels.get(peerSocketAddress);
+                if (deque == null) {
+                    deque = new ArrayDeque<PooledChannel>();
+                    idleChannels.put(peerSocketAddress, deque);
+                }
+                if (deque.size() < maxPooledTCPPerPeer) {
+                    deque.addLast(pooledChannel);
+                    idleCount++;
+                    return true;
+                }
+            }
+        }
+        pooledChannel.eviction.cancel(false);
+        return false;
+    }
+
+    /**
+     * Closes a connection that was idle for too long.
+     *
+     * @param pooledChannel
+     *            The idle connection
+     */
+    private void evict(final PooledChannel pooledChannel) {
+        synchronized (idleChannels) {
+            final Deque<PooledChannel> deque = idleChannels.get(pooledChannel.peerSocketAddress);
+            if (deque == null || !deque.remove(pooledChannel)) {
+                // already taken out of the pool
+                return;
+            }
+            idleCount--;
+            if (deque.isEmpty()) {
+                idleChannels.remove(pooledChannel.peerSocketAddress);
+            }
+        }
+        evictions.incrementAndGet();
+        LOG.debug("close idle pooled connection {}", pooledChannel.channel);
+        pooledChannel.channel.close();
+    }
+
+    /**
+     * Closes all idle connections. Afterwards, the pool does not accept connections anymore.
+     */
+    public void shutdown() {
+        final List<PooledChannel> toClose = new ArrayList<PooledChannel>();
+        synchronized (idleChannels) {
+            shutdown = true;
+            for (Deque<PooledChannel> deque : idleChannels.values()) {
+                toClose.addAll(deque);
+            }
+            idleChannels.clear();
+            idleCount = 0;
+        }
+        for (PooledChannel pooledChannel : toClose) {
+            pooledChannel.eviction.cancel(false);
+            pooledChannel.channel.close();
+        }
+    }
+
+    /**
+     * @return The number of requests that could reuse a pooled connection
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of requests that needed a new connection
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of connections that were closed because they were idle for too long
+     */
+    public long evictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The number of idle connections in the pool
+     */
+    public int idleConnections() {
+        synchronized (idleChannels) {
+            return idleCount;
+        }
+    }
+
+    /**
+     * An idle connection with its eviction task.
+     *
+     * @author Thomas Bocek
+     *
+     */
+    private static final class PooledChannel {
+        private final PeerSocketAddress peerSocketAddress;
+        private final Channel channel;
+        private ScheduledFuture<?> eviction;
+
+        /**
+         * @param peerSocketAddress
+         *            The address of the peer
+         * @param channel
+         *            The idle connection
+         */
+        private PooledChannel(final PeerSocketAddress peerSocketAddress, final Channel channel) {
+            this.peerSocketAddress = peerSocketAddress;
+            this.channel = channel;
+        }
+    }
+}
@@ -25,19 +25,24 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.ServerChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.util.concurrent.DefaultThreadFactory;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.MultithreadEventExecutorGroup;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.message.TomP2PCumulationTCP;
@@ -52,7 +57,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * The "server" part that accepts connections.
+ * The "server" part that accepts connections. If the native transport is enabled in the
+ * {@link ChannelServerConficuration} and available, the server uses netty's epoll transport and binds one UDP socket
+ * per event loop to the same port with SO_REUSEPORT, so that incoming UDP packets are not serialized through a single
+ * event loop. Otherwise, NIO with a single UDP socket is used.
  * 
  * @author Thomas Bocek
  * 
@@ -63,14 +71,12 @@ public final class ChannelServer {
     // private static final int BACKLOG = 128;
 
     // important to keep them low, since a too high value results in connection degradation
-    private final EventLoopGroup bossGroup = new NioEventLoopGroup(
-            Runtime.getRuntime().availableProcessors() / 2, new DefaultThreadFactory(
-                    ConnectionBean.THREAD_NAME + "boss - "));
-    private final EventLoopGroup workerGroup = new NioEventLoopGroup(Runtime.getRuntime()
-            .availableProcessors() / 2, new DefaultThreadFactory(ConnectionBean.THREAD_NAME
-            + "worker-server - "));
-
-    private Channel channelUDP;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    private final boolean nativeTransport;
+    private final int nrUDPChannels;
+
+    private final List<Channel> channelsUDP = new ArrayList<Channel>();
     private Channel channelTCP;
 
     private final FutureDone<Void> futureServerDone = new FutureDone<Void>();
@@ -103,12 +109,53 @@ public final class ChannelServer {
         this.channelServerConfiguration = channelServerConfiguration;
         this.dispatcher = dispatcher;
         this.peerStatusListeners = peerStatusListeners;
+        this.nativeTransport = channelServerConfiguration.isNativeTransport() && NativeTransport.isAvailable();
+        final int workerThreads = channelServerConfiguration.workerThreads();
+        final DefaultThreadFactory bossFactory = new DefaultThreadFactory(ConnectionBean.THREAD_NAME + "boss - ");
+        final DefaultThreadFactory workerFactory = new DefaultThreadFactory(ConnectionBean.THREAD_NAME
+                + "worker-server - ");
+        if (nativeTransport) {
+            this.bossGroup = NativeTransport.eventLoopGroup(Runtime.getRuntime().availableProcessors() / 2,
+                    bossFactory);
+            this.workerGroup = NativeTransport.eventLoopGroup(workerThreads, workerFactory);
+            // one socket per event loop, the group assigns the sockets round robin. With 0 worker threads, netty
+            // creates its default number of event loops.
+            if (workerGroup instanceof MultithreadEventExecutorGroup) {
+                this.nrUDPChannels = ((MultithreadEventExecutorGroup) workerGroup).executorCount();
+            } else {
+                this.nrUDPChannels = workerThreads > 0 ? workerThreads
+                        : Runtime.getRuntime().availableProcessors() * 2;
+            }
+        } else {
+            if (channelServerConfiguration.isNativeTransport()) {
+                LOG.warn("The native transport was requested, but the epoll transport with SO_REUSEPORT is not "
+                        + "available, using NIO with a single UDP socket. It needs Linux and the "
+                        + "netty-transport-native-epoll jar of a netty release that supports SO_REUSEPORT.");
+            }
+            this.bossGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors() / 2, bossFactory);
+            this.workerGroup = new NioEventLoopGroup(workerThreads, workerFactory);
+            this.nrUDPChannels = 1;
+        }
         final String status = DiscoverNetworks.discoverInterfaces(bindings);
         if (LOG.isInfoEnabled()) {
             LOG.info("Status of interface search: " + status);
         }
     }
 
+    /**
+     * @return True if the native epoll transport is used
+     */
+    public boolean isNativeTransport() {
+        return nativeTransport;
+    }
+
+    /**
+     * @return The number of UDP sockets per address, which is more than one only with the native transport
+     */
+    public int nrUDPChannels() {
+        return nrUDPChannels;
+    }
+
     /**
      * @return The binding that was used to setup the incoming connections
      */
@@ -201,7 +248,12 @@ public final class ChannelServer {
     boolean startupUDP(final InetSocketAddress listenAddresses, final ChannelServerConficuration config) {
         Bootstrap b = new Bootstrap();
         b.group(workerGroup);
-        b.channel(NioDatagramChannel.class);
+        if (nativeTransport) {
+            b.channel(NativeTransport.datagramChannel());
+            b.option(NativeTransport.reusePort(), true);
+        } else {
+            b.channel(NioDatagramChannel.class);
+        }
         b.option(ChannelOption.SO_BROADCAST, true);
         b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(ConnectionBean.UDP_LIMIT));
 
@@ -214,9 +266,14 @@ public final class ChannelServer {
             }
         });
 
-        ChannelFuture future = b.bind(listenAddresses);
-        channelUDP = future.channel();
-        return handleFuture(future);
+        for (int i = 0; i < nrUDPChannels; i++) {
+            ChannelFuture future = b.bind(listenAddresses);
+            channelsUDP.add(future.channel());
+            if (!handleFuture(future)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -231,7 +288,13 @@ public final class ChannelServer {
     boolean startupTCP(final InetSocketAddress listenAddresses, final ChannelServerConficuration config) {
         ServerBootstrap b = new ServerBootstrap();
         b.group(bossGroup, workerGroup);
-        b.channel(NioServerSocketChannel.class);
+        final Class<? extends ServerChannel> serverChannel;
+        if (nativeTransport) {
+            serverChannel = NativeTransport.serverSocketChannel();
+        } else {
+            serverChannel = NioServerSocketChannel.class;
+        }
+        b.channel(serverChannel);
         b.childHandler(new ChannelInitializer<Channel>() {
             @Override
             protected void initChannel(final Channel ch) throws Exception {
@@ -266,15 +329,18 @@ public final class ChannelServer {
             handlers = new LinkedHashMap<String, ChannelHandler>(nrTCPHandlers);
             handlers.put("timeout-server0", c[0]);
             handlers.put("timeout-server1", c[1]);
-            handlers.put("decoder", new TomP2PCumulationTCP(channelServerConfiguration.signatureFactory()));
+            handlers.put("decoder", new TomP2PCumulationTCP(channelServerConfiguration.signatureFactory(),
+                    channelServerConfiguration.cryptoStage()));
         } else {
             // we don't need here a timeout since we receive a packet or nothing. It is different than with TCP where we
             // may get a stream and in the middle of it, the other peer goes offline. This cannot happen with UDP
             final int nrUDPHandlers = 3;
             handlers = new LinkedHashMap<String, ChannelHandler>(nrUDPHandlers);
-            handlers.put("decoder", new TomP2PSinglePacketUDP(channelServerConfiguration.signatureFactory()));
+            handlers.put("decoder", new TomP2PSinglePacketUDP(channelServerConfiguration.signatureFactory(),
+                    channelServerConfiguration.cryptoStage()));
         }
-        handlers.put("encoder", new TomP2POutbound(false, channelServerConfiguration.signatureFactory()));
+        handlers.put("encoder", new TomP2POutbound(false, channelServerConfiguration.signatureFactory(),
+                channelServerConfiguration.cryptoStage()));
         handlers.put("dispatcher", dispatcher);
         channelServerConfiguration.pipelineFilter().filter(handlers, tcp, false);
         return handlers;
@@ -313,35 +379,48 @@ public final class ChannelServer {
      */
     public FutureDone<Void> shutdown() {
         LOG.debug("shutdown UPD server");
-        channelUDP.close().addListener(new GenericFutureListener<ChannelFuture>() {
+        if (channelsUDP.isEmpty()) {
+            shutdownTCP();
+        }
+        final AtomicInteger closed = new AtomicInteger(0);
+        for (Channel channelUDP : channelsUDP) {
+            channelUDP.close().addListener(new GenericFutureListener<ChannelFuture>() {
+                @Override
+                public void operationComplete(final ChannelFuture future) throws Exception {
+                    if (closed.incrementAndGet() == channelsUDP.size()) {
+                        shutdownTCP();
+                    }
+                }
+            });
+        }
+        return shutdownFuture();
+    }
+
+    /**
+     * Shuts down the TCP server and the event loops, after the UDP sockets are closed.
+     */
+    private void shutdownTCP() {
+        LOG.debug("shutdown TCP server");
+        channelTCP.close().addListener(new GenericFutureListener<ChannelFuture>() {
+            @SuppressWarnings({ "unchecked", "rawtypes" })
             @Override
             public void operationComplete(final ChannelFuture future) throws Exception {
-                LOG.debug("shutdown TCP server");
-                channelTCP.close().addListener(new GenericFutureListener<ChannelFuture>() {
-                    @SuppressWarnings({ "unchecked", "rawtypes" })
+                LOG.debug("shutdown TCP workergroup");
+                workerGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).addListener(new GenericFutureListener() {
                     @Override
-                    public void operationComplete(final ChannelFuture future) throws Exception {
-                        LOG.debug("shutdown TCP workergroup");
-                        workerGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).addListener(
+                    public void operationComplete(final Future future) throws Exception {
+                        LOG.debug("shutdown TCP workergroup done!");
+                        bossGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).addListener(
                                 new GenericFutureListener() {
                                     @Override
                                     public void operationComplete(final Future future) throws Exception {
-                                        LOG.debug("shutdown TCP workergroup done!");
-                                        bossGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).addListener(
-                                                new GenericFutureListener() {
-                                                    @Override
-                                                    public void operationComplete(final Future future)
-                                                            throws Exception {
-                                                        futureServerDone.setDone();
-                                                    }
-                                                });
+                                        futureServerDone.setDone();
                                     }
                                 });
                     }
                 });
             }
         });
-        return shutdownFuture();
     }
 
     /**
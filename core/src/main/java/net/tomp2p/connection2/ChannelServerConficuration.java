@@ -41,6 +41,12 @@ public class ChannelServerConficuration implements ConnectionConfiguration {
     private int udpPort = -1;
 
     private SignatureFactory signatureFactory = null;
+    private CryptoStage cryptoStage = null;
+    private DispatchExecutor dispatchExecutor = null;
+
+    private boolean nativeTransport = false;
+    // important to keep it low, since a too high value results in connection degradation
+    private int workerThreads = Runtime.getRuntime().availableProcessors() / 2;
 
     private boolean forceTCP;
     private boolean forceUDP;
@@ -212,6 +218,85 @@ public class ChannelServerConficuration implements ConnectionConfiguration {
         return this;
     }
 
+    /**
+     * @return The stage that signs and verifies messages off the event loop, or null if this is done in the event
+     *         loop
+     */
+    public CryptoStage cryptoStage() {
+        return cryptoStage;
+    }
+
+    /**
+     * @param cryptoStage
+     *            The stage that signs and verifies messages off the event loop, or null if this should be done in the
+     *            event loop. The default is null. A stage keeps the order of the messages on a channel, but drops
+     *            messages if it is overloaded
+     * @return This class
+     */
+    public ChannelServerConficuration cryptoStage(final CryptoStage cryptoStage) {
+        this.cryptoStage = cryptoStage;
+        return this;
+    }
+
+    /**
+     * @return The executor that handles expensive requests off the event loop, or null if all requests are handled in
+     *         the event loop
+     */
+    public DispatchExecutor dispatchExecutor() {
+        return dispatchExecutor;
+    }
+
+    /**
+     * @param dispatchExecutor
+     *            The executor that handles expensive requests off the event loop, or null if all requests should be
+     *            handled in the event loop, which is the default. The pool is sized for the peer that uses it, e.g.,
+     *            new DispatchExecutor(2 * cores, DispatchExecutor.DEFAULT_QUEUE_SIZE), as its workers may wait for
+     *            storage locks
+     * @return This class
+     */
+    public ChannelServerConficuration dispatchExecutor(final DispatchExecutor dispatchExecutor) {
+        this.dispatchExecutor = dispatchExecutor;
+        return this;
+    }
+
+    /**
+     * @return True if the native epoll transport should be used, if available
+     */
+    public boolean isNativeTransport() {
+        return nativeTransport;
+    }
+
+    /**
+     * @param nativeTransport
+     *            Set to true to use the native epoll transport on Linux, with one UDP socket per event loop. It is off
+     *            by default, since it needs the netty-transport-native-epoll jar of a netty release with SO_REUSEPORT
+     *            on the classpath, which the netty release of TomP2P does not have. If it is not available, a warning
+     *            is logged and NIO with a single UDP socket is used
+     * @return This class
+     */
+    public ChannelServerConficuration nativeTransport(final boolean nativeTransport) {
+        this.nativeTransport = nativeTransport;
+        return this;
+    }
+
+    /**
+     * @return The number of event loops of the server, 0 for the netty default of twice the number of cores
+     */
+    public int workerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * @param workerThreads
+     *            The number of event loops of the server, 0 for the netty default of twice the number of cores. With
+     *            the native transport, this is also the number of UDP sockets
+     * @return This class
+     */
+    public ChannelServerConficuration workerThreads(final int workerThreads) {
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
     @Override
     public int connectionTimeoutTCPMillis() {
         return connectionTimeoutTCPMillis;
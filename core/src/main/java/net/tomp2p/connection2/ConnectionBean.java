@@ -31,7 +31,11 @@ public class ConnectionBean {
     public static final String THREAD_NAME = "NETTY-TOMP2P - ";
     public static final int DEFAULT_TCP_IDLE_SECONDS = 5;
     public static final int DEFAULT_UDP_IDLE_SECONDS = 5;
+    // the lower bound of the UDP timeout that adapts to the measured round-trip time of a peer
+    public static final int MIN_UDP_IDLE_SECONDS = 1;
     public static final int DEFAULT_CONNECTION_TIMEOUT_TCP = 3000;
+    // needs to be lower than the idle time of the server, otherwise the server closes pooled connections first
+    public static final int DEFAULT_POOLED_TCP_IDLE_MILLIS = 3000;
     public static final int UDP_LIMIT = 1400;
 
     private final int p2pId;
@@ -0,0 +1,597 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection2;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.message.Message2;
+import net.tomp2p.message.SHA1Signature;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Signs and verifies messages in a worker pool, so that the public key operations do not block the netty event loop.
+ * A message that needs verification is passed to the next handler in the pipeline, e.g., the {@link Dispatcher}, only
+ * once it has been verified. Verifications that queue up are processed in batches, where messages signed with the
+ * same public key share one initialized {@link Signature} instance. The {@link Signature} instances are cached per
+ * worker thread.
+ * <p>
+ * The workers may finish in any order, but the signed messages are written and the verified messages are passed on
+ * in the order they arrived on a channel. The number of messages that wait for a worker is bounded. If the stage is
+ * overloaded, a message to sign fails its promise and a message to verify is dropped, so that the requester runs into
+ * a timeout.
+ * </p>
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class CryptoStage {
+    private static final Logger LOG = LoggerFactory.getLogger(CryptoStage.class);
+
+    private static final int MAX_BATCH_SIZE = 64;
+
+    /**
+     * The number of messages to sign and the number of messages to verify that can wait for a worker.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    private static final int KEEP_ALIVE_SECONDS = 60;
+
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+            // a failed message is not passed on
+        }
+    };
+
+    private static final CryptoStage DEFAULT = new CryptoStage(Runtime.getRuntime().availableProcessors());
+
+    private final ThreadPoolExecutor executor;
+
+    private final int nrThreads;
+
+    private final int queueSize;
+
+    private final Queue<Verification> verifications;
+
+    // the messages of a channel in the order they arrived, only accessed in the event loop of the channel
+    private final ConcurrentMap<ChannelHandlerContext, Queue<InOrder>> inOrder =
+            new ConcurrentHashMap<ChannelHandlerContext, Queue<InOrder>>();
+
+    private final AtomicInteger pendingSigns = new AtomicInteger(0);
+
+    private final AtomicInteger scheduledDrains = new AtomicInteger(0);
+
+    private final ThreadLocal<Map<SignatureFactory, Signature>> signatures =
+            new ThreadLocal<Map<SignatureFactory, Signature>>() {
+                @Override
+                protected Map<SignatureFactory, Signature> initialValue() {
+                    return new IdentityHashMap<SignatureFactory, Signature>();
+                }
+            };
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            // a verification that arrives from now on schedules a new drain if all workers are busy
+            scheduledDrains.decrementAndGet();
+            drainVerifications();
+        }
+    };
+
+    // statistics
+    private final AtomicLong signed = new AtomicLong(0);
+    private final AtomicLong verified = new AtomicLong(0);
+    private final AtomicLong verifyFailed = new AtomicLong(0);
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    /**
+     * Creates a crypto stage with its own worker pool, where {@link #DEFAULT_QUEUE_SIZE} messages to sign and to verify
+     * can wait for a worker. The threads are daemon threads and are stopped if they are idle, thus, there is no need to
+     * shut down this stage.
+     *
+     * @param nrThreads
+     *            The maximum number of worker threads
+     */
+    public CryptoStage(final int nrThreads) {
+        this(nrThreads, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Creates a crypto stage with its own worker pool. The threads are daemon threads and are stopped if they are
+     * idle, thus, there is no need to shut down this stage.
+     *
+     * @param nrThreads
+     *            The maximum number of worker threads
+     * @param queueSize
+     *            The number of messages to sign and the number of messages to verify that can wait for a worker
+     *            before messages are rejected
+     */
+    public CryptoStage(final int nrThreads, final int queueSize) {
+        this.nrThreads = nrThreads;
+        this.queueSize = queueSize;
+        this.verifications = new ArrayBlockingQueue<Verification>(queueSize);
+        // at most queueSize sign tasks and one drain per worker are queued, so the pool never rejects a task
+        this.executor = new ThreadPoolExecutor(nrThreads, nrThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize + nrThreads), new DefaultThreadFactory(
+                        ConnectionBean.THREAD_NAME + "crypto - ", true));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return The crypto stage that is shared among all peers in this JVM. Its pool has one thread per core.
+     */
+    public static CryptoStage defaultCryptoStage() {
+        return DEFAULT;
+    }
+
+    /**
+     * Signs the buffer in the worker pool and appends the signature. Once done, the write task is executed in the
+     * event loop of the channel, after the write tasks of the messages that were signed before on this channel. If
+     * signing fails or the stage is overloaded, the buffer is released and the promise is failed. This method has to
+     * be called in the event loop of the channel.
+     *
+     * @param signatureFactory
+     *            The factory for the signature instances
+     * @param privateKey
+     *            The key to sign with
+     * @param buf
+     *            The encoded message. The caller must not access it until the write task is called
+     * @param ctx
+     *            The context of the channel, used to get back to the event loop
+     * @param promise
+     *            The promise that is failed if signing fails
+     * @param write
+     *            The task that writes the signed buffer
+     */
+    public void sign(final SignatureFactory signatureFactory, final PrivateKey privateKey, final ByteBuf buf,
+            final ChannelHandlerContext ctx, final ChannelPromise promise, final Runnable write) {
+        if (pendingSigns.incrementAndGet() > queueSize) {
+            pendingSigns.decrementAndGet();
+            dropped.incrementAndGet();
+            LOG.warn("crypto stage is overloaded, could not sign message");
+            buf.release();
+            if (promise != null) {
+                promise.setFailure(new IOException("crypto stage is overloaded"));
+            }
+            return;
+        }
+        final InOrder pending = inOrder(ctx);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pendingSigns.decrementAndGet();
+                Runnable done;
+                try {
+                    appendSignature(signature(signatureFactory), privateKey, buf);
+                    signed.incrementAndGet();
+                    done = write;
+                } catch (Exception e) {
+                    LOG.warn("could not sign message", e);
+                    buf.release();
+                    if (promise != null) {
+                        promise.setFailure(e);
+                    }
+                    done = NOTHING;
+                }
+                complete(pending, done);
+            }
+        });
+    }
+
+    /**
+     * Verifies the signature of a message in the worker pool. Once done, the message is passed to the next handler in
+     * the event loop of the channel, after the messages that arrived before on this channel. If the signature is
+     * correct, the received public key is set in the message, otherwise the message is passed on without a public key.
+     * If the stage is overloaded, the message is dropped. This method has to be called in the event loop of the
+     * channel.
+     *
+     * @param signatureFactory
+     *            The factory for the signature instances
+     * @param message
+     *            The decoded message with the received public key and signature
+     * @param signedBytes
+     *            The bytes that were signed. This buffer is released after the verification
+     * @param ctx
+     *            The context of the decoder, used to pass on the message
+     */
+    public void verify(final SignatureFactory signatureFactory, final Message2 message, final ByteBuf signedBytes,
+            final ChannelHandlerContext ctx) {
+        final Verification verification = new Verification(signatureFactory, message, signedBytes, ctx,
+                inOrder(ctx));
+        if (!verifications.offer(verification)) {
+            dropped.incrementAndGet();
+            LOG.warn("crypto stage is overloaded, drop message {}", message);
+            signedBytes.release();
+            complete(verification.inOrder, NOTHING);
+            return;
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Schedules a drain of the verifications, unless every worker already has one scheduled.
+     */
+    private void scheduleDrain() {
+        int scheduled;
+        do {
+            scheduled = scheduledDrains.get();
+            if (scheduled >= nrThreads) {
+                return;
+            }
+        } while (!scheduledDrains.compareAndSet(scheduled, scheduled + 1));
+        executor.execute(drain);
+    }
+
+    /**
+     * Takes the pending verifications and groups them by public key. The signature instance is initialized only once
+     * per key, since a verification resets the instance to the state after {@link Signature#initVerify(PublicKey)}.
+     */
+    private void drainVerifications() {
+        final Map<PublicKey, List<Verification>> batch = new LinkedHashMap<PublicKey, List<Verification>>();
+        int size = 0;
+        Verification verification;
+        while (size < MAX_BATCH_SIZE && (verification = verifications.poll()) != null) {
+            final PublicKey publicKey = verification.message.receivedPublicKey();
+            List<Verification> list = batch.get(publicKey);
+            if (list == null) {
+                list = new ArrayList<Verification>();
+                batch.put(publicKey, list);
+            }
+            list.add(verification);
+            size++;
+        }
+        if (size == 0) {
+            // another drain already took our verification
+            return;
+        }
+        batches.incrementAndGet();
+        for (Map.Entry<PublicKey, List<Verification>> entry : batch.entrySet()) {
+            Signature signature = null;
+            SignatureFactory signatureFactory = null;
+            for (Verification pending : entry.getValue()) {
+                boolean success = false;
+                try {
+                    if (signature == null || signatureFactory != pending.signatureFactory) {
+                        signatureFactory = pending.signatureFactory;
+                        signature = signature(signatureFactory);
+                        signature.initVerify(entry.getKey());
+                    }
+                    success = verify(signature, pending.message, pending.signedBytes);
+                } catch (Exception e) {
+                    LOG.warn("could not verify message {}", pending.message, e);
+                    // the state of the signature instance is undefined, initialize it again
+                    signature = null;
+                } finally {
+                    pending.signedBytes.release();
+                }
+                finish(pending.message, success);
+                final Verification done = pending;
+                complete(done.inOrder, new Runnable() {
+                    @Override
+                    public void run() {
+                        done.ctx.fireChannelRead(done.message);
+                    }
+                });
+            }
+        }
+        if (!verifications.isEmpty()) {
+            // more verifications than a batch can hold, continue in the pool
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Adds a message to the queue of its channel. Must be called in the event loop of the channel.
+     *
+     * @param ctx
+     *            The context of the channel
+     * @return The entry that is completed once the message is signed or verified
+     */
+    private InOrder inOrder(final ChannelHandlerContext ctx) {
+        Queue<InOrder> queue = inOrder.get(ctx);
+        if (queue == null) {
+            queue = new ArrayDeque<InOrder>();
+            inOrder.put(ctx, queue);
+        }
+        final InOrder pending = new InOrder(ctx);
+        queue.add(pending);
+        return pending;
+    }
+
+    /**
+     * Sets the task that passes on a signed or verified message and runs the tasks of the channel that are ready.
+     *
+     * @param pending
+     *            The entry of the message
+     * @param task
+     *            The task that is run in the event loop, once all messages that arrived before are passed on
+     */
+    private void complete(final InOrder pending, final Runnable task) {
+        pending.task = task;
+        pending.ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                flush(pending.ctx);
+            }
+        });
+    }
+
+    /**
+     * Runs the tasks at the head of the queue of a channel that are ready. Must be called in the event loop of the
+     * channel.
+     *
+     * @param ctx
+     *            The context of the channel
+     */
+    private void flush(final ChannelHandlerContext ctx) {
+        final Queue<InOrder> queue = inOrder.get(ctx);
+        if (queue == null) {
+            return;
+        }
+        InOrder head;
+        while ((head = queue.peek()) != null && head.task != null) {
+            queue.poll();
+            try {
+                head.task.run();
+            } catch (RuntimeException e) {
+                LOG.warn("could not pass on a message", e);
+            }
+        }
+        if (queue.isEmpty()) {
+            inOrder.remove(ctx);
+        }
+    }
+
+    /**
+     * Sets the public key if the verification was successful.
+     *
+     * @param message
+     *            The verified message
+     * @param success
+     *            True if the signature was correct
+     */
+    private void finish(final Message2 message, final boolean success) {
+        if (success) {
+            verified.incrementAndGet();
+            // set public key only if signature is correct
+            message.setPublicKey(message.receivedPublicKey());
+            LOG.debug("signature check ok");
+        } else {
+            verifyFailed.incrementAndGet();
+            LOG.debug("wrong signature!");
+        }
+    }
+
+    /**
+     * Verifies the signature of a message in the calling thread.
+     *
+     * @param signatureFactory
+     *            The factory for the signature instances
+     * @param message
+     *            The decoded message with the received public key and signature
+     * @param signedBytes
+     *            The bytes that were signed
+     * @throws InvalidKeyException
+     *             If the received public key is not valid
+     * @throws SignatureException
+     *             If the signature could not be verified
+     * @throws IOException
+     *             If the signature could not be encoded
+     */
+    public static void verifyInline(final SignatureFactory signatureFactory, final Message2 message,
+            final ByteBuf signedBytes) throws InvalidKeyException, SignatureException, IOException {
+        final Signature signature = signatureFactory.signatureInstance();
+        signature.initVerify(message.receivedPublicKey());
+        if (verify(signature, message, signedBytes)) {
+            message.setPublicKey(message.receivedPublicKey());
+            LOG.debug("signature check ok");
+        } else {
+            LOG.debug("wrong signature!");
+        }
+    }
+
+    /**
+     * Signs the buffer and appends the signature.
+     *
+     * @param signature
+     *            The signature instance
+     * @param privateKey
+     *            The key to sign with
+     * @param buf
+     *            The encoded message
+     * @throws InvalidKeyException
+     *             If the private key is not valid
+     * @throws SignatureException
+     *             If signing failed
+     * @throws IOException
+     *             If the signature could not be decoded
+     */
+    public static void appendSignature(final Signature signature, final PrivateKey privateKey, final ByteBuf buf)
+            throws InvalidKeyException, SignatureException, IOException {
+        signature.initSign(privateKey);
+        for (ByteBuffer buffer : buf.nioBuffers()) {
+            signature.update(buffer);
+        }
+        byte[] signatureData = signature.sign();
+        SHA1Signature decodedSignature = new SHA1Signature();
+        decodedSignature.decode(signatureData);
+        decodedSignature.getNumber1().toByteBuf(buf);
+        decodedSignature.getNumber2().toByteBuf(buf);
+    }
+
+    /**
+     * @param signature
+     *            The signature instance, initialized for verification
+     * @param message
+     *            The message with the received signature
+     * @param signedBytes
+     *            The bytes that were signed
+     * @return True if the signature is correct
+     * @throws SignatureException
+     *             If the signature could not be verified
+     * @throws IOException
+     *             If the signature could not be encoded
+     */
+    private static boolean verify(final Signature signature, final Message2 message, final ByteBuf signedBytes)
+            throws SignatureException, IOException {
+        for (ByteBuffer buffer : signedBytes.nioBuffers()) {
+            signature.update(buffer);
+        }
+        return signature.verify(message.receivedSignature().encode());
+    }
+
+    /**
+     * @param signatureFactory
+     *            The factory for the signature instances
+     * @return The signature instance of this thread
+     */
+    private Signature signature(final SignatureFactory signatureFactory) {
+        final Map<SignatureFactory, Signature> cache = signatures.get();
+        Signature signature = cache.get(signatureFactory);
+        if (signature == null) {
+            signature = signatureFactory.signatureInstance();
+            cache.put(signatureFactory, signature);
+        }
+        return signature;
+    }
+
+    /**
+     * @return The number of signed messages
+     */
+    public long signedCount() {
+        return signed.get();
+    }
+
+    /**
+     * @return The number of messages with a correct signature
+     */
+    public long verifiedCount() {
+        return verified.get();
+    }
+
+    /**
+     * @return The number of messages with a wrong signature
+     */
+    public long verifyFailedCount() {
+        return verifyFailed.get();
+    }
+
+    /**
+     * @return The number of verification batches. Together with the number of verified messages, this gives the
+     *         average batch size
+     */
+    public long batchCount() {
+        return batches.get();
+    }
+
+    /**
+     * @return The number of messages that were dropped or failed because the stage was overloaded
+     */
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The number of tasks waiting for a worker
+     */
+    public int queueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * A message of a channel that is passed on once it and all messages that arrived before are done.
+     *
+     * @author Thomas Bocek
+     *
+     */
+    private static final class InOrder {
+        private final ChannelHandlerContext ctx;
+        // set by the worker once the message is done
+        private volatile Runnable task = null;
+
+        /**
+         * @param ctx
+         *            The context of the channel
+         */
+        private InOrder(final ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+    }
+
+    /**
+     * A message that waits for its verification.
+     *
+     * @author Thomas Bocek
+     *
+     */
+    private static final class Verification {
+        private final SignatureFactory signatureFactory;
+        private final Message2 message;
+        private final ByteBuf signedBytes;
+        private final ChannelHandlerContext ctx;
+        private final InOrder inOrder;
+
+        /**
+         * @param signatureFactory
+         *            The factory for the signature instances
+         * @param message
+         *            The decoded message
+         * @param signedBytes
+         *            The bytes that were signed
+         * @param ctx
+         *            The context of the decoder
+         * @param inOrder
+         *            The entry in the queue of the channel
+         */
+        private Verification(final SignatureFactory signatureFactory, final Message2 message,
+                final ByteBuf signedBytes, final ChannelHandlerContext ctx, final InOrder inOrder) {
+            this.signatureFactory = signatureFactory;
+            this.message = message;
+            this.signedBytes = signedBytes;
+            this.ctx = ctx;
+            this.inOrder = inOrder;
+        }
+    }
+}
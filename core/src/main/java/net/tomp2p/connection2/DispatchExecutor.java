@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection2;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded worker pool for the {@link Dispatcher}, so that RPCs that access the storage or call user code do not block
+ * the netty event loop. The queue is bounded: if all workers are busy and the queue is full, a request is rejected
+ * and the {@link Dispatcher} replies with {@link net.tomp2p.message.Message2.Type#BUSY}, which tells the requester that
+ * this peer is overloaded rather than offline.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class DispatchExecutor {
+
+    /**
+     * A queue size for a peer, the number of requests that can wait for a worker.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    private static final int KEEP_ALIVE_SECONDS = 60;
+
+    private final ThreadPoolExecutor executor;
+
+    // statistics
+    private final AtomicLong executed = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicInteger maxQueueSize = new AtomicInteger(0);
+
+    /**
+     * Creates a dispatch executor with its own worker pool. The threads are daemon threads and are stopped if they are
+     * idle, thus, there is no need to shut down this executor.
+     *
+     * @param nrThreads
+     *            The maximum number of worker threads
+     * @param queueSize
+     *            The number of requests that can wait for a worker before requests are rejected
+     */
+    public DispatchExecutor(final int nrThreads, final int queueSize) {
+        this.executor = new ThreadPoolExecutor(nrThreads, nrThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new DefaultThreadFactory(ConnectionBean.THREAD_NAME
+                        + "dispatch - ", true));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the task in the worker pool.
+     *
+     * @param task
+     *            The task that handles a request
+     * @return True if the task was queued, false if the queue is full and the task was rejected
+     */
+    public boolean execute(final Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        executed.incrementAndGet();
+        final int queueSize = queueSize();
+        int max = maxQueueSize.get();
+        while (queueSize > max && !maxQueueSize.compareAndSet(max, queueSize)) {
+            max = maxQueueSize.get();
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of requests that were handed to the worker pool
+     */
+    public long executedCount() {
+        return executed.get();
+    }
+
+    /**
+     * @return The number of requests that were rejected because the queue was full
+     */
+    public long rejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return The number of requests waiting for a worker
+     */
+    public int queueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return The largest number of requests that were waiting for a worker at the same time
+     */
+    public int maxQueueSize() {
+        return maxQueueSize.get();
+    }
+
+    /**
+     * @return The number of workers that currently handle a request
+     */
+    public int activeCount() {
+        return executor.getActiveCount();
+    }
+}
@@ -22,6 +22,8 @@ import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.ChannelHandler.Sharable;
@@ -40,6 +42,11 @@ import net.tomp2p.rpc.DispatchHandler;
  * You probably want to add an instance of this class to the end of a pipeline to be able to receive messages. This
  * class is able to cover several channels but only one P2P network!
  * </p>
+ * <p>
+ * By default, a request is handled in the netty event loop. Commands can be assigned to a {@link DispatchExecutor},
+ * whose bounded worker pool handles them instead. If its queue is full, the request is answered with
+ * {@link Type#BUSY}.
+ * </p>
  * 
  * @author Thomas Bocek
  */
@@ -53,6 +60,9 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message2> {
 
     private volatile Map<Number160, Map<Integer, DispatchHandler>> ioHandlers = new HashMap<Number160, Map<Integer, DispatchHandler>>();
 
+    // commands that are not in this map are handled in the event loop
+    private volatile Map<Integer, DispatchExecutor> executors = Collections.emptyMap();
+
     /**
      * Constructor.
      * 
@@ -96,6 +106,38 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message2> {
         ioHandlers = Collections.unmodifiableMap(copy);
     }
 
+    /**
+     * Sets the execution policy for commands. Requests with these commands are handled in the worker pool of the
+     * executor instead of the netty event loop. Cheap RPCs, such as ping, should stay in the event loop, as handing
+     * them over costs more than handling them. This method is thread-safe, and uses copy on write as its expected to
+     * run this only during initialization.
+     * 
+     * @param executor
+     *            The executor for the commands, or null to handle them in the event loop
+     * @param commands
+     *            The commands of the {@link Message2} that are handled by the executor
+     */
+    public void executor(final DispatchExecutor executor, final int... commands) {
+        Map<Integer, DispatchExecutor> copy = new HashMap<Integer, DispatchExecutor>(executors);
+        for (Integer command : commands) {
+            if (executor == null) {
+                copy.remove(command);
+            } else {
+                copy.put(command, executor);
+            }
+        }
+        executors = Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * @param command
+     *            The command of a {@link Message2}
+     * @return The executor that handles requests with this command, or null if they are handled in the event loop
+     */
+    public DispatchExecutor executor(final int command) {
+        return executors.get(command);
+    }
+
     /**
      * If we shutdown, we remove the handlers. This means that a server may respond that the handler is unknown.
      * 
@@ -125,28 +167,61 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message2> {
             }
             return;
         }
-        Message2 responseMessage = null;
         final DispatchHandler myHandler = getAssociatedHandler(message);
         if (myHandler != null) {
-            LOG.debug("about to respond to {}", message);
-            responseMessage = myHandler.forwardMessage(message);
-            if (responseMessage == null) {
-                LOG.warn("Repsonse message was null, probaly a custom handler failed {}", message);
-                responseMessage = DispatchHandler.createResponseMessage(message, Type.EXCEPTION,peerBean.serverPeerAddress());
-                response(ctx, responseMessage);
-            } else if (responseMessage == message) {
-            	 LOG.debug("The reply handler was a fire-and-forget handler, "
-                         + "we don't send any message back! {}", message);    
-                if (!(ctx.channel() instanceof DatagramChannel)) {
-                    LOG.warn("There is no TCP fire and forget, use UDP in that case {}", message);
-                	throw new RuntimeException("There is no TCP fire and forget, use UDP in that case.");
+            final DispatchExecutor executor = executors.get(Integer.valueOf(message.getCommand()));
+            if (executor == null) {
+                handle(ctx, myHandler, message);
+            } else if (!executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handle(ctx, myHandler, message);
+                    } catch (RuntimeException e) {
+                        ctx.fireExceptionCaught(e);
+                    }
+                }
+            })) {
+                LOG.debug("Queue is full, we are too busy for {}", message);
+                if (!message.isFireAndForget()) {
+                    response(ctx, DispatchHandler.createResponseMessage(message, Type.BUSY,
+                            peerBean.serverPeerAddress()));
                 }
-            } else {
-                response(ctx, responseMessage);
             }
         } else {
             LOG.debug("No handler found for {}. Probably we have shutdown this peer.", message);
-            responseMessage = DispatchHandler.createResponseMessage(message, Type.UNKNOWN_ID, peerBean.serverPeerAddress());
+            Message2 responseMessage = DispatchHandler.createResponseMessage(message, Type.UNKNOWN_ID,
+                    peerBean.serverPeerAddress());
+            response(ctx, responseMessage);
+        }
+    }
+
+    /**
+     * Forwards the request to its handler and sends the reply. This is called either in the event loop or in the
+     * worker pool of a {@link DispatchExecutor}.
+     * 
+     * @param ctx
+     *            The channel context
+     * @param myHandler
+     *            The handler of the request
+     * @param message
+     *            The request
+     */
+    private void handle(final ChannelHandlerContext ctx, final DispatchHandler myHandler, final Message2 message) {
+        LOG.debug("about to respond to {}", message);
+        Message2 responseMessage = myHandler.forwardMessage(message);
+        if (responseMessage == null) {
+            LOG.warn("Repsonse message was null, probaly a custom handler failed {}", message);
+            responseMessage = DispatchHandler.createResponseMessage(message, Type.EXCEPTION,
+                    peerBean.serverPeerAddress());
+            response(ctx, responseMessage);
+        } else if (responseMessage == message) {
+            LOG.debug("The reply handler was a fire-and-forget handler, we don't send any message back! {}", message);
+            if (!(ctx.channel() instanceof DatagramChannel)) {
+                LOG.warn("There is no TCP fire and forget, use UDP in that case {}", message);
+                throw new RuntimeException("There is no TCP fire and forget, use UDP in that case.");
+            }
+        } else {
             response(ctx, responseMessage);
         }
     }
@@ -167,6 +242,7 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message2> {
             // this will cause an exception that will be logged.
             if (!ctx.channel().isOpen()) {
                 LOG.debug("channel UDP is not open, do not reply {}", response);
+                response.releaseData();
                 return;
             }
             LOG.debug("reply UDP message {}", response);
@@ -176,11 +252,18 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message2> {
             // this will cause an exception that will be logged.
             if (!ctx.channel().isActive()) {
                 LOG.debug("channel TCP is not open, do not reply {}", response);
+                response.releaseData();
                 return;
             }
             LOG.debug("reply TCP message {} to {}", response, ctx.channel().remoteAddress());
         }
-        ctx.channel().writeAndFlush(response);
+        // the data of the reply is encoded once the write completes, then we release the references it holds
+        ctx.channel().writeAndFlush(response).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                response.releaseData();
+            }
+        });
     }
 
     /**
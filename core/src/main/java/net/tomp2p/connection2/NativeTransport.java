@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection2;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to the native epoll transport of netty, which is only available on Linux with the netty-transport-native-epoll
+ * jar on the classpath. The classes are loaded by reflection, thus, TomP2P does not depend on this jar. With the epoll
+ * transport, several UDP sockets can be bound to the same port with SO_REUSEPORT, and the kernel distributes the
+ * incoming packets among them. This way, each event loop reads from its own socket.
+ *
+ * @author Thomas Bocek
+ *
+ */
+final class NativeTransport {
+    private static final Logger LOG = LoggerFactory.getLogger(NativeTransport.class);
+
+    private static final String PACKAGE = "io.netty.channel.epoll.";
+
+    private static final boolean AVAILABLE = checkAvailable();
+
+    /**
+     * Utility class.
+     */
+    private NativeTransport() {
+    }
+
+    /**
+     * @return True if the epoll transport can be used on this system
+     */
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * @param nThreads
+     *            The number of event loops, 0 for the netty default
+     * @param threadFactory
+     *            The factory for the event loop threads
+     * @return A new epoll event loop group
+     */
+    static EventLoopGroup eventLoopGroup(final int nThreads, final ThreadFactory threadFactory) {
+        try {
+            return (EventLoopGroup) Class.forName(PACKAGE + "EpollEventLoopGroup")
+                    .getConstructor(int.class, ThreadFactory.class).newInstance(nThreads, threadFactory);
+        } catch (Exception e) {
+            throw new IllegalStateException("epoll transport not available", e);
+        }
+    }
+
+    /**
+     * @return The epoll datagram channel class
+     */
+    static Class<? extends Channel> datagramChannel() {
+        return channelClass("EpollDatagramChannel", Channel.class);
+    }
+
+    /**
+     * @return The epoll server socket channel class
+     */
+    static Class<? extends ServerChannel> serverSocketChannel() {
+        return channelClass("EpollServerSocketChannel", ServerChannel.class);
+    }
+
+    /**
+     * @return The channel option to set SO_REUSEPORT
+     */
+    @SuppressWarnings("unchecked")
+    static ChannelOption<Boolean> reusePort() {
+        try {
+            return (ChannelOption<Boolean>) Class.forName(PACKAGE + "EpollChannelOption").getField("SO_REUSEPORT")
+                    .get(null);
+        } catch (Exception e) {
+            throw new IllegalStateException("epoll transport not available", e);
+        }
+    }
+
+    private static <T> Class<? extends T> channelClass(final String name, final Class<T> type) {
+        try {
+            return Class.forName(PACKAGE + name).asSubclass(type);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("epoll transport not available", e);
+        }
+    }
+
+    private static boolean checkAvailable() {
+        try {
+            final boolean available = (Boolean) Class.forName(PACKAGE + "Epoll").getMethod("isAvailable")
+                    .invoke(null);
+            // SO_REUSEPORT is not in the first releases of the epoll transport
+            Class.forName(PACKAGE + "EpollChannelOption").getField("SO_REUSEPORT");
+            return available;
+        } catch (Throwable t) {
+            LOG.debug("epoll transport not available, using NIO", t);
+            return false;
+        }
+    }
+}
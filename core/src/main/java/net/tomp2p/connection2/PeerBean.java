@@ -24,6 +24,7 @@ import net.tomp2p.peers.PeerStatusListener;
 import net.tomp2p.replication.Replication;
 import net.tomp2p.replication.ReplicationExecutor;
 import net.tomp2p.rpc.BloomfilterFactory;
+import net.tomp2p.storage.Serializer;
 import net.tomp2p.storage.StorageGeneric;
 import net.tomp2p.storage.TrackerStorage;
 
@@ -46,6 +47,7 @@ public class PeerBean {
     private BloomfilterFactory bloomfilterFactory;
     private MaintenanceTask maintenanceTask;
     private ReplicationExecutor replicationExecutor;
+    private Serializer serializer;
     /*
      * private Statistics statistics; private Peer peer;
      */
@@ -219,4 +221,13 @@ public class PeerBean {
         this.replicationExecutor = replicationExecutor;
         return this;
     }
+
+    public Serializer serializer() {
+        return serializer;
+    }
+
+    public PeerBean serializer(final Serializer serializer) {
+        this.serializer = serializer;
+        return this;
+    }
 }
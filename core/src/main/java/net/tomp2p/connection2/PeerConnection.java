@@ -15,13 +15,31 @@ public class PeerConnection {
     final private PeerAddress remotePeer;
     final private ChannelCreator cc;
 
+    // if set, many requests can be in flight on this connection and the replies are matched by their message id
+    final private RequestMultiplexer requestMultiplexer;
+
     //these may be called from different threads, but they will never be called concurrently within this library
     private volatile FutureResponse futureResponse;
     private volatile ChannelFuture channelFuture;
 
     public PeerConnection(PeerAddress remotePeer, ChannelCreator cc) {
+        this(remotePeer, cc, null);
+    }
+
+    /**
+     * Creates a connection that can be used for several requests.
+     * 
+     * @param remotePeer
+     *            The peer to connect to
+     * @param cc
+     *            The channel creator with one permanent TCP permit
+     * @param requestMultiplexer
+     *            The multiplexer for pipelined requests or null if only one request at a time is allowed
+     */
+    public PeerConnection(PeerAddress remotePeer, ChannelCreator cc, RequestMultiplexer requestMultiplexer) {
         this.remotePeer = remotePeer;
         this.cc = cc;
+        this.requestMultiplexer = requestMultiplexer;
     }
 
     public FutureDone<Void> close() {
@@ -29,6 +47,11 @@ public class PeerConnection {
     }
 
     public ChannelCreator acquire(final FutureResponse futureResponse) {
+        if (isPipelined()) {
+            // no need to wait for the previous request, the replies are matched by their message id and the
+            // multiplexer keeps the future of each request in flight
+            return cc;
+        }
         if (oneConnection.tryAcquire()) {
             this.futureResponse = futureResponse;
             return cc;
@@ -38,7 +61,9 @@ public class PeerConnection {
     }
 
     public PeerConnection release() {
-        oneConnection.release();
+        if (!isPipelined()) {
+            oneConnection.release();
+        }
         return this;
     }
 
@@ -55,10 +80,25 @@ public class PeerConnection {
         return this;
     }
 
+    /**
+     * @return True if several requests can be in flight on this connection
+     */
+    public boolean isPipelined() {
+        return requestMultiplexer != null;
+    }
+
+    /**
+     * @return The multiplexer for pipelined requests or null if only one request at a time is allowed
+     */
+    public RequestMultiplexer requestMultiplexer() {
+        return requestMultiplexer;
+    }
+
     /**
      * @return The current future that is being used. If you try to call {@link #acquire(FutureResponse)} and the other
      *         future has not finished yet, the new future will be ignored. This method may return null if no future has
-     *         been set. Once this connection is used, there will always be a future response.
+     *         been set. Once this connection is used, there will always be a future response. A pipelined connection
+     *         has no current future, see {@link RequestMultiplexer#pendingResponses()} instead.
      */
     public FutureResponse currentFutureResponse() {
         return futureResponse;
@@ -100,7 +100,22 @@ public class PeerCreator {
             LOG.info("Visible address to other peers: " + self);
         }
 
-        Sender sender = new Sender(peerStatusListeners, channelClientConfiguration);
+        final ChannelMultiplexerUDP channelMultiplexerUDP;
+        if (channelClientConfiguration.isSharedUDP()) {
+            channelMultiplexerUDP = new ChannelMultiplexerUDP(workerGroup, channelClientConfiguration,
+                    peerStatusListeners, timer);
+            channelMultiplexerUDP.startup();
+        } else {
+            channelMultiplexerUDP = null;
+        }
+        final ChannelPoolTCP channelPoolTCP;
+        if (channelClientConfiguration.maxPooledTCP() > 0) {
+            channelPoolTCP = new ChannelPoolTCP(channelClientConfiguration);
+        } else {
+            channelPoolTCP = null;
+        }
+        Sender sender = new Sender(peerStatusListeners, channelClientConfiguration, channelMultiplexerUDP,
+                channelPoolTCP);
 
         NATUtils natUtils = new NATUtils();
         connectionBean = new ConnectionBean(p2pId, dispatcher, sender, channelServer, reservation,
@@ -162,16 +177,12 @@ public class PeerCreator {
         final AtomicInteger listenerCounter = new AtomicInteger(0);
         LOG.debug("starting shutdown done in client...");
         connectionBean.reservation().shutdown().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
-            @SuppressWarnings({ "unchecked", "rawtypes" })
             @Override
             public void operationComplete(final FutureDone<Void> future) throws Exception {
-                workerGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).addListener(new GenericFutureListener() {
+                connectionBean.sender().shutdown().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
                     @Override
-                    public void operationComplete(final Future future) throws Exception {
-                        LOG.debug("shutdown done in client...");
-                        if (listenerCounter.incrementAndGet() == maxListeners) {
-                            shutdownFuture().setDone();
-                        }
+                    public void operationComplete(final FutureDone<Void> future) throws Exception {
+                        shutdownWorkerGroup(listenerCounter, maxListeners);
                     }
                 });
             }
@@ -190,6 +201,27 @@ public class PeerCreator {
         return shutdownFuture();
     }
 
+    /**
+     * Shutdown the client worker group, this is the last step of the client side shutdown.
+     * 
+     * @param listenerCounter
+     *            The counter of the completed shutdown steps
+     * @param maxListeners
+     *            The number of shutdown steps
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void shutdownWorkerGroup(final AtomicInteger listenerCounter, final int maxListeners) {
+        workerGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).addListener(new GenericFutureListener() {
+            @Override
+            public void operationComplete(final Future future) throws Exception {
+                LOG.debug("shutdown done in client...");
+                if (listenerCounter.incrementAndGet() == maxListeners) {
+                    shutdownFuture().setDone();
+                }
+            }
+        });
+    }
+
     /**
      * @return The shutdown future that is used when calling {@link #shutdown()}
      */
@@ -22,6 +22,8 @@ import io.netty.util.concurrent.GenericFutureListener;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.message.Message2;
 import net.tomp2p.message.MessageID;
+import net.tomp2p.peers.PeerStatatistic;
+import net.tomp2p.utils.Timings;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,6 +56,12 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
     private final int idleUDPSeconds; // = ConnectionBean.DEFAULT_UDP_IDLE_SECONDS;
     private final int connectionTimeoutTCPMillis; // = ConnectionBean.DEFAULT_CONNECTION_TIMEOUT_TCP;
 
+    // true if the recipient replies without waiting for a worker, the disk, or user code
+    private boolean adaptiveIdleUDP = false;
+
+    // the time the UDP request was sent to measure the round-trip time, 0 if not measured
+    private volatile long sendTimeUDP = 0;
+
     /**
      * Create a request handler that can send UDP messages.
      * 
@@ -120,6 +128,28 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
         return connectionTimeoutTCPMillis;
     }
 
+    /**
+     * Lets the UDP timeout of this request adapt to the round-trip times of the recipient, and measures the round-trip
+     * time of the reply. Only set this for requests that the recipient answers right away, such as neighbor requests.
+     * A request that waits for a worker, the disk, or user code on the recipient would time out too early, and its
+     * reply would distort the round-trip times. By default, a request uses the configured idle time.
+     * 
+     * @param adaptiveIdleUDP
+     *            True if the UDP timeout adapts to the round-trip times of the recipient
+     * @return This class
+     */
+    public RequestHandler<K> adaptiveIdleUDP(final boolean adaptiveIdleUDP) {
+        this.adaptiveIdleUDP = adaptiveIdleUDP;
+        return this;
+    }
+
+    /**
+     * @return True if the UDP timeout adapts to the round-trip times of the recipient
+     */
+    public boolean isAdaptiveIdleUDP() {
+        return adaptiveIdleUDP;
+    }
+
     /**
      * Send a UDP message and expect a reply.
      * 
@@ -128,10 +158,35 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
      * @return The future that was added in the constructor
      */
     public K sendUDP(final ChannelCreator channelCreator) {
-        connectionBean.sender().sendUDP(this, futureResponse, message, channelCreator, idleUDPSeconds, false);
+        final int timeoutSeconds;
+        if (adaptiveIdleUDP) {
+            timeoutSeconds = adaptiveIdleUDPSeconds();
+            sendTimeUDP = Timings.currentTimeMillis();
+        } else {
+            timeoutSeconds = idleUDPSeconds;
+        }
+        connectionBean.sender().sendUDP(this, futureResponse, message, channelCreator, timeoutSeconds, false);
         return futureResponse;
     }
 
+    /**
+     * The timeout for a UDP request depends on the round-trip times measured for the recipient. The timeout is the
+     * retransmission timeout of RFC 6298 rounded up to seconds, at least
+     * {@link ConnectionBean#MIN_UDP_IDLE_SECONDS} and at most the configured idle time. This is only used for
+     * requests that opted in with {@link #adaptiveIdleUDP(boolean)}, thus, only their replies are measured.
+     * 
+     * @return The time in seconds until a UDP request fails
+     */
+    private int adaptiveIdleUDPSeconds() {
+        final PeerStatatistic peerStatatistic = peerBean.peerMap().peerStatistic(message.getRecipient());
+        final long rto = peerStatatistic == null ? -1 : peerStatatistic.getRTO();
+        if (rto < 0) {
+            return idleUDPSeconds;
+        }
+        final int seconds = (int) ((rto + 999) / 1000);
+        return Math.min(idleUDPSeconds, Math.max(ConnectionBean.MIN_UDP_IDLE_SECONDS, seconds));
+    }
+
     /**
      * Send a UDP message and don't expect a reply.
      * 
@@ -184,6 +239,85 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
 
     @Override
     public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+        handleException(cause);
+        LOG.debug("report failure", cause);
+        if(futureResponse.setFailedLater(cause)) {
+            reportFailed(ctx.close());
+        } else {
+        	ctx.close();
+        }
+        
+    }
+
+    @Override
+    protected void channelRead0(final ChannelHandlerContext ctx, final Message2 responseMessage)
+            throws Exception {
+        final PeerException error = checkResponse(responseMessage);
+        if (error != null) {
+            exceptionCaught(ctx, error);
+            return;
+        }
+        if (!handleResponse(responseMessage)) {
+            return;
+        }
+
+        if (!message.isKeepAlive()) {
+            if (connectionBean.sender().releaseTCP(ctx.channel(), message.getRecipient())) {
+                // the connection stays open in the pool, nothing to wait for
+                LOG.debug("connection returned to the pool {}", responseMessage);
+                futureResponse.setResponse(responseMessage);
+                return;
+            }
+            //set the success now, but trigger the notify when we closed the channel.
+            if (futureResponse.setResponseLater(responseMessage)) {
+                LOG.debug("close channel {}", responseMessage);
+                reportMessage(ctx.close(), responseMessage);
+            } else {
+            	ctx.close();
+            }
+        } else {
+            futureResponse.setResponse(responseMessage);
+        }
+    }
+
+    /**
+     * Called by {@link ChannelMultiplexerUDP} if a reply arrived on the shared UDP channel. The channel stays open,
+     * thus the future is set directly.
+     * 
+     * @param responseMessage
+     *            The reply that matched the message id of our request
+     */
+    void responseShared(final Message2 responseMessage) {
+        final PeerException error = checkResponse(responseMessage);
+        if (error != null) {
+            exceptionShared(error);
+            return;
+        }
+        if (handleResponse(responseMessage)) {
+            futureResponse.setResponse(responseMessage);
+        }
+    }
+
+    /**
+     * Called by {@link ChannelMultiplexerUDP} if the request on the shared UDP channel failed. The channel stays open,
+     * thus the future is set directly.
+     * 
+     * @param cause
+     *            The cause of the failure
+     */
+    void exceptionShared(final Throwable cause) {
+        handleException(cause);
+        LOG.debug("report failure", cause);
+        futureResponse.setFailed(cause);
+    }
+
+    /**
+     * Marks the peer as failed depending on the cause.
+     * 
+     * @param cause
+     *            The cause of the failure
+     */
+    private void handleException(final Throwable cause) {
         LOG.debug("Error originating from: {}, cause {}", futureResponse.getRequest(), cause);
         if (futureResponse.isCompleted()) {
             LOG.warn("Got exception, but ignored (future response completed): {}",
@@ -214,65 +348,66 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
                 peerBean.peerMap().peerFailed(futureResponse.getRequest().getRecipient(), true);
             }
         }
-        
-        LOG.debug("report failure", cause);
-        if(futureResponse.setFailedLater(cause)) {
-            reportFailed(ctx.close());
-        } else {
-        	ctx.close();
-        }
-        
     }
 
-    @Override
-    protected void channelRead0(final ChannelHandlerContext ctx, final Message2 responseMessage)
-            throws Exception {
+    /**
+     * Checks if the reply is an error or does not belong to our request.
+     * 
+     * @param responseMessage
+     *            The reply
+     * @return The exception to report or null if the reply is fine
+     */
+    private PeerException checkResponse(final Message2 responseMessage) {
         MessageID recvMessageID = new MessageID(responseMessage);
         // Error handling
         if (responseMessage.getType() == Message2.Type.UNKNOWN_ID) {
             String msg = "Message was not delivered successfully, unknow id (peer may be offline): " + this.message;
-            exceptionCaught(ctx, new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
-            return;
+            return new PeerException(PeerException.AbortCause.PEER_ABORT, msg);
         } else if (responseMessage.getType() == Message2.Type.EXCEPTION) {
             String msg = "Message caused an exception on the other side, handle as peer_abort: "
                     + this.message;
-            exceptionCaught(ctx, new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
-            return;
+            return new PeerException(PeerException.AbortCause.PEER_ABORT, msg);
         } else if (!sendMessageID.equals(recvMessageID)) {
             String msg = "Message [" + responseMessage
                     + "] sent to the node is not the same as we expect. We sent [" + this.message + "]";
-            exceptionCaught(ctx, new PeerException(PeerException.AbortCause.PEER_ABORT, msg));
-            return;
+            return new PeerException(PeerException.AbortCause.PEER_ABORT, msg);
         }
+        return null;
+    }
 
-        
-
-        // We got a good answer, let's mark the sender as alive
-        if (responseMessage.isOk() || responseMessage.isNotOk()) {
+    /**
+     * Marks the sender as alive and forwards the reply to the progress listener.
+     * 
+     * @param responseMessage
+     *            The reply
+     * @return True if the reply is complete, false if its still streaming
+     */
+    private boolean handleResponse(final Message2 responseMessage) {
+        // We got a good answer, let's mark the sender as alive. A busy peer is alive as well, the future fails anyway
+        if (responseMessage.isOk() || responseMessage.isNotOk() || responseMessage.isBusy()) {
             peerBean.peerMap().peerFound(responseMessage.getSender(), null);
         }
+        // a busy reply does not wait for the request to be handled, so only count the others
+        final long sendTime = sendTimeUDP;
+        if (sendTime > 0 && (responseMessage.isOk() || responseMessage.isNotOk())) {
+            // measure only once, a streamed reply has several parts
+            sendTimeUDP = 0;
+            final PeerStatatistic peerStatatistic = peerBean.peerMap().peerStatistic(responseMessage.getSender());
+            if (peerStatatistic != null) {
+                peerStatatistic.addRTT(Timings.currentTimeMillis() - sendTime);
+            }
+        }
         
         // call this for streaming support
         futureResponse.progress(responseMessage);
         if (!responseMessage.isDone()) {
             LOG.debug("message is streaming {}", responseMessage);
-            return;
+            return false;
         }
         
         // Now we now we have the right message
         LOG.debug("perfect: {}", responseMessage);
-
-        if (!message.isKeepAlive()) {
-            //set the success now, but trigger the notify when we closed the channel.
-            if (futureResponse.setResponseLater(responseMessage)) {
-                LOG.debug("close channel {}", responseMessage);
-                reportMessage(ctx.close(), responseMessage);
-            } else {
-            	ctx.close();
-            }
-        } else {
-            futureResponse.setResponse(responseMessage);
-        }
+        return true;
     }
 
     /**
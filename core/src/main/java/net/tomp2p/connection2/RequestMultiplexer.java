@@ -0,0 +1,228 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection2;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message2;
+import net.tomp2p.message.MessageID;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerStatusListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Matches replies to their requests by the {@link MessageID}, so that several requests can be in flight on one
+ * channel. The replies may arrive in any order. Since there is no channel per request, the timeouts are handled by the
+ * timer of the peer instead of idle handlers in the pipeline. The timer is cancelled when the peer shuts down.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class RequestMultiplexer {
+    private static final Logger LOG = LoggerFactory.getLogger(RequestMultiplexer.class);
+    private static final int SECOND_MILLIS = 1000;
+
+    private final ConcurrentMap<MessageID, RequestHandler<? extends FutureResponse>> pending =
+            new ConcurrentHashMap<MessageID, RequestHandler<? extends FutureResponse>>();
+
+    private final PeerStatusListener[] peerStatusListeners;
+
+    private final Timer timer;
+
+    /**
+     * @param peerStatusListeners
+     *            The listeners that get notified when a timeout happend
+     * @param timer
+     *            The timer of the peer that runs the timeouts
+     */
+    public RequestMultiplexer(final PeerStatusListener[] peerStatusListeners, final Timer timer) {
+        this.peerStatusListeners = peerStatusListeners;
+        this.timer = timer;
+    }
+
+    /**
+     * Registers a request that waits for a reply. The request is removed once its future completes.
+     *
+     * @param handler
+     *            The handler that deals with the reply
+     * @param idleSeconds
+     *            The time until we give up waiting for a reply
+     */
+    public void register(final RequestHandler<? extends FutureResponse> handler, final int idleSeconds) {
+        final FutureResponse futureResponse = handler.futureResponse();
+        final MessageID messageID = new MessageID(futureResponse.getRequest());
+        if (pending.put(messageID, handler) != null) {
+            LOG.warn("message id collision on a multiplexed channel {}", futureResponse.getRequest());
+        }
+        final TimerTask timeout = new TimerTask() {
+            @Override
+            public void run() {
+                if (pending.remove(messageID, handler)) {
+                    timeout(futureResponse, idleSeconds);
+                }
+            }
+        };
+        try {
+            timer.schedule(timeout, idleSeconds * (long) SECOND_MILLIS);
+        } catch (IllegalStateException e) {
+            // the timer is cancelled during the shutdown
+            pending.remove(messageID, handler);
+            futureResponse.setFailed("peer is shut down");
+            return;
+        }
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                pending.remove(messageID, handler);
+                timeout.cancel();
+            }
+        });
+    }
+
+    /**
+     * Forwards a reply to the handler that waits for it. The message id only identifies the request together with the
+     * recipient, so a reply from another peer with the same message id is ignored.
+     *
+     * @param responseMessage
+     *            The reply
+     */
+    public void received(final Message2 responseMessage) {
+        if (responseMessage.isRequest()) {
+            LOG.debug("ignore request on a multiplexed channel {}", responseMessage);
+            return;
+        }
+        final MessageID messageID = new MessageID(responseMessage);
+        final RequestHandler<? extends FutureResponse> handler = pending.get(messageID);
+        if (handler == null) {
+            LOG.debug("no pending request for {}, probably a late reply", responseMessage);
+            return;
+        }
+        final PeerAddress recipient = handler.futureResponse().getRequest().getRecipient();
+        // the peer id is zero if we only know the address of the recipient, e.g., for a bootstrap
+        if (!recipient.getPeerId().isZero() && !recipient.equals(responseMessage.getSender())) {
+            LOG.warn("ignore reply from {}, the request {} was sent to {}", responseMessage.getSender(),
+                    messageID, recipient);
+            return;
+        }
+        // a streamed reply stays pending until its last part arrived
+        if (responseMessage.isDone() && !pending.remove(messageID, handler)) {
+            LOG.debug("request completed in the meantime {}", responseMessage);
+            return;
+        }
+        handler.responseShared(responseMessage);
+    }
+
+    /**
+     * Fails all requests that wait for a reply, e.g., because the channel was closed.
+     *
+     * @param reason
+     *            The reason of the failure
+     */
+    public void failAll(final String reason) {
+        for (MessageID messageID : pending.keySet()) {
+            final RequestHandler<? extends FutureResponse> handler = pending.remove(messageID);
+            if (handler != null) {
+                handler.futureResponse().setFailed(reason);
+            }
+        }
+    }
+
+    /**
+     * @return The number of in-flight requests that wait for a reply
+     */
+    public int pendingRequests() {
+        return pending.size();
+    }
+
+    /**
+     * @return The futures of the in-flight requests that wait for a reply, one per request
+     */
+    public Collection<FutureResponse> pendingResponses() {
+        final List<FutureResponse> futureResponses = new ArrayList<FutureResponse>(pending.size());
+        for (RequestHandler<? extends FutureResponse> handler : pending.values()) {
+            futureResponses.add(handler.futureResponse());
+        }
+        return futureResponses;
+    }
+
+    /**
+     * @return A new handler for the end of the pipeline that forwards the replies to this multiplexer
+     */
+    public ChannelHandler createHandler() {
+        return new MultiplexHandler();
+    }
+
+    /**
+     * Fails the future and notifies the peer status listeners, the same as the {@link TimeoutFactory} does for
+     * channels of their own.
+     *
+     * @param futureResponse
+     *            The future that timed out
+     * @param idleSeconds
+     *            The time we waited
+     */
+    private void timeout(final FutureResponse futureResponse, final int idleSeconds) {
+        LOG.warn("multiplexed request timeout for {}", futureResponse.getRequest());
+        futureResponse.setFailed("channel is idle, no reply within " + idleSeconds + " seconds");
+        if (peerStatusListeners == null) {
+            return;
+        }
+        for (PeerStatusListener peerStatusListener : peerStatusListeners) {
+            peerStatusListener.peerFailed(futureResponse.getRequest().getRecipient(), false);
+        }
+    }
+
+    /**
+     * Routes the replies to the multiplexer.
+     *
+     * @author Thomas Bocek
+     *
+     */
+    private class MultiplexHandler extends SimpleChannelInboundHandler<Message2> {
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, final Message2 responseMessage)
+                throws Exception {
+            received(responseMessage);
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+            failAll("channel is inactive");
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+            // a broken packet must not close the shared channel, the request will run into a timeout
+            LOG.warn("exception on a multiplexed channel", cause);
+        }
+    }
+}
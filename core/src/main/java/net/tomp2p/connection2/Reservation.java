@@ -103,6 +103,20 @@ public class Reservation {
         return queue.size();
     }
 
+    /**
+     * @return The maximum number of short-lived UDP connections a single reservation can request
+     */
+    public int maxPermitsUDP() {
+        return maxPermitsUDP;
+    }
+
+    /**
+     * @return The maximum number of short-lived TCP connections a single reservation can request
+     */
+    public int maxPermitsTCP() {
+        return maxPermitsTCP;
+    }
+
     /**
      * This will calculate the number of required connection for routing and request messages.
      * 
@@ -19,16 +19,21 @@ package net.tomp2p.connection2;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramChannel;
 import io.netty.util.concurrent.GenericFutureListener;
 import net.tomp2p.futures.Cancel;
+import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.message.Message2;
 import net.tomp2p.message.TomP2PCumulationTCP;
 import net.tomp2p.message.TomP2POutbound;
 import net.tomp2p.message.TomP2PSinglePacketUDP;
+import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerStatusListener;
 
 import org.slf4j.Logger;
@@ -45,6 +50,8 @@ public class Sender {
     private static final Logger LOG = LoggerFactory.getLogger(Sender.class);
     private final PeerStatusListener[] peerStatusListeners;
     private final ChannelClientConfiguration channelClientConfiguration;
+    private final ChannelMultiplexerUDP channelMultiplexerUDP;
+    private final ChannelPoolTCP channelPoolTCP;
 
     /**
      * Creates a new sender with the listeners for offline peers.
@@ -56,8 +63,42 @@ public class Sender {
      */
     public Sender(final PeerStatusListener[] peerStatusListeners,
             final ChannelClientConfiguration channelClientConfiguration) {
+        this(peerStatusListeners, channelClientConfiguration, null, null);
+    }
+
+    /**
+     * Creates a new sender with the listeners for offline peers.
+     * 
+     * @param peerStatusListeners
+     *            The listener for offline peers
+     * @param channelClientConfiguration
+     *            The configuration used to get the signature factory
+     * @param channelMultiplexerUDP
+     *            The shared UDP channel for requests or null if each request should create its own channel
+     * @param channelPoolTCP
+     *            The pool for idle TCP connections or null if each request should create its own connection
+     */
+    public Sender(final PeerStatusListener[] peerStatusListeners,
+            final ChannelClientConfiguration channelClientConfiguration,
+            final ChannelMultiplexerUDP channelMultiplexerUDP, final ChannelPoolTCP channelPoolTCP) {
         this.peerStatusListeners = peerStatusListeners;
         this.channelClientConfiguration = channelClientConfiguration;
+        this.channelMultiplexerUDP = channelMultiplexerUDP;
+        this.channelPoolTCP = channelPoolTCP;
+    }
+
+    /**
+     * @return The shared UDP channel for requests or null if each request creates its own channel
+     */
+    public ChannelMultiplexerUDP channelMultiplexerUDP() {
+        return channelMultiplexerUDP;
+    }
+
+    /**
+     * @return The pool for idle TCP connections or null if each request creates its own connection
+     */
+    public ChannelPoolTCP channelPoolTCP() {
+        return channelPoolTCP;
     }
 
     /**
@@ -83,6 +124,11 @@ public class Sender {
         if (futureResponse.isCompleted()) {
             return;
         }
+        if (peerConnection != null && peerConnection.isPipelined()) {
+            sendPipelinedTCP(handler, futureResponse, message, channelCreator, idleTCPSeconds,
+                    connectTimeoutMillis, peerConnection);
+            return;
+        }
         final TimeoutFactory timeoutHandler = createTimeoutHandler(futureResponse, idleTCPSeconds,
                 handler == null);
         
@@ -97,12 +143,14 @@ public class Sender {
                     .channel()
                     .pipeline()
                     .replace("decoder", "decoder",
-                            new TomP2PCumulationTCP(channelClientConfiguration.signatureFactory()));
+                            new TomP2PCumulationTCP(channelClientConfiguration.signatureFactory(),
+                                    channelClientConfiguration.cryptoStage()));
             channelFuture
                     .channel()
                     .pipeline()
                     .replace("encoder", "encoder",
-                            new TomP2POutbound(false, channelClientConfiguration.signatureFactory()));
+                            new TomP2POutbound(false, channelClientConfiguration.signatureFactory(),
+                                    channelClientConfiguration.cryptoStage()));
             channelFuture.channel().pipeline().replace("handler", "handler", handler);
         } else {
             final int nrTCPHandlers;
@@ -121,14 +169,16 @@ public class Sender {
                 handlers.put("timeout0", c[0]);
                 handlers.put("timeout1", c[1]);
             }
-            handlers.put("decoder", new TomP2PCumulationTCP(channelClientConfiguration.signatureFactory()));
-            handlers.put("encoder", new TomP2POutbound(false, channelClientConfiguration.signatureFactory()));
+            handlers.put("decoder", new TomP2PCumulationTCP(channelClientConfiguration.signatureFactory(),
+                    channelClientConfiguration.cryptoStage()));
+            handlers.put("encoder", new TomP2POutbound(false, channelClientConfiguration.signatureFactory(),
+                    channelClientConfiguration.cryptoStage()));
             if (timeoutHandler != null) {
                 handlers.put("handler", handler);
             }
 
-            channelFuture = channelCreator.createTCP(message.getRecipient().createSocketUDP(),
-                    connectTimeoutMillis, handlers);
+            channelFuture = createTCP(message, channelCreator, connectTimeoutMillis, handlers,
+                    peerConnection == null);
             if (peerConnection != null) {
                 peerConnection.channelFuture(channelFuture);
             }
@@ -141,6 +191,159 @@ public class Sender {
         }
     }
 
+    /**
+     * Send a message via a pipelined TCP connection. The connection is created by the first request and stays open.
+     * Further requests are written to the same connection without waiting for the previous replies.
+     * 
+     * @param handler
+     *            The handler to deal with a reply message
+     * @param futureResponse
+     *            The future to set the response
+     * @param message
+     *            The message to send
+     * @param channelCreator
+     *            The channel creator of the peer connection
+     * @param idleTCPSeconds
+     *            The idle time of a message until we fail
+     * @param connectTimeoutMillis
+     *            The idle we set for the connection setup
+     * @param peerConnection
+     *            The pipelined connection
+     */
+    private void sendPipelinedTCP(final SimpleChannelInboundHandler<Message2> handler,
+            final FutureResponse futureResponse, final Message2 message, final ChannelCreator channelCreator,
+            final int idleTCPSeconds, final int connectTimeoutMillis, final PeerConnection peerConnection) {
+        // the other peer must not close the connection when it becomes idle
+        message.setKeepAlive(true);
+        final RequestMultiplexer requestMultiplexer = peerConnection.requestMultiplexer();
+        final ChannelFuture channelFuture;
+        // several requests may want to open the connection at the same time, but there is only one permit
+        synchronized (peerConnection) {
+            if (peerConnection.channelFuture() == null || !peerConnection.channelFuture().channel().isOpen()) {
+                final int nrTCPHandlers = 4; // 3 / 0.75
+                final Map<String, ChannelHandler> handlers = new LinkedHashMap<String, ChannelHandler>(
+                        nrTCPHandlers);
+                handlers.put("decoder", new TomP2PCumulationTCP(channelClientConfiguration.signatureFactory(),
+                        channelClientConfiguration.cryptoStage()));
+                handlers.put("encoder", new TomP2POutbound(false, channelClientConfiguration.signatureFactory(),
+                        channelClientConfiguration.cryptoStage()));
+                handlers.put("handler", requestMultiplexer.createHandler());
+                peerConnection.channelFuture(channelCreator.createTCP(message.getRecipient().createSocketUDP(),
+                        connectTimeoutMillis, handlers));
+            }
+            channelFuture = peerConnection.channelFuture();
+        }
+        futureResponse.setChannelFuture(channelFuture);
+        if (channelFuture == null) {
+            futureResponse.setFailed("could not create a TCP channel");
+            return;
+        }
+        if (handler instanceof RequestHandler) {
+            requestMultiplexer.register((RequestHandler<?>) handler, idleTCPSeconds);
+        }
+        // no cancel here, since the connect is shared among all requests of this connection
+        channelFuture.addListener(new GenericFutureListener<ChannelFuture>() {
+            @Override
+            public void operationComplete(final ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    futureResponse.setProgressHandler(new ProgresHandler() {
+                        @Override
+                        public void progres() {
+                            final ChannelFuture writeFuture = future.channel().writeAndFlush(message);
+                            afterSend(writeFuture, futureResponse, handler == null);
+                        }
+                    });
+                    // this needs to be called first before all other progress
+                    futureResponse.progressFirst();
+                } else {
+                    futureResponse.setFailed("Channel creation failed " + future.cause());
+                    LOG.warn("Channel creation failed ", future.cause());
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes an idle connection from the pool if possible, otherwise creates a new TCP connection.
+     * 
+     * @param message
+     *            The message to send
+     * @param channelCreator
+     *            The channel creator for the TCP channel
+     * @param connectTimeoutMillis
+     *            The idle we set for the connection setup
+     * @param handlers
+     *            The handlers to set
+     * @param pooled
+     *            True if the connection may come from the pool
+     * @return The channel future object or null if we are shut down
+     */
+    private ChannelFuture createTCP(final Message2 message, final ChannelCreator channelCreator,
+            final int connectTimeoutMillis, final Map<String, ChannelHandler> handlers, final boolean pooled) {
+        if (pooled && channelPoolTCP != null) {
+            Channel channel;
+            while ((channel = channelPoolTCP.poll(message.getRecipient().getPeerSocketAddress())) != null) {
+                final ChannelFuture channelFuture = channelCreator.reuseTCP(channel, handlers);
+                if (channelFuture != null) {
+                    LOG.debug("reuse pooled connection {} for {}", channel, message);
+                    return channelFuture;
+                }
+                channel.close();
+            }
+        }
+        return channelCreator.createTCP(message.getRecipient().createSocketUDP(), connectTimeoutMillis, handlers);
+    }
+
+    /**
+     * Puts a TCP connection into the pool after the reply arrived, so that the next request to this peer can reuse
+     * it. The permit of the channel creator is released, since the connection is not in use anymore.
+     * 
+     * @param channel
+     *            The connection that received the reply
+     * @param recipient
+     *            The peer this connection is connected to
+     * @return True if the connection was handed over to the pool. If false, the caller has to close the connection.
+     */
+    public boolean releaseTCP(final Channel channel, final PeerAddress recipient) {
+        if (channelPoolTCP == null || channel instanceof DatagramChannel || !channel.isActive()) {
+            return false;
+        }
+        final ChannelCreator channelCreator = channel.attr(ChannelCreator.CHANNEL_CREATOR_KEY).get();
+        if (channelCreator == null) {
+            return false;
+        }
+        // an idle connection must not report a timeout or deliver messages to a completed request
+        final ChannelPipeline pipeline = channel.pipeline();
+        for (String name : new String[] {"timeout0", "timeout1", "handler" }) {
+            if (pipeline.get(name) != null) {
+                pipeline.remove(name);
+            }
+        }
+        if (!channelCreator.detachTCP(channel)) {
+            return false;
+        }
+        if (!channelPoolTCP.offer(recipient.getPeerSocketAddress(), channel)) {
+            // the permit is already released, the close listener won't release it a second time
+            channel.close();
+        }
+        return true;
+    }
+
+    /**
+     * Closes the shared UDP channel and the idle TCP connections.
+     * 
+     * @return The future when the shutdown is complete
+     */
+    public FutureDone<Void> shutdown() {
+        if (channelPoolTCP != null) {
+            channelPoolTCP.shutdown();
+        }
+        if (channelMultiplexerUDP != null) {
+            return channelMultiplexerUDP.shutdown();
+        }
+        return new FutureDone<Void>().setDone();
+    }
+
     /**
      * Send a message via UDP.
      * 
@@ -164,6 +367,11 @@ public class Sender {
         if (futureResponse.isCompleted()) {
             return;
         }
+        if (channelMultiplexerUDP != null && !broadcast
+                && (handler == null || handler instanceof RequestHandler)) {
+            sendSharedUDP((RequestHandler<?>) handler, futureResponse, message, channelCreator, idleUDPSeconds);
+            return;
+        }
         boolean isFireAndForget = handler == null;
         final TimeoutFactory timeoutHandler = createTimeoutHandler(futureResponse, idleUDPSeconds,
                 isFireAndForget);
@@ -180,8 +388,10 @@ public class Sender {
             handlers.put("timeout1", c[1]);
         }
 
-        handlers.put("decoder", new TomP2PSinglePacketUDP(channelClientConfiguration.signatureFactory()));
-        handlers.put("encoder", new TomP2POutbound(false, channelClientConfiguration.signatureFactory()));
+        handlers.put("decoder", new TomP2PSinglePacketUDP(channelClientConfiguration.signatureFactory(),
+                channelClientConfiguration.cryptoStage()));
+        handlers.put("encoder", new TomP2POutbound(false, channelClientConfiguration.signatureFactory(),
+                channelClientConfiguration.cryptoStage()));
         if (!isFireAndForget) {
             handlers.put("handler", handler);
         }
@@ -196,6 +406,29 @@ public class Sender {
         }
     }
 
+    /**
+     * Send a message via the shared UDP channel. The channel creator only accounts for the in-flight slot.
+     * 
+     * @param handler
+     *            The handler to deal with a reply message or null for fire and forget
+     * @param futureResponse
+     *            The future to set the response
+     * @param message
+     *            The message to send
+     * @param channelCreator
+     *            The channel creator that holds the UDP permit
+     * @param idleUDPSeconds
+     *            The idle time of a message until we fail
+     */
+    private void sendSharedUDP(final RequestHandler<?> handler, final FutureResponse futureResponse,
+            final Message2 message, final ChannelCreator channelCreator, final int idleUDPSeconds) {
+        if (!channelCreator.createSharedUDP(futureResponse)) {
+            futureResponse.setFailed("could not reserve a shared UDP slot");
+            return;
+        }
+        channelMultiplexerUDP.send(handler, futureResponse, message, idleUDPSeconds);
+    }
+
     /**
      * Create a timeout handler or null if its a fire and forget. In this case we don't expect a reply and we don't need
      * a timeout.
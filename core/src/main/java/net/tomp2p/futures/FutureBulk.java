@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.futures;
+
+import java.util.Collections;
+import java.util.Map;
+
+import net.tomp2p.peers.Number160;
+
+/**
+ * The future object for bulk operations on many location keys. It holds one future per location key, e.g., a
+ * {@link FuturePut}, which finishes as soon as the result for its location key is known. This future finishes once all
+ * of them have finished. It is successful if all of them were successful.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The type of the future per location key
+ */
+public class FutureBulk<K extends BaseFuture> extends BaseFutureImpl<FutureBulk<K>> {
+
+    private final Map<Number160, K> futures;
+
+    private int routings;
+
+    /**
+     * Creates a new bulk future.
+     *
+     * @param futures
+     *            The futures per location key
+     */
+    public FutureBulk(final Map<Number160, K> futures) {
+        this.futures = Collections.unmodifiableMap(futures);
+        self(this);
+    }
+
+    /**
+     * Finishes the future once all futures per location key are finished.
+     *
+     * @param routings
+     *            The number of routing processes that were needed to find the close peers of all location keys
+     * @return This class
+     */
+    public FutureBulk<K> setDone(final int routings) {
+        int failed = 0;
+        for (K future : futures.values()) {
+            if (!future.isSuccess()) {
+                failed++;
+            }
+        }
+        synchronized (lock) {
+            if (!setCompletedAndNotify()) {
+                return this;
+            }
+            this.routings = routings;
+            this.type = failed == 0 ? FutureType.OK : FutureType.FAILED;
+            this.reason = failed == 0 ? "All location keys succeeded" : failed + " of " + futures.size()
+                    + " location keys failed";
+        }
+        notifyListerenrs();
+        return this;
+    }
+
+    /**
+     * @param locationKey
+     *            The location key
+     * @return The future of the location key or null if the location key was not part of this bulk operation
+     */
+    public K getFuture(final Number160 locationKey) {
+        return futures.get(locationKey);
+    }
+
+    /**
+     * @return The futures per location key
+     */
+    public Map<Number160, K> getFutures() {
+        return futures;
+    }
+
+    /**
+     * @return The number of routing processes that were needed. Location keys that are close to each other share the
+     *         result of one routing process.
+     */
+    public int getRoutings() {
+        synchronized (lock) {
+            return routings;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package net.tomp2p.futures;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -50,6 +51,9 @@ public class FutureGet extends FutureDHT<FutureGet> {
     private Map<PeerAddress, Map<Number480, Data>> rawData;
     private Map<PeerAddress, DigestResult> rawDigest;
 
+    // Flag indicating that the data has been checked against the majority of the digests and needs no evaluation.
+    private boolean verified;
+
     private Number160 locationKey;
 
     private Number160 domainKey;
@@ -105,6 +109,48 @@ public class FutureGet extends FutureDHT<FutureGet> {
         notifyListerenrs();
     }
     
+    /**
+     * Finish the future of a get that first received the digests from all peers and then the data from the peers
+     * whose digests match the majority.
+     * 
+     * @param locationKey
+     *            The location key
+     * @param domainKey
+     *            The domain key
+     * @param rawData
+     *            The data that matches the majority of the digests with information from which peer it has been
+     *            received. Every key is only received from one peer.
+     * @param rawDigest
+     *            The digests with information from which peer it has been received
+     * @param missing
+     *            The number of keys agreed on by the majority that could not be received from any peer
+     */
+    public void setReceivedData(final Number160 locationKey, final Number160 domainKey,
+            final Map<PeerAddress, Map<Number480, Data>> rawData, final Map<PeerAddress, DigestResult> rawDigest,
+            final int missing) {
+        synchronized (lock) {
+            if (!setCompletedAndNotify()) {
+                return;
+            }
+            this.locationKey = locationKey;
+            this.domainKey = domainKey;
+            this.rawData = rawData;
+            this.rawDigest = rawDigest;
+            this.verified = true;
+            final int size = rawDigest.size();
+            this.minReached = size >= min;
+            this.type = size > 0 && missing == 0 ? FutureType.OK : FutureType.FAILED;
+            if (size == 0) {
+                this.reason = "Expected >0 digests, but got " + size;
+            } else if (missing > 0) {
+                this.reason = missing + " keys could not be received from a peer that matches the majority";
+            } else {
+                this.reason = "Minimun number of results reached";
+            }
+        }
+        notifyListerenrs();
+    }
+
     /**
      * Finishes the future and set the digest information that have been received.
      * 
@@ -160,6 +206,13 @@ public class FutureGet extends FutureDHT<FutureGet> {
      */
     public Map<Number480, Data> getDataMap() {
         synchronized (lock) {
+            if (verified) {
+                final Map<Number480, Data> dataMap = new HashMap<Number480, Data>();
+                for (Map<Number480, Data> data : rawData.values()) {
+                    dataMap.putAll(data);
+                }
+                return dataMap;
+            }
             return evaluationScheme.evaluate2(rawData);
         }
     }
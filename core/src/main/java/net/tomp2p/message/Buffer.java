@@ -2,7 +2,9 @@ package net.tomp2p.message;
 
 import java.io.IOException;
 
-import net.tomp2p.utils.Utils;
+import net.tomp2p.storage.CompactSerializer;
+import net.tomp2p.storage.Data;
+import net.tomp2p.storage.Serializer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,6 +17,9 @@ public class Buffer {
     
     private static final Logger LOG = LoggerFactory.getLogger(Buffer.class);
     
+    // recognizes objects of the Java serialization and of the compact serializer
+    private static final Serializer DEFAULT_DESERIALIZER = new CompactSerializer();
+
     //TODO: use ByteBuffer
     private final ByteBuf buffer;
     private final int length;
@@ -65,9 +70,16 @@ public class Buffer {
     public Buffer addComponent(final ByteBuf slice) {
         if (buffer instanceof CompositeByteBuf) {
             CompositeByteBuf cbb = (CompositeByteBuf) buffer;
-            //make a copy for the user, otherwise we may leak a pooled byte buffer
-            cbb.addComponent(Unpooled.copiedBuffer(slice));
-            cbb.writerIndex(cbb.writerIndex() + slice.readableBytes());
+            final int readable = slice.readableBytes();
+            if (readable >= Data.ZERO_COPY_THRESHOLD) {
+                // no copy, the slice keeps the received buffer alive until the user releases this buffer. With the
+                // unpooled allocator, a buffer that is never released is reclaimed by the garbage collector.
+                cbb.addComponent(slice.retain());
+            } else {
+                // a small slice would keep the whole received buffer alive, a copy is cheaper
+                cbb.addComponent(Unpooled.copiedBuffer(slice));
+            }
+            cbb.writerIndex(cbb.writerIndex() + readable);
         } else {
             buffer.writeBytes(slice);
             LOG.debug("buffer copied. You can use a CompositeByteBuf");
@@ -88,6 +100,10 @@ public class Buffer {
     }
 
     public Object object() throws ClassNotFoundException, IOException {
-        return Utils.decodeJavaObject(buffer.duplicate().readerIndex(0));
+        return object(DEFAULT_DESERIALIZER);
+    }
+
+    public Object object(final Serializer serializer) throws ClassNotFoundException, IOException {
+        return serializer.decode(buffer.duplicate().readerIndex(0));
     }
 }
@@ -1,9 +1,14 @@
 package net.tomp2p.message;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number480;
@@ -16,6 +21,9 @@ public class DataMap {
     private final Number160 locationKey;
     private final Number160 domainKey;
 
+    // the entries encoded once for several messages, see encodeShared()
+    private volatile ByteBuf encoded;
+
     public DataMap(final Map<Number480, Data> dataMap) {
         this.dataMap = dataMap;
         this.dataMapConvert = null;
@@ -66,6 +74,97 @@ public class DataMap {
         return dataMapConvert != null;
     }
     
+    /**
+     * Encodes the number of entries and the entries into the buffer. If this map was encoded with
+     * {@link #encodeShared()}, the shared encoding is appended instead of encoding the entries again. For a composite
+     * buffer, the shared encoding is added as a retained slice and is not copied.
+     * 
+     * @param buf
+     *            The buffer of the outgoing message
+     */
+    public void encode(final ByteBuf buf) {
+        final ByteBuf shared = encoded;
+        if (shared == null) {
+            encodeEntries(buf);
+            return;
+        }
+        final int readable = shared.readableBytes();
+        if (buf instanceof CompositeByteBuf) {
+            final CompositeByteBuf compositeByteBuf = (CompositeByteBuf) buf;
+            // same as in Data#encode(ByteBuf), the slice is released once the composite buffer is written out
+            compositeByteBuf.capacity(compositeByteBuf.writerIndex());
+            compositeByteBuf.addComponent(shared.slice().retain());
+            compositeByteBuf.writerIndex(compositeByteBuf.writerIndex() + readable);
+        } else {
+            buf.writeBytes(shared, shared.readerIndex(), readable);
+        }
+    }
+
+    /**
+     * Encodes this map once, so that several messages, e.g., a broadcast to many peers, share the same bytes and only
+     * the message header is encoded for each recipient. The encoding is reference counted, every message that is
+     * written out holds its own reference. The reference of the caller needs to be released with
+     * {@link #releaseShared()} once no more messages with this map are sent. This map must not be modified afterwards.
+     * 
+     * @return This class
+     */
+    public synchronized DataMap encodeShared() {
+        if (encoded == null) {
+            final CompositeByteBuf buf = Unpooled.compositeBuffer(Integer.MAX_VALUE);
+            encodeEntries(buf);
+            encoded = buf;
+        }
+        return this;
+    }
+
+    /**
+     * Releases the reference of the caller of {@link #encodeShared()}. Messages that are not written out yet still hold
+     * their own reference.
+     * 
+     * @return True if the shared encoding was deallocated
+     */
+    public synchronized boolean releaseShared() {
+        final ByteBuf shared = encoded;
+        if (shared == null) {
+            return false;
+        }
+        encoded = null;
+        return shared.release();
+    }
+
+    /**
+     * @return The shared encoding of this map or null if this map is encoded for every message
+     */
+    public ByteBuf encodedShared() {
+        return encoded;
+    }
+
+    private void encodeEntries(final ByteBuf buf) {
+        buf.writeInt(size());
+        if (isConvert()) {
+            for (Entry<Number160, Data> entry : dataMapConvert.entrySet()) {
+                locationKey.toByteBuf(buf);
+                domainKey.toByteBuf(buf);
+                entry.getKey().toByteBuf(buf);
+                encodeData(entry.getValue(), buf);
+            }
+        } else {
+            for (Entry<Number480, Data> entry : dataMap.entrySet()) {
+                entry.getKey().getLocationKey().toByteBuf(buf);
+                entry.getKey().getDomainKey().toByteBuf(buf);
+                entry.getKey().getContentKey().toByteBuf(buf);
+                encodeData(entry.getValue(), buf);
+            }
+        }
+    }
+
+    private static void encodeData(final Data value, final ByteBuf buf) {
+        // the data object may be encoded concurrently for other messages, work on a duplicate
+        final Data data = value.duplicate();
+        data.encode(buf);
+        data.encodeDone(buf);
+    }
+
     @Override
     public boolean equals(final Object obj) {
         if (!(obj instanceof DataMap)) {
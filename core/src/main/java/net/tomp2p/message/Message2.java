@@ -37,6 +37,7 @@ import java.util.concurrent.atomic.AtomicReference;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.SimpleBloomFilter;
+import net.tomp2p.storage.Data;
 
 /**
  * The message is in binary format in TomP2P. It is defined as follows and has several header and payload fields. Since
@@ -87,8 +88,10 @@ public class Message2 {
         // REQUEST_1 for TASK is submit new task
         // REQUEST_2 for TASK is status
         // REQUEST_3 for TASK is send back result
+        // BUSY means the peer is alive, but its dispatch queue is full. This is the last of the 16 types that fit
+        // into the header
         REQUEST_1, REQUEST_2, REQUEST_3, REQUEST_4, REQUEST_FF_1, REQUEST_FF_2, OK, 
-        PARTIALLY_OK, NOT_FOUND, DENIED, UNKNOWN_ID, EXCEPTION, CANCEL, USER1, USER2
+        PARTIALLY_OK, NOT_FOUND, DENIED, UNKNOWN_ID, EXCEPTION, CANCEL, USER1, USER2, BUSY
     };
 
     // Header:
@@ -141,9 +144,9 @@ public class Message2 {
     private transient InetSocketAddress recipientSocket;
     private transient boolean udp = false;
     private transient boolean done = false;
+    private transient boolean retainedData = false;
     private transient boolean sign = false;
     private transient boolean content = false;
-    private transient Signature signature = null;
     private transient SHA1Signature signatureEncode = null;
     private transient PublicKey receivedPublicKey = null;
 
@@ -396,6 +399,13 @@ public class Message2 {
         return type == Type.NOT_FOUND || type == Type.DENIED;
     }
 
+    /**
+     * @return True if the message arrived, but the peer was too busy to handle it
+     */
+    public boolean isBusy() {
+        return type == Type.BUSY;
+    }
+
     /**
      * @return True if the message contained an unexpected error or behavior
      */
@@ -630,6 +640,42 @@ public class Message2 {
         return dataMapList.get(index);
     }
 
+    /**
+     * Marks that the data objects of this message hold a reference for it, e.g., a reply with data from the storage.
+     * The references are released with {@link #releaseData()} once the message has been sent.
+     * 
+     * @param retainedData
+     *            True if the data objects hold a reference for this message
+     * @return This class
+     */
+    public Message2 retainedData(final boolean retainedData) {
+        this.retainedData = retainedData;
+        return this;
+    }
+
+    /**
+     * @return True if the data objects hold a reference for this message
+     */
+    public boolean isRetainedData() {
+        return retainedData;
+    }
+
+    /**
+     * Releases the references the data objects hold for this message, if they have been retained for it. Releasing
+     * more than once has no effect.
+     */
+    public void releaseData() {
+        if (!retainedData || dataMapList == null) {
+            return;
+        }
+        retainedData = false;
+        for (DataMap dataMap : dataMapList) {
+            for (Data data : dataMap.dataMap().values()) {
+                data.release();
+            }
+        }
+    }
+
     public Message2 setKeys(final Keys key) {
         if (!presetContentTypes) {
             setContentType(Content.SET_KEY480);
@@ -754,16 +800,16 @@ public class Message2 {
         return publicKeyReference;
     }
 
-    public Message2 signatureForVerification(Signature signature, PublicKey receivedPublicKey) {
-        this.signature = signature;
+    /**
+     * @param receivedPublicKey
+     *            The public key that came with the message. It is not trusted until the signature is verified
+     * @return This class
+     */
+    public Message2 receivedPublicKey(final PublicKey receivedPublicKey) {
         this.receivedPublicKey = receivedPublicKey;
         return this;
     }
     
-    public Signature signatureForVerification() {
-        return signature;
-    }
-    
     public PublicKey receivedPublicKey() {
         return receivedPublicKey;
     }
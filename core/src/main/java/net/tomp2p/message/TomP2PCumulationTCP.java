@@ -21,6 +21,7 @@ import java.util.Queue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.tomp2p.connection2.CryptoStage;
 import net.tomp2p.connection2.SignatureFactory;
 import net.tomp2p.futures.FutureProgres;
 import net.tomp2p.futures.FutureResponse;
@@ -42,7 +43,17 @@ public class TomP2PCumulationTCP extends ChannelInboundHandlerAdapter {
     private int lastId = 0;
 
     public TomP2PCumulationTCP(final SignatureFactory signatureFactory) {
-        decoder = new TomP2PDecoder(signatureFactory);
+        this(signatureFactory, null);
+    }
+
+    /**
+     * @param signatureFactory
+     *            The factory for the signature instances
+     * @param cryptoStage
+     *            The stage that verifies signatures off the event loop, or null to verify in the event loop
+     */
+    public TomP2PCumulationTCP(final SignatureFactory signatureFactory, final CryptoStage cryptoStage) {
+        decoder = new TomP2PDecoder(signatureFactory, cryptoStage);
     }
 
     @Override
@@ -71,7 +82,10 @@ public class TomP2PCumulationTCP extends ChannelInboundHandlerAdapter {
                 }
             } else {
                 try {
-                    if (cumulation.writerIndex() > cumulation.maxCapacity() - buf.readableBytes()) {
+                    if (cumulation.refCnt() > 1
+                            || cumulation.writerIndex() > cumulation.maxCapacity() - buf.readableBytes()) {
+                        // decoded data still holds slices of the cumulation, we must not write into it but start a
+                        // new one. The old one stays alive until all the slices are released.
                         ByteBuf oldCumulation = cumulation;
                         cumulation = ctx.alloc().buffer(oldCumulation.readableBytes() + buf.readableBytes());
                         cumulation.writeBytes(oldCumulation);
@@ -83,7 +97,7 @@ public class TomP2PCumulationTCP extends ChannelInboundHandlerAdapter {
                     if (!cumulation.isReadable()) {
                         cumulation.release();
                         cumulation = null;
-                    } else {
+                    } else if (cumulation.refCnt() == 1) {
                         cumulation.discardSomeReadBytes();
                     }
                     buf.release();
@@ -103,14 +117,14 @@ public class TomP2PCumulationTCP extends ChannelInboundHandlerAdapter {
             if (finished) {
                 lastId = decoder.message().getMessageId();
                 moreData = cumulation.readableBytes() > 0;
-                ctx.fireChannelRead(decoder.prepareFinish());
+                decoder.fireMessage(ctx);
             } else {
                 // this id was the same as the last and the last message already finished the parsing. So this message
                 // is finished as well although it may send only partial data.
                 if (lastId == decoder.message().getMessageId()) {
                     finished = true;
                     moreData = cumulation.readableBytes() > 0;
-                    ctx.fireChannelRead(decoder.prepareFinish());
+                    decoder.fireMessage(ctx);
                 } else if (decoder.message().isStreaming()) {
                     ctx.fireChannelRead(decoder.message());
                 }
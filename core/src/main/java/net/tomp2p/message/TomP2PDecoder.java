@@ -1,6 +1,7 @@
 package net.tomp2p.message;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.socket.DatagramChannel;
@@ -8,17 +9,15 @@ import io.netty.util.Attribute;
 import io.netty.util.AttributeKey;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.security.Signature;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Queue;
 
+import net.tomp2p.connection2.CryptoStage;
 import net.tomp2p.connection2.SignatureFactory;
 import net.tomp2p.message.Message2.Content;
 import net.tomp2p.peers.Number160;
@@ -70,10 +69,26 @@ public class TomP2PDecoder {
 
     private Content lastContent = null;
 
+    private CompositeByteBuf signedBytes = null;
+    private boolean verifyPending = false;
+
     private final SignatureFactory signatureFactory;
+    private final CryptoStage cryptoStage;
 
     public TomP2PDecoder(SignatureFactory signatureFactory) {
+        this(signatureFactory, null);
+    }
+
+    /**
+     * @param signatureFactory
+     *            The factory for the signature instances
+     * @param cryptoStage
+     *            The stage that verifies signatures off the event loop. If null, the signature is verified in the
+     *            decoding thread
+     */
+    public TomP2PDecoder(SignatureFactory signatureFactory, CryptoStage cryptoStage) {
         this.signatureFactory = signatureFactory;
+        this.cryptoStage = cryptoStage;
     }
 
     public boolean decode(ChannelHandlerContext ctx, final ByteBuf buf, InetSocketAddress recipient,
@@ -81,11 +96,8 @@ public class TomP2PDecoder {
 
         LOG.debug("decode of TomP2P starts now");
         
-        // store positions for the verification
-        int[] pos = new int[buf.nioBufferCount()];
-        for (int i = 0; i < buf.nioBufferCount(); i++) {
-            pos[i] = buf.nioBuffers()[i].position();
-        }
+        // store the position for the verification
+        final int readerIndex = buf.readerIndex();
 
         boolean retVal;
         try {
@@ -93,29 +105,35 @@ public class TomP2PDecoder {
 
             // if retMsg == null, then we even could not read the message due to lack of data
             if (message != null && message.isSign()) {
-
-                for (int i = 0; i < buf.nioBufferCount(); i++) {
-                    ByteBuffer byteBuffer = buf.nioBuffers()[i];
-                    // since we read the bytebuffer, the nio buffer also has a
-                    byteBuffer.position(pos[i]);
-                    if (retVal && i + 1 == buf.nioBufferCount()) {
-                        byteBuffer.limit(byteBuffer.limit()
-                                - (Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE));
+                // the message may arrive in several parts, keep the signed bytes of each part without copying them
+                if (signedBytes == null) {
+                    signedBytes = Unpooled.compositeBuffer(Integer.MAX_VALUE);
+                }
+                final int read = buf.readerIndex() - readerIndex;
+                if (read > 0) {
+                    signedBytes.addComponent(buf.slice(readerIndex, read).retain());
+                    signedBytes.writerIndex(signedBytes.writerIndex() + read);
+                }
+                if (retVal) {
+                    // the signature at the end is not signed
+                    signedBytes.capacity(signedBytes.writerIndex()
+                            - (Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE));
+                    if (cryptoStage == null) {
+                        try {
+                            CryptoStage.verifyInline(signatureFactory, message, signedBytes);
+                        } finally {
+                            signedBytes.release();
+                            signedBytes = null;
+                        }
+                    } else {
+                        verifyPending = true;
                     }
-                    message.signatureForVerification().update(byteBuffer);
-                }
-
-                byte[] signatureReceived = message.receivedSignature().encode();
-
-                if (message.signatureForVerification().verify(signatureReceived)) {
-                    // set public key only if signature is correct
-                    message.setPublicKey(message.receivedPublicKey());
-                    LOG.debug("signature check ok");
-                } else {
-                    LOG.debug("wrong signature!");
                 }
             }
-            buf.discardSomeReadBytes();
+            // data payloads may hold retained slices of this buffer, moving the bytes would corrupt them
+            if (buf.refCnt() == 1) {
+                buf.discardSomeReadBytes();
+            }
 
         } catch (Exception e) {
             ctx.fireExceptionCaught(e);
@@ -197,9 +215,7 @@ public class TomP2PDecoder {
                 if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE) {
                     return false;
                 }
-                byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-                buf.readBytes(me);
-                message.setKey(new Number160(me));
+                message.setKey(new Number160(buf));
                 lastContent = contentTypes.poll();
                 break;
             case BLOOM_FILTER:
@@ -252,13 +268,9 @@ public class TomP2PDecoder {
                             + Number160.BYTE_ARRAY_SIZE) {
                         return false;
                     }
-                    byte[] me2 = new byte[Number160.BYTE_ARRAY_SIZE];
-                    buf.readBytes(me2);
-                    Number160 locationKey = new Number160(me2);
-                    buf.readBytes(me2);
-                    Number160 domainKey = new Number160(me2);
-                    buf.readBytes(me2);
-                    Number160 contentKey = new Number160(me2);
+                    Number160 locationKey = new Number160(buf);
+                    Number160 domainKey = new Number160(buf);
+                    Number160 contentKey = new Number160(buf);
                     keys.add(new Number480(locationKey, domainKey, contentKey));
                 }
                 message.setKeys(keys);
@@ -290,13 +302,9 @@ public class TomP2PDecoder {
                             + Number160.BYTE_ARRAY_SIZE) {
                         return false;
                     }
-                    byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-                    buf.readBytes(me3);
-                    Number160 locationKey = new Number160(me3);
-                    buf.readBytes(me3);
-                    Number160 domainKey = new Number160(me3);
-                    buf.readBytes(me3);
-                    Number160 contentKey = new Number160(me3);
+                    Number160 locationKey = new Number160(buf);
+                    Number160 domainKey = new Number160(buf);
+                    Number160 contentKey = new Number160(buf);
                     data = Data.decodeHeader(buf);
                     if (data == null) {
                         return false;
@@ -338,15 +346,10 @@ public class TomP2PDecoder {
                             + Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
                         return false;
                     }
-                    byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-                    buf.readBytes(me3);
-                    Number160 locationKey = new Number160(me3);
-                    buf.readBytes(me3);
-                    Number160 domainKey = new Number160(me3);
-                    buf.readBytes(me3);
-                    Number160 contentKey = new Number160(me3);
-                    buf.readBytes(me3);
-                    Number160 valueKey = new Number160(me3);
+                    Number160 locationKey = new Number160(buf);
+                    Number160 domainKey = new Number160(buf);
+                    Number160 contentKey = new Number160(buf);
+                    Number160 valueKey = new Number160(buf);
                     keysMap.put(new Number480(locationKey, domainKey, contentKey), valueKey);
                 }
 
@@ -454,13 +457,11 @@ public class TomP2PDecoder {
                 if (buf.readableBytes() + Utils.SHORT_BYTE_SIZE < len) {
                     return false;
                 }
-                me = new byte[len];
+                byte[] me = new byte[len];
                 buf.skipBytes(2);
                 buf.readBytes(me);
-                Signature signature = signatureFactory.signatureInstance();
-                PublicKey receivedPublicKey = signatureFactory.decodePublicKey(me);
-                signature.initVerify(receivedPublicKey);
-                message.signatureForVerification(signature, receivedPublicKey);
+                // the signature is verified once the message is complete
+                message.receivedPublicKey(signatureFactory.decodePublicKey(me));
                 lastContent = contentTypes.poll();
                 break;
             default:
@@ -472,17 +473,37 @@ public class TomP2PDecoder {
             if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
                 return false;
             }
-            byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-            buf.readBytes(me);
-            Number160 number1 = new Number160(me);
-            buf.readBytes(me);
-            Number160 number2 = new Number160(me);
+            Number160 number1 = new Number160(buf);
+            Number160 number2 = new Number160(buf);
             SHA1Signature signatureEncode = new SHA1Signature(number1, number2);
             message.receivedSignature(signatureEncode);
         }
         return true;
     }
 
+    /**
+     * Passes the decoded message to the next handler. A signed message is passed on once the crypto stage has verified
+     * it.
+     * 
+     * @param ctx
+     *            The context of the decoder
+     */
+    public void fireMessage(final ChannelHandlerContext ctx) {
+        final boolean verify = verifyPending;
+        final ByteBuf toVerify = signedBytes;
+        signedBytes = null;
+        final Message2 ret = prepareFinish();
+        if (verify) {
+            cryptoStage.verify(signatureFactory, ret, toVerify, ctx);
+        } else {
+            if (toVerify != null) {
+                // the message was not complete, there is nothing to verify
+                toVerify.release();
+            }
+            ctx.fireChannelRead(ret);
+        }
+    }
+
     public Message2 prepareFinish() {
         Message2 ret = message;
         message.setDone();
@@ -500,6 +521,11 @@ public class TomP2PDecoder {
         keysMap = null;
         bufferSize = -1;
         buffer = null;
+        verifyPending = false;
+        if (signedBytes != null) {
+            signedBytes.release();
+            signedBytes = null;
+        }
         return ret;
     }
 
@@ -1,6 +1,7 @@
 package net.tomp2p.message;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
@@ -8,12 +9,12 @@ import io.netty.channel.ChannelPromise;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.DatagramPacket;
 
-import java.nio.ByteBuffer;
-import java.security.Signature;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import net.tomp2p.connection2.CryptoStage;
 import net.tomp2p.connection2.SignatureFactory;
+import net.tomp2p.message.Message2.Content;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number480;
 import net.tomp2p.peers.PeerAddress;
@@ -32,11 +33,25 @@ public class TomP2POutbound extends ChannelOutboundHandlerAdapter {
     private boolean resume = false;
     private Message2 message;
 
-    private SignatureFactory signatureFactory;
+    private final SignatureFactory signatureFactory;
+    private final CryptoStage cryptoStage;
 
     public TomP2POutbound(boolean preferDirect, SignatureFactory signatureFactory) {
+        this(preferDirect, signatureFactory, null);
+    }
+
+    /**
+     * @param preferDirect
+     *            True to encode into direct buffers
+     * @param signatureFactory
+     *            The factory for the signature instances
+     * @param cryptoStage
+     *            The stage that signs messages off the event loop, or null to sign in the event loop
+     */
+    public TomP2POutbound(boolean preferDirect, SignatureFactory signatureFactory, CryptoStage cryptoStage) {
         this.preferDirect = preferDirect;
         this.signatureFactory = signatureFactory;
+        this.cryptoStage = cryptoStage;
     }
 
     @Override
@@ -44,20 +59,32 @@ public class TomP2POutbound extends ChannelOutboundHandlerAdapter {
             throws Exception {
         ByteBuf buf = null;
         try {
+            // The state belongs to the message and not to the channel. Only the message that was not completely
+            // written can be resumed, any other message starts with a new header. Thus, several requests can be in
+            // flight on one channel, as long as they are not streamed.
+            final boolean followUp = header && msg == message;
             if (msg instanceof Message2) {
                 message = (Message2) msg;
                 LOG.debug("message for outbound {}", message);
             }
 
-            if (preferDirect) {
+            if (hasDataPayload(message)) {
+                // large data payloads are added as components and not copied, see Data#encode(ByteBuf)
+                if (preferDirect) {
+                    buf = ctx.alloc().compositeDirectBuffer(Integer.MAX_VALUE);
+                } else {
+                    buf = ctx.alloc().compositeHeapBuffer(Integer.MAX_VALUE);
+                }
+            } else if (preferDirect) {
                 buf = ctx.alloc().ioBuffer();
             } else {
                 buf = ctx.alloc().heapBuffer();
             }
 
-            if (!header) {
+            if (!followUp) {
                 MessageHeaderCodec.encodeHeader(buf, (Message2) msg);
                 header = true;
+                resume = false;
             } else {
                 LOG.debug("send a follow up message {}", message);
                 resume = true;
@@ -70,45 +97,31 @@ public class TomP2POutbound extends ChannelOutboundHandlerAdapter {
 
             // write out what we have
             if (buf.isReadable()) {
-
+                if (done) {
+                    // we wrote the complete message, reset state
+                    header = false;
+                }
                 // check if we need to sign the message
                 if (message.isSign()) {
-                    Signature signature = signatureFactory.signatureInstance();
-
-                    signature.initSign(message.getPrivateKey());
-                    // debug2 = message.getPublicKey();
-                    for (int i = 0; i < buf.nioBufferCount(); i++) {
-                        ByteBuffer buffer = buf.nioBuffers()[i];
-                        signature.update(buffer);
-                    }
-                    byte[] signatureData = signature.sign();
-
-                    SHA1Signature decodedSignature = new SHA1Signature();
-                    decodedSignature.decode(signatureData);
-                    buf.writeBytes(decodedSignature.getNumber1().toByteArray());
-                    buf.writeBytes(decodedSignature.getNumber2().toByteArray());
-                }
-                // this will release the buffer
-                if (ctx.channel() instanceof DatagramChannel) {
-                    if (message.senderSocket() == null) {
-                        message.senderSocket(message.getRecipient().createSocketUDP());
-                    }
-                    DatagramPacket d = new DatagramPacket(buf, message.senderSocket(), message.recipientSocket());
-                    LOG.debug("Send UPD message {}, datagram: {}", message, d);
-                    ctx.writeAndFlush(d, promise);
-                    if (done) {
-                        message.done(true);
-                        // we wrote the complete message, reset state
-                        header = false;
-                    }
-                } else {
-                    LOG.debug("Send TCP message {} to {}", message, message.senderSocket());
-                    ctx.writeAndFlush(buf, promise);
-                    if (done) {
-                        message.done(true);
-                        header = false;
+                    // a streamed message is signed in parts, those parts must not overtake each other
+                    if (cryptoStage != null && !message.isStreaming()) {
+                        final ByteBuf signBuf = buf;
+                        final Message2 signMessage = message;
+                        final boolean signDone = done;
+                        // the buffer belongs to the crypto stage until it calls us back
+                        buf = null;
+                        cryptoStage.sign(signatureFactory, signMessage.getPrivateKey(), signBuf, ctx, promise,
+                                new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        writeOut(ctx, signBuf, promise, signMessage, signDone);
+                                    }
+                                });
+                        return;
                     }
+                    CryptoStage.appendSignature(signatureFactory.signatureInstance(), message.getPrivateKey(), buf);
                 }
+                writeOut(ctx, buf, promise, message, done);
             } else {
                 buf.release();
                 ctx.write(Unpooled.EMPTY_BUFFER, promise);
@@ -122,13 +135,55 @@ public class TomP2POutbound extends ChannelOutboundHandlerAdapter {
         }
     }
 
+    /**
+     * Writes the encoded message to the channel. This will release the buffer.
+     * 
+     * @param ctx
+     *            The context of this handler
+     * @param buf
+     *            The encoded and, if needed, signed message
+     * @param promise
+     *            The promise of the write
+     * @param message
+     *            The message that was encoded
+     * @param done
+     *            True if this was the last part of the message
+     */
+    private void writeOut(final ChannelHandlerContext ctx, final ByteBuf buf, final ChannelPromise promise,
+            final Message2 message, final boolean done) {
+        if (ctx.channel() instanceof DatagramChannel) {
+            if (message.senderSocket() == null) {
+                message.senderSocket(message.getRecipient().createSocketUDP());
+            }
+            final ByteBuf datagram;
+            if (buf instanceof CompositeByteBuf) {
+                // the nioBuffers of a composite with direct components have wrong ranges in Netty 4.0.9, thus the
+                // datagram, which is at most 64KiB, is copied into one buffer
+                datagram = ctx.alloc().ioBuffer(buf.readableBytes());
+                datagram.writeBytes(buf);
+                buf.release();
+            } else {
+                datagram = buf;
+            }
+            DatagramPacket d = new DatagramPacket(datagram, message.senderSocket(), message.recipientSocket());
+            LOG.debug("Send UPD message {}, datagram: {}", message, d);
+            ctx.writeAndFlush(d, promise);
+        } else {
+            LOG.debug("Send TCP message {} to {}", message, message.senderSocket());
+            ctx.writeAndFlush(buf, promise);
+        }
+        if (done) {
+            message.done(true);
+        }
+    }
+
     private boolean loop(ByteBuf buf) {
         NumberType next;
         while ((next = message.contentRefencencs().peek()) != null) {
 
             switch (next.content()) {
             case KEY:
-                buf.writeBytes(message.getKey(next.number()).toByteArray());
+                message.getKey(next.number()).toByteBuf(buf);
                 message.contentRefencencs().poll();
                 break;
             case INTEGER:
@@ -159,51 +214,31 @@ public class TomP2POutbound extends ChannelOutboundHandlerAdapter {
                 buf.writeInt(keys.size());
                 if (keys.isConvert()) {
                     for (Number160 key : keys.keysConvert()) {
-                        buf.writeBytes(keys.locationKey().toByteArray());
-                        buf.writeBytes(keys.domainKey().toByteArray());
-                        buf.writeBytes(key.toByteArray());
+                        keys.locationKey().toByteBuf(buf);
+                        keys.domainKey().toByteBuf(buf);
+                        key.toByteBuf(buf);
                     }
                 } else {
                     for (Number480 key : keys.keys()) {
-                        buf.writeBytes(key.getLocationKey().toByteArray());
-                        buf.writeBytes(key.getDomainKey().toByteArray());
-                        buf.writeBytes(key.getContentKey().toByteArray());
+                        key.getLocationKey().toByteBuf(buf);
+                        key.getDomainKey().toByteBuf(buf);
+                        key.getContentKey().toByteBuf(buf);
                     }
                 }
                 message.contentRefencencs().poll();
                 break;
             case MAP_KEY480_DATA:
-                DataMap dataMap = message.getDataMap(next.number());
-                buf.writeInt(dataMap.size());
-                if (dataMap.isConvert()) {
-                    for (Entry<Number160, Data> entry : dataMap.dataMapConvert().entrySet()) {
-                        buf.writeBytes(dataMap.locationKey().toByteArray());
-                        buf.writeBytes(dataMap.domainKey().toByteArray());
-                        buf.writeBytes(entry.getKey().toByteArray());
-                        Data data = entry.getValue().duplicate();
-                        data.encode(buf);
-                        data.encodeDone(buf);
-                    }
-                } else {
-                    for (Entry<Number480, Data> entry : dataMap.dataMap().entrySet()) {
-                        buf.writeBytes(entry.getKey().getLocationKey().toByteArray());
-                        buf.writeBytes(entry.getKey().getDomainKey().toByteArray());
-                        buf.writeBytes(entry.getKey().getContentKey().toByteArray());
-                        Data data = entry.getValue().duplicate();
-                        data.encode(buf);
-                        data.encodeDone(buf);
-                    }
-                }
+                message.getDataMap(next.number()).encode(buf);
                 message.contentRefencencs().poll();
                 break;
             case MAP_KEY480_KEY:
                 KeysMap keysMap = message.getKeysMap(next.number());
                 buf.writeInt(keysMap.size());
                 for (Entry<Number480, Number160> entry : keysMap.keysMap().entrySet()) {
-                    buf.writeBytes(entry.getKey().getLocationKey().toByteArray());
-                    buf.writeBytes(entry.getKey().getDomainKey().toByteArray());
-                    buf.writeBytes(entry.getKey().getContentKey().toByteArray());
-                    buf.writeBytes(entry.getValue().toByteArray());
+                    entry.getKey().getLocationKey().toByteBuf(buf);
+                    entry.getKey().getDomainKey().toByteBuf(buf);
+                    entry.getKey().getContentKey().toByteBuf(buf);
+                    entry.getValue().toByteBuf(buf);
                 }
                 message.contentRefencencs().poll();
                 break;
@@ -252,6 +287,20 @@ public class TomP2POutbound extends ChannelOutboundHandlerAdapter {
         return true;
     }
 
+    /**
+     * @param message
+     *            The message to encode
+     * @return True if the message contains data objects, whose payload can be added without copying
+     */
+    private static boolean hasDataPayload(final Message2 message) {
+        for (Content content : message.getContentTypes()) {
+            if (content == Content.MAP_KEY480_DATA || content == Content.SET_TRACKER_DATA) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
         if (message == null) {
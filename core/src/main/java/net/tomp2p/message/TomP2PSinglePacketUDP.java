@@ -8,6 +8,7 @@ import io.netty.handler.codec.DecoderException;
 
 import java.net.InetSocketAddress;
 
+import net.tomp2p.connection2.CryptoStage;
 import net.tomp2p.connection2.SignatureFactory;
 
 import org.slf4j.Logger;
@@ -18,9 +19,21 @@ public class TomP2PSinglePacketUDP extends ChannelInboundHandlerAdapter {
     private static final Logger LOG = LoggerFactory.getLogger(TomP2PSinglePacketUDP.class);
 
     private final SignatureFactory signatureFactory;
+    private final CryptoStage cryptoStage;
     
     public TomP2PSinglePacketUDP(final SignatureFactory signatureFactory) {
+        this(signatureFactory, null);
+    }
+
+    /**
+     * @param signatureFactory
+     *            The factory for the signature instances
+     * @param cryptoStage
+     *            The stage that verifies signatures off the event loop, or null to verify in the event loop
+     */
+    public TomP2PSinglePacketUDP(final SignatureFactory signatureFactory, final CryptoStage cryptoStage) {
         this.signatureFactory = signatureFactory;
+        this.cryptoStage = cryptoStage;
     }
 
     @Override
@@ -37,10 +50,10 @@ public class TomP2PSinglePacketUDP extends ChannelInboundHandlerAdapter {
         final InetSocketAddress recipient = d.recipient();
 
         try {
-            TomP2PDecoder decoder = new TomP2PDecoder(signatureFactory);
+            TomP2PDecoder decoder = new TomP2PDecoder(signatureFactory, cryptoStage);
             boolean finished = decoder.decode(ctx, buf, recipient, sender);
             if (finished) {
-                ctx.fireChannelRead(decoder.prepareFinish());
+                decoder.fireMessage(ctx);
             } else {
                 LOG.warn("did not get the complete packet!");
             }
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.p2p;
+
+import java.util.Collection;
+
+import net.tomp2p.connection2.ChannelCreator;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+
+/**
+ * The operations of a bulk operation, where one RPC covers all location keys a peer is responsible for.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public interface BulkOperationMapper {
+    /**
+     * Creates a single RPC for many location keys.
+     *
+     * @param channelCreator
+     *            The channel creator to creade a UDP or TCP channel
+     * @param remotePeerAddress
+     *            The address of the remote peer
+     * @param locationKeys
+     *            The location keys the remote peer is responsible for
+     * @return The future object of this response
+     */
+    FutureResponse create(ChannelCreator channelCreator, PeerAddress remotePeerAddress,
+            Collection<Number160> locationKeys);
+
+    /**
+     * If all requests for a location key are finished.
+     *
+     * @param locationKey
+     *            The location key that can be finished
+     */
+    void response(Number160 locationKey);
+
+    /**
+     * Whenever a single future is finished, then this method is called.
+     *
+     * @param futureResponse
+     *            The future object from an RPC
+     * @param locationKeys
+     *            The location keys of this RPC
+     * @return The location keys that were successful on the remote peer
+     */
+    Collection<Number160> interMediateResponse(FutureResponse futureResponse, Collection<Number160> locationKeys);
+}
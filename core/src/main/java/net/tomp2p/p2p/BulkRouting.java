@@ -0,0 +1,250 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.p2p;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.tomp2p.connection2.ChannelCreator;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.message.Message2.Type;
+import net.tomp2p.p2p.builder.BulkBuilder;
+import net.tomp2p.p2p.builder.RoutingBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the close peers of many location keys with as few routing processes as possible. A routing process to the
+ * location key r returns the peers closest to r. If the routing found the closest peers, then every peer that was not
+ * found is at least as far away from r as the farthest peer that was found, the radius R. Because of the triangle
+ * inequality of the XOR metric, a peer that was not found is at least R - d(r, k) away from another location key k.
+ * If the peers for k we take from the result of r are closer than that, then no peer that was not found can be
+ * closer, and the result of r can be used for k as well. Location keys that are not covered get their own routing.
+ *
+ * @author Thomas Bocek
+ *
+ */
+class BulkRouting {
+    private static final Logger LOG = LoggerFactory.getLogger(BulkRouting.class);
+
+    private final DistributedRouting routing;
+
+    private final BulkBuilder<?> builder;
+
+    private final Type type;
+
+    private final ChannelCreator channelCreator;
+
+    // the number of peers per location key that have to be the closest peers
+    private final int need;
+
+    // the number of peers of a routing result that are used for other location keys. The routing searches for more
+    // peers than needed, see RoutingConfiguration#getMaxNoNewInfoDiff(), so the radius is larger than the distance to
+    // the farthest needed peer and close location keys can share the result.
+    private final int trusted;
+
+    private final NavigableSet<Number160> unresolved;
+
+    private final Set<Number160> inFlight = new HashSet<Number160>();
+
+    private final Map<Number160, NavigableSet<PeerAddress>> result = new HashMap<Number160, NavigableSet<PeerAddress>>();
+
+    private final FutureDone<Map<Number160, NavigableSet<PeerAddress>>> futureDone =
+            new FutureDone<Map<Number160, NavigableSet<PeerAddress>>>();
+
+    private int routings = 0;
+
+    /**
+     * Creates the routing for a bulk operation. The routing processes share the channel creator of the bulk operation.
+     *
+     * @param routing
+     *            The routing that finds the close peers of one location key
+     * @param builder
+     *            The bulk builder with the routing and request configuration
+     * @param type
+     *            The type of the routing requests
+     * @param channelCreator
+     *            The channel creator
+     * @param locationKeys
+     *            The location keys to find the close peers for
+     */
+    BulkRouting(final DistributedRouting routing, final BulkBuilder<?> builder, final Type type,
+            final ChannelCreator channelCreator, final Collection<Number160> locationKeys) {
+        this.routing = routing;
+        this.builder = builder;
+        this.type = type;
+        this.channelCreator = channelCreator;
+        this.need = Math.max(1, builder.getRequestP2PConfiguration().getMinimumResults());
+        this.trusted = builder.getRoutingConfiguration().getMaxNoNewInfo(need);
+        this.unresolved = new TreeSet<Number160>(locationKeys);
+    }
+
+    /**
+     * Starts the routing processes.
+     *
+     * @return The future that finishes with the close peers of each location key, sorted by the distance to the
+     *         location key. If a routing failed, the set is empty.
+     */
+    FutureDone<Map<Number160, NavigableSet<PeerAddress>>> start() {
+        final List<Number160> next;
+        synchronized (this) {
+            next = next();
+        }
+        route(next);
+        return futureDone;
+    }
+
+    /**
+     * @return The number of routing processes that have been started
+     */
+    synchronized int routings() {
+        return routings;
+    }
+
+    private void route(final List<Number160> locationKeys) {
+        for (final Number160 locationKey : locationKeys) {
+            final RoutingBuilder routingBuilder = builder.createBuilder(builder.getRequestP2PConfiguration(),
+                    builder.getRoutingConfiguration());
+            routingBuilder.setLocationKey(locationKey);
+            routingBuilder.setDomainKey(builder.getDomainKey());
+            final FutureRouting futureRouting = routing.route(routingBuilder, type, channelCreator);
+            futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+                @Override
+                public void operationComplete(final FutureRouting future) throws Exception {
+                    routed(locationKey, future);
+                }
+            });
+        }
+    }
+
+    private void routed(final Number160 locationKey, final FutureRouting futureRouting) {
+        final List<Number160> next;
+        final boolean done;
+        synchronized (this) {
+            inFlight.remove(locationKey);
+            if (futureRouting.isSuccess()) {
+                cover(locationKey, futureRouting.getPotentialHits());
+            } else if (unresolved.remove(locationKey)) {
+                LOG.debug("routing to {} failed: {}", locationKey, futureRouting.getFailedReason());
+                result.put(locationKey, new TreeSet<PeerAddress>(PeerMap.createComparator(locationKey)));
+            }
+            done = unresolved.isEmpty() && inFlight.isEmpty();
+            next = next();
+        }
+        if (done) {
+            LOG.debug("resolved {} location keys with {} routings", result.size(), routings());
+            futureDone.setDone(result);
+        } else {
+            route(next);
+        }
+    }
+
+    /**
+     * Picks the location keys for the next routing processes. The keys are evenly spread over the unresolved keys, so
+     * that the results cover as many other keys as possible.
+     */
+    private List<Number160> next() {
+        final int slots = builder.getParallelRoutings() - inFlight.size();
+        final List<Number160> candidates = new ArrayList<Number160>(unresolved.size());
+        for (Number160 locationKey : unresolved) {
+            if (!inFlight.contains(locationKey)) {
+                candidates.add(locationKey);
+            }
+        }
+        if (slots <= 0 || candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final int size = Math.min(slots, candidates.size());
+        final List<Number160> next = new ArrayList<Number160>(size);
+        for (int i = 0; i < size; i++) {
+            final Number160 locationKey = candidates.get((2 * i + 1) * candidates.size() / (2 * size));
+            next.add(locationKey);
+            inFlight.add(locationKey);
+        }
+        routings += size;
+        return next;
+    }
+
+    private void cover(final Number160 routed, final NavigableSet<PeerAddress> potentialHits) {
+        if (unresolved.remove(routed)) {
+            result.put(routed, potentialHits);
+        }
+        final List<PeerAddress> trustedPeers = new ArrayList<PeerAddress>(trusted);
+        for (PeerAddress peerAddress : potentialHits) {
+            if (trustedPeers.size() == trusted) {
+                break;
+            }
+            trustedPeers.add(peerAddress);
+        }
+        if (trustedPeers.isEmpty()) {
+            return;
+        }
+        final BigInteger radius;
+        if (trustedPeers.size() == trusted) {
+            radius = distance(routed, trustedPeers.get(trustedPeers.size() - 1).getPeerId());
+        } else if (routing.peerMap().size() + 1 < trusted) {
+            // the network, including this peer, is smaller than the peers we trust, so the routing has seen all peers
+            radius = null;
+        } else {
+            // the routing missed peers, e.g., because they did not respond, so the result is only used for its key
+            return;
+        }
+        for (Iterator<Number160> iterator = unresolved.iterator(); iterator.hasNext();) {
+            final Number160 locationKey = iterator.next();
+            final NavigableSet<PeerAddress> closePeers = new TreeSet<PeerAddress>(
+                    PeerMap.createComparator(locationKey));
+            closePeers.addAll(trustedPeers);
+            if (radius == null || covered(routed, locationKey, closePeers, radius)) {
+                iterator.remove();
+                result.put(locationKey, closePeers);
+            }
+        }
+    }
+
+    private boolean covered(final Number160 routed, final Number160 locationKey,
+            final NavigableSet<PeerAddress> closePeers, final BigInteger radius) {
+        if (closePeers.size() < need) {
+            return false;
+        }
+        final Iterator<PeerAddress> iterator = closePeers.iterator();
+        for (int i = 1; i < need; i++) {
+            iterator.next();
+        }
+        final BigInteger farthest = distance(locationKey, iterator.next().getPeerId());
+        return farthest.add(distance(routed, locationKey)).compareTo(radius) < 0;
+    }
+
+    private static BigInteger distance(final Number160 key1, final Number160 key2) {
+        return new BigInteger(1, key1.xor(key2).toByteArray());
+    }
+}
@@ -16,16 +16,20 @@
 
 package net.tomp2p.p2p;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
-import net.tomp2p.connection2.ConnectionConfiguration;
+import net.tomp2p.connection2.Reservation;
+import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureLateJoin;
 import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.DataMap;
 import net.tomp2p.message.Message2;
 import net.tomp2p.p2p.builder.BroadcastBuilder;
 import net.tomp2p.peers.Number160;
@@ -147,23 +151,8 @@ public class DefaultBroadcastHandler implements BroadcastHandler {
     private void firstPeer(final Number160 messageKey, final Map<Number480, Data> dataMap, final int hopCounter,
             final boolean isUDP) {
         final List<PeerAddress> list = peer.getPeerBean().peerMap().getAll();
-        for (final PeerAddress peerAddress : list) {
-            FutureChannelCreator frr = peer.getConnectionBean().reservation().create(isUDP?1:0, isUDP?0:1);
-                    frr.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
-                        @Override
-                        public void operationComplete(final FutureChannelCreator future) throws Exception {
-                            if (future.isSuccess()) {
-                                BroadcastBuilder broadcastBuilder = new BroadcastBuilder(peer, messageKey);
-                                broadcastBuilder.dataMap(dataMap);
-                                broadcastBuilder.hopCounter(hopCounter + 1);
-                                FutureResponse futureResponse = peer.getBroadcastRPC().send(peerAddress, broadcastBuilder, 
-                                        future.getChannelCreator(), broadcastBuilder);
-                                LOG.debug("1st broadcast to {}", peerAddress);
-                                Utils.addReleaseListener(future.getChannelCreator(), futureResponse);
-                            }
-                        }
-                    });
-        }
+        LOG.debug("1st broadcast to {} peers", list.size());
+        send(messageKey, dataMap, hopCounter, isUDP, list);
     }
 
     /**
@@ -180,29 +169,77 @@ public class DefaultBroadcastHandler implements BroadcastHandler {
      */
     private void otherPeer(final Number160 messageKey, final Map<Number480, Data> dataMap,
             final int hopCounter, final boolean isUDP) {
-        LOG.debug("other");
         final List<PeerAddress> list = peer.getPeerBean().peerMap().getAll();
         final int max = Math.min(NR, list.size());
-        FutureChannelCreator frr = peer.getConnectionBean().reservation()
-                .create(isUDP ? max : 0, isUDP ? 0 : max);
-        frr.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+        final List<PeerAddress> randomList = new ArrayList<PeerAddress>(max);
+        for (int i = 0; i < max; i++) {
+            randomList.add(list.remove(rnd.nextInt(list.size())));
+        }
+        LOG.debug("2nd broadcast to {} peers", max);
+        send(messageKey, dataMap, hopCounter, isUDP, randomList);
+    }
+
+    /**
+     * Sends the broadcast message to all recipients. The data map is encoded once and the encoding is shared by all
+     * messages, only the header is encoded for each recipient. The recipients are sent to in batches, each batch uses
+     * one reservation with as many connections as allowed, instead of one reservation per recipient.
+     * 
+     * @param messageKey
+     *            The key of the message
+     * @param dataMap
+     *            The data map to send around
+     * @param hopCounter
+     *            The number of hops
+     * @param isUDP
+     *            Flag if message can be sent with UDP
+     * @param recipients
+     *            The peers to send the message to
+     */
+    private void send(final Number160 messageKey, final Map<Number480, Data> dataMap,
+            final int hopCounter, final boolean isUDP, final List<PeerAddress> recipients) {
+        if (recipients.isEmpty()) {
+            return;
+        }
+        final Reservation reservation = peer.getConnectionBean().reservation();
+        final int maxPermits = isUDP ? reservation.maxPermitsUDP() : reservation.maxPermitsTCP();
+        final int batchSize = Math.max(1, Math.min(recipients.size(), maxPermits));
+        final int batches = (recipients.size() + batchSize - 1) / batchSize;
+        // finishes when all batches are done, a batch is done when all its messages are sent or its reservation failed
+        final FutureLateJoin<BaseFuture> futureLateJoin = new FutureLateJoin<BaseFuture>(batches);
+        final DataMap sharedDataMap = dataMap == null ? null : new DataMap(dataMap).encodeShared();
+        final BroadcastBuilder broadcastBuilder = new BroadcastBuilder(peer, messageKey);
+        broadcastBuilder.hopCounter(hopCounter + 1).setIsUDP(isUDP);
+        futureLateJoin.addListener(new BaseFutureAdapter<FutureLateJoin<BaseFuture>>() {
             @Override
-            public void operationComplete(final FutureChannelCreator future) throws Exception {
-                if (future.isSuccess()) {
-                    for (int i = 0; i < max; i++) {
-                        PeerAddress randomAddress = list.remove(rnd.nextInt(list.size()));
-                        
-                        BroadcastBuilder broadcastBuilder = new BroadcastBuilder(peer, messageKey);
-                        broadcastBuilder.dataMap(dataMap);
-                        broadcastBuilder.hopCounter(hopCounter + 1);
-                        
-                        FutureResponse futureResponse = peer.getBroadcastRPC().send(randomAddress,
-                                broadcastBuilder, future.getChannelCreator(), broadcastBuilder);
-                        LOG.debug("2nd broadcast to {}", randomAddress);
-                        Utils.addReleaseListener(future.getChannelCreator(), futureResponse);
-                    }
+            public void operationComplete(final FutureLateJoin<BaseFuture> future) throws Exception {
+                // messages that are not written out yet hold their own reference
+                if (sharedDataMap != null) {
+                    sharedDataMap.releaseShared();
                 }
+                LOG.debug("broadcast to {} peers done: {}", recipients.size(), future.getFailedReason());
             }
         });
+        for (int i = 0; i < recipients.size(); i += batchSize) {
+            final List<PeerAddress> batch = recipients.subList(i, Math.min(i + batchSize, recipients.size()));
+            final FutureChannelCreator frr = reservation.create(isUDP ? batch.size() : 0, isUDP ? 0 : batch.size());
+            frr.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+                @Override
+                public void operationComplete(final FutureChannelCreator future) throws Exception {
+                    if (future.isSuccess()) {
+                        final FutureLateJoin<FutureResponse> futureBatch = new FutureLateJoin<FutureResponse>(
+                                batch.size());
+                        for (final PeerAddress peerAddress : batch) {
+                            FutureResponse futureResponse = peer.getBroadcastRPC().send(peerAddress,
+                                    broadcastBuilder, sharedDataMap, future.getChannelCreator(), broadcastBuilder);
+                            futureBatch.add(futureResponse);
+                        }
+                        Utils.addReleaseListener(future.getChannelCreator(), futureBatch);
+                        futureLateJoin.add(futureBatch);
+                    } else {
+                        futureLateJoin.add(future);
+                    }
+                }
+            });
+        }
     }
 }
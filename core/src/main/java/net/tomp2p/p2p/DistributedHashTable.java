@@ -19,20 +19,31 @@ import io.netty.buffer.ByteBuf;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
+import java.util.Queue;
 import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import net.tomp2p.connection2.ChannelCreator;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureBulk;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureDHT;
 import net.tomp2p.futures.FutureDirect;
+import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureForkJoin;
 import net.tomp2p.futures.FutureGet;
 import net.tomp2p.futures.FuturePut;
@@ -43,6 +54,9 @@ import net.tomp2p.futures.FutureShutdown;
 import net.tomp2p.message.Message2.Type;
 import net.tomp2p.p2p.builder.AddBuilder;
 import net.tomp2p.p2p.builder.BasicBuilder;
+import net.tomp2p.p2p.builder.BulkBuilder;
+import net.tomp2p.p2p.builder.BulkGetBuilder;
+import net.tomp2p.p2p.builder.BulkPutBuilder;
 import net.tomp2p.p2p.builder.GetBuilder;
 import net.tomp2p.p2p.builder.PutBuilder;
 import net.tomp2p.p2p.builder.RemoveBuilder;
@@ -52,6 +66,8 @@ import net.tomp2p.p2p.builder.ShutdownBuilder;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number480;
 import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerStatatistic;
 import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.rpc.DigestResult;
 import net.tomp2p.rpc.DirectDataRPC;
@@ -314,7 +330,13 @@ public class DistributedHashTable {
                     futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
                         @Override
                         public void operationComplete(FutureRouting futureRouting) throws Exception {
-                            if (futureRouting.isSuccess()) {
+                            if (futureRouting.isSuccess() && builder.isDigestFirst() && !builder.isDigest()
+                                    && !builder.isRange()) {
+                                logger.debug("found direct hits for digest first get: {}",
+                                        futureRouting.getDirectHits());
+                                getDigestFirst(builder, futureRouting.getDirectHits(), futureDHT,
+                                        future.getChannelCreator());
+                            } else if (futureRouting.isSuccess()) {
                                 logger.debug("found direct hits for get: {}", futureRouting.getDirectHits());
                                 // this adjust is based on results from the routing process, if we find the same data on 2
                                 // peers, we want to get it from one only. Unless its digest, then we want to know exactly what is going on
@@ -383,6 +405,174 @@ public class DistributedHashTable {
         return futureDHT;
     }
 
+    /**
+     * Gets the data in two steps. First, the hashes of the data are requested from the direct hits, as many as the
+     * user specified minimum result. Then, the data is requested from one peer whose hashes match the majority. If
+     * this peer does not deliver the data or the data does not match, the next peer is asked. Peers with a lower
+     * round-trip time are asked first.
+     * 
+     * @param builder
+     *            The get builder
+     * @param directHits
+     *            The peers that reported having the data during routing
+     * @param futureDHT
+     *            The future to finish
+     * @param channelCreator
+     *            The channel creator
+     */
+    private void getDigestFirst(final GetBuilder builder, final NavigableSet<PeerAddress> directHits,
+            final FutureGet futureDHT, final ChannelCreator channelCreator) {
+        parallelRequests(builder.getRequestP2PConfiguration(), directHits, futureDHT, true, channelCreator,
+                new OperationMapper<FutureGet>() {
+                    Map<PeerAddress, DigestResult> rawDigest = new HashMap<PeerAddress, DigestResult>();
+
+                    @Override
+                    public FutureResponse create(final ChannelCreator channelCreator, final PeerAddress address) {
+                        return storeRCP.digest(address, builder, channelCreator);
+                    }
+
+                    @Override
+                    public void response(final FutureGet futureDHT) {
+                        final List<PeerAddress> replicas = sortByRTT(builder.getLocationKey(), rawDigest.keySet());
+                        final Map<Number480, Number160> majority = majority(replicas, rawDigest);
+                        logger.debug("majority of {} digests: {}", rawDigest.size(), majority);
+                        fetch(builder, majority, replicas.iterator(), rawDigest,
+                                new HashMap<PeerAddress, Map<Number480, Data>>(), futureDHT, channelCreator);
+                    }
+
+                    @Override
+                    public void interMediateResponse(final FutureResponse future) {
+                        if (future.isSuccess()) {
+                            rawDigest.put(future.getRequest().getRecipient(), new DigestResult(future.getResponse()
+                                    .getKeysMap(0).keysMap()));
+                            logger.debug("set digest from {}", future.getRequest().getRecipient());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Requests the data that is still missing from the next replica that has matching hashes. The data is checked
+     * against the hashes of the majority.
+     */
+    private void fetch(final GetBuilder builder, final Map<Number480, Number160> missing,
+            final Iterator<PeerAddress> replicas, final Map<PeerAddress, DigestResult> rawDigest,
+            final Map<PeerAddress, Map<Number480, Data>> rawData, final FutureGet futureDHT,
+            final ChannelCreator channelCreator) {
+        PeerAddress replica = null;
+        final Collection<Number480> keys = new ArrayList<Number480>(missing.size());
+        while (replica == null && !missing.isEmpty() && replicas.hasNext() && !futureDHT.isCompleted()) {
+            final PeerAddress candidate = replicas.next();
+            final Map<Number480, Number160> digest = rawDigest.get(candidate).getKeyDigest();
+            for (Map.Entry<Number480, Number160> entry : missing.entrySet()) {
+                if (entry.getValue().equals(digest.get(entry.getKey()))) {
+                    keys.add(entry.getKey());
+                }
+            }
+            if (!keys.isEmpty()) {
+                replica = candidate;
+            }
+        }
+        if (replica == null) {
+            futureDHT.setReceivedData(builder.getLocationKey(), builder.getDomainKey(), rawData, rawDigest,
+                    missing.size());
+            return;
+        }
+        final PeerAddress remotePeer = replica;
+        final FutureResponse futureResponse = storeRCP.get(remotePeer, builder, keys, channelCreator);
+        futureDHT.addRequests(futureResponse);
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                if (future.isSuccess()) {
+                    final Map<Number480, Data> verified = new HashMap<Number480, Data>();
+                    for (Map.Entry<Number480, Data> entry : future.getResponse().getDataMap(0).dataMap()
+                            .entrySet()) {
+                        final Number160 hash = missing.get(entry.getKey());
+                        if (hash != null && hash.equals(entry.getValue().hash())) {
+                            verified.put(entry.getKey(), entry.getValue());
+                            missing.remove(entry.getKey());
+                        } else {
+                            logger.debug("data of {} from {} does not match the majority", entry.getKey(),
+                                    remotePeer);
+                        }
+                    }
+                    if (!verified.isEmpty()) {
+                        rawData.put(remotePeer, verified);
+                    }
+                } else {
+                    logger.debug("could not get data from {}: {}", remotePeer, future.getFailedReason());
+                }
+                fetch(builder, missing, replicas, rawDigest, rawData, futureDHT, channelCreator);
+            }
+        });
+    }
+
+    /**
+     * Sorts the peers by their smoothed round-trip time. Peers without a measurement come last, ordered by their
+     * distance to the location key.
+     */
+    private List<PeerAddress> sortByRTT(final Number160 locationKey, final Collection<PeerAddress> peerAddresses) {
+        final SortedSet<PeerAddress> closest = new TreeSet<PeerAddress>(PeerMap.createComparator(locationKey));
+        closest.addAll(peerAddresses);
+        final List<PeerAddress> replicas = new ArrayList<PeerAddress>(closest);
+        final PeerMap peerMap = routing.peerMap();
+        Collections.sort(replicas, new Comparator<PeerAddress>() {
+            @Override
+            public int compare(final PeerAddress o1, final PeerAddress o2) {
+                final long rtt1 = smoothedRTT(peerMap, o1);
+                final long rtt2 = smoothedRTT(peerMap, o2);
+                return rtt1 < rtt2 ? -1 : (rtt1 == rtt2 ? 0 : 1);
+            }
+        });
+        return replicas;
+    }
+
+    private static long smoothedRTT(final PeerMap peerMap, final PeerAddress peerAddress) {
+        final PeerStatatistic peerStatatistic = peerMap.peerStatistic(peerAddress);
+        if (peerStatatistic == null || peerStatatistic.getSmoothedRTT() < 0) {
+            return Long.MAX_VALUE;
+        }
+        return peerStatatistic.getSmoothedRTT();
+    }
+
+    /**
+     * Finds the hash of each key that the majority of the peers agree on. A key is part of the result if at least
+     * half of the peers report the same hash, as in {@link VotingSchemeDHT}. On a tie, the hash of the peer that comes
+     * first wins.
+     * 
+     * @param replicas
+     *            The peers that sent digests in the order of preference
+     * @param rawDigest
+     *            The digests of the peers
+     * @return The keys and their hash the majority agrees on
+     */
+    static Map<Number480, Number160> majority(final List<PeerAddress> replicas,
+            final Map<PeerAddress, DigestResult> rawDigest) {
+        final int majority = (rawDigest.size() + 1) / 2;
+        final Map<Number480, Map<Number160, Integer>> counter = new HashMap<Number480, Map<Number160, Integer>>();
+        final Map<Number480, Integer> best = new HashMap<Number480, Integer>();
+        final Map<Number480, Number160> result = new HashMap<Number480, Number160>();
+        for (PeerAddress replica : replicas) {
+            for (Map.Entry<Number480, Number160> entry : rawDigest.get(replica).getKeyDigest().entrySet()) {
+                Map<Number160, Integer> counts = counter.get(entry.getKey());
+                if (counts == null) {
+                    counts = new HashMap<Number160, Integer>();
+                    counter.put(entry.getKey(), counts);
+                }
+                final Integer count = counts.get(entry.getValue());
+                final int c = count == null ? 1 : count + 1;
+                counts.put(entry.getValue(), c);
+                final Integer max = best.get(entry.getKey());
+                if (c >= majority && (max == null || c > max)) {
+                    best.put(entry.getKey(), c);
+                    result.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return result;
+    }
+
     /*public FutureDHT remove(final Number160 locationKey, final Number160 domainKey,
             final Collection<Number160> contentKeys, final RoutingConfiguration routingConfiguration,
             final RequestP2PConfiguration p2pConfiguration, final boolean returnResults, final boolean signMessage,
@@ -460,6 +650,269 @@ public class DistributedHashTable {
         return futureDHT;
     }
 
+    /**
+     * Stores data under many location keys. The close peers are found with as few routings as possible, see
+     * {@link BulkRouting}, and each peer gets one put request with all the data it is responsible for.
+     * 
+     * @param builder
+     *            The data and all other options
+     * @return The future with the future put of each location key
+     */
+    public FutureBulk<FuturePut> putBulk(final BulkPutBuilder builder) {
+        final Map<Number160, Map<Number480, Data>> dataMaps = new HashMap<Number160, Map<Number480, Data>>();
+        for (Map.Entry<Number480, Data> entry : builder.getDataMap().entrySet()) {
+            Map<Number480, Data> dataMap = dataMaps.get(entry.getKey().getLocationKey());
+            if (dataMap == null) {
+                dataMap = new HashMap<Number480, Data>();
+                dataMaps.put(entry.getKey().getLocationKey(), dataMap);
+            }
+            dataMap.put(entry.getKey(), entry.getValue());
+        }
+        final Map<Number160, FuturePut> futures = new HashMap<Number160, FuturePut>();
+        final Map<Number160, Map<PeerAddress, Collection<Number480>>> rawData480 = new HashMap<Number160, Map<PeerAddress, Collection<Number480>>>();
+        for (Number160 locationKey : dataMaps.keySet()) {
+            futures.put(locationKey, new FuturePut(builder.getRequestP2PConfiguration().getMinimumResults(),
+                    new VotingSchemeDHT()));
+            rawData480.put(locationKey, new HashMap<PeerAddress, Collection<Number480>>());
+        }
+        final FutureBulk<FuturePut> futureBulk = new FutureBulk<FuturePut>(futures);
+        bulk(builder, Type.REQUEST_1, futureBulk, new BulkOperationMapper() {
+            @Override
+            public FutureResponse create(final ChannelCreator channelCreator, final PeerAddress address,
+                    final Collection<Number160> locationKeys) {
+                final Map<Number480, Data> dataMap = new HashMap<Number480, Data>();
+                for (Number160 locationKey : locationKeys) {
+                    dataMap.putAll(dataMaps.get(locationKey));
+                }
+                return storeRCP.put(address, builder, dataMap, channelCreator);
+            }
+
+            @Override
+            public void response(final Number160 locationKey) {
+                synchronized (rawData480) {
+                    futures.get(locationKey).setStoredKeys(locationKey, builder.getDomainKey(),
+                            rawData480.get(locationKey));
+                }
+            }
+
+            @Override
+            public Collection<Number160> interMediateResponse(final FutureResponse future,
+                    final Collection<Number160> locationKeys) {
+                final Collection<Number160> stored = new ArrayList<Number160>(locationKeys.size());
+                if (!future.isSuccess() || !future.getResponse().isOk()) {
+                    return stored;
+                }
+                final Map<Number160, Collection<Number480>> keys = new HashMap<Number160, Collection<Number480>>();
+                for (Number480 key : future.getResponse().getKeys(0).keys()) {
+                    Collection<Number480> collection = keys.get(key.getLocationKey());
+                    if (collection == null) {
+                        collection = new ArrayList<Number480>();
+                        keys.put(key.getLocationKey(), collection);
+                    }
+                    collection.add(key);
+                }
+                synchronized (rawData480) {
+                    for (Number160 locationKey : locationKeys) {
+                        final Collection<Number480> collection = keys.get(locationKey);
+                        // put if absent does not store anything if the data is already there, as with a single put
+                        if (collection != null || builder.isPutIfAbsent()) {
+                            rawData480.get(locationKey).put(future.getRequest().getRecipient(),
+                                    collection == null ? new ArrayList<Number480>(0) : collection);
+                            stored.add(locationKey);
+                        }
+                    }
+                }
+                return stored;
+            }
+        });
+        return futureBulk;
+    }
+
+    /**
+     * Gets the data of many keys with different location keys. The close peers are found with as few routings as
+     * possible, see {@link BulkRouting}, and each peer gets one get request with all the keys it is responsible for.
+     * 
+     * @param builder
+     *            The keys and all other options
+     * @return The future with the future get of each location key
+     */
+    public FutureBulk<FutureGet> getBulk(final BulkGetBuilder builder) {
+        final Map<Number160, Collection<Number480>> keyMap = new HashMap<Number160, Collection<Number480>>();
+        for (Number480 key : builder.getKeys()) {
+            Collection<Number480> keys = keyMap.get(key.getLocationKey());
+            if (keys == null) {
+                keys = new ArrayList<Number480>();
+                keyMap.put(key.getLocationKey(), keys);
+            }
+            keys.add(key);
+        }
+        final Map<Number160, FutureGet> futures = new HashMap<Number160, FutureGet>();
+        final Map<Number160, Map<PeerAddress, Map<Number480, Data>>> rawData = new HashMap<Number160, Map<PeerAddress, Map<Number480, Data>>>();
+        for (Number160 locationKey : keyMap.keySet()) {
+            futures.put(locationKey, new FutureGet(builder.getRequestP2PConfiguration().getMinimumResults(),
+                    builder.getEvaluationScheme()));
+            rawData.put(locationKey, new HashMap<PeerAddress, Map<Number480, Data>>());
+        }
+        final FutureBulk<FutureGet> futureBulk = new FutureBulk<FutureGet>(futures);
+        bulk(builder, Type.REQUEST_1, futureBulk, new BulkOperationMapper() {
+            @Override
+            public FutureResponse create(final ChannelCreator channelCreator, final PeerAddress address,
+                    final Collection<Number160> locationKeys) {
+                final Collection<Number480> keys = new ArrayList<Number480>();
+                for (Number160 locationKey : locationKeys) {
+                    keys.addAll(keyMap.get(locationKey));
+                }
+                return storeRCP.get(address, builder, keys, channelCreator);
+            }
+
+            @Override
+            public void response(final Number160 locationKey) {
+                synchronized (rawData) {
+                    futures.get(locationKey).setReceivedData(locationKey, builder.getDomainKey(),
+                            rawData.get(locationKey));
+                }
+            }
+
+            @Override
+            public Collection<Number160> interMediateResponse(final FutureResponse future,
+                    final Collection<Number160> locationKeys) {
+                // the future tells us that the communication was successful, a peer without the data is a result
+                // as well
+                if (!future.isSuccess()) {
+                    return new ArrayList<Number160>(0);
+                }
+                final Map<Number160, Map<Number480, Data>> dataMaps = new HashMap<Number160, Map<Number480, Data>>();
+                for (Number160 locationKey : locationKeys) {
+                    dataMaps.put(locationKey, new HashMap<Number480, Data>());
+                }
+                for (Map.Entry<Number480, Data> entry : future.getResponse().getDataMap(0).dataMap().entrySet()) {
+                    final Map<Number480, Data> dataMap = dataMaps.get(entry.getKey().getLocationKey());
+                    if (dataMap != null) {
+                        dataMap.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                synchronized (rawData) {
+                    for (Map.Entry<Number160, Map<Number480, Data>> entry : dataMaps.entrySet()) {
+                        rawData.get(entry.getKey()).put(future.getRequest().getRecipient(), entry.getValue());
+                    }
+                }
+                return locationKeys;
+            }
+        });
+        return futureBulk;
+    }
+
+    /**
+     * Runs a bulk operation: finds the close peers of all location keys and sends one request per peer with all
+     * location keys this peer is responsible for. A location key without enough successful requests is tried on its
+     * next close peers in the next round, up to the maximum failures of the request configuration.
+     */
+    private <K extends FutureDHT> void bulk(final BulkBuilder<?> builder, final Type type,
+            final FutureBulk<K> futureBulk, final BulkOperationMapper operation) {
+        builder.getFutureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+                    final ChannelCreator channelCreator = future.getChannelCreator();
+                    final BulkRouting bulkRouting = new BulkRouting(routing, builder, type, channelCreator,
+                            futureBulk.getFutures().keySet());
+                    bulkRouting.start().addListener(
+                            new BaseFutureAdapter<FutureDone<Map<Number160, NavigableSet<PeerAddress>>>>() {
+                                @Override
+                                public void operationComplete(
+                                        final FutureDone<Map<Number160, NavigableSet<PeerAddress>>> future)
+                                        throws Exception {
+                                    final Map<Number160, Integer> successes = new HashMap<Number160, Integer>();
+                                    for (Number160 locationKey : future.getObject().keySet()) {
+                                        successes.put(locationKey, 0);
+                                    }
+                                    bulkRound(builder.getRequestP2PConfiguration(), future.getObject(),
+                                            successes, 0, futureBulk, bulkRouting.routings(), channelCreator,
+                                            operation);
+                                }
+                            });
+                    Utils.addReleaseListener(channelCreator, futureBulk);
+                } else {
+                    for (K futureDHT : futureBulk.getFutures().values()) {
+                        futureDHT.setFailed(future);
+                    }
+                    futureBulk.setFailed(future);
+                }
+            }
+        });
+    }
+
+    private static void bulkRound(final RequestP2PConfiguration p2pConfiguration,
+            final Map<Number160, NavigableSet<PeerAddress>> closePeers, final Map<Number160, Integer> successes,
+            final int round, final FutureBulk<?> futureBulk, final int routings,
+            final ChannelCreator channelCreator, final BulkOperationMapper operation) {
+        // group the location keys that still need results by the peer that is responsible for them
+        final Map<PeerAddress, Collection<Number160>> requests = new LinkedHashMap<PeerAddress, Collection<Number160>>();
+        if (round <= p2pConfiguration.getMaxFailure()) {
+            synchronized (successes) {
+                for (Map.Entry<Number160, NavigableSet<PeerAddress>> entry : closePeers.entrySet()) {
+                    final int missing = p2pConfiguration.getMinimumResults() - successes.get(entry.getKey());
+                    for (int i = 0; i < missing; i++) {
+                        final PeerAddress next = entry.getValue().pollFirst();
+                        if (next == null) {
+                            break;
+                        }
+                        Collection<Number160> locationKeys = requests.get(next);
+                        if (locationKeys == null) {
+                            locationKeys = new ArrayList<Number160>();
+                            requests.put(next, locationKeys);
+                        }
+                        locationKeys.add(entry.getKey());
+                    }
+                }
+            }
+        }
+        if (requests.isEmpty()) {
+            for (Number160 locationKey : closePeers.keySet()) {
+                operation.response(locationKey);
+            }
+            futureBulk.setDone(routings);
+            return;
+        }
+        logger.debug("bulk round {}: {} requests", round, requests.size());
+        final Queue<Map.Entry<PeerAddress, Collection<Number160>>> queue = new ConcurrentLinkedQueue<Map.Entry<PeerAddress, Collection<Number160>>>(
+                requests.entrySet());
+        final AtomicInteger open = new AtomicInteger(requests.size());
+        final Runnable next = new Runnable() {
+            @Override
+            public void run() {
+                final Map.Entry<PeerAddress, Collection<Number160>> request = queue.poll();
+                if (request == null) {
+                    return;
+                }
+                final Runnable self = this;
+                operation.create(channelCreator, request.getKey(), request.getValue()).addListener(
+                        new BaseFutureAdapter<FutureResponse>() {
+                            @Override
+                            public void operationComplete(final FutureResponse future) throws Exception {
+                                final Collection<Number160> succeeded = operation.interMediateResponse(future,
+                                        request.getValue());
+                                synchronized (successes) {
+                                    for (Number160 locationKey : succeeded) {
+                                        successes.put(locationKey, successes.get(locationKey) + 1);
+                                    }
+                                }
+                                if (open.decrementAndGet() == 0) {
+                                    bulkRound(p2pConfiguration, closePeers, successes, round + 1, futureBulk,
+                                            routings, channelCreator, operation);
+                                } else {
+                                    self.run();
+                                }
+                            }
+                        });
+            }
+        };
+        // the window of parallel requests fits into the reservation
+        for (int i = 0; i < p2pConfiguration.getParallel(); i++) {
+            next.run();
+        }
+    }
+
     /**
      * Send a friendly shutdown message to your close neighbors.
      * 
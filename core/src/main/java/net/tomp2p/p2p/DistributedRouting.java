@@ -60,6 +60,8 @@ public class DistributedRouting {
 
     private final Random rnd;
 
+    private final RoutingCache routingCache;
+
     /**
      * The routing process involves multiple RPCs, mostly UDP based.
      * 
@@ -69,8 +71,23 @@ public class DistributedRouting {
      *            The neighbor RPC that will be issues
      */
     public DistributedRouting(final PeerBean peerBean, final NeighborRPC neighbors) {
+        this(peerBean, neighbors, null);
+    }
+
+    /**
+     * The routing process involves multiple RPCs, mostly UDP based.
+     * 
+     * @param peerBean
+     *            The peer bean
+     * @param neighbors
+     *            The neighbor RPC that will be issues
+     * @param routingCache
+     *            The cache for the results of the routing processes, or null if every routing walks the overlay
+     */
+    public DistributedRouting(final PeerBean peerBean, final NeighborRPC neighbors, final RoutingCache routingCache) {
         this.neighbors = neighbors;
         this.peerBean = peerBean;
+        this.routingCache = routingCache;
         // stable random number. No need to be truly random
         rnd = new Random(peerBean.serverPeerAddress().getPeerId().hashCode());
     }
@@ -123,10 +140,69 @@ public class DistributedRouting {
      * @return a FutureRouting object, is set to complete if the route has been found
      */
     public FutureRouting route(final RoutingBuilder routingBuilder, final Type type, final ChannelCreator cc) {
-        // for bad distribution, use large NO_NEW_INFORMATION
-        Collection<PeerAddress> startPeers = peerBean.peerMap().closePeers(routingBuilder.getLocationKey(),
-                routingBuilder.getParallel() * 2);
-        return routing(startPeers, routingBuilder, type, cc);
+        final Number160 locationKey = routingBuilder.getLocationKey();
+        final RoutingCache.Route route = routingCache == null || !routingBuilder.isRoutingCache() ? null
+                : routingCache.get(locationKey);
+        if (route != null && type == Type.REQUEST_1) {
+            // we only need the close peers and no direct hits, thus, we can skip the routing
+            return cachedRoute(route, locationKey);
+        }
+        // for bad distribution, use large NO_NEW_INFORMATION. With a cached route, we start at the close peers
+        final Collection<PeerAddress> startPeers;
+        if (route != null) {
+            startPeers = new TreeSet<PeerAddress>(route.closePeers());
+            startPeers.remove(peerBean.serverPeerAddress());
+        } else {
+            startPeers = peerBean.peerMap().closestPeers(locationKey, routingBuilder.getParallel() * 2);
+        }
+        final FutureRouting futureRouting = routing(startPeers, routingBuilder, type, cc);
+        if (routingCache != null && routingBuilder.isRoutingCache()) {
+            futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+                @Override
+                public void operationComplete(final FutureRouting future) throws Exception {
+                    if (future.isSuccess()) {
+                        // the routing path contains ourself
+                        final int rpcs = future.getRoutingPath().size() - 1;
+                        if (route != null) {
+                            routingCache.saved(route.rpcs() - rpcs);
+                        }
+                        routingCache.put(locationKey, future.getPotentialHits(), Math.max(rpcs, 0));
+                    }
+                }
+            });
+        }
+        return futureRouting;
+    }
+
+    /**
+     * Creates a finished routing future from a cached route.
+     * 
+     * @param route
+     *            The cached route
+     * @param locationKey
+     *            The location key of the route
+     * @return The finished routing future with the cached close peers as potential hits and no direct hits
+     */
+    private FutureRouting cachedRoute(final RoutingCache.Route route, final Number160 locationKey) {
+        final Comparator<PeerAddress> comparator = PeerMap.createComparator(locationKey);
+        final NavigableSet<PeerAddress> potentialHits = new TreeSet<PeerAddress>(comparator);
+        potentialHits.addAll(route.closePeers());
+        final SortedSet<PeerAddress> routingPath = new TreeSet<PeerAddress>(comparator);
+        routingPath.add(peerBean.serverPeerAddress());
+        final SortedMap<PeerAddress, DigestInfo> directHits = new TreeMap<PeerAddress, DigestInfo>(peerBean
+                .peerMap().createComparator());
+        routingCache.saved(route.rpcs());
+        LOG.debug("cached route to {}: {}", locationKey, potentialHits);
+        final FutureRouting futureRouting = new FutureRouting();
+        futureRouting.setNeighbors(directHits, potentialHits, routingPath, false, true);
+        return futureRouting;
+    }
+
+    /**
+     * @return The cache for the results of the routing processes, or null if there is no cache
+     */
+    public RoutingCache routingCache() {
+        return routingCache;
     }
 
     /**
@@ -180,8 +256,14 @@ public class DistributedRouting {
         potentialHits.add(peerBean.serverPeerAddress());
         // domainkey can be null if we bootstrap
         if (type == Type.REQUEST_2 && routingBuilder.getDomainKey() != null && !randomSearch) {
-            DigestInfo digestBean = peerBean.storage().digest(routingBuilder.getLocationKey(),
-                    routingBuilder.getDomainKey(), routingBuilder.getContentKey());
+            final DigestInfo digestBean;
+            if (routingBuilder.getContentKey() == null) {
+                digestBean = peerBean.storage().digestSummary(routingBuilder.getLocationKey(),
+                        routingBuilder.getDomainKey());
+            } else {
+                digestBean = peerBean.storage().digest(routingBuilder.getLocationKey(),
+                        routingBuilder.getDomainKey(), routingBuilder.getContentKey());
+            }
             if (digestBean.getSize() > 0) {
                 directHits.put(peerBean.serverPeerAddress(), digestBean);
             }
@@ -277,6 +359,9 @@ public class DistributedRouting {
                 final PeerAddress next;
                 if (randomSearch) {
                     next = routingMechanism.pollRandomInQueueToAsk(rnd);
+                } else if (routingBuilder.getProximityCandidates() > 1) {
+                    next = routingMechanism.pollProximityInQueueToAsk(routingBuilder.getLocationKey(),
+                            peerBean.peerMap(), routingBuilder.getProximityCandidates());
                 } else {
                     next = routingMechanism.pollFirstInQueueToAsk();
                 }
@@ -17,6 +17,7 @@ import net.tomp2p.futures.FutureDone;
 import net.tomp2p.peers.Maintainable;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerStatatistic;
+import net.tomp2p.storage.StorageGeneric;
 
 public class MaintenanceTask extends TimerTask {
     
@@ -43,6 +44,11 @@ public class MaintenanceTask extends TimerTask {
 
     @Override
     public void run() {
+        // remove expired entries, a large number of them is removed in several batches
+        final StorageGeneric storage = peer.getPeerBean().storage();
+        if (storage != null) {
+            storage.checkTimeout();
+        }
         synchronized (lock) {
             //make sure we only have 5 ping in parallel
             if (shutdown || COUNTER.get() > MAX_PING) {
@@ -20,6 +20,7 @@ import io.netty.util.Timer;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +30,7 @@ import net.tomp2p.connection2.ChannelCreator;
 import net.tomp2p.connection2.ConnectionBean;
 import net.tomp2p.connection2.PeerBean;
 import net.tomp2p.connection2.PeerConnection;
+import net.tomp2p.connection2.RequestMultiplexer;
 import net.tomp2p.connection2.PeerCreator;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
@@ -40,6 +42,8 @@ import net.tomp2p.p2p.builder.AddBuilder;
 import net.tomp2p.p2p.builder.AddTrackerBuilder;
 import net.tomp2p.p2p.builder.BootstrapBuilder;
 import net.tomp2p.p2p.builder.BroadcastBuilder;
+import net.tomp2p.p2p.builder.BulkGetBuilder;
+import net.tomp2p.p2p.builder.BulkPutBuilder;
 import net.tomp2p.p2p.builder.DiscoverBuilder;
 import net.tomp2p.p2p.builder.GetBuilder;
 import net.tomp2p.p2p.builder.GetTrackerBuilder;
@@ -51,7 +55,9 @@ import net.tomp2p.p2p.builder.SendBuilder;
 import net.tomp2p.p2p.builder.SendDirectBuilder;
 import net.tomp2p.p2p.builder.ShutdownBuilder;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number480;
 import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.AntiEntropyRPC;
 import net.tomp2p.rpc.BroadcastRPC;
 import net.tomp2p.rpc.DirectDataRPC;
 import net.tomp2p.rpc.PingRPC;
@@ -64,6 +70,7 @@ import net.tomp2p.rpc.StorageRPC;
 import net.tomp2p.rpc.SynchronizationRPC;
 //import net.tomp2p.rpc.TaskRPC;
 import net.tomp2p.rpc.TrackerRPC;
+import net.tomp2p.storage.Data;
 //import net.tomp2p.task.AsyncTask;
 //import net.tomp2p.task.Worker;
 
@@ -127,6 +134,7 @@ public class Peer {
     // private TaskRPC taskRPC;
     private BroadcastRPC broadcastRPC;
     private SynchronizationRPC synchronizationRPC;
+    private AntiEntropyRPC antiEntropyRPC;
 
     //
     private boolean shutdown = false;
@@ -291,6 +299,17 @@ public class Peer {
     	return synchronizationRPC;
     }
 
+    public void setAntiEntropyRPC(AntiEntropyRPC antiEntropyRPC) {
+        this.antiEntropyRPC = antiEntropyRPC;
+    }
+
+    public AntiEntropyRPC getAntiEntropyRPC() {
+        if (antiEntropyRPC == null) {
+            throw new RuntimeException("Not enabled, please enable this RPC in PeerMaker");
+        }
+        return antiEntropyRPC;
+    }
+
     public DistributedRouting getDistributedRouting() {
         if (distributedRouting == null) {
             throw new RuntimeException("Not enabled, please enable this P2P function in PeerMaker");
@@ -403,6 +422,22 @@ public class Peer {
      *         connection could not be reserved, maybe due to a shutdown, null is returned.
      */
     public FuturePeerConnection createPeerConnection(final PeerAddress destination) {
+        return createPeerConnection(destination, false);
+    }
+
+    /**
+     * Opens a TCP connection and keeps it open. If pipelined, several requests can be sent over this connection
+     * without waiting for the previous reply. The replies are matched by their message id. Streamed messages cannot
+     * be pipelined.
+     * 
+     * @param destination
+     *            The end-point to connect to
+     * @param pipelined
+     *            True if several requests can be in flight on this connection
+     * @return A class that needs to be passed to those methods that should use the already open connection. If the
+     *         connection could not be reserved, maybe due to a shutdown, null is returned.
+     */
+    public FuturePeerConnection createPeerConnection(final PeerAddress destination, final boolean pipelined) {
         final FuturePeerConnection futureDone = new FuturePeerConnection(destination);
         final FutureChannelCreator fcc = getConnectionBean().reservation().createPermanent(1);
         fcc.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
@@ -410,7 +445,10 @@ public class Peer {
             public void operationComplete(final FutureChannelCreator future) throws Exception {
                 if (future.isSuccess()) {
                     final ChannelCreator cc = fcc.getChannelCreator();
-                    final PeerConnection peerConnection = new PeerConnection(destination, cc);
+                    final RequestMultiplexer requestMultiplexer = pipelined ? new RequestMultiplexer(
+                            getPeerBean().peerStatusListeners(), getConnectionBean().timer()) : null;
+                    final PeerConnection peerConnection = new PeerConnection(destination, cc,
+                            requestMultiplexer);
                     futureDone.setDone(peerConnection);
                 } else {
                     futureDone.setFailed(future);
@@ -487,6 +525,14 @@ public class Peer {
         return new RemoveBuilder(this, locationKey);
     }
 
+    public BulkPutBuilder putBulk(Map<Number480, Data> dataMap) {
+        return new BulkPutBuilder(this, dataMap);
+    }
+
+    public BulkGetBuilder getBulk(Collection<Number480> keys) {
+        return new BulkGetBuilder(this, keys);
+    }
+
     /**
      * The send method works as follows:
      * 
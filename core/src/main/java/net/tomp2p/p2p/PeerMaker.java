@@ -31,6 +31,7 @@ import net.tomp2p.connection2.ChannelClientConfiguration;
 import net.tomp2p.connection2.ChannelServerConficuration;
 import net.tomp2p.connection2.ConnectionBean;
 import net.tomp2p.connection2.DefaultSignatureFactory;
+import net.tomp2p.connection2.DispatchExecutor;
 import net.tomp2p.connection2.PeerBean;
 import net.tomp2p.connection2.PeerCreator;
 import net.tomp2p.connection2.PipelineFilter;
@@ -40,6 +41,7 @@ import net.tomp2p.peers.PeerMapConfiguration;
 import net.tomp2p.peers.PeerStatusListener;
 import net.tomp2p.replication.Replication;
 import net.tomp2p.replication.ReplicationExecutor;
+import net.tomp2p.rpc.AntiEntropyRPC;
 import net.tomp2p.rpc.BloomfilterFactory;
 import net.tomp2p.rpc.BroadcastRPC;
 import net.tomp2p.rpc.DefaultBloomfilterFactory;
@@ -53,6 +55,8 @@ import net.tomp2p.rpc.SynchronizationRPC;
 //import net.tomp2p.rpc.TaskRPC;
 import net.tomp2p.rpc.TrackerRPC;
 import net.tomp2p.storage.IdentityManagement;
+import net.tomp2p.storage.JavaSerializer;
+import net.tomp2p.storage.Serializer;
 import net.tomp2p.storage.StorageGeneric;
 import net.tomp2p.storage.StorageMemory;
 import net.tomp2p.storage.TrackerStorage;
@@ -120,6 +124,14 @@ public class PeerMaker {
     private MaintenanceTask maintenanceTask = null;
     
     private ReplicationExecutor replicationExecutor = null;
+
+    private int replicationIntervalMillis = 60 * 1000;
+
+    private int replicationDelayMillis = 0;
+
+    private RoutingCache routingCache = null;
+
+    private Serializer serializer = null;
     
     private List<AutomaticFuture> automaticFutures = null;
 
@@ -149,6 +161,7 @@ public class PeerMaker {
     private boolean enableTrackerRPC = true;
     private boolean enableTaskRPC = true;
     private boolean enableSynchronizationRPC = true;    
+    private boolean enableAntiEntropyRPC = true;
 
     // P2P
     private boolean enableRouting = true;
@@ -158,6 +171,7 @@ public class PeerMaker {
     private boolean enableMaintenance = true;
     private boolean enableIndirectReplication = false;
     private boolean enableBroadcast = true;
+    private boolean enableTreeBroadcast = false;
 
     // private Random rnd;
 
@@ -259,9 +273,18 @@ public class PeerMaker {
         if (bloomfilterFactory == null) {
             peerBean.bloomfilterFactory(new DefaultBloomfilterFactory());
         }
+
+        if (serializer == null) {
+            serializer = new JavaSerializer();
+        }
+        peerBean.serializer(serializer);
         
         if (broadcastHandler == null) {
-            broadcastHandler = new DefaultBroadcastHandler(peer, new Random());
+            if (isEnableTreeBroadcast()) {
+                broadcastHandler = new TreeBroadcastHandler(peer, new Random());
+            } else {
+                broadcastHandler = new DefaultBroadcastHandler(peer, new Random());
+            }
         }
 
         ConnectionBean connectionBean = peerCreator.connectionBean();
@@ -295,10 +318,11 @@ public class PeerMaker {
         
         // indirect replication
         if(replicationExecutor == null && isEnableIndirectReplication() && isEnableStorageRPC()) {
-            replicationExecutor = new ReplicationExecutor(peer); 
+            replicationExecutor = new ReplicationExecutor(peer, new Random(), connectionBean.timer(),
+                    replicationDelayMillis);
         }
         if (replicationExecutor != null) {
-            replicationExecutor.init(peer, connectionBean.timer());
+            replicationExecutor.init(peer, replicationIntervalMillis);
         }
         peerBean.replicationExecutor(replicationExecutor);
         
@@ -392,14 +416,33 @@ public class PeerMaker {
         	SynchronizationRPC synchronizationRPC = new SynchronizationRPC(peerBean, connectionBean);
         	peer.setSynchronizationRPC(synchronizationRPC);
         }        
-         
+
+        if (isEnableAntiEntropyRPC()) {
+            AntiEntropyRPC antiEntropyRPC = new AntiEntropyRPC(peerBean, connectionBean);
+            peer.setAntiEntropyRPC(antiEntropyRPC);
+        }
+
+        // ping, neighbors, quit, pex, and broadcast are cheap and stay in the event loop, while the RPCs that access
+        // the storage or call user code go to the worker pool
+        DispatchExecutor dispatchExecutor = connectionBean.channelServer().channelServerConfiguration()
+                .dispatchExecutor();
+        if (dispatchExecutor != null) {
+            connectionBean.dispatcher().executor(dispatchExecutor, StorageRPC.COMMAND_PUT, StorageRPC.COMMAND_GET,
+                    StorageRPC.COMMAND_ADD, StorageRPC.COMMAND_REMOVE, DirectDataRPC.DIRECT_DATA_COMMAND,
+                    TrackerRPC.TRACKER_ADD_COMMAND, TrackerRPC.TRACKER_GET_COMMAND, SynchronizationRPC.INFO_COMMAND,
+                    SynchronizationRPC.COPY_COMMAND, SynchronizationRPC.SYNC_COMMAND,
+                    AntiEntropyRPC.ANTI_ENTROPY_COMMAND);
+        }
     }
 
     private void initP2P(final Peer peer, final ConnectionBean connectionBean, final PeerBean peerBean) {
         // distributed communication
 
         if (isEnableRouting() && isEnableNeighborRPC()) {
-            DistributedRouting routing = new DistributedRouting(peerBean, peer.getNeighborRPC());
+            if (routingCache != null) {
+                peerBean.peerMap().addPeerMapChangeListener(routingCache);
+            }
+            DistributedRouting routing = new DistributedRouting(peerBean, peer.getNeighborRPC(), routingCache);
             peer.setDistributedRouting(routing);
         }
         
@@ -561,6 +604,65 @@ public class PeerMaker {
         this.replicationExecutor = replicationExecutor;
         return this;
     }
+
+    public int replicationIntervalMillis() {
+        return replicationIntervalMillis;
+    }
+
+    public PeerMaker replicationIntervalMillis(int replicationIntervalMillis) {
+        this.replicationIntervalMillis = replicationIntervalMillis;
+        return this;
+    }
+
+    public int replicationDelayMillis() {
+        return replicationDelayMillis;
+    }
+
+    /**
+     * @param replicationDelayMillis
+     *            The maximum random delay before data is transferred to a peer that became responsible for it, 0 to
+     *            transfer immediately
+     * @return This class
+     */
+    public PeerMaker replicationDelayMillis(int replicationDelayMillis) {
+        this.replicationDelayMillis = replicationDelayMillis;
+        return this;
+    }
+
+    public RoutingCache routingCache() {
+        return routingCache;
+    }
+
+    /**
+     * Caches the results of the routing processes, so that repeated operations on the same location key do not walk
+     * the overlay again. Disabled by default.
+     * 
+     * @param routingCache
+     *            The routing cache, or null to disable it
+     * @return This class
+     */
+    public PeerMaker routingCache(RoutingCache routingCache) {
+        this.routingCache = routingCache;
+        return this;
+    }
+
+    public Serializer serializer() {
+        return serializer;
+    }
+
+    /**
+     * Sets the serializer that converts the objects this peer sends directly. Use the peer bean serializer to create
+     * data objects, e.g., new Data(object, peer.getPeerBean().serializer()). The default is the Java serialization,
+     * which every peer understands.
+     * 
+     * @param serializer
+     *            The serializer, e.g., {@link net.tomp2p.storage.CompactSerializer}
+     * @return This class
+     */
+    public PeerMaker serializer(Serializer serializer) {
+        this.serializer = serializer;
+        return this;
+    }
     
     // isEnabled methods
 
@@ -645,6 +747,15 @@ public class PeerMaker {
         return this;
     }     
 
+    public boolean isEnableAntiEntropyRPC() {
+        return enableAntiEntropyRPC;
+    }
+
+    public PeerMaker setEnableAntiEntropyRPC(boolean enableAntiEntropyRPC) {
+        this.enableAntiEntropyRPC = enableAntiEntropyRPC;
+        return this;
+    }
+
     public boolean isEnableRouting() {
         return enableRouting;
     }
@@ -707,6 +818,21 @@ public class PeerMaker {
         this.enableBroadcast = enableBroadcast;
         return this;
     }
+
+    public boolean isEnableTreeBroadcast() {
+        return enableTreeBroadcast;
+    }
+
+    /**
+     * @param enableTreeBroadcast
+     *            True to use the {@link TreeBroadcastHandler} instead of the random walk of the
+     *            {@link DefaultBroadcastHandler}, if no broadcast handler is set
+     * @return This class
+     */
+    public PeerMaker setEnableTreeBroadcast(boolean enableTreeBroadcast) {
+        this.enableTreeBroadcast = enableTreeBroadcast;
+        return this;
+    }
     
     /**
      * @return True if this peer is behind a firewall and cannot be accessed directly
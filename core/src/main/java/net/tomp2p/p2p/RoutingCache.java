@@ -0,0 +1,209 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.p2p;
+
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerMapChangeListener;
+import net.tomp2p.peers.PeerStatatistic;
+import net.tomp2p.utils.ConcurrentCacheMap;
+
+/**
+ * Caches the close peers found by a routing process for a location key, so that repeated operations on the same
+ * location key do not need to walk the overlay again. The cache is bounded and its entries expire, since peers that
+ * join are not detected. Peers that fail are detected: this cache listens to the peer map and removes all entries that
+ * contain a peer that has been removed from the map.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class RoutingCache implements PeerMapChangeListener {
+
+    /**
+     * The default time in seconds a route is kept.
+     */
+    public static final int DEFAULT_TIME_TO_LIVE = 60;
+
+    /**
+     * The default number of routes that are kept.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    private final ConcurrentCacheMap<Number160, Route> cache;
+
+    // statistics
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong savedRPCs = new AtomicLong(0);
+
+    /**
+     * Creates a routing cache with the default size and time to live.
+     */
+    public RoutingCache() {
+        this(DEFAULT_TIME_TO_LIVE, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a routing cache.
+     *
+     * @param timeToLive
+     *            The time in seconds a route is kept
+     * @param maxEntries
+     *            The number of routes that are kept until the least recently used gets replaced
+     */
+    public RoutingCache(final int timeToLive, final int maxEntries) {
+        this.cache = new ConcurrentCacheMap<Number160, Route>(timeToLive, maxEntries);
+    }
+
+    /**
+     * Looks up the route to a location key and counts the hit or miss.
+     *
+     * @param locationKey
+     *            The location key
+     * @return The cached route or null if there is none
+     */
+    public Route get(final Number160 locationKey) {
+        final Route route = cache.get(locationKey);
+        if (route == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return route;
+    }
+
+    /**
+     * Stores the result of a routing process.
+     *
+     * @param locationKey
+     *            The location key of the routing process
+     * @param closePeers
+     *            The close peers that were found
+     * @param rpcs
+     *            The number of neighbor RPCs the routing process needed
+     */
+    public void put(final Number160 locationKey, final NavigableSet<PeerAddress> closePeers, final int rpcs) {
+        final NavigableSet<PeerAddress> copy = new TreeSet<PeerAddress>(PeerMap.createComparator(locationKey));
+        copy.addAll(closePeers);
+        cache.put(locationKey, new Route(copy, rpcs));
+    }
+
+    /**
+     * Counts the neighbor RPCs that were not needed because of a cached route.
+     *
+     * @param rpcs
+     *            The number of RPCs that were saved
+     */
+    public void saved(final int rpcs) {
+        if (rpcs > 0) {
+            savedRPCs.addAndGet(rpcs);
+        }
+    }
+
+    /**
+     * @return The number of lookups that found a route
+     */
+    public long hitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of lookups that did not find a route
+     */
+    public long missCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return The ratio of lookups that found a route, 0 if there was no lookup yet
+     */
+    public double hitRate() {
+        final long hits = hitCount();
+        final long total = hits + missCount();
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    /**
+     * @return The number of neighbor RPCs that were not needed because of cached routes
+     */
+    public long savedRPCs() {
+        return savedRPCs.get();
+    }
+
+    /**
+     * @return The number of cached routes
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    @Override
+    public void peerInserted(final PeerAddress peerAddress, final boolean verified) {
+        // a new peer may be closer than the cached peers, the time to live takes care of that
+    }
+
+    @Override
+    public void peerRemoved(final PeerAddress peerAddress, final PeerStatatistic storedPeerAddress) {
+        for (Map.Entry<Number160, Route> entry : cache.entrySet()) {
+            if (entry.getValue().closePeers().contains(peerAddress)) {
+                cache.remove(entry.getKey());
+            }
+        }
+    }
+
+    @Override
+    public void peerUpdated(final PeerAddress peerAddress, final PeerStatatistic storedPeerAddress) {
+        // the peer is still there
+    }
+
+    /**
+     * The close peers of a location key and the cost of the routing process that found them.
+     *
+     * @author Thomas Bocek
+     *
+     */
+    public static final class Route {
+        private final NavigableSet<PeerAddress> closePeers;
+
+        private final int rpcs;
+
+        private Route(final NavigableSet<PeerAddress> closePeers, final int rpcs) {
+            this.closePeers = closePeers;
+            this.rpcs = rpcs;
+        }
+
+        /**
+         * @return The close peers sorted by the distance to the location key. This set is shared, do not modify it.
+         */
+        public NavigableSet<PeerAddress> closePeers() {
+            return closePeers;
+        }
+
+        /**
+         * @return The number of neighbor RPCs the routing process needed
+         */
+        public int rpcs() {
+            return rpcs;
+        }
+    }
+}
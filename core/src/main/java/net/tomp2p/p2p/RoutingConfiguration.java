@@ -28,6 +28,8 @@ public class RoutingConfiguration {
 
     final private boolean forceTCP;
 
+    final private int proximityCandidates;
+
     public RoutingConfiguration(int maxNoNewInfoDiff, int maxFailures, int parallel) {
         this(Integer.MAX_VALUE, maxNoNewInfoDiff, maxFailures, 20, parallel);
     }
@@ -60,9 +62,40 @@ public class RoutingConfiguration {
      */
     public RoutingConfiguration(final int maxDirectHits, final int maxNoNewInfoDiff, final int maxFailures,
             final int maxSuccess, final int parallel, final boolean forceTCP) {
+        this(maxDirectHits, maxNoNewInfoDiff, maxFailures, maxSuccess, parallel, forceTCP, 1);
+    }
+
+    /**
+     * Sets the routing configuration and its stop conditions.
+     * 
+     * @param maxDirectHits
+     *            Number of direct hits (d): This is used for fetching data. If d peers have been contacted that have
+     *            the data stored, routing stops.
+     * @param maxNoNewInfoDiff
+     *            Number of no new information (n): This is mainly used for storing data. It searches the closest peers
+     *            and if n peers do not report any closer nodes, the routing stops.
+     * @param maxFailures
+     *            Number of failures (f): The routing stops if f peers fail to respond.
+     * @param maxSuccess
+     *            Number of success (s): The routing stops if s peers respond.
+     * @param parallel
+     *            Number of parallel requests (p): This tells the routing how many peers to contact in parallel.
+     * @param forceTCP
+     *            Flag to indicate that routing should be done with TCP instead of UDP
+     * @param proximityCandidates
+     *            Number of proximity candidates (c): The next peer to ask is the one with the lowest round-trip time
+     *            among the c closest peers in the queue that are in the same distance class as the closest one. With
+     *            1, the closest peer is asked next.
+     */
+    public RoutingConfiguration(final int maxDirectHits, final int maxNoNewInfoDiff, final int maxFailures,
+            final int maxSuccess, final int parallel, final boolean forceTCP, final int proximityCandidates) {
         if (maxDirectHits < 0 || maxNoNewInfoDiff < 0 || maxFailures < 0 || parallel < 0) {
             throw new IllegalArgumentException("need to be larger or equals zero");
         }
+        if (proximityCandidates < 1) {
+            throw new IllegalArgumentException("need at least one proximity candidate");
+        }
+        this.proximityCandidates = proximityCandidates;
         this.maxDirectHits = maxDirectHits;
         this.maxNoNewInfoDiff = maxNoNewInfoDiff;
         this.maxFailures = maxFailures;
@@ -108,4 +141,11 @@ public class RoutingConfiguration {
     public boolean isForceTCP() {
         return forceTCP;
     }
+
+    /**
+     * @return The number of close peers among which the peer with the lowest round-trip time is asked next
+     */
+    public int getProximityCandidates() {
+        return proximityCandidates;
+    }
 }
@@ -1,6 +1,7 @@
 package net.tomp2p.p2p;
 
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Random;
@@ -18,7 +19,10 @@ import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureRouting;
 import net.tomp2p.p2p.builder.RoutingBuilder;
+import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerStatatistic;
 import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.utils.Utils;
 
@@ -215,6 +219,52 @@ public class RoutingMechanism {
         }
     }
 
+    /**
+     * Polls the next peer to ask with proximity routing. The peers in the queue that are in the same distance class as
+     * the closest peer, i.e., their distance to the location key has the same highest bit, bring the routing equally
+     * close to the location key. Among the first of those candidates, the one with the lowest smoothed round-trip
+     * time is chosen. Peers without a measured round-trip time come last, and ties keep the XOR order.
+     * 
+     * @param locationKey
+     *            The location key of the routing
+     * @param peerMap
+     *            The peer map with the round-trip times
+     * @param candidates
+     *            The maximum number of peers to choose from
+     * @return The next peer to ask or null if the queue is empty
+     */
+    public PeerAddress pollProximityInQueueToAsk(final Number160 locationKey, final PeerMap peerMap,
+            final int candidates) {
+        synchronized (this) {
+            final Iterator<PeerAddress> iterator = queueToAsk.iterator();
+            if (!iterator.hasNext()) {
+                return null;
+            }
+            PeerAddress best = iterator.next();
+            final int distanceClass = locationKey.xor(best.getPeerId()).bitLength();
+            long bestRTT = smoothedRTT(peerMap, best);
+            for (int i = 1; i < candidates && iterator.hasNext(); i++) {
+                final PeerAddress candidate = iterator.next();
+                if (locationKey.xor(candidate.getPeerId()).bitLength() != distanceClass) {
+                    break;
+                }
+                final long rtt = smoothedRTT(peerMap, candidate);
+                if (rtt < bestRTT) {
+                    best = candidate;
+                    bestRTT = rtt;
+                }
+            }
+            queueToAsk.remove(best);
+            return best;
+        }
+    }
+
+    private static long smoothedRTT(final PeerMap peerMap, final PeerAddress peerAddress) {
+        final PeerStatatistic peerStatatistic = peerMap.peerStatistic(peerAddress);
+        final long rtt = peerStatatistic == null ? -1 : peerStatatistic.getSmoothedRTT();
+        return rtt < 0 ? Long.MAX_VALUE : rtt;
+    }
+
     public PeerAddress pollRandomInQueueToAsk(Random rnd) {
         synchronized (this) {
             return Utils.pollRandom(queueToAsk(), rnd);
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.p2p;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureLateJoin;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.DataMap;
+import net.tomp2p.message.Message2;
+import net.tomp2p.p2p.builder.BroadcastBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.ConcurrentCacheMap;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A broadcast that partitions the XOR space along the bags of the {@link PeerMap}, so that every peer receives the
+ * message about once. The initiator sends the message to one peer of each of its bags. The peer from bag i is
+ * responsible for all peers that share the bits above i with it, which are the peers in its bags below i. Thus, it
+ * forwards the message with the limit i to one peer of each of its bags below i, and so on. The limit decreases with
+ * every hop, which results in a depth of O(log N) for N peers.
+ * <p>
+ * The tree messages are acknowledged, also if they are sent with UDP. If a peer of a bag does not respond, the
+ * message is sent to another peer of the same bag. Duplicates can still happen if the peer maps are not consistent,
+ * they are counted and not forwarded, see {@link #redundancyRatio()}.
+ * Messages that do not have a limit were sent by a random walk broadcast and are handled by the fallback handler,
+ * which is the {@link DefaultBroadcastHandler} by default.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class TreeBroadcastHandler implements BroadcastHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(TreeBroadcastHandler.class);
+
+    // the initiator covers all bags
+    private static final int ROOT_LIMIT = Number160.BITS;
+
+    // the number of times we try another peer of the same bag if a peer does not respond
+    private static final int MAX_RETRIES = 3;
+
+    private final Peer peer;
+
+    private final Random rnd;
+
+    private final BroadcastHandler fallback;
+
+    private final ConcurrentCacheMap<Number160, Boolean> cache = new ConcurrentCacheMap<Number160, Boolean>();
+
+    private final AtomicLong received = new AtomicLong();
+
+    private final AtomicLong duplicates = new AtomicLong();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * Constructor with the {@link DefaultBroadcastHandler} as fallback.
+     *
+     * @param peer
+     *            The peer that sends the broadcast messages
+     * @param rnd
+     *            Random number, to select a peer of a bag
+     */
+    public TreeBroadcastHandler(final Peer peer, final Random rnd) {
+        this(peer, rnd, new DefaultBroadcastHandler(peer, rnd));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param peer
+     *            The peer that sends the broadcast messages
+     * @param rnd
+     *            Random number, to select a peer of a bag
+     * @param fallback
+     *            The handler for broadcast messages that were not sent by a tree broadcast
+     */
+    public TreeBroadcastHandler(final Peer peer, final Random rnd, final BroadcastHandler fallback) {
+        this.peer = peer;
+        this.rnd = rnd;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public void receive(final Message2 message) {
+        final Integer bagLimit = message.getInteger(1);
+        final int hopCount = message.getInteger(0);
+        if (bagLimit == null && hopCount > 0) {
+            // sent by a peer that uses the random walk
+            fallback.receive(message);
+            return;
+        }
+        final Number160 messageKey = message.getKey(0);
+        received.incrementAndGet();
+        if (cache.putIfAbsent(messageKey, Boolean.TRUE) != null) {
+            duplicates.incrementAndGet();
+            LOG.debug("duplicate broadcast {} on {}", messageKey, peer.getPeerID());
+            return;
+        }
+        final Map<Number480, Data> dataMap;
+        if (message.getDataMap(0) != null) {
+            dataMap = message.getDataMap(0).dataMap();
+        } else {
+            dataMap = null;
+        }
+        forward(messageKey, dataMap, hopCount, bagLimit == null ? ROOT_LIMIT : bagLimit, message.isUdp());
+    }
+
+    /**
+     * @return The number of tree broadcast messages this peer received, including duplicates
+     */
+    public long received() {
+        return received.get();
+    }
+
+    /**
+     * @return The number of tree broadcast messages this peer received more than once
+     */
+    public long duplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return The number of times a message was sent to another peer of the same bag, since a peer did not respond
+     */
+    public long retries() {
+        return retries.get();
+    }
+
+    /**
+     * @return The received messages per distinct message, 1.0 means that this peer received every broadcast exactly
+     *         once, or 0 if nothing was received
+     */
+    public double redundancyRatio() {
+        final long total = received.get();
+        final long distinct = total - duplicates.get();
+        return distinct == 0 ? 0 : total / (double) distinct;
+    }
+
+    /**
+     * Sends the message to one peer of each non-empty bag below the limit. The data map is encoded once for all
+     * subtrees.
+     *
+     * @param messageKey
+     *            The key of the message
+     * @param dataMap
+     *            The data map to send around
+     * @param hopCounter
+     *            The number of hops
+     * @param bagLimit
+     *            The bags from 0 to bagLimit - 1 are covered by this peer
+     * @param isUDP
+     *            Flag if message can be sent with UDP
+     */
+    private void forward(final Number160 messageKey, final Map<Number480, Data> dataMap, final int hopCounter,
+            final int bagLimit, final boolean isUDP) {
+        final PeerMap peerMap = peer.getPeerBean().peerMap();
+        final Map<Integer, List<PeerAddress>> subtrees = new TreeMap<Integer, List<PeerAddress>>();
+        for (int i = 0; i < bagLimit; i++) {
+            final List<PeerAddress> bag = peerMap.bag(i);
+            if (!bag.isEmpty()) {
+                subtrees.put(i, bag);
+            }
+        }
+        LOG.debug("tree broadcast from {} with limit {} to {} subtrees", peer.getPeerID(), bagLimit,
+                subtrees.size());
+        if (subtrees.isEmpty()) {
+            return;
+        }
+        final DataMap sharedDataMap = dataMap == null ? null : new DataMap(dataMap).encodeShared();
+        final FutureLateJoin<FutureDone<Void>> futureLateJoin = new FutureLateJoin<FutureDone<Void>>(
+                subtrees.size());
+        futureLateJoin.addListener(new BaseFutureAdapter<FutureLateJoin<FutureDone<Void>>>() {
+            @Override
+            public void operationComplete(final FutureLateJoin<FutureDone<Void>> future) throws Exception {
+                if (sharedDataMap != null) {
+                    sharedDataMap.releaseShared();
+                }
+                if (!future.isSuccess()) {
+                    LOG.debug("tree broadcast {} incomplete: {}", messageKey, future.getFailedReason());
+                }
+            }
+        });
+        for (Map.Entry<Integer, List<PeerAddress>> entry : subtrees.entrySet()) {
+            final BroadcastBuilder broadcastBuilder = new BroadcastBuilder(peer, messageKey);
+            broadcastBuilder.hopCounter(hopCounter + 1).bagLimit(entry.getKey()).setIsUDP(isUDP);
+            final FutureDone<Void> futureSubtree = new FutureDone<Void>();
+            futureLateJoin.add(futureSubtree);
+            sendSubtree(broadcastBuilder, sharedDataMap, entry.getValue(), 0, futureSubtree);
+        }
+    }
+
+    /**
+     * Sends the message to a random peer of a bag. If this peer does not respond, another peer of the same bag is
+     * tried, or the same peer again if it is the only one.
+     *
+     * @param broadcastBuilder
+     *            The message key, the hop counter, and the limit for the recipient
+     * @param dataMap
+     *            The shared data map or null
+     * @param candidates
+     *            The peers of the bag that have not been tried yet
+     * @param attempt
+     *            The number of peers that have been tried
+     * @param futureSubtree
+     *            The future that is done when a peer of the bag received the message
+     */
+    private void sendSubtree(final BroadcastBuilder broadcastBuilder, final DataMap dataMap,
+            final List<PeerAddress> candidates, final int attempt, final FutureDone<Void> futureSubtree) {
+        final PeerAddress recipient = candidates.remove(rnd.nextInt(candidates.size()));
+        final boolean isUDP = broadcastBuilder.isUDP();
+        final FutureChannelCreator frr = peer.getConnectionBean().reservation()
+                .create(isUDP ? 1 : 0, isUDP ? 0 : 1);
+        frr.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (!future.isSuccess()) {
+                    futureSubtree.setFailed(future);
+                    return;
+                }
+                // without an acknowledgement, a UDP message succeeds once sent and a lost message is never retried
+                final FutureResponse futureResponse = peer.getBroadcastRPC().send(recipient, broadcastBuilder,
+                        dataMap, future.getChannelCreator(), broadcastBuilder, true);
+                LOG.debug("tree broadcast to {} with limit {}", recipient, broadcastBuilder.bagLimit());
+                Utils.addReleaseListener(future.getChannelCreator(), futureResponse);
+                futureResponse.addListener(new BaseFutureAdapter<BaseFuture>() {
+                    @Override
+                    public void operationComplete(final BaseFuture future) throws Exception {
+                        if (future.isSuccess()) {
+                            futureSubtree.setDone();
+                        } else if (attempt < MAX_RETRIES) {
+                            if (candidates.isEmpty()) {
+                                // the only peer of the bag may have just lost the message
+                                candidates.add(recipient);
+                            }
+                            retries.incrementAndGet();
+                            sendSubtree(broadcastBuilder, dataMap, candidates, attempt + 1, futureSubtree);
+                        } else {
+                            futureSubtree.setFailed("subtree " + broadcastBuilder.bagLimit() + " not reached: "
+                                    + future.getFailedReason());
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
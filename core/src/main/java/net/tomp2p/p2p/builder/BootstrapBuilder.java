@@ -262,6 +262,7 @@ public class BootstrapBuilder {
         routingBuilder.setMaxDirectHits(Integer.MAX_VALUE);
         routingBuilder.setMaxFailures(routingConfiguration.getMaxFailures());
         routingBuilder.setMaxSuccess(routingConfiguration.getMaxSuccess());
+        routingBuilder.setProximityCandidates(routingConfiguration.getProximityCandidates());
         routingBuilder.setForceRoutingOnlyToSelf(forceRoutingOnlyToSelf);
         return routingBuilder;
     }
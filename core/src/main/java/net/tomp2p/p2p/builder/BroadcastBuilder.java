@@ -39,6 +39,8 @@ public class BroadcastBuilder extends DefaultConnectionConfiguration {
     
     private int hopCounter;
 
+    private Integer bagLimit;
+
     public BroadcastBuilder(Peer peer, Number160 messageKey) {
         this.peer = peer;
         this.messageKey = messageKey;
@@ -58,6 +60,7 @@ public class BroadcastBuilder extends DefaultConnectionConfiguration {
         
         message.setKey(messageKey);
         message.setInteger(0);
+        message.udp(isUDP());
         
         peer.getBroadcastRPC().broadcastHandler().receive(message);
     }
@@ -96,6 +99,21 @@ public class BroadcastBuilder extends DefaultConnectionConfiguration {
         return this;
     }
 
+    public Integer bagLimit() {
+        return bagLimit;
+    }
+
+    /**
+     * @param bagLimit
+     *            For a tree broadcast, the recipient forwards the message only to peers in its bags below this limit,
+     *            see {@link net.tomp2p.p2p.TreeBroadcastHandler}. Null for a random walk broadcast.
+     * @return This class
+     */
+    public BroadcastBuilder bagLimit(Integer bagLimit) {
+        this.bagLimit = bagLimit;
+        return this;
+    }
+
     public PeerAddress remotePeer() {
         return peer.getPeerAddress();
     }
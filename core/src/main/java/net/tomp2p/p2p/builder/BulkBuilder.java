@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.p2p.builder;
+
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.p2p.Peer;
+
+/**
+ * The common methods of the builders for bulk operations on many location keys. A bulk operation routes to some of
+ * the location keys and reuses the result for the location keys close to them. Then, it sends one request per peer
+ * that covers all location keys this peer is responsible for. All of this is done with one reservation of
+ * connections.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ */
+public abstract class BulkBuilder<K extends BulkBuilder<K>> extends DHTBuilder<K> {
+
+    /**
+     * The default number of routing processes that run in parallel.
+     */
+    public static final int DEFAULT_PARALLEL_ROUTINGS = 4;
+
+    private int parallelRoutings = DEFAULT_PARALLEL_ROUTINGS;
+
+    private K self;
+
+    /**
+     * Constructor. A bulk builder has no single location key.
+     *
+     * @param peer
+     *            The peer that starts the operation
+     */
+    public BulkBuilder(final Peer peer) {
+        super(peer, null);
+    }
+
+    @Override
+    public void self(final K self) {
+        super.self(self);
+        this.self = self;
+    }
+
+    /**
+     * @return The number of routing processes that run in parallel
+     */
+    public int getParallelRoutings() {
+        return parallelRoutings;
+    }
+
+    /**
+     * @param parallelRoutings
+     *            The number of routing processes that run in parallel
+     * @return This class
+     */
+    public K setParallelRoutings(final int parallelRoutings) {
+        if (parallelRoutings < 1) {
+            throw new IllegalArgumentException("need at least one routing");
+        }
+        this.parallelRoutings = parallelRoutings;
+        return self;
+    }
+
+    @Override
+    protected FutureChannelCreator reserve() {
+        // the routings run in parallel, the requests per peer start after the routing and are limited to the parallel
+        // requests
+        final int routingConnections = routingConfiguration.getParallel() * parallelRoutings;
+        int nrConnectionsTCP = 0;
+        int nrConnectionsUDP = 0;
+        if (isForceUDP()) {
+            nrConnectionsUDP = requestP2PConfiguration.getParallel();
+        } else {
+            nrConnectionsTCP = requestP2PConfiguration.getParallel();
+        }
+        if (!isForceTCP()) {
+            nrConnectionsUDP = Math.max(nrConnectionsUDP, routingConnections);
+        } else {
+            nrConnectionsTCP = Math.max(nrConnectionsTCP, routingConnections);
+        }
+        return peer.getConnectionBean().reservation().create(nrConnectionsUDP, nrConnectionsTCP);
+    }
+}
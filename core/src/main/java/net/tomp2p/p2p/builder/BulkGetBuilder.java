@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.p2p.builder;
+
+import java.util.Collection;
+
+import net.tomp2p.futures.FutureBulk;
+import net.tomp2p.futures.FutureGet;
+import net.tomp2p.p2p.EvaluatingSchemeDHT;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.VotingSchemeDHT;
+import net.tomp2p.peers.Number480;
+
+/**
+ * Gets the data of many keys with different location keys at once. The result is a {@link FutureGet} per location
+ * key.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class BulkGetBuilder extends BulkBuilder<BulkGetBuilder> {
+
+    private final Collection<Number480> keys;
+
+    private EvaluatingSchemeDHT evaluationScheme;
+
+    /**
+     * Constructor.
+     *
+     * @param peer
+     *            The peer that gets the data
+     * @param keys
+     *            The location, domain, and content keys of the data to get
+     */
+    public BulkGetBuilder(final Peer peer, final Collection<Number480> keys) {
+        super(peer);
+        this.keys = keys;
+        self(this);
+    }
+
+    /**
+     * @return The location, domain, and content keys of the data to get
+     */
+    public Collection<Number480> getKeys() {
+        return keys;
+    }
+
+    public EvaluatingSchemeDHT getEvaluationScheme() {
+        return evaluationScheme;
+    }
+
+    public BulkGetBuilder setEvaluationScheme(final EvaluatingSchemeDHT evaluationScheme) {
+        this.evaluationScheme = evaluationScheme;
+        return this;
+    }
+
+    public FutureBulk<FutureGet> start() {
+        if (keys == null || keys.isEmpty()) {
+            throw new IllegalArgumentException("You must provide keys. Cannot get nothing.");
+        }
+        if (evaluationScheme == null) {
+            evaluationScheme = new VotingSchemeDHT();
+        }
+        preBuild("bulk-get-builder");
+        return peer.getDistributedHashMap().getBulk(this);
+    }
+}
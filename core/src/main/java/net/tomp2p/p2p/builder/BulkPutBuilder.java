@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.p2p.builder;
+
+import java.util.Map;
+
+import net.tomp2p.futures.FutureBulk;
+import net.tomp2p.futures.FuturePut;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.storage.Data;
+
+/**
+ * Stores data under many location keys at once. The result is a {@link FuturePut} per location key.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class BulkPutBuilder extends BulkBuilder<BulkPutBuilder> {
+
+    private final Map<Number480, Data> dataMap;
+
+    private boolean putIfAbsent = false;
+
+    /**
+     * Constructor.
+     *
+     * @param peer
+     *            The peer that stores the data
+     * @param dataMap
+     *            The data to store with the location, domain, and content key
+     */
+    public BulkPutBuilder(final Peer peer, final Map<Number480, Data> dataMap) {
+        super(peer);
+        this.dataMap = dataMap;
+        self(this);
+    }
+
+    /**
+     * @return The data to store with the location, domain, and content key
+     */
+    public Map<Number480, Data> getDataMap() {
+        return dataMap;
+    }
+
+    public boolean isPutIfAbsent() {
+        return putIfAbsent;
+    }
+
+    public BulkPutBuilder setPutIfAbsent(final boolean putIfAbsent) {
+        this.putIfAbsent = putIfAbsent;
+        return this;
+    }
+
+    public BulkPutBuilder setPutIfAbsent() {
+        this.putIfAbsent = true;
+        return this;
+    }
+
+    public FutureBulk<FuturePut> start() {
+        if (dataMap == null || dataMap.isEmpty()) {
+            throw new IllegalArgumentException("You must provide data. Cannot put nothing.");
+        }
+        preBuild("bulk-put-builder");
+        return peer.getDistributedHashMap().putBulk(this);
+    }
+}
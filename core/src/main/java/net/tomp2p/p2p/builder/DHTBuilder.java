@@ -231,10 +231,19 @@ public abstract class DHTBuilder<K extends DHTBuilder<K>> extends DefaultConnect
         int size = peer.getPeerBean().peerMap().size() + 1;
         requestP2PConfiguration = requestP2PConfiguration.adjustMinimumResult(size);
         if (futureChannelCreator == null) {
-            futureChannelCreator = peer.getConnectionBean().reservation()
-                    .create(routingConfiguration, requestP2PConfiguration, this);
+            futureChannelCreator = reserve();
         }
     }
+
+    /**
+     * Reserves the connections for the routing and the requests of this operation. Called by
+     * {@link #preBuild(String)} if no channel creator was set.
+     * 
+     * @return The future of the created channel
+     */
+    protected FutureChannelCreator reserve() {
+        return peer.getConnectionBean().reservation().create(routingConfiguration, requestP2PConfiguration, this);
+    }
     
     public RoutingBuilder createBuilder(RequestP2PConfiguration requestP2PConfiguration,
             RoutingConfiguration routingConfiguration) {
@@ -245,6 +254,7 @@ public abstract class DHTBuilder<K extends DHTBuilder<K>> extends DefaultConnect
         routingBuilder.setMaxDirectHits(routingConfiguration.getMaxDirectHits());
         routingBuilder.setMaxFailures(routingConfiguration.getMaxFailures());
         routingBuilder.setMaxSuccess(routingConfiguration.getMaxSuccess());
+        routingBuilder.setProximityCandidates(routingConfiguration.getProximityCandidates());
         return routingBuilder;
     }
 
@@ -51,6 +51,8 @@ public class GetBuilder extends DHTBuilder<GetBuilder> {
     private boolean returnBloomFilter = false;
 
     private boolean range = false;
+
+    private boolean digestFirst = false;
     static {
         NUMBER_ZERO_CONTENT_KEYS.add(Number160.ZERO);
     }
@@ -181,6 +183,27 @@ public class GetBuilder extends DHTBuilder<GetBuilder> {
         return this;
     }
 
+    public boolean isDigestFirst() {
+        return digestFirst;
+    }
+
+    /**
+     * @param digestFirst
+     *            Set to true to first get the hashes of the data from all replicas and then the data from one replica
+     *            whose hashes match the majority. The data is only transferred once, but the get needs an additional
+     *            round trip. This is ignored for digest and range requests.
+     * @return This class
+     */
+    public GetBuilder setDigestFirst(boolean digestFirst) {
+        this.digestFirst = digestFirst;
+        return this;
+    }
+
+    public GetBuilder setDigestFirst() {
+        this.digestFirst = true;
+        return this;
+    }
+
     public FutureGet start() {
         preBuild("get-builder");
         if (all) {
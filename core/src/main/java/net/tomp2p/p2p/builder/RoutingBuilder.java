@@ -25,9 +25,11 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
     private int maxFailures;
     private int maxSuccess;
     private int parallel;
+    private int proximityCandidates = 1;
     private boolean isBootstrap;
     private boolean isForceRoutingOnlyToSelf;
     private boolean isRoutingToOthers;
+    private boolean isRoutingCache = true;
 
     public Number160 getLocationKey() {
         return locationKey;
@@ -123,6 +125,35 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
         }
     }
 
+    /**
+     * @return True if a cached route may be used, if the peer has a routing cache. For routings that only need the
+     *         close peers, the routing is skipped on a hit. Otherwise, the routing starts at the cached peers.
+     */
+    public boolean isRoutingCache() {
+        return isRoutingCache;
+    }
+
+    /**
+     * @param isRoutingCache
+     *            Set to false to always walk the overlay, even if the route is in the routing cache
+     * @return This class
+     */
+    public RoutingBuilder setRoutingCache(boolean isRoutingCache) {
+        this.isRoutingCache = isRoutingCache;
+        return this;
+    }
+
+    /**
+     * @return The number of close peers among which the peer with the lowest round-trip time is asked next
+     */
+    public int getProximityCandidates() {
+        return proximityCandidates;
+    }
+
+    public void setProximityCandidates(int proximityCandidates) {
+        this.proximityCandidates = proximityCandidates;
+    }
+
     public RoutingBuilder routingOnlyToSelf(boolean isRoutingOnlyToSelf) {
         this.isRoutingToOthers = !isRoutingOnlyToSelf;
         return this;
@@ -16,12 +16,11 @@
 
 package net.tomp2p.p2p.builder;
 
-import java.util.ArrayList;
-
+import io.netty.buffer.ByteBuf;
 import net.tomp2p.message.DataMap;
 import net.tomp2p.p2p.Peer;
 import net.tomp2p.peers.Number160;
-import net.tomp2p.replication.Instruction;
+import net.tomp2p.replication.Synchronization;
 
 /**
  * 
@@ -35,7 +34,7 @@ public class SynchronizationBuilder extends DHTBuilder<SynchronizationBuilder> {
 	private Number160 contentKey;
 	private Number160 hashOfValue;
 	private DataMap dataMap;
-	private ArrayList<Instruction> instructions;
+	private ByteBuf delta;
 
     /**
      * Constructor.
@@ -59,7 +58,7 @@ public class SynchronizationBuilder extends DHTBuilder<SynchronizationBuilder> {
         this.contentKey = contentKey;
         this.hashOfValue = hashOfValue;
         this.dataMap = null;
-        this.instructions = null;
+        this.delta = null;
     }
     
     /**
@@ -78,7 +77,7 @@ public class SynchronizationBuilder extends DHTBuilder<SynchronizationBuilder> {
         this.contentKey = null;
         this.hashOfValue = null;
         this.dataMap = dataMap;
-        this.instructions = null;
+        this.delta = null;
     }
     
     /**
@@ -94,10 +93,10 @@ public class SynchronizationBuilder extends DHTBuilder<SynchronizationBuilder> {
      * 			The content key
      * @param hashOfValue
      * 			The hash of value
-     * @param instructions
-     * 			The instructions
+     * @param delta
+     * 			The instructions encoded by {@link Synchronization#getDelta}
      */
-    public SynchronizationBuilder(final Peer peer, Number160 locationKey, Number160 domainKey, Number160 contentKey, Number160 hashOfValue, ArrayList<Instruction> instructions) {
+    public SynchronizationBuilder(final Peer peer, Number160 locationKey, Number160 domainKey, Number160 contentKey, Number160 hashOfValue, ByteBuf delta) {
         super(peer, peer.getPeerID());
         self(this);
         this.locationKey = locationKey;
@@ -105,7 +104,7 @@ public class SynchronizationBuilder extends DHTBuilder<SynchronizationBuilder> {
         this.contentKey = contentKey;
         this.hashOfValue = hashOfValue;
         this.dataMap = null;    	
-        this.instructions = instructions;
+        this.delta = delta;
     }
     
     public Number160 getLocationKey() {
@@ -128,8 +127,8 @@ public class SynchronizationBuilder extends DHTBuilder<SynchronizationBuilder> {
     	return dataMap;
     }
     
-    public ArrayList<Instruction> getInstructions() {
-    	return instructions;
+    public ByteBuf getDelta() {
+    	return delta;
     }
     
     @Override
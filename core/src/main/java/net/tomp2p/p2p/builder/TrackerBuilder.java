@@ -132,6 +132,7 @@ public abstract class TrackerBuilder<K extends TrackerBuilder<K>> extends Defaul
         routingBuilder.setMaxDirectHits(routingConfiguration.getMaxDirectHits());
         routingBuilder.setMaxFailures(routingConfiguration.getMaxFailures());
         routingBuilder.setMaxSuccess(routingConfiguration.getMaxSuccess());
+        routingBuilder.setProximityCandidates(routingConfiguration.getProximityCandidates());
         return routingBuilder;
     }
 }
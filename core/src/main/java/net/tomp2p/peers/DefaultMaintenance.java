@@ -113,12 +113,9 @@ public class DefaultMaintenance implements Maintenance {
         int peersBefore = 0;
         for (int i = 0; i < Number160.BITS; i++) {
             final Map<Number160, PeerStatatistic> mapVerified = peerMapVerified.get(i);
-            boolean urgent = false;
-            synchronized (mapVerified) {
-                final int size = mapVerified.size();
-                peersBefore += size;
-                urgent = isUrgent(i, size, peersBefore);
-            }
+            final int size = mapVerified.size();
+            peersBefore += size;
+            final boolean urgent = isUrgent(i, size, peersBefore);
             if (urgent) {
                 final Map<Number160, PeerStatatistic> mapNonVerified = peerMapNonVerified.get(i);
                 final PeerStatatistic readyForMaintenance = next(mapNonVerified);
@@ -145,11 +142,10 @@ public class DefaultMaintenance implements Maintenance {
      * @return A peer that needs maintenance
      */
     private PeerStatatistic next(final Map<Number160, PeerStatatistic> map) {
-        synchronized (map) {
-            for (PeerStatatistic peerStatatistic : map.values()) {
-                if (needMaintenance(peerStatatistic)) {
-                    return peerStatatistic;
-                }
+        // the bags of the peer map can be iterated without locking
+        for (PeerStatatistic peerStatatistic : map.values()) {
+            if (needMaintenance(peerStatatistic)) {
+                return peerStatatistic;
             }
         }
         return null;
@@ -15,6 +15,8 @@
  */
 package net.tomp2p.peers;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.Random;
 
 import net.tomp2p.utils.Utils;
@@ -177,6 +179,20 @@ public final class Number160 extends Number implements Comparable<Number160> {
         }
     }
 
+    /**
+     * Creates a new Key by reading 20 bytes from the buffer. The bytes are read directly into the backing int[]
+     * without an intermediate byte array.
+     * 
+     * @param buf
+     *            The buffer to read from, the reader index is increased by 20
+     */
+    public Number160(final ByteBuf buf) {
+        this.val = new int[INT_ARRAY_SIZE];
+        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
+            this.val[i] = buf.readInt();
+        }
+    }
+
     /**
      * Creates a new Key with random values in it.
      * 
@@ -206,6 +222,44 @@ public final class Number160 extends Number implements Comparable<Number160> {
         return new Number160(result);
     }
 
+    /**
+     * Compares the XOR distances of two keys to this key. The distances are compared limb by limb, no distance
+     * objects are created.
+     * 
+     * @param key1
+     *            The first key
+     * @param key2
+     *            The second key
+     * @return -1 if key1 is closer to this key, 1 if key2 is closer, 0 if both have the same distance
+     */
+    public int compareDistance(final Number160 key1, final Number160 key2) {
+        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
+            final int d1 = val[i] ^ key1.val[i];
+            final int d2 = val[i] ^ key2.val[i];
+            if (d1 != d2) {
+                return (d1 & LONG_MASK) < (d2 & LONG_MASK) ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the bit length of the XOR distance to the given key, without creating the distance.
+     * 
+     * @param key
+     *            The other key
+     * @return The same as xor(key).bitLength()
+     */
+    public int distanceBitLength(final Number160 key) {
+        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
+            final int d = val[i] ^ key.val[i];
+            if (d != 0) {
+                return Integer.SIZE * (INT_ARRAY_SIZE - i) - Integer.numberOfLeadingZeros(d);
+            }
+        }
+        return 0;
+    }
+
     /**
      * Returns a copy of the backing array, which is always of size 5.
      * 
@@ -219,6 +273,20 @@ public final class Number160 extends Number implements Comparable<Number160> {
         return retVal;
     }
 
+    /**
+     * Copies the backing array into the given int array.
+     *
+     * @param me
+     *            the int array
+     * @param offset
+     *            where to start in the int array
+     * @return the offset we have written
+     */
+    public int toIntArray(final int[] me, final int offset) {
+        System.arraycopy(val, 0, me, offset, INT_ARRAY_SIZE);
+        return offset + INT_ARRAY_SIZE;
+    }
+
     /**
      * Fills the byte array with this number.
      * 
@@ -256,6 +324,20 @@ public final class Number160 extends Number implements Comparable<Number160> {
         return retVal;
     }
 
+    /**
+     * Writes the 20 bytes of this key to the buffer without an intermediate byte array.
+     * 
+     * @param buf
+     *            The buffer to write to
+     * @return The same buffer
+     */
+    public ByteBuf toByteBuf(final ByteBuf buf) {
+        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
+            buf.writeInt(val[i]);
+        }
+        return buf;
+    }
+
     /**
      * Shows the content in a human readable manner.
      * 
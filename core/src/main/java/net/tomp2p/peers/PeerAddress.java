@@ -624,6 +624,13 @@ public final class PeerAddress implements Comparable<PeerAddress>, Serializable
                 peerSocketAddresses);
     }
 
+    /**
+     * @return The address and the ports how to reach this peer
+     */
+    public PeerSocketAddress getPeerSocketAddress() {
+        return peerSocketAddress;
+    }
+
     /**
      * @return The relay peers
      */
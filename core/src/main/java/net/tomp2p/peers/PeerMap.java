@@ -16,18 +16,20 @@
 package net.tomp2p.peers;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
+import java.util.PriorityQueue;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import net.tomp2p.utils.CacheMap;
 import net.tomp2p.utils.ConcurrentCacheMap;
+import net.tomp2p.utils.CopyOnWriteCacheMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,7 +58,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     private final ConcurrentCacheMap<Number160, PeerAddress> offlineMap;
 
     // stores listeners that will be notified if a peer gets removed or added
-    private final List<PeerMapChangeListener> peerMapChangeListeners = new ArrayList<PeerMapChangeListener>();
+    private final List<PeerMapChangeListener> peerMapChangeListeners = new CopyOnWriteArrayList<PeerMapChangeListener>();
 
     private final PeerFilter peerFilter;
 
@@ -103,19 +105,14 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     private List<Map<Number160, PeerStatatistic>> initFixedMap(final int bagSize, final boolean caching) {
         List<Map<Number160, PeerStatatistic>> tmp = new ArrayList<Map<Number160, PeerStatatistic>>();
         for (int i = 0; i < Number160.BITS; i++) {
-            // I made some experiments here and concurrent sets are not
-            // necessary, as we divide similar to segments aNonBlockingHashSets
-            // in a concurrent map. In a full network, we have 160 segments, for
-            // smaller we see around 3-4 segments, growing with the number of
-            // peers. bags closer to 0 will see more read than write, and bags
-            // closer to 160 will see more writes than reads.
-            //
-            // We also only allocate memory for the bags far away, as they are likely to be filled first.
+            // Each bag is a copy-on-write map. The bags are small and read far more often than written: a message
+            // from a known peer only updates its statistics, but it does not modify the bag. Thus, all reads are
+            // done on an immutable snapshot without locking, and a write only locks its own bag. Writes to
+            // different bags, or reads of any bag, never contend.
             if (caching) {
-                tmp.add(new CacheMap<Number160, PeerStatatistic>(bagSize, true));
+                tmp.add(new CopyOnWriteCacheMap<Number160, PeerStatatistic>(bagSize));
             } else {
-                final int memAlloc = Math.max(0, bagSize - (Number160.BITS - i));
-                tmp.add(new HashMap<Number160, PeerStatatistic>(memAlloc));
+                tmp.add(new CopyOnWriteCacheMap<Number160, PeerStatatistic>());
             }
         }
         return Collections.unmodifiableList(tmp);
@@ -128,10 +125,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      *            The listener
      */
     public void addPeerMapChangeListener(final PeerMapChangeListener peerMapChangeListener) {
-        synchronized (peerMapChangeListeners) {
-            peerMapChangeListeners.add(peerMapChangeListener);
-        }
-
+        peerMapChangeListeners.add(peerMapChangeListener);
     }
 
     /**
@@ -141,9 +135,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      *            The listener
      */
     public void removePeerMapChangeListener(final PeerMapChangeListener peerMapChangeListener) {
-        synchronized (peerMapChangeListeners) {
-            peerMapChangeListeners.add(peerMapChangeListener);
-        }
+        peerMapChangeListeners.remove(peerMapChangeListener);
     }
 
     /**
@@ -155,10 +147,8 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      *            True if the peer was inserted in the verified map
      */
     private void notifyInsert(final PeerAddress peerAddress, final boolean verified) {
-        synchronized (peerMapChangeListeners) {
-            for (PeerMapChangeListener listener : peerMapChangeListeners) {
-                listener.peerInserted(peerAddress, verified);
-            }
+        for (PeerMapChangeListener listener : peerMapChangeListeners) {
+            listener.peerInserted(peerAddress, verified);
         }
     }
 
@@ -171,10 +161,8 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      *            Contains information statistical information
      */
     private void notifyRemove(final PeerAddress peerAddress, final PeerStatatistic storedPeerAddress) {
-        synchronized (peerMapChangeListeners) {
-            for (PeerMapChangeListener listener : peerMapChangeListeners) {
-                listener.peerRemoved(peerAddress, storedPeerAddress);
-            }
+        for (PeerMapChangeListener listener : peerMapChangeListeners) {
+            listener.peerRemoved(peerAddress, storedPeerAddress);
         }
     }
 
@@ -187,10 +175,8 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      *            Contains information statistical information
      */
     private void notifyUpdate(final PeerAddress peerAddress, final PeerStatatistic storedPeerAddress) {
-        synchronized (peerMapChangeListeners) {
-            for (PeerMapChangeListener listener : peerMapChangeListeners) {
-                listener.peerUpdated(peerAddress, storedPeerAddress);
-            }
+        for (PeerMapChangeListener listener : peerMapChangeListeners) {
+            listener.peerUpdated(peerAddress, storedPeerAddress);
         }
     }
 
@@ -202,9 +188,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     public int size() {
         int size = 0;
         for (Map<Number160, PeerStatatistic> map : peerMapVerified) {
-            synchronized (map) {
-                size += map.size();
-            }
+            size += map.size();
         }
         return size;
     }
@@ -257,6 +241,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
             if (firstHand) {
                 final Map<Number160, PeerStatatistic> map = peerMapVerified.get(classMember);
                 boolean insterted = false;
+                // the bag synchronizes its writes on itself, this makes the check and the put atomic
                 synchronized (map) {
                     // check again, now we are synchronized
                     if (map.containsKey(remotePeer.getPeerId())) {
@@ -272,10 +257,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
 
                 if (insterted) {
                     // if we inserted into the verified map, remove it from the non-verified map
-                    final Map<Number160, PeerStatatistic> mapOverflow = peerMapOverflow.get(classMember);
-                    synchronized (mapOverflow) {
-                        mapOverflow.remove(remotePeer.getPeerId());
-                    }
+                    peerMapOverflow.get(classMember).remove(remotePeer.getPeerId());
                     notifyInsert(remotePeer, true);
                     return true;
                 }
@@ -284,15 +266,19 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         // if we are here, we did not have this peer, but our verified map was full
         // check if we have it stored in the non verified map.
         final Map<Number160, PeerStatatistic> mapOverflow = peerMapOverflow.get(classMember);
-        synchronized (mapOverflow) {
-            PeerStatatistic peerStatatistic = mapOverflow.get(remotePeer.getPeerId());
-            if (peerStatatistic == null) {
-                peerStatatistic = new PeerStatatistic(remotePeer);
-            }
-            if (firstHand) {
-                peerStatatistic.successfullyChecked();
+        PeerStatatistic peerStatatistic = mapOverflow.get(remotePeer.getPeerId());
+        if (peerStatatistic == null) {
+            // only a new peer modifies the bag
+            synchronized (mapOverflow) {
+                peerStatatistic = mapOverflow.get(remotePeer.getPeerId());
+                if (peerStatatistic == null) {
+                    peerStatatistic = new PeerStatatistic(remotePeer);
+                    mapOverflow.put(remotePeer.getPeerId(), peerStatatistic);
+                }
             }
-            mapOverflow.put(remotePeer.getPeerId(), peerStatatistic);
+        }
+        if (firstHand) {
+            peerStatatistic.successfullyChecked();
         }
 
         notifyInsert(remotePeer, false);
@@ -322,26 +308,12 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         final int classMember = classMember(remotePeer.getPeerId());
         if (force) {
             offlineMap.put(remotePeer.getPeerId(), remotePeer);
-            Map<Number160, PeerStatatistic> tmp = peerMapOverflow.get(classMember);
-            if (tmp != null) {
-                synchronized (tmp) {
-                    tmp.remove(remotePeer.getPeerId());
-                }
-            }
-            tmp = peerMapVerified.get(classMember);
-            if (tmp != null) {
-                boolean removed = false;
-                final PeerStatatistic peerStatatistic;
-                synchronized (tmp) {
-                    peerStatatistic = tmp.remove(remotePeer.getPeerId());
-                    if (peerStatatistic != null) {
-                        removed = true;
-                    }
-                }
-                if (removed) {
-                    notifyRemove(remotePeer, peerStatatistic);
-                    return true;
-                }
+            peerMapOverflow.get(classMember).remove(remotePeer.getPeerId());
+            final PeerStatatistic peerStatatistic = peerMapVerified.get(classMember).remove(
+                    remotePeer.getPeerId());
+            if (peerStatatistic != null) {
+                notifyRemove(remotePeer, peerStatatistic);
+                return true;
             }
             return false;
         }
@@ -368,10 +340,27 @@ public class PeerMap implements PeerStatusListener, Maintainable {
             // -1 means we searched for ourself and we never are our neighbor
             return false;
         }
-        final Map<Number160, PeerStatatistic> tmp = peerMapVerified.get(classMember);
-        synchronized (tmp) {
-            return tmp.containsKey(peerAddress.getPeerId());
+        return peerMapVerified.get(classMember).containsKey(peerAddress.getPeerId());
+    }
+
+    /**
+     * Returns the statistics of a peer in the verified or the overflow / non-verified map.
+     * 
+     * @param peerAddress
+     *            The peer address
+     * @return The statistics of the peer or null if the peer is not in the map
+     */
+    public PeerStatatistic peerStatistic(final PeerAddress peerAddress) {
+        final int classMember = classMember(peerAddress.getPeerId());
+        if (classMember == -1) {
+            // -1 means we searched for ourself and we never are our neighbor
+            return null;
+        }
+        final PeerStatatistic peerStatatistic = peerMapVerified.get(classMember).get(peerAddress.getPeerId());
+        if (peerStatatistic != null) {
+            return peerStatatistic;
         }
+        return peerMapOverflow.get(classMember).get(peerAddress.getPeerId());
     }
 
     /**
@@ -387,10 +376,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
             // -1 means we searched for ourself and we never are our neighbor
             return false;
         }
-        final Map<Number160, PeerStatatistic> tmp = peerMapOverflow.get(classMember);
-        synchronized (tmp) {
-            return tmp.containsKey(peerAddress.getPeerId());
-        }
+        return peerMapOverflow.get(classMember).containsKey(peerAddress.getPeerId());
     }
     
     /**
@@ -440,27 +426,68 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         if (last) {
             return set;
         }
-        // in this case we have to go over all the bags that are larger
+        // in this case we have to go over the bags that are larger, each bag is further away than the previous
         for (int i = classMember + 1; i < Number160.BITS; i++) {
             tmp = peerMapVerified.get(i);
-            fillSet(atLeast, set, tmp);
+            if (fillSet(atLeast, set, tmp)) {
+                return set;
+            }
         }
         return set;
     }
 
+    /**
+     * Returns exactly the given number of peers that are closest to a given key, or all peers if there are less. In
+     * contrast to {@link #closePeers(Number160, int)}, the peers are selected with a bounded heap, thus only the
+     * returned peers are kept and sorted. This method is tread-safe, the returned list is a copy.
+     * 
+     * @param id
+     *            The key that should be close to the keys in the map
+     * @param number
+     *            The number of peers to return
+     * @return A list with the closest peer first
+     */
+    public List<PeerAddress> closestPeers(final Number160 id, final int number) {
+        // the farthest peer is at the head of the heap and is replaced first
+        final Comparator<PeerAddress> comparator = Collections.reverseOrder(createComparator(id));
+        final PriorityQueue<PeerAddress> heap = new PriorityQueue<PeerAddress>(number + 1, comparator);
+        final int classMember = classMember(id);
+        // the bags are visited in the same order as in closePeers, we can stop once a bag further away is reached
+        int found = 0;
+        if (classMember == -1) {
+            for (int j = 0; j < Number160.BITS && found < number; j++) {
+                found += fillHeap(number, heap, peerMapVerified.get(j));
+            }
+        } else {
+            found += fillHeap(number, heap, peerMapVerified.get(classMember));
+            if (found < number) {
+                // all smaller bags have the same distance range
+                for (int i = 0; i < classMember; i++) {
+                    found += fillHeap(number, heap, peerMapVerified.get(i));
+                }
+                for (int i = classMember + 1; i < Number160.BITS && found < number; i++) {
+                    found += fillHeap(number, heap, peerMapVerified.get(i));
+                }
+            }
+        }
+        final PeerAddress[] result = new PeerAddress[heap.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = heap.poll();
+        }
+        return Arrays.asList(result);
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("I'm node ");
         sb.append(self()).append("\n");
         for (int i = 0; i < Number160.BITS; i++) {
             final Map<Number160, PeerStatatistic> tmp = peerMapVerified.get(i);
-            synchronized (tmp) {
-                if (tmp.size() > 0) {
-                    sb.append("class:").append(i).append("->\n");
-                    for (final PeerStatatistic node : tmp.values()) {
-                        sb.append("node:").append(node.getPeerAddress()).append(",");
+            if (tmp.size() > 0) {
+                sb.append("class:").append(i).append("->\n");
+                for (final PeerStatatistic node : tmp.values()) {
+                    sb.append("node:").append(node.getPeerAddress()).append(",");
 
-                    }
                 }
             }
         }
@@ -484,15 +511,30 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     public List<PeerAddress> getAll() {
         List<PeerAddress> all = new ArrayList<PeerAddress>();
         for (Map<Number160, PeerStatatistic> map : peerMapVerified) {
-            synchronized (map) {
-                for (PeerStatatistic peerStatatistic : map.values()) {
-                    all.add(peerStatatistic.getPeerAddress());
-                }
+            for (PeerStatatistic peerStatatistic : map.values()) {
+                all.add(peerStatatistic.getPeerAddress());
             }
         }
         return all;
     }
 
+    /**
+     * Return the addresses of the verified peers in one bag. The peers in bag i share the bits above i with this peer
+     * and differ in bit i. The collection is a copy.
+     * 
+     * @param bagIndex
+     *            The bag from 0 (closest) to {@link Number160#BITS} - 1 (farthest)
+     * @return The neighbors in this bag
+     */
+    public List<PeerAddress> bag(final int bagIndex) {
+        final Collection<PeerStatatistic> values = peerMapVerified.get(bagIndex).values();
+        final List<PeerAddress> bag = new ArrayList<PeerAddress>(values.size());
+        for (PeerStatatistic peerStatatistic : values) {
+            bag.add(peerStatatistic.getPeerAddress());
+        }
+        return bag;
+    }
+
     /**
      * Return all addresses from the overflow / non-verified list. The collection is a copy and it is partially sorted.
      * 
@@ -501,10 +543,8 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     public List<PeerAddress> getAllOverflow() {
         List<PeerAddress> all = new ArrayList<PeerAddress>();
         for (Map<Number160, PeerStatatistic> map : peerMapOverflow) {
-            synchronized (map) {
-                for (PeerStatatistic peerStatatistic : map.values()) {
-                    all.add(peerStatatistic.getPeerAddress());
-                }
+            for (PeerStatatistic peerStatatistic : map.values()) {
+                all.add(peerStatatistic.getPeerAddress());
             }
         }
         return all;
@@ -573,7 +613,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return -1 if key1 is closer to key, otherwise 1. 0 is returned if both are equal.
      */
     public static int isCloser(final Number160 id, final Number160 rn, final Number160 rn2) {
-        return distance(id, rn).compareTo(distance(id, rn2));
+        return id.compareDistance(rn, rn2);
     }
 
     /**
@@ -600,7 +640,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return -1 if first peer is closer, 1 otherwise, 0 if both are equal
      */
     public static int isKadCloser(final Number160 id, final PeerAddress rn, final PeerAddress rn2) {
-        return distance(id, rn.getPeerId()).compareTo(distance(id, rn2.getPeerId()));
+        return id.compareDistance(rn.getPeerId(), rn2.getPeerId());
     }
 
     /**
@@ -629,7 +669,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return returns the bit difference and -1 if they are equal
      */
     static int classMember(final Number160 id1, final Number160 id2) {
-        return distance(id1, id2).bitLength() - 1;
+        return id1.distanceBitLength(id2) - 1;
     }
 
     /**
@@ -658,14 +698,10 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      */
     private static boolean updatePeerStatistic(final PeerAddress remotePeer,
             final Map<Number160, PeerStatatistic> tmp, final int maxFail) {
-        if (tmp != null) {
-            synchronized (tmp) {
-                PeerStatatistic peerStatatistic = tmp.get(remotePeer.getPeerId());
-                if (peerStatatistic != null) {
-                    if (peerStatatistic.failed() >= maxFail) {
-                        return true;
-                    }
-                }
+        final PeerStatatistic peerStatatistic = tmp.get(remotePeer.getPeerId());
+        if (peerStatatistic != null) {
+            if (peerStatatistic.failed() >= maxFail) {
+                return true;
             }
         }
         return false;
@@ -685,19 +721,40 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      */
     private static PeerStatatistic updateExistingVerifiedPeerAddress(
             final Map<Number160, PeerStatatistic> tmp, final PeerAddress peerAddress, final boolean firstHand) {
-        synchronized (tmp) {
-            PeerStatatistic old = tmp.get(peerAddress.getPeerId());
-            if (old != null) {
-                old.setPeerAddress(peerAddress);
-                if (firstHand) {
-                    old.successfullyChecked();
-                }
-                return old;
+        final PeerStatatistic old = tmp.get(peerAddress.getPeerId());
+        if (old != null) {
+            old.setPeerAddress(peerAddress);
+            if (firstHand) {
+                old.successfullyChecked();
             }
+            return old;
         }
         return null;
     }
 
+    /**
+     * Adds the peers of a bag to the heap, the heap keeps the closest peers.
+     * 
+     * @param number
+     *            The number of closest peers the heap keeps
+     * @param heap
+     *            The heap with the farthest peer on top
+     * @param tmp
+     *            The bag where to take the addresses from
+     * @return The number of peers in the bag
+     */
+    private static int fillHeap(final int number, final PriorityQueue<PeerAddress> heap,
+            final Map<Number160, PeerStatatistic> tmp) {
+        final Collection<PeerStatatistic> values = tmp.values();
+        for (final PeerStatatistic peerStatatistic : values) {
+            heap.add(peerStatatistic.getPeerAddress());
+            if (heap.size() > number) {
+                heap.poll();
+            }
+        }
+        return values.size();
+    }
+
     /**
      * Fills the set with peer addresses. Fills it until a limit is reach. However, this is a soft limit, as the bag may
      * contain close peers in a random manner.
@@ -712,10 +769,8 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      */
     private static boolean fillSet(final int atLeast, final SortedSet<PeerAddress> set,
             final Map<Number160, PeerStatatistic> tmp) {
-        synchronized (tmp) {
-            for (final PeerStatatistic peerStatatistic : tmp.values()) {
-                set.add(peerStatatistic.getPeerAddress());
-            }
+        for (final PeerStatatistic peerStatatistic : tmp.values()) {
+            set.add(peerStatatistic.getPeerAddress());
         }
         return set.size() >= atLeast;
     }
@@ -35,7 +35,12 @@ public class PeerStatatistic {
 
     private final AtomicInteger failed = new AtomicInteger(0);
 
-    private PeerAddress peerAddress;
+    private volatile PeerAddress peerAddress;
+
+    // round-trip time in milliseconds, smoothed as in RFC 6298, -1 if not measured yet
+    private long smoothedRTT = -1;
+
+    private long rttVariance = -1;
 
     /**
      * Constructor. Sets the peer address
@@ -99,6 +104,51 @@ public class PeerStatatistic {
         return (int) (lastSeenOnline.get() - created);
     }
 
+    /**
+     * Adds a measured round-trip time. The smoothed RTT and its variance are updated as in RFC 6298 with alpha = 1/8
+     * and beta = 1/4.
+     * 
+     * @param rtt
+     *            The time in milliseconds between sending a request and receiving its reply
+     */
+    public synchronized void addRTT(final long rtt) {
+        if (rtt < 0) {
+            return;
+        }
+        if (smoothedRTT < 0) {
+            smoothedRTT = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRTT - rtt)) / 4;
+            smoothedRTT = (7 * smoothedRTT + rtt) / 8;
+        }
+    }
+
+    /**
+     * @return The smoothed round-trip time in milliseconds, or -1 if no round-trip time has been measured
+     */
+    public synchronized long getSmoothedRTT() {
+        return smoothedRTT;
+    }
+
+    /**
+     * @return The variance of the round-trip time in milliseconds, or -1 if no round-trip time has been measured
+     */
+    public synchronized long getRTTVariance() {
+        return rttVariance;
+    }
+
+    /**
+     * @return The retransmission timeout as in RFC 6298, the smoothed RTT plus four times its variance, in
+     *         milliseconds, or -1 if no round-trip time has been measured
+     */
+    public synchronized long getRTO() {
+        if (smoothedRTT < 0) {
+            return -1;
+        }
+        return smoothedRTT + Math.max(1, 4 * rttVariance);
+    }
+
     /**
      * @return the peer address associated with this peer address
      */
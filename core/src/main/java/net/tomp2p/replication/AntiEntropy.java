@@ -0,0 +1,260 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.replication;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.tomp2p.connection2.ConnectionConfiguration;
+import net.tomp2p.connection2.DefaultConnectionConfiguration;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Buffer;
+import net.tomp2p.message.KeysMap;
+import net.tomp2p.message.Message2;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.builder.DHTBuilder;
+import net.tomp2p.p2p.builder.PutBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.AntiEntropyRPC;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Synchronizes the entries of a location key with a replica using the {@link AntiEntropyRPC}. Both peers build a
+ * {@link MerkleTree} of the location key. Starting at the root, this peer sends the hashes of its nodes, the replica
+ * replies which differ, and this peer descends {@link #DESCEND_LEVELS} levels into the differing subtrees. At the
+ * leaves, the replica replies the hashes of its entries, and this peer only sends the entries that are missing or
+ * different on the replica. Entries that only exist on the replica are left alone, as with the previous replication
+ * that pushed all entries.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class AntiEntropy {
+    private static final Logger LOG = LoggerFactory.getLogger(AntiEntropy.class);
+
+    /**
+     * The number of levels to descend with one request, which results in up to 16 nodes per differing node.
+     */
+    public static final int DESCEND_LEVELS = 4;
+
+    /**
+     * The data bytes that are sent with one put, so that a replica that misses everything does not get one huge
+     * message.
+     */
+    public static final int MAX_PUT_BYTES = 1024 * 1024;
+
+    private final Peer peer;
+
+    private final AntiEntropyRPC antiEntropyRPC;
+
+    private final ConnectionConfiguration configuration = new DefaultConnectionConfiguration();
+
+    /**
+     * Constructor.
+     *
+     * @param peer
+     *            The peer that is responsible for the location keys
+     */
+    public AntiEntropy(final Peer peer) {
+        this.peer = peer;
+        this.antiEntropyRPC = peer.getAntiEntropyRPC();
+    }
+
+    /**
+     * Sends the entries of a location key that the replica does not have or has in a different version.
+     *
+     * @param other
+     *            The replica
+     * @param locationKey
+     *            The location key
+     * @param statistics
+     *            The statistics to update
+     * @return The future that is done when the replica has all entries of this peer
+     */
+    public FutureDone<Void> synchronize(final PeerAddress other, final Number160 locationKey,
+            final AntiEntropyStatistics statistics) {
+        final FutureDone<Void> futureDone = new FutureDone<Void>();
+        // a copy, the storage may change while we compare
+        final Map<Number480, Data> entries = new TreeMap<Number480, Data>(peer.getPeerBean().storage()
+                .subMap(locationKey));
+        if (entries.isEmpty()) {
+            return futureDone.setDone();
+        }
+        long bytes = 0;
+        for (Data data : entries.values()) {
+            bytes += data.length();
+        }
+        statistics.synchronization(entries.size(), bytes);
+        final MerkleTree tree = new MerkleTree(entries, MerkleTree.depth(entries.size()));
+        compare(other, locationKey, tree, entries, Collections.singletonList(1), new TreeMap<Number480, Data>(),
+                statistics, futureDone);
+        return futureDone;
+    }
+
+    /**
+     * Compares nodes with the replica and either descends into the differing subtrees or sends the differing entries.
+     */
+    private void compare(final PeerAddress other, final Number160 locationKey, final MerkleTree tree,
+            final Map<Number480, Data> entries, final List<Integer> nodes, final Map<Number480, Data> toSend,
+            final AntiEntropyStatistics statistics, final FutureDone<Void> futureDone) {
+        final FutureChannelCreator futureChannelCreator = peer.getConnectionBean().reservation().create(0, 1);
+        futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (!future.isSuccess()) {
+                    futureDone.setFailed(future);
+                    return;
+                }
+                statistics.request();
+                final FutureResponse futureResponse = antiEntropyRPC.compare(other, locationKey, tree, nodes,
+                        future.getChannelCreator(), configuration);
+                Utils.addReleaseListener(future.getChannelCreator(), futureResponse);
+                futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                    @Override
+                    public void operationComplete(final FutureResponse future) throws Exception {
+                        if (!future.isSuccess()) {
+                            futureDone.setFailed(future);
+                            return;
+                        }
+                        final List<Integer> next = differences(future.getResponse(), tree, entries, toSend);
+                        if (!next.isEmpty()) {
+                            compare(other, locationKey, tree, entries, next, toSend, statistics, futureDone);
+                        } else {
+                            LOG.debug("{} of {} entries of {} differ on {}", toSend.size(), entries.size(),
+                                    locationKey, other);
+                            put(other, locationKey, toSend.entrySet().iterator(), statistics, futureDone);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Reads the differing nodes from the response. The entries of differing leaves and of subtrees the replica has
+     * nothing in are added to the entries to send.
+     *
+     * @return The nodes to compare next
+     */
+    private static List<Integer> differences(final Message2 response, final MerkleTree tree,
+            final Map<Number480, Data> entries, final Map<Number480, Data> toSend) {
+        final List<Integer> next = new ArrayList<Integer>();
+        final Buffer buffer = response.getBuffer(0);
+        if (buffer == null) {
+            return next;
+        }
+        final KeysMap keysMap = response.getKeysMap(0);
+        final Map<Number480, Number160> remote;
+        if (keysMap == null) {
+            remote = Collections.emptyMap();
+        } else {
+            remote = keysMap.keysMap();
+        }
+        final ByteBuf buf = buffer.buffer();
+        while (buf.readableBytes() >= Utils.INTEGER_BYTE_SIZE) {
+            final int node = buf.readInt();
+            if (!tree.isNode(Math.abs(node))) {
+                continue;
+            }
+            if (node < 0) {
+                // the replica has nothing in this subtree
+                for (Number480 key : tree.keys(-node)) {
+                    toSend.put(key, entries.get(key));
+                }
+            } else if (tree.isLeaf(node)) {
+                for (Map.Entry<Number480, Number160> entry : tree.entries(node).entrySet()) {
+                    if (!entry.getValue().equals(remote.get(entry.getKey()))) {
+                        toSend.put(entry.getKey(), entries.get(entry.getKey()));
+                    }
+                }
+            } else {
+                next.addAll(tree.descendants(node, DESCEND_LEVELS));
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Sends the differing entries in batches of {@link #MAX_PUT_BYTES}, one batch after the other.
+     */
+    private void put(final PeerAddress other, final Number160 locationKey,
+            final Iterator<Map.Entry<Number480, Data>> iterator, final AntiEntropyStatistics statistics,
+            final FutureDone<Void> futureDone) {
+        if (!iterator.hasNext()) {
+            futureDone.setDone();
+            return;
+        }
+        final Map<Number480, Data> batch = new HashMap<Number480, Data>();
+        long batchBytes = 0;
+        while (iterator.hasNext() && batchBytes < MAX_PUT_BYTES) {
+            final Map.Entry<Number480, Data> entry = iterator.next();
+            batch.put(entry.getKey(), entry.getValue());
+            batchBytes += entry.getValue().length();
+        }
+        final long bytes = batchBytes;
+        final FutureChannelCreator futureChannelCreator = peer.getConnectionBean().reservation().create(0, 1);
+        futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (!future.isSuccess()) {
+                    futureDone.setFailed(future);
+                    return;
+                }
+                final FutureResponse futureResponse;
+                try {
+                    // the entries carry their own domain keys, the domain key of the builder is not sent
+                    final PutBuilder putBuilder = new PutBuilder(peer, locationKey);
+                    putBuilder.setDomainKey(DHTBuilder.DEFAULT_DOMAIN);
+                    putBuilder.setDataMap(batch);
+                    futureResponse = peer.getStoreRPC().put(other, putBuilder, future.getChannelCreator());
+                } catch (RuntimeException e) {
+                    future.getChannelCreator().shutdown();
+                    futureDone.setFailed(e);
+                    return;
+                }
+                Utils.addReleaseListener(future.getChannelCreator(), futureResponse);
+                futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                    @Override
+                    public void operationComplete(final FutureResponse future) throws Exception {
+                        if (!future.isSuccess()) {
+                            futureDone.setFailed(future);
+                            return;
+                        }
+                        statistics.sent(batch.size(), bytes);
+                        put(other, locationKey, iterator, statistics, futureDone);
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.replication;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what the anti-entropy synchronization compared and transferred. The bytes saved are the bytes of the data
+ * that was found to be in sync and thus not sent again.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class AntiEntropyStatistics {
+
+    private final AntiEntropyStatistics parent;
+
+    private final AtomicLong synchronizations = new AtomicLong();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong entries = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong entriesSent = new AtomicLong();
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * Creates empty statistics.
+     */
+    public AntiEntropyStatistics() {
+        this(null);
+    }
+
+    /**
+     * Creates empty statistics, e.g., for one replication round, that also update the given statistics.
+     *
+     * @param parent
+     *            The statistics that are updated as well or null
+     */
+    public AntiEntropyStatistics(final AntiEntropyStatistics parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * A location key is synchronized with a replica.
+     *
+     * @param entries
+     *            The number of entries of the location key
+     * @param bytes
+     *            The number of data bytes of the location key
+     */
+    void synchronization(final int entries, final long bytes) {
+        this.synchronizations.incrementAndGet();
+        this.entries.addAndGet(entries);
+        this.bytes.addAndGet(bytes);
+        if (parent != null) {
+            parent.synchronization(entries, bytes);
+        }
+    }
+
+    /**
+     * A compare request was sent.
+     */
+    void request() {
+        requests.incrementAndGet();
+        if (parent != null) {
+            parent.request();
+        }
+    }
+
+    /**
+     * Entries that differed were sent.
+     *
+     * @param entries
+     *            The number of entries sent
+     * @param bytes
+     *            The number of data bytes sent
+     */
+    void sent(final int entries, final long bytes) {
+        this.entriesSent.addAndGet(entries);
+        this.bytesSent.addAndGet(bytes);
+        if (parent != null) {
+            parent.sent(entries, bytes);
+        }
+    }
+
+    /**
+     * @return The number of location keys that were synchronized with a replica
+     */
+    public long synchronizations() {
+        return synchronizations.get();
+    }
+
+    /**
+     * @return The number of compare requests
+     */
+    public long requests() {
+        return requests.get();
+    }
+
+    /**
+     * @return The number of entries that were compared
+     */
+    public long entries() {
+        return entries.get();
+    }
+
+    /**
+     * @return The number of data bytes that were compared
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return The number of entries that were sent, since the replica did not have them
+     */
+    public long entriesSent() {
+        return entriesSent.get();
+    }
+
+    /**
+     * @return The number of data bytes that were sent
+     */
+    public long bytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @return The number of data bytes that were not sent, compared to sending all entries
+     */
+    public long bytesSaved() {
+        return bytes.get() - bytesSent.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("anti-entropy[");
+        sb.append("sync=").append(synchronizations()).append(",req=").append(requests());
+        sb.append(",entries=").append(entriesSent()).append("/").append(entries());
+        sb.append(",bytes=").append(bytesSent()).append("/").append(bytes());
+        sb.append(",saved=").append(bytesSaved()).append("]");
+        return sb.toString();
+    }
+}
@@ -1,25 +1,39 @@
-package net.tomp2p.replication;
-
-import java.io.Serializable;
-
-public class Checksum implements Serializable{
-	private int weakChecksum;
-	private byte[] strongChecksum;
-	
-	public void setWeakChecksum(int weakChecksum) {
-		this.weakChecksum = weakChecksum;
-	}
-	
-	public void setStrongChecksum(byte[] strongChecksum) {
-		this.strongChecksum = strongChecksum;
-	}
-	
-	public int getWeakChecksum(){
-		return weakChecksum;
-	}
-	
-	public byte[] getStrongChecksum(){
-		return strongChecksum;
-	}
-	
-}
+package net.tomp2p.replication;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+public class Checksum implements Serializable{
+	private int weakChecksum;
+	private byte[] strongChecksum;
+	
+	public void setWeakChecksum(int weakChecksum) {
+		this.weakChecksum = weakChecksum;
+	}
+	
+	public void setStrongChecksum(byte[] strongChecksum) {
+		this.strongChecksum = strongChecksum;
+	}
+	
+	public int getWeakChecksum(){
+		return weakChecksum;
+	}
+	
+	public byte[] getStrongChecksum(){
+		return strongChecksum;
+	}
+
+	@Override
+	public int hashCode() {
+		return weakChecksum ^ Arrays.hashCode(strongChecksum);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Checksum)) {
+			return false;
+		}
+		Checksum c = (Checksum) obj;
+		return weakChecksum == c.weakChecksum && Arrays.equals(strongChecksum, c.strongChecksum);
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.replication;
+
+import java.util.List;
+
+/**
+ * A hash table from weak checksums to block numbers that uses only primitive arrays. Blocks with the same weak
+ * checksum are chained, the lowest block number comes first.
+ *
+ * @author Thomas Bocek
+ *
+ */
+final class ChecksumIndex {
+    private final int[] heads;
+    private final int[] next;
+    private final int[] weak;
+    private final int mask;
+
+    /**
+     * @param checksums
+     *            The checksums of the blocks, the block number is the position in this list
+     */
+    ChecksumIndex(final List<Checksum> checksums) {
+        final int size = checksums.size();
+        // a load factor of at most 0.5
+        int capacity = 2;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        this.heads = new int[capacity];
+        this.next = new int[size];
+        this.weak = new int[size];
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            heads[i] = -1;
+        }
+        // insert backwards, so that the lowest block number is the head of the chain
+        for (int i = size - 1; i >= 0; i--) {
+            final int weakChecksum = checksums.get(i).getWeakChecksum();
+            final int bucket = bucket(weakChecksum);
+            weak[i] = weakChecksum;
+            next[i] = heads[bucket];
+            heads[bucket] = i;
+        }
+    }
+
+    /**
+     * @param weakChecksum
+     *            The weak checksum to look for
+     * @return The lowest block number with this weak checksum or -1
+     */
+    int first(final int weakChecksum) {
+        return skip(heads[bucket(weakChecksum)], weakChecksum);
+    }
+
+    /**
+     * @param block
+     *            The block number returned by {@link #first(int)} or this method
+     * @param weakChecksum
+     *            The weak checksum to look for
+     * @return The next higher block number with this weak checksum or -1
+     */
+    int next(final int block, final int weakChecksum) {
+        return skip(next[block], weakChecksum);
+    }
+
+    private int skip(final int start, final int weakChecksum) {
+        int block = start;
+        while (block >= 0 && weak[block] != weakChecksum) {
+            block = next[block];
+        }
+        return block;
+    }
+
+    private int bucket(final int weakChecksum) {
+        // mix the high half (b) into the low half (a)
+        return (weakChecksum ^ (weakChecksum >>> 16) * 0x9E3B) & mask;
+    }
+}
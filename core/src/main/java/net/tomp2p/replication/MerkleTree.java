@@ -0,0 +1,240 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.replication;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.storage.Data;
+
+/**
+ * A Merkle tree over the entries of a location key. The key space is split by the leading bits of the domain key XOR
+ * the content key, so that for a single domain, each leaf covers a contiguous range of content keys. The nodes are
+ * stored in heap order, the root is 1 and the children of node i are 2i and 2i + 1. With depth d, the leaves are the
+ * nodes from 2^d to 2^(d+1) - 1.
+ * <p>
+ * A leaf hash is the XOR of the SHA-1 hashes of its entries, where an entry hash covers the key and the hash of the
+ * data. An inner node hash is the SHA-1 hash of its children. An empty subtree has the hash zero, so two peers can
+ * tell that one of them has nothing in a range without descending further.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class MerkleTree {
+
+    /**
+     * The maximum depth, which results in 65536 leaves.
+     */
+    public static final int MAX_DEPTH = 16;
+
+    /**
+     * The number of entries per leaf the depth is chosen for.
+     */
+    public static final int LEAF_ENTRIES = 8;
+
+    private static final int HASH_INPUT = 4 * Number160.BYTE_ARRAY_SIZE;
+
+    private final int depth;
+
+    private final Number160[] nodes;
+
+    // the data hashes of the entries of each non-empty leaf
+    private final Map<Integer, Map<Number480, Number160>> leaves = new HashMap<Integer, Map<Number480, Number160>>();
+
+    /**
+     * Creates the Merkle tree of the entries.
+     *
+     * @param entries
+     *            The entries of one location key
+     * @param depth
+     *            The depth of the tree, both peers have to use the same depth
+     */
+    public MerkleTree(final Map<Number480, Data> entries, final int depth) {
+        if (depth < 0 || depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("depth needs to be between 0 and " + MAX_DEPTH);
+        }
+        this.depth = depth;
+        this.nodes = new Number160[2 << depth];
+        final MessageDigest md = sha1();
+        final byte[] input = new byte[HASH_INPUT];
+        for (Map.Entry<Number480, Data> entry : entries.entrySet()) {
+            final Number480 key = entry.getKey();
+            final Number160 dataHash = entry.getValue().hash();
+            final int leaf = leaf(key);
+            Map<Number480, Number160> leafEntries = leaves.get(leaf);
+            if (leafEntries == null) {
+                leafEntries = new TreeMap<Number480, Number160>();
+                leaves.put(leaf, leafEntries);
+            }
+            leafEntries.put(key, dataHash);
+            int offset = key.getLocationKey().toByteArray(input, 0);
+            offset = key.getDomainKey().toByteArray(input, offset);
+            offset = key.getContentKey().toByteArray(input, offset);
+            dataHash.toByteArray(input, offset);
+            final Number160 entryHash = new Number160(md.digest(input));
+            nodes[leaf] = nodes[leaf] == null ? entryHash : nodes[leaf].xor(entryHash);
+        }
+        final byte[] children = new byte[2 * Number160.BYTE_ARRAY_SIZE];
+        for (int i = (1 << depth) - 1; i > 0; i--) {
+            final Number160 left = hash(2 * i);
+            final Number160 right = hash(2 * i + 1);
+            if (left.isZero() && right.isZero()) {
+                continue;
+            }
+            left.toByteArray(children, 0);
+            right.toByteArray(children, Number160.BYTE_ARRAY_SIZE);
+            nodes[i] = new Number160(md.digest(children));
+        }
+    }
+
+    /**
+     * @param entries
+     *            The number of entries
+     * @return The depth for which a leaf holds about {@link #LEAF_ENTRIES} entries
+     */
+    public static int depth(final int entries) {
+        int depth = 0;
+        while (depth < MAX_DEPTH && (entries >> depth) > LEAF_ENTRIES) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * @return The depth of this tree
+     */
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * @param node
+     *            The node in heap order
+     * @return The hash of the node, zero if the subtree is empty
+     */
+    public Number160 hash(final int node) {
+        final Number160 hash = nodes[node];
+        return hash == null ? Number160.ZERO : hash;
+    }
+
+    /**
+     * @param node
+     *            The node in heap order
+     * @return True if the node is a valid node of this tree
+     */
+    public boolean isNode(final int node) {
+        return node > 0 && node < nodes.length;
+    }
+
+    /**
+     * @param node
+     *            The node in heap order
+     * @return True if the node is a leaf
+     */
+    public boolean isLeaf(final int node) {
+        return node >= (1 << depth);
+    }
+
+    /**
+     * @param key
+     *            The key of an entry
+     * @return The leaf of the key in heap order
+     */
+    public int leaf(final Number480 key) {
+        if (depth == 0) {
+            return 1;
+        }
+        final int prefix = key.getDomainKey().xor(key.getContentKey()).toIntArray()[0];
+        return (1 << depth) | (prefix >>> (Integer.SIZE - depth));
+    }
+
+    /**
+     * @param leaf
+     *            The leaf in heap order
+     * @return The keys and data hashes of the entries of the leaf
+     */
+    public Map<Number480, Number160> entries(final int leaf) {
+        final Map<Number480, Number160> leafEntries = leaves.get(leaf);
+        if (leafEntries == null) {
+            return Collections.emptyMap();
+        }
+        return leafEntries;
+    }
+
+    /**
+     * Returns the keys of the entries in the subtree of a node.
+     *
+     * @param node
+     *            The node in heap order
+     * @return The keys of the entries below the node
+     */
+    public List<Number480> keys(final int node) {
+        final List<Number480> keys = new ArrayList<Number480>();
+        int level = 0;
+        while (!isLeaf(node << level)) {
+            level++;
+        }
+        final int first = node << level;
+        final int last = first + (1 << level);
+        for (int leaf = first; leaf < last; leaf++) {
+            keys.addAll(entries(leaf).keySet());
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the non-empty nodes the given number of levels below a node, or the non-empty leaves if the tree is not
+     * deep enough.
+     *
+     * @param node
+     *            The node in heap order
+     * @param levels
+     *            The number of levels to descend
+     * @return The non-empty descendants
+     */
+    public List<Integer> descendants(final int node, final int levels) {
+        int level = 0;
+        while (level < levels && !isLeaf(node << level)) {
+            level++;
+        }
+        final List<Integer> result = new ArrayList<Integer>();
+        final int first = node << level;
+        final int last = first + (1 << level);
+        for (int i = first; i < last; i++) {
+            if (nodes[i] != null) {
+                result.add(i);
+            }
+        }
+        return result;
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+}
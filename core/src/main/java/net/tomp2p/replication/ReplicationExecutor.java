@@ -16,10 +16,7 @@
 
 package net.tomp2p.replication;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
@@ -29,11 +26,10 @@ import java.util.TimerTask;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureDone;
-import net.tomp2p.futures.FuturePut;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.builder.DHTBuilder;
 import net.tomp2p.p2p.builder.PutBuilder;
-import net.tomp2p.p2p.builder.SynchronizationStatistics;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number480;
 import net.tomp2p.peers.PeerAddress;
@@ -72,11 +68,23 @@ public class ReplicationExecutor extends TimerTask implements ResponsibilityList
 //    private Synchronization synchronization;
     private AutomaticReplication automaticReplication;
 
+    private final AntiEntropy antiEntropy;
+
+    private final AntiEntropyStatistics statistics = new AntiEntropyStatistics();
+
+    private volatile AntiEntropyStatistics roundStatistics = new AntiEntropyStatistics(statistics);
+
     /**
      * Constructor for the default indirect replication.
      * 
      * @param peer
      *            The peer
+     * @param random
+     *            The random number generator for the transfer delay
+     * @param timer
+     *            The timer for the replication rounds and the delayed transfers
+     * @param delayMillis
+     *            The maximum delay of a transfer to an other responsible peer, 0 to transfer immediately
      */
     public ReplicationExecutor(final Peer peer, final Random random, final Timer timer, final int delayMillis) {
         this.peer = peer;
@@ -91,6 +99,7 @@ public class ReplicationExecutor extends TimerTask implements ResponsibilityList
         
 //        this.synchronization = new Synchronization();
         this.automaticReplication = new AutomaticReplication(0.999999, peer.getPeerBean().peerMap());
+        this.antiEntropy = new AntiEntropy(peer);
     }
     
     public void init(Peer peer, int intervalMillis) {
@@ -98,6 +107,20 @@ public class ReplicationExecutor extends TimerTask implements ResponsibilityList
     }
 
     @Override
+    public void otherResponsible(final Number160 locationKey, final PeerAddress other) {
+        otherResponsible(locationKey, other, delayMillis > 0);
+    }
+
+    /**
+     * Transfers the data of a location key to the peer that is now responsible for it.
+     * 
+     * @param locationKey
+     *            The location key
+     * @param other
+     *            The other peer that is responsible for locationKey
+     * @param delayed
+     *            Set to true to transfer after a random delay, so that not all peers transfer at the same time
+     */
     public void otherResponsible(final Number160 locationKey, final PeerAddress other, final boolean delayed) {
         LOG.debug("Other peer {} is responsible for {}. I'm {}", other, locationKey, storageRPC.peerBean()
                 .serverPeerAddress());
@@ -126,7 +149,9 @@ public class ReplicationExecutor extends TimerTask implements ResponsibilityList
     public void run() {
         // we get called every x seconds for content we are responsible for. So
         // we need to make sure that there are enough copies. The easy way is to
-        // publish it again... The good way is to do a diff
+        // publish it again... The good way is to do a diff, which the anti-entropy does
+        LOG.debug("last replication round: {}", roundStatistics);
+        roundStatistics = new AntiEntropyStatistics(statistics);
         Collection<Number160> locationKeys = storage.findContentForResponsiblePeerID(peer.getPeerID());
 
         for (Number160 locationKey : locationKeys) {
@@ -139,96 +164,41 @@ public class ReplicationExecutor extends TimerTask implements ResponsibilityList
     }
 
     /**
-     * Get the data that I'm responsible for and make sure that there are enough replicas.
+     * Get the data that I'm responsible for and make sure that there are enough replicas. Only the entries that a
+     * replica does not have are sent, see {@link AntiEntropy}.
      * 
      * @param locationKey
      *            The location key.
      */
     private void synchronizeData(final Number160 locationKey) {
-        final Map<Number480, Data> dataMap = storage.subMap(locationKey);
-        Number160 domainKeyOld = null;
-        Map<Number160, Data> dataMapConverted = new HashMap<Number160, Data>();
-        for (Map.Entry<Number480, Data> entry : dataMap.entrySet()) {
-            final Number160 domainKey = entry.getKey().getDomainKey();
-            final Number160 contentKey = entry.getKey().getContentKey();
-            final Data data = entry.getValue();
-            LOG.debug("[storage refresh] I ({}) restore {}", storageRPC.peerBean().serverPeerAddress(),
-                    locationKey);
-            if (domainKeyOld == null || domainKeyOld.equals(domainKey)) {
-                dataMapConverted.put(contentKey, data);
-            } else {
-                final Map<Number160, Data> dataMapConverted1 = new HashMap<Number160, Data>(dataMapConverted);
-                FuturePut futurePut = send(locationKey, domainKey, dataMapConverted1);
-                peer.notifyAutomaticFutures(futurePut);
-                dataMapConverted.clear();
-                dataMapConverted.put(contentKey, data);
+        final AntiEntropyStatistics round = roundStatistics;
+        final int replicationFactor = replicationStorage.getReplicationFactor() - 1;
+        final SortedSet<PeerAddress> closePeers = peer.getPeerBean().peerMap()
+                .closePeers(locationKey, replicationFactor);
+        int count = 0;
+        for (PeerAddress other : closePeers) {
+            if (count++ == replicationFactor) {
+                break;
             }
-            domainKeyOld = domainKey;
-        }
-        if (!dataMapConverted.isEmpty() && domainKeyOld != null) {
-            FuturePut futurePut = send(locationKey, domainKeyOld, dataMapConverted);
-            peer.notifyAutomaticFutures(futurePut);
+            LOG.debug("[storage refresh] I ({}) synchronize {} with {}", storageRPC.peerBean().serverPeerAddress(),
+                    locationKey, other);
+            FutureDone<Void> future = antiEntropy.synchronize(other, locationKey, round);
+            peer.notifyAutomaticFutures(future);
         }
     }
 
     /**
-     * If my peer is responsible, I'll issue a put if absent to make sure all replicas are stored.
-     * 
-     * @param locationKey
-     *            The location key
-     * @param domainKey
-     *            The domain key
-     * @param dataMapConverted
-     *            The data to store
-     * @return The future of the put
+     * @return The statistics of all anti-entropy synchronizations so far
      */
-    protected FuturePut send(final Number160 locationKey, final Number160 domainKey,
-            final Map<Number160, Data> dataMapConverted) {
-		int replicationFactor = replicationStorage.getReplicationFactor();		
-		replicationFactor--;
-		List<PeerAddress> closePeers = new ArrayList<PeerAddress>();
-    	SortedSet<PeerAddress> sortedSet = peer.getPeerBean().peerMap().closePeers(locationKey, replicationFactor);
-    	int count=0;
-    	for(PeerAddress peerAddress: sortedSet){
-    		count++;
-    		closePeers.add(peerAddress);
-    		extractEachData(peerAddress, locationKey, domainKey, dataMapConverted);
-    		if(count==replicationFactor) break;
-    	}
-
-    	return null;
+    public AntiEntropyStatistics statistics() {
+        return statistics;
     }
-    
+
     /**
-     * Extracts each content-value pair from the same location and domain keys
-     * 
-     * @param other
-     * 			The other peer
-     * @param locationKey
-     * 			The location key
-     * @param domainKey
-     * 			The domain key
-     * @param dataMapConverted
-     * 			The data to store
+     * @return The statistics of the current replication round, which are complete when the next round starts
      */
-    public void extractEachData(final PeerAddress other, final Number160 locationKey, final Number160 domainKey, final Map<Number160, Data> dataMapConverted){
-    	for (Map.Entry<Number160, Data> entry : dataMapConverted.entrySet()) {
-    		Number160 contentKey=entry.getKey();
-//			Data data = entry.getValue();
-//			Map<Number160, Data> dataMapConverted1 = new HashMap<Number160, Data>();
-//			dataMapConverted1.put(contentKey, data);
-//			try {
-//				checkDirect(other, locationKey, domainKey, contentKey, data, dataMapConverted1);				
-//			} catch (ClassNotFoundException e) {
-//				e.printStackTrace();
-//			} catch (IOException e) {
-//				e.printStackTrace();
-//			}
-			
-			Number480 key = new Number480(locationKey, domainKey, contentKey);
-			FutureDone<SynchronizationStatistics> future = peer.synchronize(other).key(key).start();
-            future.awaitUninterruptibly();
-    	}    	
+    public AntiEntropyStatistics roundStatistics() {
+        return roundStatistics;
     }
     
     /**
@@ -342,8 +312,8 @@ public class ReplicationExecutor extends TimerTask implements ResponsibilityList
 //    public FutureResponse sync(final ChannelCreator cc, final PeerAddress other, final Number160 locationKey, final Number160 domainKey, final Number160 contentKey, final String value, final Buffer buffer) throws ClassNotFoundException, IOException, NoSuchAlgorithmException{
 //		Object object = synchronization.getObject(buffer);
 //		ArrayList<Checksum> checksums = (ArrayList<Checksum>) object;
-//		ArrayList<Instruction> instructions = synchronization.getInstructions(value.getBytes(), checksums, Synchronization.SIZE);
-//		SynchronizationBuilder synchronizationBuilder = new SynchronizationBuilder(peer, locationKey, domainKey, contentKey, Number160.createHash(value), instructions);
+//		ByteBuf delta = Synchronization.getDelta(value.getBytes(), checksums, Synchronization.SIZE, Unpooled.buffer());
+//		SynchronizationBuilder synchronizationBuilder = new SynchronizationBuilder(peer, locationKey, domainKey, contentKey, Number160.createHash(value), delta);
 //		FutureResponse futureResponse = peer.getSynchronizationRPC().syncMessage(other, synchronizationBuilder, cc);
 //        peer.notifyAutomaticFutures(futureResponse);
 //        return futureResponse;
@@ -368,6 +338,7 @@ public class ReplicationExecutor extends TimerTask implements ResponsibilityList
             public void operationComplete(final FutureChannelCreator future) throws Exception {
                 if (future.isSuccess()) {
                     PutBuilder putBuilder = new PutBuilder(peer, locationKey);
+                    putBuilder.setDomainKey(DHTBuilder.DEFAULT_DOMAIN);
                     putBuilder.setDataMap(dataMap);
                     FutureResponse futureResponse = storageRPC.put(other, putBuilder,
                             future.getChannelCreator());
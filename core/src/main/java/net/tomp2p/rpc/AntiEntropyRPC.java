@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.rpc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.tomp2p.connection2.ChannelCreator;
+import net.tomp2p.connection2.ConnectionBean;
+import net.tomp2p.connection2.ConnectionConfiguration;
+import net.tomp2p.connection2.PeerBean;
+import net.tomp2p.connection2.RequestHandler;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Buffer;
+import net.tomp2p.message.KeysMap;
+import net.tomp2p.message.Message2;
+import net.tomp2p.message.Message2.Type;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.replication.MerkleTree;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The anti-entropy RPC compares the {@link MerkleTree} of a location key with a replica. The requester sends the
+ * hashes of some nodes, the replica builds its tree with the same depth and replies the nodes that differ. Thus, the
+ * requester only descends into differing subtrees and only transfers the entries of differing leaves.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class AntiEntropyRPC extends DispatchHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(AntiEntropyRPC.class);
+
+    public static final byte ANTI_ENTROPY_COMMAND = 16;
+
+    // a node is sent as int with its hash
+    private static final int NODE_SIZE = 4 + Number160.BYTE_ARRAY_SIZE;
+
+    /**
+     * Constructor that registers this RPC with the message handler.
+     *
+     * @param peerBean
+     *            The peer bean that contains data that is unique for each peer
+     * @param connectionBean
+     *            The connection bean that is unique per connection (multiple peers can share a single connection)
+     */
+    public AntiEntropyRPC(final PeerBean peerBean, final ConnectionBean connectionBean) {
+        super(peerBean, connectionBean, ANTI_ENTROPY_COMMAND);
+    }
+
+    /**
+     * Sends the hashes of nodes of a Merkle tree to a replica. The response contains a buffer with the nodes that
+     * differ. A negative node means that the replica has no entries in this subtree. For a differing leaf, the
+     * response also contains the keys and data hashes of the entries the replica has in this leaf. This is an RPC.
+     *
+     * @param remotePeer
+     *            The remote peer to send this request
+     * @param locationKey
+     *            The location key the tree was built for
+     * @param tree
+     *            The Merkle tree of this peer
+     * @param nodes
+     *            The nodes to compare
+     * @param channelCreator
+     *            The channel creator that creates connections
+     * @param configuration
+     *            The client side connection configuration
+     * @return The future response to keep track of future events
+     */
+    public FutureResponse compare(final PeerAddress remotePeer, final Number160 locationKey, final MerkleTree tree,
+            final Collection<Integer> nodes, final ChannelCreator channelCreator,
+            final ConnectionConfiguration configuration) {
+        final Message2 message = createMessage(remotePeer, ANTI_ENTROPY_COMMAND, Type.REQUEST_1);
+        message.setKey(locationKey);
+        message.setInteger(tree.depth());
+        final ByteBuf buf = Unpooled.buffer(nodes.size() * NODE_SIZE);
+        for (int node : nodes) {
+            buf.writeInt(node);
+            tree.hash(node).toByteBuf(buf);
+        }
+        message.setBuffer(new Buffer(buf));
+        final FutureResponse futureResponse = new FutureResponse(message);
+        final RequestHandler<FutureResponse> requestHandler = new RequestHandler<FutureResponse>(futureResponse,
+                peerBean(), connectionBean(), configuration);
+        return requestHandler.sendTCP(channelCreator);
+    }
+
+    @Override
+    public Message2 handleResponse(final Message2 message, final boolean sign) throws Exception {
+        if (!(message.getType() == Type.REQUEST_1 && message.getCommand() == ANTI_ENTROPY_COMMAND)) {
+            throw new IllegalArgumentException("Message content is wrong");
+        }
+        final Number160 locationKey = message.getKey(0);
+        final Integer depth = message.getInteger(0);
+        final Buffer buffer = message.getBuffer(0);
+        if (locationKey == null || depth == null || buffer == null) {
+            throw new IllegalArgumentException("need the location key, the depth, and the nodes");
+        }
+        final MerkleTree tree = new MerkleTree(peerBean().storage().subMap(locationKey), depth);
+        final ByteBuf nodes = buffer.buffer();
+        final ByteBuf differing = Unpooled.buffer();
+        final Map<Number480, Number160> entries = new HashMap<Number480, Number160>();
+        while (nodes.readableBytes() >= NODE_SIZE) {
+            final int node = nodes.readInt();
+            final Number160 hash = new Number160(nodes);
+            if (!tree.isNode(node) || tree.hash(node).equals(hash)) {
+                continue;
+            }
+            if (tree.hash(node).isZero()) {
+                differing.writeInt(-node);
+            } else {
+                differing.writeInt(node);
+                if (tree.isLeaf(node)) {
+                    entries.putAll(tree.entries(node));
+                }
+            }
+        }
+        LOG.debug("{} nodes differ for {}, {} entries in differing leaves", differing.readableBytes() / 4,
+                locationKey, entries.size());
+        final Message2 responseMessage = createResponseMessage(message, Type.OK);
+        responseMessage.setBuffer(new Buffer(differing));
+        if (!entries.isEmpty()) {
+            responseMessage.setKeysMap(new KeysMap(entries));
+        }
+        return responseMessage;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.rpc;
+
+import net.tomp2p.peers.Number160;
+
+/**
+ * The hash functions of the bloom filters. The k positions of an element are derived with double hashing from two 64
+ * bit hashes h1 and h2, position i is (h1 + i * h2) mod m. For a {@link Number160}, the hashes are taken from the key
+ * itself, for other objects from their hash code. Both are put through the finalizer of MurmurHash3, since keys are
+ * not always SHA-1 values, e.g., new Number160(1).
+ *
+ * @author Thomas Bocek
+ *
+ */
+final class BloomHash {
+
+    private static final long MIX1 = 0xff51afd7ed558ccdL;
+
+    private static final long MIX2 = 0xc4ceb9fe1a85ec53L;
+
+    private static final int SHIFT = 33;
+
+    /**
+     * Utility class.
+     */
+    private BloomHash() {
+    }
+
+    /**
+     * @param o
+     *            The element
+     * @return The first hash of the element
+     */
+    static long hash1(final Object o) {
+        if (o instanceof Number160) {
+            return mix(((Number160) o).longValue());
+        }
+        return mix(o.hashCode());
+    }
+
+    /**
+     * @param o
+     *            The element
+     * @param hash1
+     *            The first hash of the element
+     * @return The second hash of the element, which is odd so that it is never zero
+     */
+    static long hash2(final Object o, final long hash1) {
+        // the hash code of a Number160 folds all 160 bits
+        return mix(hash1 ^ o.hashCode()) | 1L;
+    }
+
+    /**
+     * @param combined
+     *            The hash h1 + i * h2
+     * @param size
+     *            The number of positions
+     * @return The position of the combined hash
+     */
+    static int index(final long combined, final int size) {
+        return (int) ((combined & Long.MAX_VALUE) % size);
+    }
+
+    private static long mix(final long value) {
+        long k = value;
+        k ^= k >>> SHIFT;
+        k *= MIX1;
+        k ^= k >>> SHIFT;
+        k *= MIX2;
+        k ^= k >>> SHIFT;
+        return k;
+    }
+}
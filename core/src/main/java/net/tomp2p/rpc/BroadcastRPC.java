@@ -46,17 +46,71 @@ public class BroadcastRPC extends DispatchHandler {
 
     public FutureResponse send(final PeerAddress remotePeer, final BroadcastBuilder broadcastBuilder,
             final ChannelCreator channelCreator, final ConnectionConfiguration configuration) {
-        final Message2 message = createMessage(remotePeer, BROADCAST_COMMAND, Type.REQUEST_FF_1);
+        final DataMap dataMap = broadcastBuilder.dataMap() == null ? null : new DataMap(broadcastBuilder.dataMap());
+        return send(remotePeer, broadcastBuilder, dataMap, channelCreator, configuration);
+    }
+
+    /**
+     * Sends a broadcast message with a data map that can be shared among several messages. If the data map was
+     * encoded with {@link DataMap#encodeShared()}, only the header is encoded for this message.
+     * 
+     * @param remotePeer
+     *            The recipient of the broadcast message
+     * @param broadcastBuilder
+     *            The message key and the hop counter
+     * @param dataMap
+     *            The data map to send or null
+     * @param channelCreator
+     *            The channel creator
+     * @param configuration
+     *            The connection configuration
+     * @return The future response
+     */
+    public FutureResponse send(final PeerAddress remotePeer, final BroadcastBuilder broadcastBuilder,
+            final DataMap dataMap, final ChannelCreator channelCreator, final ConnectionConfiguration configuration) {
+        return send(remotePeer, broadcastBuilder, dataMap, channelCreator, configuration, false);
+    }
+
+    /**
+     * Sends a broadcast message with a data map that can be shared among several messages, see
+     * {@link #send(PeerAddress, BroadcastBuilder, DataMap, ChannelCreator, ConnectionConfiguration)}.
+     * 
+     * @param remotePeer
+     *            The recipient of the broadcast message
+     * @param broadcastBuilder
+     *            The message key and the hop counter
+     * @param dataMap
+     *            The data map to send or null
+     * @param channelCreator
+     *            The channel creator
+     * @param configuration
+     *            The connection configuration
+     * @param acknowledge
+     *            True if the recipient replies to a UDP message as well, so that the future fails if the message
+     *            was lost or the recipient is offline. Otherwise, a UDP message is fire and forget and its future
+     *            succeeds once the message is sent. A TCP message is always acknowledged
+     * @return The future response
+     */
+    public FutureResponse send(final PeerAddress remotePeer, final BroadcastBuilder broadcastBuilder,
+            final DataMap dataMap, final ChannelCreator channelCreator, final ConnectionConfiguration configuration,
+            final boolean acknowledge) {
+        final Message2 message = createMessage(remotePeer, BROADCAST_COMMAND, acknowledge ? Type.REQUEST_1
+                : Type.REQUEST_FF_1);
         message.setInteger(broadcastBuilder.hopCounter());
+        if (broadcastBuilder.bagLimit() != null) {
+            message.setInteger(broadcastBuilder.bagLimit());
+        }
         message.setKey(broadcastBuilder.messageKey());
-        if (broadcastBuilder.dataMap() != null) {
-            message.setDataMap(new DataMap(broadcastBuilder.dataMap()));
+        if (dataMap != null) {
+            message.setDataMap(dataMap);
         }
         final FutureResponse futureResponse = new FutureResponse(message);
         final RequestHandler<FutureResponse> requestHandler = new RequestHandler<FutureResponse>(
                 futureResponse, peerBean(), connectionBean(), configuration);
         if (!broadcastBuilder.isUDP()) {
             return requestHandler.sendTCP(channelCreator);
+        } else if (acknowledge) {
+            return requestHandler.sendUDP(channelCreator);
         } else {
             return requestHandler.fireAndForgetUDP(channelCreator);
         }
@@ -64,12 +118,13 @@ public class BroadcastRPC extends DispatchHandler {
 
     @Override
     public Message2 handleResponse(final Message2 message, final boolean sign) throws Exception {
-        if (!(message.getType() == Type.REQUEST_FF_1 && message.getCommand() == BROADCAST_COMMAND)) {
+        if (!((message.getType() == Type.REQUEST_FF_1 || message.getType() == Type.REQUEST_1) && message
+                .getCommand() == BROADCAST_COMMAND)) {
             throw new IllegalArgumentException("Message content is wrong");
         }
         LOG.debug("received BRODACAST message: {}", message);
         broadcastHandler.receive(message);
-        if(message.isUdp()) {
+        if (message.isUdp() && message.getType() == Type.REQUEST_FF_1) {
             return message;
         } else {
             return createResponseMessage(message, Type.OK);
@@ -25,7 +25,8 @@ import java.util.Set;
 
 /**
  * A counting Bloom Filter (see http://en.wikipedia.org/wiki/Bloom_filter) that uses java.util.Random as a primitive
- * hash function, and which implements Java's Set interface for convenience. Only the add(), addAll(), contains(), and
+ * hash function or, if created with double hashing, derives the positions with double hashing from the element, see
+ * {@link BloomHash}. It implements Java's Set interface for convenience. Only the add(), addAll(), contains(), and
  * containsAll() methods are implemented. Calling any other method will yield an UnsupportedOperationException. This
  * code may be used, modified, and redistributed provided that the author tag below remains intact.
  * 
@@ -39,6 +40,8 @@ public class CountingBloomFilter<E> implements Set<E>, Serializable {
 
     private final int k;
 
+    private final boolean doubleHashing;
+
     private final int[] intSet;
 
     private final int intArraySize, expectedElements;
@@ -54,6 +57,22 @@ public class CountingBloomFilter<E> implements Set<E>, Serializable {
      *            The data that will be used in the backing BitSet
      */
     public CountingBloomFilter(int expectedElements, int[] intSet) {
+        this(expectedElements, intSet, false);
+    }
+
+    /**
+     * Constructs a CountingBloomFilter out of existing data, see {@link #CountingBloomFilter(int, int[])}. The data
+     * has to be created with the same derivation of the positions.
+     * 
+     * @param expectedElements
+     *            he typical number of items you expect to be added to the CountingBloomFilter (often called 'n').
+     * @param intSet
+     *            The data that will be used in the backing BitSet
+     * @param doubleHashing
+     *            True if the positions are derived with double hashing, false if with java.util.Random
+     */
+    public CountingBloomFilter(int expectedElements, int[] intSet, boolean doubleHashing) {
+        this.doubleHashing = doubleHashing;
         this.intArraySize = intSet.length;
         this.expectedElements = expectedElements;
         this.k = (int) Math.ceil((intArraySize / (double) expectedElements) * Math.log(2.0));
@@ -86,14 +105,27 @@ public class CountingBloomFilter<E> implements Set<E>, Serializable {
      */
     @Override
     public boolean add(E o) {
-        Random r = new Random(o.hashCode());
+        if (!doubleHashing) {
+            Random r = new Random(o.hashCode());
+            for (int x = 0; x < k; x++) {
+                int index = r.nextInt(intArraySize);
+                int old = intSet[index];
+                if (old != Integer.MAX_VALUE) {
+                    intSet[index] = old + 1;
+                }
+            }
+            return false;
+        }
+        final long hash1 = BloomHash.hash1(o);
+        final long hash2 = BloomHash.hash2(o, hash1);
+        long combined = hash1;
         for (int x = 0; x < k; x++) {
-            int index = r.nextInt(intArraySize);
+            int index = BloomHash.index(combined, intArraySize);
             int old = intSet[index];
             if (old != Integer.MAX_VALUE) {
                 intSet[index] = old + 1;
             }
-
+            combined += hash2;
         }
         return false;
     }
@@ -126,11 +158,23 @@ public class CountingBloomFilter<E> implements Set<E>, Serializable {
      *         was. The probability can be estimated using the expectedFalsePositiveProbability() method.
      */
     public boolean contains(Object o) {
-        Random r = new Random(o.hashCode());
+        if (!doubleHashing) {
+            Random r = new Random(o.hashCode());
+            for (int x = 0; x < k; x++) {
+                if (intSet[r.nextInt(intArraySize)] == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        final long hash1 = BloomHash.hash1(o);
+        final long hash2 = BloomHash.hash2(o, hash1);
+        long combined = hash1;
         for (int x = 0; x < k; x++) {
-            if (intSet[r.nextInt(intArraySize)] == 0) {
+            if (intSet[BloomHash.index(combined, intArraySize)] == 0) {
                 return false;
             }
+            combined += hash2;
         }
         return true;
     }
@@ -232,9 +276,19 @@ public class CountingBloomFilter<E> implements Set<E>, Serializable {
      */
     public int approximateCount(final E key) {
         int retVal = Integer.MAX_VALUE;
-        Random r = new Random(key.hashCode());
+        if (!doubleHashing) {
+            Random r = new Random(key.hashCode());
+            for (int x = 0; x < k; x++) {
+                retVal = Math.min(retVal, intSet[r.nextInt(intArraySize)]);
+            }
+            return retVal;
+        }
+        final long hash1 = BloomHash.hash1(key);
+        final long hash2 = BloomHash.hash2(key, hash1);
+        long combined = hash1;
         for (int x = 0; x < k; x++) {
-            retVal = Math.min(retVal, intSet[r.nextInt(intArraySize)]);
+            retVal = Math.min(retVal, intSet[BloomHash.index(combined, intArraySize)]);
+            combined += hash2;
         }
         return retVal;
     }
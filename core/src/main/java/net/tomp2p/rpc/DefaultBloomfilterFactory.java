@@ -4,24 +4,42 @@ import net.tomp2p.peers.Number160;
 
 public class DefaultBloomfilterFactory  implements BloomfilterFactory {
 
+    private final boolean doubleHashing;
+
+    /**
+     * Creates bloom filters that derive the positions with java.util.Random, which all peers can read.
+     */
+    public DefaultBloomfilterFactory() {
+        this(false);
+    }
+
+    /**
+     * @param doubleHashing
+     *            True to create bloom filters that derive the positions with double hashing. Enable it only if all
+     *            peers read the double hashing flag of the bloom filter header.
+     */
+    public DefaultBloomfilterFactory(final boolean doubleHashing) {
+        this.doubleHashing = doubleHashing;
+    }
+
     @Override
     public SimpleBloomFilter<Number160> createContentBloomFilter() {
-        return new SimpleBloomFilter<Number160>(100, 1000);
+        return new SimpleBloomFilter<Number160>(100, 1000, doubleHashing);
     }
 
     @Override
     public SimpleBloomFilter<Number160> createLoctationKeyBloomFilter() {
-        return new SimpleBloomFilter<Number160>(100, 1000);
+        return new SimpleBloomFilter<Number160>(100, 1000, doubleHashing);
     }
 
     @Override
     public SimpleBloomFilter<Number160> createDomainKeyBloomFilter() {
-        return new SimpleBloomFilter<Number160>(100, 1000);
+        return new SimpleBloomFilter<Number160>(100, 1000, doubleHashing);
     }
 
     @Override
     public SimpleBloomFilter<Number160> createContentKeyBloomFilter() {
-        return new SimpleBloomFilter<Number160>(100, 1000);
+        return new SimpleBloomFilter<Number160>(100, 1000, doubleHashing);
     }
 
 }
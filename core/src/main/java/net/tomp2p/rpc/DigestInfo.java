@@ -37,6 +37,9 @@ public class DigestInfo {
 
     private final Map<Number480, Number160> mapDigests = new HashMap<Number480, Number160>();
 
+    // the content bloom filters are created once, since a storage may cache its digests until the next change
+    private volatile BloomFilters bloomFilters = null;
+
     /**
      * Empty constructor is used to add the hashes to the list.
      */
@@ -140,11 +143,7 @@ public class DigestInfo {
      * @return The bloom filter of the keys that are on this peer
      */
     public SimpleBloomFilter<Number160> getContentKeyBloomFilter(final BloomfilterFactory factory) {
-        SimpleBloomFilter<Number160> sbf = factory.createContentKeyBloomFilter();
-        for (Map.Entry<Number480, Number160> entry : mapDigests.entrySet()) {
-            sbf.add(entry.getKey().getContentKey());
-        }
-        return sbf;
+        return bloomFilters(factory).contentKeyBloomFilter;
     }
 
     /**
@@ -153,11 +152,31 @@ public class DigestInfo {
      * @return The bloom filter of the content keys that are on this peer
      */
     public SimpleBloomFilter<Number160> getContentBloomFilter(final BloomfilterFactory factory) {
-        SimpleBloomFilter<Number160> sbf = factory.createContentBloomFilter();
+        return bloomFilters(factory).contentBloomFilter;
+    }
+
+    /**
+     * Creates the content key and the content bloom filter in one pass, or returns them if they have already been
+     * created with the same factory. The bloom filters are shared and must not be modified.
+     * 
+     * @param factory
+     *            The bloom filter creator
+     * @return The content key and the content bloom filter
+     */
+    private BloomFilters bloomFilters(final BloomfilterFactory factory) {
+        BloomFilters current = bloomFilters;
+        if (current != null && current.factory == factory) {
+            return current;
+        }
+        SimpleBloomFilter<Number160> contentKeyBloomFilter = factory.createContentKeyBloomFilter();
+        SimpleBloomFilter<Number160> contentBloomFilter = factory.createContentBloomFilter();
         for (Map.Entry<Number480, Number160> entry : mapDigests.entrySet()) {
-            sbf.add(entry.getValue());
+            contentKeyBloomFilter.add(entry.getKey().getContentKey());
+            contentBloomFilter.add(entry.getValue());
         }
-        return sbf;
+        current = new BloomFilters(factory, contentKeyBloomFilter, contentBloomFilter);
+        bloomFilters = current;
+        return current;
     }
 
     /**
@@ -170,6 +189,7 @@ public class DigestInfo {
      */
     public void put(final Number480 key, final Number160 content) {
         mapDigests.put(key, content);
+        bloomFilters = null;
     }
 
     /**
@@ -210,4 +230,21 @@ public class DigestInfo {
     public int hashCode() {
         return getKeyDigest().hashCode() ^ getSize() ^ getContentDigest().hashCode();
     }
+
+    /**
+     * The bloom filters of the content keys and the contents, created by the same factory.
+     */
+    private static final class BloomFilters {
+        private final BloomfilterFactory factory;
+        private final SimpleBloomFilter<Number160> contentKeyBloomFilter;
+        private final SimpleBloomFilter<Number160> contentBloomFilter;
+
+        private BloomFilters(final BloomfilterFactory factory,
+                final SimpleBloomFilter<Number160> contentKeyBloomFilter,
+                final SimpleBloomFilter<Number160> contentBloomFilter) {
+            this.factory = factory;
+            this.contentKeyBloomFilter = contentKeyBloomFilter;
+            this.contentBloomFilter = contentBloomFilter;
+        }
+    }
 }
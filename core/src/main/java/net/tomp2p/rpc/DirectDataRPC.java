@@ -18,7 +18,6 @@ package net.tomp2p.rpc;
 import java.io.IOException;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import net.tomp2p.connection2.ChannelCreator;
 import net.tomp2p.connection2.ConnectionBean;
 import net.tomp2p.connection2.PeerBean;
@@ -29,7 +28,9 @@ import net.tomp2p.message.Message2;
 import net.tomp2p.message.Message2.Type;
 import net.tomp2p.p2p.builder.SendDirectBuilder;
 import net.tomp2p.peers.PeerAddress;
-import net.tomp2p.utils.Utils;
+import net.tomp2p.storage.CompactSerializer;
+import net.tomp2p.storage.JavaSerializer;
+import net.tomp2p.storage.Serializer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,6 +40,10 @@ public class DirectDataRPC extends DispatchHandler {
 
     public static final byte DIRECT_DATA_COMMAND = 7;
 
+    private static final Serializer COMPACT_SERIALIZER = new CompactSerializer();
+
+    private static final Serializer JAVA_SERIALIZER = new JavaSerializer();
+
     private volatile RawDataReply rawDataReply;
 
     private volatile ObjectDataReply objectDataReply;
@@ -80,10 +85,8 @@ public class DirectDataRPC extends DispatchHandler {
         if (sendDirectBuilder.isRaw()) {
             message.setBuffer(sendDirectBuilder.getBuffer());
         } else {
-            byte[] me;
             try {
-                me = Utils.encodeJavaObject(sendDirectBuilder.getObject());
-                message.setBuffer(new Buffer(Unpooled.wrappedBuffer(me)));
+                message.setBuffer(new Buffer(peerBean().serializer().encode(sendDirectBuilder.getObject())));
             } catch (IOException e) {
                 futureResponse.setFailed("cannot convert object", e);
             }       
@@ -155,7 +158,8 @@ public class DirectDataRPC extends DispatchHandler {
                     responseMessage.setBuffer(replyBuffer);
                 }
             } else { // no streaming here when we deal with objects
-                Object obj = Utils.decodeJavaObject(requestBuffer.buffer());
+                // the sender may use another serializer, the buffer detects it as for replies
+                Object obj = requestBuffer.object();
                 LOG.debug("handling {}", obj);
 
                 Object reply = objectDataReply2.reply(message.getSender(), obj);
@@ -164,11 +168,26 @@ public class DirectDataRPC extends DispatchHandler {
                 } else if (reply == obj) {
                     responseMessage.setType(Type.OK);
                 } else {
-                    byte[] me = Utils.encodeJavaObject(reply);
-                    responseMessage.setBuffer(new Buffer(Unpooled.wrappedBuffer(me)));
+                    responseMessage.setBuffer(new Buffer(replySerializer(requestBuffer).encode(reply)));
                 }
             }
         }
         return responseMessage;
     }
+
+    /**
+     * The reply is encoded in the format of the request, thus, a peer that only knows the Java serialization can
+     * decode it.
+     * 
+     * @param requestBuffer
+     *            The buffer with the encoded request
+     * @return The compact serializer if the request starts with its schema tag, otherwise the Java serialization
+     */
+    private static Serializer replySerializer(final Buffer requestBuffer) {
+        final ByteBuf buf = requestBuffer.buffer();
+        if (buf.writerIndex() > 0 && buf.getByte(0) == CompactSerializer.SCHEMA_TAG) {
+            return COMPACT_SERIALIZER;
+        }
+        return JAVA_SERIALIZER;
+    }
 }
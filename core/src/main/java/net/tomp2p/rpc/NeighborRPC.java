@@ -107,7 +107,8 @@ public class NeighborRPC extends DispatchHandler {
                 peerBean(), connectionBean(), configuration);
 
         if (!configuration.isForceTCP()) {
-            return request.sendUDP(channelCreator);
+            // the neighbors are answered in the event loop, so the timeout can follow the round-trip times
+            return request.adaptiveIdleUDP(true).sendUDP(channelCreator);
         } else {
             return request.sendTCP(channelCreator);
         }
@@ -148,7 +149,7 @@ public class NeighborRPC extends DispatchHandler {
                     digestInfo = peerBean().storage().digest(locationKey, domainKey, keyBloomFilter,
                             contentBloomFilter);
                 } else {
-                    digestInfo = peerBean().storage().digest(locationKey, domainKey, null);
+                    digestInfo = peerBean().storage().digestSummary(locationKey, domainKey);
                 }
                 responseMessage.setInteger(digestInfo.getSize());
                 responseMessage.setKey(digestInfo.getKeyDigest());
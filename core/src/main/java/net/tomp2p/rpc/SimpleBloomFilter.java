@@ -19,6 +19,7 @@ package net.tomp2p.rpc;
 import io.netty.buffer.ByteBuf;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Iterator;
@@ -27,13 +28,15 @@ import java.util.Set;
 
 /**
  * A simple Bloom Filter (see http://en.wikipedia.org/wiki/Bloom_filter) that uses java.util.Random as a primitive hash
- * function, and which implements Java's Set interface for convenience. Only the add(), addAll(), contains(), and
+ * function or, if created with double hashing, derives the positions with double hashing from the element, see
+ * {@link BloomHash}. It implements Java's Set interface for convenience. Only the add(), addAll(), contains(), and
  * containsAll() methods are implemented. Calling any other method will yield an UnsupportedOperationException. This
  * code may be used, modified, and redistributed provided that the author tag below remains intact.
  * 
  * @author Ian Clarke <ian@uprizer.com>
  * @author Thomas Bocek <tom@tomp2p.net> Added methods to get and create a SimpleBloomFilter from existing data. The
- *         data can be either a BitSet or a bye[].
+ *         data can be either a BitSet or a bye[]. The bits are stored in a long[]. Filters with double hashing
+ *         are flagged in the header, filters without the flag use java.util.Random as before.
  * @param <E>
  *            The type of object the BloomFilter should contain
  */
@@ -46,9 +49,19 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 
     public static final int SIZE_HEADER = SIZE_HEADER_LENGTH + SIZE_HEADER_ELEMENTS;
 
+    private static final int BYTES_PER_LONG = Long.SIZE / Byte.SIZE;
+
+    private static final int ADDRESS_BITS_PER_LONG = 6;
+
+    // the highest bit of the expected elements in the header, set if the positions are derived with double hashing
+    private static final int DOUBLE_HASHING_FLAG = 1 << 31;
+
     private final int k;
 
-    private final BitSet bitSet;
+    private final boolean doubleHashing;
+
+    // same layout as java.util.BitSet, bit i is bit i % 64 of bits[i / 64]
+    private final long[] bits;
 
     private final int byteArraySize, bitArraySize, expectedElements;
 
@@ -64,7 +77,23 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
      *            The typical number of items you expect to be added to the SimpleBloomFilter (often called 'n').
      */
     public SimpleBloomFilter(final int byteArraySize, final int expectedElements) {
-        this(byteArraySize, expectedElements, new BitSet(byteArraySize * Byte.SIZE));
+        this(byteArraySize, expectedElements, false);
+    }
+
+    /**
+     * Construct an empty SimpleBloomFilter, see {@link #SimpleBloomFilter(int, int)}. With double hashing, the
+     * positions are derived faster, but only peers that know the flag in the header can read the filter.
+     * 
+     * @param byteArraySize
+     *            The number of bits in multiple of 8 in the bit array (often called 'm' in the context of bloom
+     *            filters).
+     * @param expectedElements
+     *            The typical number of items you expect to be added to the SimpleBloomFilter (often called 'n').
+     * @param doubleHashing
+     *            True if the positions are derived with double hashing, false if with java.util.Random
+     */
+    public SimpleBloomFilter(final int byteArraySize, final int expectedElements, final boolean doubleHashing) {
+        this(byteArraySize, expectedElements, new long[longArraySize(byteArraySize)], doubleHashing);
     }
 
     /**
@@ -79,14 +108,18 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
         this.byteArraySize = channelBuffer.readUnsignedShort() - (SIZE_HEADER_ELEMENTS + SIZE_HEADER_LENGTH);
         this.bitArraySize = byteArraySize * Byte.SIZE;
         int expectedElements = channelBuffer.readInt();
+        this.doubleHashing = (expectedElements & DOUBLE_HASHING_FLAG) != 0;
+        expectedElements &= ~DOUBLE_HASHING_FLAG;
         this.expectedElements = expectedElements;
         this.k = (int) Math.ceil((bitArraySize / (double) expectedElements) * Math.log(2.0));
-        if (byteArraySize > 0) {
-            byte[] me = new byte[byteArraySize];
-            channelBuffer.readBytes(me);
-            this.bitSet = BitSet.valueOf(me);
-        } else {
-            this.bitSet = new BitSet();
+        this.bits = new long[longArraySize(byteArraySize)];
+        // little endian, as java.util.BitSet#toByteArray()
+        int i = 0;
+        for (; i + BYTES_PER_LONG <= byteArraySize; i += BYTES_PER_LONG) {
+            bits[i / BYTES_PER_LONG] = Long.reverseBytes(channelBuffer.readLong());
+        }
+        for (; i < byteArraySize; i++) {
+            bits[i / BYTES_PER_LONG] |= (long) channelBuffer.readUnsignedByte() << ((i % BYTES_PER_LONG) * Byte.SIZE);
         }
     }
 
@@ -104,11 +137,34 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
      *            The data that will be used in the backing BitSet
      */
     public SimpleBloomFilter(final int byteArraySize, final int expectedElements, final BitSet bitSet) {
+        this(byteArraySize, expectedElements, Arrays.copyOf(bitSet.toLongArray(), longArraySize(byteArraySize)),
+                false);
+    }
+
+    /**
+     * Constructs a SimpleBloomFilter with the given bits, which are not copied.
+     * 
+     * @param byteArraySize
+     *            The number of bits in multiple of 8 in the bit array
+     * @param expectedElements
+     *            The typical number of items you expect to be added to the SimpleBloomFilter
+     * @param bits
+     *            The bits in the layout of java.util.BitSet
+     * @param doubleHashing
+     *            True if the positions are derived with double hashing, false if with java.util.Random
+     */
+    private SimpleBloomFilter(final int byteArraySize, final int expectedElements, final long[] bits,
+            final boolean doubleHashing) {
         this.byteArraySize = byteArraySize;
         this.bitArraySize = byteArraySize * Byte.SIZE;
         this.expectedElements = expectedElements;
         this.k = (int) Math.ceil((bitArraySize / (double) expectedElements) * Math.log(2.0));
-        this.bitSet = bitSet;
+        this.bits = bits;
+        this.doubleHashing = doubleHashing;
+    }
+
+    private static int longArraySize(final int byteArraySize) {
+        return (byteArraySize + BYTES_PER_LONG - 1) / BYTES_PER_LONG;
     }
 
     /**
@@ -130,6 +186,13 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
         return expectedElements;
     }
 
+    /**
+     * @return True if the positions are derived with double hashing, false if with java.util.Random
+     */
+    public boolean isDoubleHashing() {
+        return doubleHashing;
+    }
+
     /**
      * @param o
      *            Add element
@@ -139,9 +202,21 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
      */
     @Override
     public boolean add(final E o) {
-        Random r = new Random(o.hashCode());
+        if (!doubleHashing) {
+            Random r = new Random(o.hashCode());
+            for (int x = 0; x < k; x++) {
+                final int index = r.nextInt(bitArraySize);
+                bits[index >>> ADDRESS_BITS_PER_LONG] |= 1L << index;
+            }
+            return false;
+        }
+        final long hash1 = BloomHash.hash1(o);
+        final long hash2 = BloomHash.hash2(o, hash1);
+        long combined = hash1;
         for (int x = 0; x < k; x++) {
-            bitSet.set(r.nextInt(bitArraySize), true);
+            final int index = BloomHash.index(combined, bitArraySize);
+            bits[index >>> ADDRESS_BITS_PER_LONG] |= 1L << index;
+            combined += hash2;
         }
         return false;
     }
@@ -164,9 +239,7 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
      */
     @Override
     public void clear() {
-        for (int x = 0; x < bitSet.length(); x++) {
-            bitSet.set(x, false);
-        }
+        Arrays.fill(bits, 0L);
     }
 
     /**
@@ -177,11 +250,25 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
      */
     @Override
     public boolean contains(final Object o) {
-        Random r = new Random(o.hashCode());
+        if (!doubleHashing) {
+            Random r = new Random(o.hashCode());
+            for (int x = 0; x < k; x++) {
+                final int index = r.nextInt(bitArraySize);
+                if ((bits[index >>> ADDRESS_BITS_PER_LONG] & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        final long hash1 = BloomHash.hash1(o);
+        final long hash2 = BloomHash.hash2(o, hash1);
+        long combined = hash1;
         for (int x = 0; x < k; x++) {
-            if (!bitSet.get(r.nextInt(bitArraySize))) {
+            final int index = BloomHash.index(combined, bitArraySize);
+            if ((bits[index >>> ADDRESS_BITS_PER_LONG] & (1L << index)) == 0) {
                 return false;
             }
+            combined += hash2;
         }
         return true;
     }
@@ -292,28 +379,32 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
     }
 
     /**
-     * Returns the bitset that backs the bloom filter.
+     * Returns the bits of the bloom filter. The bitset is a copy, changes are not written back.
      * 
      * @return bloom filter as a bitset
      */
     public BitSet getBitSet() {
-        return bitSet;
+        return BitSet.valueOf(bits);
     }
 
     /**
      * Converts data to a byte buffer. The first two bytes contain the size of this simple bloom filter. Thus, the bloom
-     * filter can only be of length 65536.
+     * filter can only be of length 65536. The highest bit of the expected elements is set for double hashing.
      * 
      * @param buf
      *            The byte buffer where the bloom filter will be written.
      */
     public void toByteBuf(final ByteBuf buf) {
-        byte[] tmp = bitSet.toByteArray();
-        int currentByteArraySize = tmp.length;
         buf.writeShort(byteArraySize + SIZE_HEADER_ELEMENTS + SIZE_HEADER_LENGTH);
-        buf.writeInt(expectedElements);
-        buf.writeBytes(bitSet.toByteArray());
-        buf.writeZero(byteArraySize - currentByteArraySize);
+        buf.writeInt(doubleHashing ? expectedElements | DOUBLE_HASHING_FLAG : expectedElements);
+        // little endian, as java.util.BitSet#toByteArray()
+        int i = 0;
+        for (; i + BYTES_PER_LONG <= byteArraySize; i += BYTES_PER_LONG) {
+            buf.writeLong(Long.reverseBytes(bits[i / BYTES_PER_LONG]));
+        }
+        for (; i < byteArraySize; i++) {
+            buf.writeByte((int) (bits[i / BYTES_PER_LONG] >>> ((i % BYTES_PER_LONG) * Byte.SIZE)));
+        }
     }
 
     /**
@@ -322,12 +413,14 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
      * @return A new bloom filter that contains both sets.
      */
     public SimpleBloomFilter<E> merge(final SimpleBloomFilter<E> toMerge) {
-        if (toMerge.bitArraySize != bitArraySize) {
+        if (toMerge.bitArraySize != bitArraySize || toMerge.doubleHashing != doubleHashing) {
             throw new RuntimeException("this is not supposed to happen");
         }
-        BitSet mergedBitSet = (BitSet) bitSet.clone();
-        mergedBitSet.or(toMerge.bitSet);
-        return new SimpleBloomFilter<E>(bitArraySize, expectedElements, mergedBitSet);
+        final long[] merged = new long[bits.length];
+        for (int i = 0; i < merged.length; i++) {
+            merged[i] = bits[i] | toMerge.bits[i];
+        }
+        return new SimpleBloomFilter<E>(byteArraySize, expectedElements, merged, doubleHashing);
     }
 
     @Override
@@ -338,7 +431,7 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
         @SuppressWarnings("unchecked")
         SimpleBloomFilter<E> o = (SimpleBloomFilter<E>) obj;
         return o.k == k && o.bitArraySize == bitArraySize && expectedElements == o.expectedElements
-                && bitSet.equals(o.bitSet);
+                && doubleHashing == o.doubleHashing && Arrays.equals(bits, o.bits);
     }
 
     @Override
@@ -347,19 +440,19 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
         // CHECKSTYLE:OFF
         int hash = 7;
         // CHECKSTYLE:ON
-        hash = magic * hash + bitSet.hashCode();
+        hash = magic * hash + Arrays.hashCode(bits);
         hash = magic * hash + k;
         hash = magic * hash + expectedElements;
         hash = magic * hash + bitArraySize;
+        hash = magic * hash + (doubleHashing ? 1 : 0);
         return hash;
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        int length = bitSet.length();
-        for (int i = 0; i < length; i++) {
-            sb.append(bitSet.get(i) ? "1" : "0");
+        for (int i = 0; i < bitArraySize; i++) {
+            sb.append((bits[i >>> ADDRESS_BITS_PER_LONG] & (1L << i)) != 0 ? "1" : "0");
         }
         return sb.toString();
     }
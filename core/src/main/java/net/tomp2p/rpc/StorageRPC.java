@@ -38,6 +38,8 @@ import net.tomp2p.message.KeysMap;
 import net.tomp2p.message.Message2;
 import net.tomp2p.message.Message2.Type;
 import net.tomp2p.p2p.builder.AddBuilder;
+import net.tomp2p.p2p.builder.BulkGetBuilder;
+import net.tomp2p.p2p.builder.BulkPutBuilder;
 import net.tomp2p.p2p.builder.GetBuilder;
 import net.tomp2p.p2p.builder.PutBuilder;
 import net.tomp2p.p2p.builder.RemoveBuilder;
@@ -212,6 +214,48 @@ public class StorageRPC extends DispatchHandler {
 
     }
 
+    /**
+     * Stores the data of many location keys on a remote peer with one message. The type of put is the same as for
+     * {@link #put(PeerAddress, PutBuilder, ChannelCreator)} and
+     * {@link #putIfAbsent(PeerAddress, PutBuilder, ChannelCreator)}. This is an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer to store the data
+     * @param bulkPutBuilder
+     *            The options of the bulk put
+     * @param dataMap
+     *            The data this peer is responsible for, with the location, domain, and content key
+     * @param channelCreator
+     *            The channel creator
+     * @return FutureResponse that stores which keys have been stored.
+     */
+    public FutureResponse put(final PeerAddress remotePeer, final BulkPutBuilder bulkPutBuilder,
+            final Map<Number480, Data> dataMap, final ChannelCreator channelCreator) {
+        Utils.nullCheck(remotePeer, dataMap);
+        final Type type;
+        if (bulkPutBuilder.isPutIfAbsent()) {
+            type = bulkPutBuilder.isProtectDomain() ? Type.REQUEST_4 : Type.REQUEST_3;
+        } else {
+            type = bulkPutBuilder.isProtectDomain() ? Type.REQUEST_2 : Type.REQUEST_1;
+        }
+        final Message2 message = createMessage(remotePeer, COMMAND_PUT, type);
+
+        if (bulkPutBuilder.isSignMessage()) {
+            message.setPublicKeyAndSign(peerBean().getKeyPair());
+        }
+
+        message.setDataMap(new DataMap(dataMap));
+
+        final FutureResponse futureResponse = new FutureResponse(message);
+        final RequestHandler<FutureResponse> request = new RequestHandler<FutureResponse>(futureResponse,
+                peerBean(), connectionBean(), bulkPutBuilder);
+        if (!bulkPutBuilder.isForceUDP()) {
+            return request.sendTCP(channelCreator);
+        } else {
+            return request.sendUDP(channelCreator);
+        }
+    }
+
     /**
      * Adds data on a remote peer. The main difference to
      * {@link #put(PeerAddress, Number160, Number160, Map, Type, boolean, ChannelCreator, boolean)} and
@@ -325,13 +369,55 @@ public class StorageRPC extends DispatchHandler {
         } else { // if(digest && returnBloomFilter)
             type = Type.REQUEST_3;
         }
+        return get(remotePeer, getBuilder, type, getBuilder.keys(), channelCreator);
+    }
+
+    /**
+     * Gets the hashes of the data from a remote peer, regardless if the get builder asks for a digest or not. The
+     * response contains a {@link KeysMap} with the hash of each key. This is an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer to send this request
+     * @param getBuilder
+     *            The options of the get, the keys or bloom filters select the data
+     * @param channelCreator
+     *            The channel creator that creates connections
+     * @return The future response to keep track of future events
+     */
+    public FutureResponse digest(final PeerAddress remotePeer, final GetBuilder getBuilder,
+            final ChannelCreator channelCreator) {
+        return get(remotePeer, getBuilder, Type.REQUEST_2, getBuilder.keys(), channelCreator);
+    }
+
+    /**
+     * Gets the data of the given keys from a remote peer, regardless which data the get builder selects. This is an
+     * RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer to send this request
+     * @param getBuilder
+     *            The options of the get
+     * @param keys
+     *            The keys of the data to get
+     * @param channelCreator
+     *            The channel creator that creates connections
+     * @return The future response to keep track of future events
+     */
+    public FutureResponse get(final PeerAddress remotePeer, final GetBuilder getBuilder,
+            final Collection<Number480> keys, final ChannelCreator channelCreator) {
+        Utils.nullCheck(remotePeer, keys);
+        return get(remotePeer, getBuilder, Type.REQUEST_1, keys, channelCreator);
+    }
+
+    private FutureResponse get(final PeerAddress remotePeer, final GetBuilder getBuilder, final Type type,
+            final Collection<Number480> keys, final ChannelCreator channelCreator) {
         final Message2 message = createMessage(remotePeer, COMMAND_GET, type);
 
         if (getBuilder.isSignMessage()) {
             message.setPublicKeyAndSign(peerBean().getKeyPair());
         }
 
-        if (getBuilder.keys() == null) {
+        if (keys == null) {
 
             if (getBuilder.getLocationKey() == null || getBuilder.getDomainKey() == null) {
                 throw new IllegalArgumentException("Null not allowed in location or domain");
@@ -351,7 +437,7 @@ public class StorageRPC extends DispatchHandler {
                 }
             }
         } else {
-            message.setKeys(new Keys(getBuilder.keys()));
+            message.setKeys(new Keys(keys));
         }
 
         final FutureResponse futureResponse = new FutureResponse(message);
@@ -364,6 +450,40 @@ public class StorageRPC extends DispatchHandler {
         }
     }
 
+    /**
+     * Gets the data of many keys with different location keys from a remote peer with one message. This is an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer to send this request
+     * @param bulkGetBuilder
+     *            The options of the bulk get
+     * @param keys
+     *            The keys this peer is responsible for
+     * @param channelCreator
+     *            The channel creator that creates connections
+     * @return The future response to keep track of future events
+     */
+    public FutureResponse get(final PeerAddress remotePeer, final BulkGetBuilder bulkGetBuilder,
+            final Collection<Number480> keys, final ChannelCreator channelCreator) {
+        Utils.nullCheck(remotePeer, keys);
+        final Message2 message = createMessage(remotePeer, COMMAND_GET, Type.REQUEST_1);
+
+        if (bulkGetBuilder.isSignMessage()) {
+            message.setPublicKeyAndSign(peerBean().getKeyPair());
+        }
+
+        message.setKeys(new Keys(keys));
+
+        final FutureResponse futureResponse = new FutureResponse(message);
+        final RequestHandler<FutureResponse> request = new RequestHandler<FutureResponse>(futureResponse,
+                peerBean(), connectionBean(), bulkGetBuilder);
+        if (!bulkGetBuilder.isForceUDP()) {
+            return request.sendTCP(channelCreator);
+        } else {
+            return request.sendUDP(channelCreator);
+        }
+    }
+
     /**
      * Removes data from a peer. This is an RPC.
      * 
@@ -623,7 +743,8 @@ public class StorageRPC extends DispatchHandler {
                     for (Number480 key : contentKeys.keys()) {
                         Data data = peerBean().storage().get(key.getLocationKey(), key.getDomainKey(),
                                 key.getContentKey());
-                        if (data != null) {
+                        // as with a range, the reply holds its own reference, unless the data has been removed
+                        if (data != null && data.retain()) {
                             result.put(key, data);
                         }
                     }
@@ -664,7 +785,8 @@ public class StorageRPC extends DispatchHandler {
                 result = peerBean().storage()
                         .get(locationKey, domainKey, Number160.ZERO, Number160.MAX_VALUE);
             }
-            responseMessage.setDataMap(new DataMap(result));
+            // the references of the data objects are released once the reply has been sent
+            responseMessage.setDataMap(new DataMap(result)).retainedData(true);
             return responseMessage;
         }
     }
@@ -691,14 +813,18 @@ public class StorageRPC extends DispatchHandler {
         } else {
             throw new IllegalArgumentException("Either two keys or a key set are necessary");
         }
+        // the removed data objects hold the reference of the storage, which is released once they are not used
         if (!sendBackResults) {
             // make a copy, so the iterator in the codec wont conflict with
             // concurrent calls
             responseMessage.setKeys(new Keys(result.keySet()));
+            for (Data data : result.values()) {
+                data.release();
+            }
         } else {
             // make a copy, so the iterator in the codec wont conflict with
             // concurrent calls
-            responseMessage.setDataMap(new DataMap(result));
+            responseMessage.setDataMap(new DataMap(result)).retainedData(true);
         }
         return responseMessage;
     }
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number480;
+
+/**
+ * A sorted index from 480bit keys to data objects that stores the keys inline in int arrays. The entries are kept in
+ * pages of up to {@link #PAGE_SIZE} entries, each page has one int array for all its keys and one array for its
+ * values. Compared to a skip list of {@link Number480} keys, there are no objects per key, which saves about 200 bytes
+ * per entry and keeps the garbage collector from tracing millions of small objects.
+ * <p>
+ * A key is stored as 15 ints, location, domain, and content key, in the order of {@link Number480#compareTo}. The
+ * pages are sorted, a lookup is a binary search over the first keys of the pages followed by a binary search within a
+ * page. Range queries create the {@link Number480} objects only for the entries in the range.
+ *
+ * @author Thomas Bocek
+ *
+ */
+final class CompactIndex {
+    static final int KEY_INTS = Number160.INT_ARRAY_SIZE * 3;
+
+    static final int PAGE_SIZE = 256;
+
+    // pages with fewer entries are merged with a neighbour
+    private static final int MERGE_SIZE = PAGE_SIZE / 4;
+
+    private static final long LONG_MASK = 0xffffffffL;
+
+    private final List<Page> pages = new ArrayList<Page>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Lock readLock = lock.readLock();
+    private final Lock writeLock = lock.writeLock();
+
+    private int size = 0;
+
+    CompactIndex() {
+        pages.add(new Page());
+    }
+
+    /**
+     * @return The key in the packed representation used by this index
+     */
+    static int[] key(final Number160 locationKey, final Number160 domainKey, final Number160 contentKey) {
+        final int[] key = new int[KEY_INTS];
+        int offset = locationKey.toIntArray(key, 0);
+        offset = domainKey.toIntArray(key, offset);
+        contentKey.toIntArray(key, offset);
+        return key;
+    }
+
+    Data get(final int[] key) {
+        readLock.lock();
+        try {
+            final Page page = pages.get(pageIndex(key));
+            final int pos = page.search(key);
+            return pos >= 0 ? page.values[pos] : null;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @return The previous value or null
+     */
+    Data put(final int[] key, final Data value) {
+        writeLock.lock();
+        try {
+            int index = pageIndex(key);
+            Page page = pages.get(index);
+            int pos = page.search(key);
+            if (pos >= 0) {
+                final Data old = page.values[pos];
+                page.values[pos] = value;
+                return old;
+            }
+            pos = -(pos + 1);
+            if (page.size == PAGE_SIZE) {
+                final Page right = page.split();
+                pages.add(index + 1, right);
+                if (pos > page.size) {
+                    pos -= page.size;
+                    page = right;
+                }
+            }
+            page.insert(pos, key, value);
+            size++;
+            return null;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return The removed value or null
+     */
+    Data remove(final int[] key) {
+        writeLock.lock();
+        try {
+            final int index = pageIndex(key);
+            final Page page = pages.get(index);
+            final int pos = page.search(key);
+            if (pos < 0) {
+                return null;
+            }
+            final Data old = page.delete(pos);
+            size--;
+            if (page.size == 0 && pages.size() > 1) {
+                // an empty page has no first key
+                pages.remove(index);
+            } else if (page.size < MERGE_SIZE && pages.size() > 1) {
+                if (index + 1 < pages.size()) {
+                    merge(index);
+                } else {
+                    merge(index - 1);
+                }
+            }
+            return old;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Copies the entries from the key from (inclusive) to the key to (exclusive) into the result.
+     *
+     * @return The result map
+     */
+    SortedMap<Number480, Data> range(final int[] from, final int[] to, final SortedMap<Number480, Data> result) {
+        readLock.lock();
+        try {
+            int index = pageIndex(from);
+            int pos = pages.get(index).search(from);
+            if (pos < 0) {
+                pos = -(pos + 1);
+            }
+            for (; index < pages.size(); index++, pos = 0) {
+                final Page page = pages.get(index);
+                for (; pos < page.size; pos++) {
+                    if (compare(page.keys, pos * KEY_INTS, to, 0) >= 0) {
+                        return result;
+                    }
+                    result.put(page.number480(pos), page.values[pos]);
+                }
+            }
+            return result;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    int size() {
+        readLock.lock();
+        try {
+            return size;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    void clear() {
+        writeLock.lock();
+        try {
+            pages.clear();
+            pages.add(new Page());
+            size = 0;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return The page that holds the key or where the key belongs to. The first page holds all keys smaller than the
+     *         first key of the second page.
+     */
+    private int pageIndex(final int[] key) {
+        int low = 1;
+        int high = pages.size() - 1;
+        int result = 0;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (compare(pages.get(mid).keys, 0, key, 0) <= 0) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Appends the page after the given page to the given page if both fit into one page.
+     */
+    private void merge(final int index) {
+        final Page left = pages.get(index);
+        final Page right = pages.get(index + 1);
+        if (left.size + right.size > PAGE_SIZE / 2) {
+            return;
+        }
+        System.arraycopy(right.keys, 0, left.keys, left.size * KEY_INTS, right.size * KEY_INTS);
+        System.arraycopy(right.values, 0, left.values, left.size, right.size);
+        left.size += right.size;
+        pages.remove(index + 1);
+    }
+
+    /**
+     * Compares two keys as unsigned numbers, the same way as {@link Number480#compareTo(Number480)}.
+     */
+    private static int compare(final int[] a, final int offsetA, final int[] b, final int offsetB) {
+        for (int i = 0; i < KEY_INTS; i++) {
+            final int x = a[offsetA + i];
+            final int y = b[offsetB + i];
+            if (x != y) {
+                return (x & LONG_MASK) < (y & LONG_MASK) ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * A sorted run of entries, the key of the entry at position i starts at i * {@link #KEY_INTS}.
+     */
+    private static final class Page {
+        private final int[] keys = new int[PAGE_SIZE * KEY_INTS];
+        private final Data[] values = new Data[PAGE_SIZE];
+        private int size = 0;
+
+        /**
+         * @return The position of the key or -(insertion point) - 1, as {@link Arrays#binarySearch(int[], int)}
+         */
+        private int search(final int[] key) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int cmp = compare(keys, mid * KEY_INTS, key, 0);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        private void insert(final int pos, final int[] key, final Data value) {
+            System.arraycopy(keys, pos * KEY_INTS, keys, (pos + 1) * KEY_INTS, (size - pos) * KEY_INTS);
+            System.arraycopy(values, pos, values, pos + 1, size - pos);
+            System.arraycopy(key, 0, keys, pos * KEY_INTS, KEY_INTS);
+            values[pos] = value;
+            size++;
+        }
+
+        private Data delete(final int pos) {
+            final Data old = values[pos];
+            System.arraycopy(keys, (pos + 1) * KEY_INTS, keys, pos * KEY_INTS, (size - pos - 1) * KEY_INTS);
+            System.arraycopy(values, pos + 1, values, pos, size - pos - 1);
+            size--;
+            values[size] = null;
+            return old;
+        }
+
+        /**
+         * Moves the upper half of the entries to a new page.
+         *
+         * @return The new page
+         */
+        private Page split() {
+            final Page right = new Page();
+            final int half = size / 2;
+            right.size = size - half;
+            System.arraycopy(keys, half * KEY_INTS, right.keys, 0, right.size * KEY_INTS);
+            System.arraycopy(values, half, right.values, 0, right.size);
+            Arrays.fill(values, half, size, null);
+            size = half;
+            return right;
+        }
+
+        private Number480 number480(final int pos) {
+            final int offset = pos * KEY_INTS;
+            final int len = Number160.INT_ARRAY_SIZE;
+            return new Number480(new Number160(Arrays.copyOfRange(keys, offset, offset + len)), new Number160(
+                    Arrays.copyOfRange(keys, offset + len, offset + 2 * len)), new Number160(Arrays.copyOfRange(keys,
+                    offset + 2 * len, offset + 3 * len)));
+        }
+    }
+}
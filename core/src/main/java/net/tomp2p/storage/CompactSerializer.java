@@ -0,0 +1,260 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.utils.Utils;
+
+/**
+ * A serializer with a compact format for common types: byte arrays, strings, primitive wrappers, {@link Number160},
+ * and {@link HashMap} and {@link ArrayList} of those. Other objects are embedded with the Java serialization. The
+ * first byte is a schema tag, which a stream of the Java serialization never starts with. Thus, this serializer also
+ * decodes objects of peers that use the Java serialization. Peers that only know the Java serialization cannot decode
+ * objects of this serializer, so only use it if all peers that read the objects use it.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class CompactSerializer implements Serializer {
+
+    /**
+     * The first byte of an object encoded by this serializer. A stream of the Java serialization starts with 0xac.
+     */
+    public static final byte SCHEMA_TAG = 0x54;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // type tags
+    private static final int NULL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int BYTE = 3;
+    private static final int SHORT = 4;
+    private static final int CHAR = 5;
+    private static final int INT = 6;
+    private static final int LONG = 7;
+    private static final int FLOAT = 8;
+    private static final int DOUBLE = 9;
+    private static final int STRING = 10;
+    private static final int BYTES = 11;
+    private static final int NUMBER160 = 12;
+    private static final int MAP = 13;
+    private static final int LIST = 14;
+    private static final int JAVA = 15;
+
+    private static final int VAR_MASK = 0x7f;
+    private static final int VAR_MORE = 0x80;
+    private static final int VAR_SHIFT = 7;
+
+    /**
+     * The maximum nesting of maps and lists. Objects come from the network, a deeper nesting would overflow the stack.
+     */
+    public static final int MAX_DEPTH = 64;
+
+    private final JavaSerializer javaSerializer = new JavaSerializer();
+
+    @Override
+    public ByteBuf encode(final Object object) throws IOException {
+        final ByteBuf buffer = Unpooled.buffer();
+        buffer.writeByte(SCHEMA_TAG);
+        write(buffer, object);
+        return buffer;
+    }
+
+    @Override
+    public Object decode(final ByteBuf buffer) throws ClassNotFoundException, IOException {
+        if (!buffer.isReadable() || buffer.getByte(buffer.readerIndex()) != SCHEMA_TAG) {
+            return javaSerializer.decode(buffer);
+        }
+        final ByteBuf buf = buffer.duplicate();
+        buf.skipBytes(1);
+        try {
+            return read(buf, 0);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("truncated object", e);
+        }
+    }
+
+    private static void write(final ByteBuf buf, final Object object) throws IOException {
+        if (object == null) {
+            buf.writeByte(NULL);
+        } else if (object instanceof Boolean) {
+            buf.writeByte((Boolean) object ? TRUE : FALSE);
+        } else if (object instanceof Byte) {
+            buf.writeByte(BYTE).writeByte((Byte) object);
+        } else if (object instanceof Short) {
+            buf.writeByte(SHORT).writeShort((Short) object);
+        } else if (object instanceof Character) {
+            buf.writeByte(CHAR).writeChar((Character) object);
+        } else if (object instanceof Integer) {
+            buf.writeByte(INT);
+            writeVarLong(buf, zigZag((Integer) object));
+        } else if (object instanceof Long) {
+            buf.writeByte(LONG);
+            writeVarLong(buf, zigZag((Long) object));
+        } else if (object instanceof Float) {
+            buf.writeByte(FLOAT).writeFloat((Float) object);
+        } else if (object instanceof Double) {
+            buf.writeByte(DOUBLE).writeDouble((Double) object);
+        } else if (object instanceof String) {
+            final byte[] bytes = ((String) object).getBytes(UTF8);
+            buf.writeByte(STRING);
+            writeVarLong(buf, bytes.length);
+            buf.writeBytes(bytes);
+        } else if (object instanceof byte[]) {
+            final byte[] bytes = (byte[]) object;
+            buf.writeByte(BYTES);
+            writeVarLong(buf, bytes.length);
+            buf.writeBytes(bytes);
+        } else if (object instanceof Number160) {
+            buf.writeByte(NUMBER160);
+            ((Number160) object).toByteBuf(buf);
+        } else if (object.getClass() == HashMap.class) {
+            // only the exact class, the Java serialization keeps the class of a sorted or linked map
+            final Map<?, ?> map = (Map<?, ?>) object;
+            buf.writeByte(MAP);
+            writeVarLong(buf, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                write(buf, entry.getKey());
+                write(buf, entry.getValue());
+            }
+        } else if (object.getClass() == ArrayList.class) {
+            final List<?> list = (List<?>) object;
+            buf.writeByte(LIST);
+            writeVarLong(buf, list.size());
+            for (Object element : list) {
+                write(buf, element);
+            }
+        } else {
+            final byte[] bytes = Utils.encodeJavaObject(object);
+            buf.writeByte(JAVA);
+            writeVarLong(buf, bytes.length);
+            buf.writeBytes(bytes);
+        }
+    }
+
+    private static Object read(final ByteBuf buf, final int depth) throws ClassNotFoundException, IOException {
+        final int type = buf.readUnsignedByte();
+        if ((type == MAP || type == LIST) && depth >= MAX_DEPTH) {
+            throw new IOException("nesting deeper than " + MAX_DEPTH);
+        }
+        switch (type) {
+        case NULL:
+            return null;
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case BYTE:
+            return buf.readByte();
+        case SHORT:
+            return buf.readShort();
+        case CHAR:
+            return buf.readChar();
+        case INT:
+            return (int) unZigZag(readVarLong(buf));
+        case LONG:
+            return unZigZag(readVarLong(buf));
+        case FLOAT:
+            return buf.readFloat();
+        case DOUBLE:
+            return buf.readDouble();
+        case STRING:
+            return new String(readBytes(buf), UTF8);
+        case BYTES:
+            return readBytes(buf);
+        case NUMBER160:
+            return new Number160(buf);
+        case MAP:
+            final int mapSize = readSize(buf);
+            final Map<Object, Object> map = new HashMap<Object, Object>(mapSize * 2);
+            for (int i = 0; i < mapSize; i++) {
+                final Object key = read(buf, depth + 1);
+                map.put(key, read(buf, depth + 1));
+            }
+            return map;
+        case LIST:
+            final int listSize = readSize(buf);
+            final List<Object> list = new ArrayList<Object>(listSize);
+            for (int i = 0; i < listSize; i++) {
+                list.add(read(buf, depth + 1));
+            }
+            return list;
+        case JAVA:
+            final int length = readSize(buf);
+            final Object object = Utils.decodeJavaObject(buf.slice(buf.readerIndex(), length));
+            buf.skipBytes(length);
+            return object;
+        default:
+            throw new IOException("unknown type " + type);
+        }
+    }
+
+    private static byte[] readBytes(final ByteBuf buf) throws IOException {
+        final byte[] bytes = new byte[readSize(buf)];
+        buf.readBytes(bytes);
+        return bytes;
+    }
+
+    private static int readSize(final ByteBuf buf) throws IOException {
+        final long size = readVarLong(buf);
+        // every element needs at least one byte, a larger size comes from a corrupt or malicious buffer
+        if (size < 0 || size > buf.readableBytes()) {
+            throw new IOException("invalid size " + size);
+        }
+        return (int) size;
+    }
+
+    private static void writeVarLong(final ByteBuf buf, final long value) {
+        long remaining = value;
+        while ((remaining & ~VAR_MASK) != 0) {
+            buf.writeByte((int) (remaining & VAR_MASK) | VAR_MORE);
+            remaining >>>= VAR_SHIFT;
+        }
+        buf.writeByte((int) remaining);
+    }
+
+    private static long readVarLong(final ByteBuf buf) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += VAR_SHIFT) {
+            final int b = buf.readUnsignedByte();
+            value |= (long) (b & VAR_MASK) << shift;
+            if ((b & VAR_MORE) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("variable length number too long");
+    }
+
+    private static long zigZag(final long value) {
+        return (value << 1) ^ (value >> (Long.SIZE - 1));
+    }
+
+    private static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -16,10 +16,13 @@
 package net.tomp2p.storage;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.util.IllegalReferenceCountException;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.security.MessageDigest;
 import java.security.PublicKey;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -39,6 +42,17 @@ public class Data implements Serializable {
 
     private static final int MAX_BYTE_SIZE = 256;
 
+    /**
+     * Below this size, a payload is copied instead of added as a component to a composite buffer. Copying is cheaper
+     * and a small payload does not keep a whole received buffer alive.
+     */
+    public static final int ZERO_COPY_THRESHOLD = 1024;
+
+    // peers that do not know other serializers can read objects of the Java serialization
+    private static final Serializer DEFAULT_SERIALIZER = new JavaSerializer();
+
+    private static final Serializer DEFAULT_DESERIALIZER = new CompactSerializer();
+
     /**
      * Tiny means 8 bit, small means 16bit, medium is 32bit.
      * 
@@ -66,8 +80,12 @@ public class Data implements Serializable {
 
     private final int startReaderIndex;
 
+    // true if the buffer consists of retained slices of received network buffers, which we need to release
+    private final boolean retainedSlices;
+
     // can be added later
     private Number160 hash;
+    private Number160 fastHash;
     private int ttlSeconds = -1;
     private int version = -1;
 
@@ -76,6 +94,9 @@ public class Data implements Serializable {
     private Number160 peerId;
     private AtomicReference<PublicKey> publicKeyReference;
 
+    // the hash of a payload that arrives in several packets, updated with every packet
+    private transient MessageDigest decodeDigest;
+
     /**
      * Create a data object that does not have the complete data yet.
      * 
@@ -106,6 +127,7 @@ public class Data implements Serializable {
         }
         this.buffer = Unpooled.buffer();
         this.startReaderIndex = 0;
+        this.retainedSlices = false;
         this.validFromMillis = Timings.currentTimeMillis();
     }
 
@@ -114,7 +136,9 @@ public class Data implements Serializable {
     }
 
     /**
-     * Creates an empty data object. The data can be filled at a later stage using {@link #append(ByteBuf)}.
+     * Creates an empty data object. The data can be filled at a later stage using {@link #decodeBuffer(ByteBuf)},
+     * which does not copy a payload of {@link #ZERO_COPY_THRESHOLD} or more bytes but keeps retained slices of the
+     * received buffers.
      * 
      * @param header
      *            The 8 bit header
@@ -128,7 +152,14 @@ public class Data implements Serializable {
         this.isProtectedEntry = isProtectedEntry(header);
         this.type = type(header);
         this.length = length;
-        this.buffer = Unpooled.buffer();
+        final int payloadLength = length - additionalHeader();
+        this.retainedSlices = payloadLength >= ZERO_COPY_THRESHOLD;
+        if (retainedSlices) {
+            // the payload may arrive in several packets, thus we may have several slices
+            this.buffer = Unpooled.compositeBuffer(Integer.MAX_VALUE);
+        } else {
+            this.buffer = Unpooled.buffer(Math.max(0, payloadLength));
+        }
         this.startReaderIndex = 0;
         this.validFromMillis = Timings.currentTimeMillis();
     }
@@ -155,8 +186,34 @@ public class Data implements Serializable {
      */
     public Data(final Object object, final int version, final int ttlSeconds, final boolean hasHash,
             final boolean isProtectedEntry) throws IOException {
-        this(Unpooled.wrappedBuffer(Utils.encodeJavaObject(object)), version, ttlSeconds, hasHash,
-                isProtectedEntry);
+        this(object, DEFAULT_SERIALIZER, version, ttlSeconds, hasHash, isProtectedEntry);
+    }
+
+    public Data(final Object object, final Serializer serializer) throws IOException {
+        this(object, serializer, -1, -1, false, false);
+    }
+
+    /**
+     * Creates a data object from an object that is converted with the given serializer.
+     * 
+     * @param object
+     *            The object that will be converted to a byte buffer
+     * @param serializer
+     *            The serializer that converts the object, e.g., the one of the peer
+     * @param version
+     *            The version of a data object, optional
+     * @param ttlSeconds
+     *            The ttl of a data object, optional
+     * @param hasHash
+     *            Indication if a hash should also be transmitted
+     * @param isProtectedEntry
+     *            True if this entry is protected
+     * @throws IOException
+     *             If the object conversion did not succeed
+     */
+    public Data(final Object object, final Serializer serializer, final int version, final int ttlSeconds,
+            final boolean hasHash, final boolean isProtectedEntry) throws IOException {
+        this(serializer.encode(object), version, ttlSeconds, hasHash, isProtectedEntry);
     }
 
     public Data(final byte[] buffer) {
@@ -196,6 +253,7 @@ public class Data implements Serializable {
         this.isProtectedEntry = isProtectedEntry;
         this.buffer = buffer;
         this.startReaderIndex = buffer.readerIndex();
+        this.retainedSlices = false;
         this.length = buffer.readableBytes() + (hasVersion ? Utils.INTEGER_BYTE_SIZE : 0)
                 + (hasTTL ? Utils.INTEGER_BYTE_SIZE : 0) + (hasHash ? Number160.BYTE_ARRAY_SIZE : 0);
         if (length < MAX_BYTE_SIZE) {
@@ -263,9 +321,7 @@ public class Data implements Serializable {
             if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE) {
                 return false;
             }
-            byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-            buf.readBytes(me);
-            hash = new Number160(me);
+            hash = new Number160(buf);
         }
         return true;
     }
@@ -306,7 +362,18 @@ public class Data implements Serializable {
         if (hasVersion) {
             buf.writeInt(version);
         }
-        buf.writeBytes(buffer);
+        final int readable = buffer.readableBytes();
+        if (buf instanceof CompositeByteBuf && readable >= ZERO_COPY_THRESHOLD) {
+            final CompositeByteBuf compositeByteBuf = (CompositeByteBuf) buf;
+            // cut the unused capacity, so that the payload directly follows the header. The retained slice is released
+            // once the composite buffer is written out.
+            compositeByteBuf.capacity(compositeByteBuf.writerIndex());
+            compositeByteBuf.addComponent(buffer.slice().retain());
+            compositeByteBuf.writerIndex(compositeByteBuf.writerIndex() + readable);
+            buffer.skipBytes(readable);
+        } else {
+            buf.writeBytes(buffer);
+        }
     }
 
     public void encodeDone(final ByteBuf buf) {
@@ -314,7 +381,7 @@ public class Data implements Serializable {
             if (hash == null) {
                 hash = Utils.makeSHAHash(buffer);
             }
-            buf.writeBytes(hash.toByteArray());
+            hash.toByteBuf(buf);
         }
     }
 
@@ -322,10 +389,40 @@ public class Data implements Serializable {
         return buffer;
     }
 
+    /**
+     * Converts the payload to an object. Objects of the Java serialization and of the {@link CompactSerializer} are
+     * recognized.
+     * 
+     * @return The object
+     * @throws ClassNotFoundException
+     *             If the class of the object is not known
+     * @throws IOException
+     *             If the object conversion did not succeed
+     */
     public Object object() throws ClassNotFoundException, IOException {
-        byte[] tmp = new byte[bufferLength()];
-        buffer.getBytes(startReaderIndex, tmp);
-        return Utils.decodeJavaObject(tmp, 0, this.length);
+        return object(DEFAULT_DESERIALIZER);
+    }
+
+    /**
+     * Converts the payload to an object with the given serializer.
+     * 
+     * @param serializer
+     *            The serializer that converts the payload
+     * @return The object
+     * @throws ClassNotFoundException
+     *             If the class of the object is not known
+     * @throws IOException
+     *             If the object conversion did not succeed
+     */
+    public Object object(final Serializer serializer) throws ClassNotFoundException, IOException {
+        return serializer.decode(payload());
+    }
+
+    /**
+     * @return The payload, independent of the reader index, which is moved by {@link #encode(ByteBuf)}
+     */
+    private ByteBuf payload() {
+        return buffer.slice(startReaderIndex, bufferLength());
     }
 
     public long validFromMillis() {
@@ -334,11 +431,24 @@ public class Data implements Serializable {
 
     public Number160 hash() {
         if (this.hash == null) {
-            this.hash = Utils.makeSHAHash(buffer);
+            this.hash = Utils.makeSHAHash(payload());
         }
         return hash;
     }
 
+    /**
+     * A non-cryptographic hash of the payload, which is much faster to calculate than {@link #hash()}. Use it to find
+     * duplicates locally, but never send it to other peers, as it is not collision resistant.
+     * 
+     * @return The 128bit hash of the payload
+     */
+    public Number160 fastHash() {
+        if (this.fastHash == null) {
+            this.fastHash = Utils.makeFastHash(payload());
+        }
+        return fastHash;
+    }
+
     public int length() {
         return length;
     }
@@ -437,7 +547,8 @@ public class Data implements Serializable {
     }
 
     /**
-     * Add data to the byte buffer.
+     * Add data to the byte buffer. A large payload is not copied, a retained slice of the buffer is added instead.
+     * Thus, the received buffer must not be modified until this data object is released with {@link #release()}.
      * 
      * @param buf
      *            The byte buffer to append
@@ -451,9 +562,83 @@ public class Data implements Serializable {
         if (remaining == 0) {
             return true;
         }
-        buffer.writeBytes(buf, Math.min(maxRead, remaining));
+        final int toRead = Math.min(maxRead, remaining);
+        if (toRead > 0) {
+            final ByteBuf slice = buf.slice(buf.readerIndex(), toRead);
+            if (!hasHash) {
+                decodeHash(slice, toRead == remaining);
+            }
+            if (retainedSlices) {
+                final CompositeByteBuf compositeByteBuf = (CompositeByteBuf) buffer;
+                compositeByteBuf.addComponent(slice.retain());
+                compositeByteBuf.writerIndex(compositeByteBuf.writerIndex() + toRead);
+            } else {
+                buffer.writeBytes(slice);
+            }
+            buf.skipBytes(toRead);
+        }
         return buffer.writerIndex() == length - additionalHeader();
     }
+
+    /**
+     * Calculates the hash while the payload arrives, so that it is ready once the payload is complete and the bytes
+     * are hashed while they are still in the cache. A payload that arrives in one piece uses the SHA-1 instance of the
+     * thread, otherwise this object needs its own instance, since the thread decodes other messages in between.
+     * 
+     * @param slice
+     *            The part of the payload that arrived
+     * @param last
+     *            True if this is the last part of the payload
+     */
+    private void decodeHash(final ByteBuf slice, final boolean last) {
+        if (last && decodeDigest == null) {
+            hash = Utils.makeSHAHash(slice);
+            return;
+        }
+        if (decodeDigest == null) {
+            decodeDigest = Utils.createSHA1();
+        }
+        Utils.updateDigest(decodeDigest, slice);
+        if (last) {
+            hash = new Number160(decodeDigest.digest());
+            decodeDigest = null;
+        }
+    }
+
+    /**
+     * Adds a reference to the slices of the received buffers this data object holds. The storage holds one reference
+     * and releases it on overwrite, remove, or expiry, a reader of the storage gets its own reference. For data
+     * objects without such slices, this method does nothing.
+     * 
+     * @return False if the slices have already been released, then this data object must not be used anymore
+     */
+    public boolean retain() {
+        if (!retainedSlices) {
+            return true;
+        }
+        try {
+            buffer.retain();
+            return true;
+        } catch (IllegalReferenceCountException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Releases a reference to the slices of the received buffers this data object holds. Only data objects with a
+     * large payload that have been decoded from the network hold such slices, for all other data objects, this method
+     * does nothing, since the buffer belongs to the user. Call this method once for the reference of the decoder and
+     * for every successful {@link #retain()}, when the data object is not used anymore. An unreleased slice is freed
+     * by the garbage collector.
+     * 
+     * @return True if the last reference has been released
+     */
+    public boolean release() {
+        if (!retainedSlices || buffer.refCnt() == 0) {
+            return false;
+        }
+        return buffer.release();
+    }
     
     /**
      * @return A shallow copy where the data is shared but the reader and writer index is not shared
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.rpc.DigestInfo;
+
+/**
+ * The digests of the location and domain keys, which are updated on every put and remove. For each location and
+ * domain, the number of entries, the XOR of the keys, and the XOR of the content hashes are stored, which is the same
+ * digest as {@link DigestInfo} calculates from the entries. Since an XOR can be undone, a change costs O(1).
+ * <p>
+ * Additionally, the full digest with the hashes of all entries can be cached until the next change of the location
+ * and domain. Each change increases a version, a digest is only cached if it was created from the current version.
+ * <p>
+ * The backend applies a change to its map and to the digests one after the other, so the updates of concurrent
+ * changes of the same key can arrive in a different order, e.g., the remove of a key before its put. The sum of the
+ * updates does not depend on the order, but the size can be zero or negative in between. Thus, a domain is only
+ * discarded if it is in the same state as a new one, otherwise a later update would start from zero again.
+ *
+ * @author Thomas Bocek
+ *
+ */
+final class DomainDigests {
+
+    private final ConcurrentMap<Number320, Domain> domains = new ConcurrentHashMap<Number320, Domain>();
+
+    /**
+     * Updates the digest of the location and domain of the key. A put has newData set, a remove has oldData set, and
+     * an overwrite has both set.
+     *
+     * @param key
+     *            The key of the entry
+     * @param oldData
+     *            The data that was stored before or null
+     * @param newData
+     *            The data that is stored now or null
+     */
+    void update(final Number480 key, final Data oldData, final Data newData) {
+        if (oldData == null && newData == null) {
+            return;
+        }
+        final Number320 domainKey = new Number320(key.getLocationKey(), key.getDomainKey());
+        final Number160 keyHash = key.getLocationKey().xor(key.getDomainKey()).xor(key.getContentKey());
+        while (true) {
+            Domain domain = domains.get(domainKey);
+            if (domain == null) {
+                final Domain created = new Domain();
+                domain = domains.putIfAbsent(domainKey, created);
+                if (domain == null) {
+                    domain = created;
+                }
+            }
+            synchronized (domain) {
+                if (domain.removed) {
+                    // an empty domain was removed in the meantime, try again with a new one
+                    continue;
+                }
+                domain.update(keyHash, oldData, newData);
+                if (domain.isEmpty()) {
+                    domain.removed = true;
+                    domains.remove(domainKey, domain);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param domainKey
+     *            The location and domain key
+     * @return The number of entries, the key digest, and the content digest without the hashes of the entries
+     */
+    DigestInfo summary(final Number320 domainKey) {
+        final Domain domain = domains.get(domainKey);
+        if (domain == null) {
+            return new DigestInfo(Number160.ZERO, Number160.ZERO, 0);
+        }
+        synchronized (domain) {
+            if (domain.removed) {
+                return new DigestInfo(Number160.ZERO, Number160.ZERO, 0);
+            }
+            return new DigestInfo(domain.keyDigest, domain.contentDigest, domain.size);
+        }
+    }
+
+    /**
+     * @param domainKey
+     *            The location and domain key
+     * @return The cached full digest or null if there were changes since it was cached
+     */
+    DigestInfo cached(final Number320 domainKey) {
+        final Domain domain = domains.get(domainKey);
+        if (domain == null) {
+            return null;
+        }
+        synchronized (domain) {
+            return domain.cached;
+        }
+    }
+
+    /**
+     * @param domainKey
+     *            The location and domain key
+     * @return The current version, which has to be read before the entries are read for a full digest
+     */
+    long version(final Number320 domainKey) {
+        final Domain domain = domains.get(domainKey);
+        if (domain == null) {
+            return -1;
+        }
+        synchronized (domain) {
+            return domain.version;
+        }
+    }
+
+    /**
+     * Caches a full digest if there was no change since the version has been read.
+     *
+     * @param domainKey
+     *            The location and domain key
+     * @param version
+     *            The version that was read before the entries
+     * @param digestInfo
+     *            The full digest
+     */
+    void cache(final Number320 domainKey, final long version, final DigestInfo digestInfo) {
+        final Domain domain = domains.get(domainKey);
+        if (domain == null) {
+            return;
+        }
+        synchronized (domain) {
+            if (!domain.removed && domain.version == version) {
+                domain.cached = digestInfo;
+            }
+        }
+    }
+
+    /**
+     * Removes all digests.
+     */
+    void clear() {
+        for (Map.Entry<Number320, Domain> entry : domains.entrySet()) {
+            final Domain domain = entry.getValue();
+            synchronized (domain) {
+                domain.removed = true;
+                domains.remove(entry.getKey(), domain);
+            }
+        }
+    }
+
+    /**
+     * The digest of one location and domain, guarded by its own monitor.
+     */
+    private static final class Domain {
+        private Number160 keyDigest = Number160.ZERO;
+        private Number160 contentDigest = Number160.ZERO;
+        private int size = 0;
+        private long version = 0;
+        private DigestInfo cached = null;
+        private boolean removed = false;
+
+        private boolean isEmpty() {
+            return size == 0 && keyDigest.isZero() && contentDigest.isZero();
+        }
+
+        private void update(final Number160 keyHash, final Data oldData, final Data newData) {
+            if (oldData != null) {
+                keyDigest = keyDigest.xor(keyHash);
+                contentDigest = contentDigest.xor(oldData.hash());
+                size--;
+            }
+            if (newData != null) {
+                keyDigest = keyDigest.xor(keyHash);
+                contentDigest = contentDigest.xor(newData.hash());
+                size++;
+            }
+            version++;
+            cached = null;
+        }
+    }
+}
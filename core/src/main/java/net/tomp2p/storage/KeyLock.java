@@ -16,38 +16,64 @@
 
 package net.tomp2p.storage;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-//as seen in http://stackoverflow.com/questions/5639870/simple-java-name-based-locks
+/**
+ * A lock per key. The locks are reference counted and removed once nobody holds or waits for them. There is no global
+ * lock, the locks are kept in a {@link ConcurrentHashMap}, thus, threads that lock different keys do not contend.
+ * 
+ * @author Thomas Bocek
+ * 
+ * @param <K>
+ *            The type of the key
+ */
 public class KeyLock<K> {
-    private class RefCounterLock {
-        final public ReentrantLock sem = new ReentrantLock();
+    private static class RefCounterLock {
+        private final ReentrantLock sem = new ReentrantLock();
 
-        private volatile int counter = 0;
-    }
+        // number of threads that hold or wait for this lock, 0 means this lock is about to be removed
+        private final AtomicInteger counter = new AtomicInteger(1);
 
-    private final ReentrantLock lockInternal = new ReentrantLock();
+        /**
+         * @return True if the reference could be increased, false if this lock is about to be removed
+         */
+        private boolean retain() {
+            while (true) {
+                final int current = counter.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (counter.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
 
-    private final HashMap<K, RefCounterLock> cache = new HashMap<K, RefCounterLock>();
+    private final ConcurrentMap<K, RefCounterLock> cache = new ConcurrentHashMap<K, RefCounterLock>();
 
     public Lock lock(K key) {
-        RefCounterLock cur;
-        lockInternal.lock();
-        try {
-            if (!cache.containsKey(key)) {
-                cur = new RefCounterLock();
-                cache.put(key, cur);
-            } else {
-                cur = cache.get(key);
+        while (true) {
+            RefCounterLock cur = cache.get(key);
+            if (cur == null) {
+                final RefCounterLock newLock = new RefCounterLock();
+                cur = cache.putIfAbsent(key, newLock);
+                if (cur == null) {
+                    newLock.sem.lock();
+                    return newLock.sem;
+                }
+            }
+            if (cur.retain()) {
+                cur.sem.lock();
+                return cur.sem;
             }
-            cur.counter++;
-        } finally {
-            lockInternal.unlock();
+            // the last reference has just been released, help removing it and try again
+            cache.remove(key, cur);
         }
-        cur.sem.lock();
-        return cur.sem;
     }
 
     /**
@@ -57,31 +83,20 @@ public class KeyLock<K> {
      *            previously
      */
     public void unlock(K key, Lock lock) {
-        RefCounterLock cur = null;
-        lockInternal.lock();
-        try {
-            if (cache.containsKey(key)) {
-                cur = cache.get(key);
-                if (lock != cur.sem) {
-                    throw new IllegalArgumentException("lock does not matches the stored lock");
-                }
-                cur.counter--;
-                cur.sem.unlock();
-                if (cur.counter == 0) { // last reference
-                    cache.remove(key);
-                }
-            }
-        } finally {
-            lockInternal.unlock();
+        final RefCounterLock cur = cache.get(key);
+        if (cur == null) {
+            return;
+        }
+        if (lock != cur.sem) {
+            throw new IllegalArgumentException("lock does not matches the stored lock");
+        }
+        cur.sem.unlock();
+        if (cur.counter.decrementAndGet() == 0) { // last reference
+            cache.remove(key, cur);
         }
     }
 
     public int cacheSize() {
-        lockInternal.lock();
-        try {
-            return cache.size();
-        } finally {
-            lockInternal.unlock();
-        }
+        return cache.size();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+/**
+ * Converts objects to bytes and back, e.g., for {@link Data} or for objects that are sent directly. A peer uses the
+ * serializer that was set in the PeerMaker, the default is {@link JavaSerializer}.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public interface Serializer {
+    /**
+     * Converts an object to bytes.
+     *
+     * @param object
+     *            The object to convert
+     * @return The buffer with the bytes of the object
+     * @throws IOException
+     *             If the object cannot be converted
+     */
+    ByteBuf encode(Object object) throws IOException;
+
+    /**
+     * Converts bytes to an object. Other peers may use a different serializer, thus, an implementation must be able to
+     * decode objects that were converted with the Java serialization.
+     *
+     * @param buffer
+     *            The buffer with the bytes of the object. The buffer positions are not modified.
+     * @return The object
+     * @throws ClassNotFoundException
+     *             If the class of the object is not known
+     * @throws IOException
+     *             If the bytes cannot be converted
+     */
+    Object decode(ByteBuf buffer) throws ClassNotFoundException, IOException;
+}
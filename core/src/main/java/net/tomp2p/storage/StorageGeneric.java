@@ -69,6 +69,9 @@ public abstract class StorageGeneric implements Storage {
 
     final private KeyLock<Number480> dataLock480 = new KeyLock<Number480>();
 
+    // the digests of the backends that report their changes
+    final private DomainDigests domainDigests = new DomainDigests();
+
     public void setProtection(ProtectionEnable protectionDomainEnable, ProtectionMode protectionDomainMode,
             ProtectionEnable protectionEntryEnable, ProtectionMode protectionEntryMode) {
         setProtectionDomainEnable(protectionDomainEnable);
@@ -186,8 +189,9 @@ public abstract class StorageGeneric implements Storage {
             if (putIfAbsent && contains) {
                 return PutStatus.FAILED_NOT_ABSENT;
             }
+            Data oldData = null;
             if (contains) {
-                Data oldData = get(locationKey, domainKey, contentKey);
+                oldData = get(locationKey, domainKey, contentKey);
                 boolean protectEntry = newData.protectedEntry();
                 if (!canUpdateEntry(contentKey, oldData, newData, protectEntry)) {
                     return PutStatus.FAILED_SECURITY;
@@ -198,6 +202,10 @@ public abstract class StorageGeneric implements Storage {
                 long expiration = newData.expirationMillis();
                 // handle timeout
                 addTimeout(locationKey, domainKey, contentKey, expiration);
+                // release the reference of the storage, readers that still use the replaced data hold their own
+                if (oldData != null && oldData != newData) {
+                    oldData.release();
+                }
             }
         } finally {
             dataLock480.unlock(lockKey, lock);
@@ -205,6 +213,20 @@ public abstract class StorageGeneric implements Storage {
         return retVal ? PutStatus.OK : PutStatus.FAILED;
     }
 
+    /**
+     * Removes the data if the public key is allowed to. The reference of the storage passes to the caller, who
+     * releases it with {@link Data#release()} once the data is not used anymore.
+     * 
+     * @param locationKey
+     *            The location key
+     * @param domainKey
+     *            The domain key
+     * @param contentKey
+     *            The content key
+     * @param publicKey
+     *            The public key of the requester
+     * @return The removed data or null if nothing was removed
+     */
     public Data remove(Number160 locationKey, Number160 domainKey, Number160 contentKey, PublicKey publicKey) {
         Number480 lockKey = new Number480(locationKey, domainKey, contentKey);
         Lock lock = dataLock480.lock(lockKey);
@@ -252,30 +274,123 @@ public abstract class StorageGeneric implements Storage {
         }
     }
 
+    /**
+     * Returns the data in a range of content keys. Every returned data object is retained, thus, it can be used even
+     * if it is overwritten or removed in the meantime. The caller releases it with {@link Data#release()} once it is
+     * not used anymore.
+     * 
+     * @param locationKey
+     *            The location key
+     * @param domainKey
+     *            The domain key
+     * @param fromContentKey
+     *            The first content key of the range
+     * @param toContentKey
+     *            The last content key of the range
+     * @return A copy with the retained data objects in the range
+     */
     public SortedMap<Number480, Data> get(Number160 locationKey, Number160 domainKey, Number160 fromContentKey,
             Number160 toContentKey) {
         Number320 lockKey = new Number320(locationKey, domainKey);
         Lock lock = dataLock320.lock(lockKey);
         try {
-            return subMap(locationKey, domainKey, fromContentKey, toContentKey);
+            SortedMap<Number480, Data> result = new TreeMap<Number480, Data>();
+            for (Map.Entry<Number480, Data> entry : subMap(locationKey, domainKey, fromContentKey, toContentKey)
+                    .entrySet()) {
+                // a data object that was released in the meantime has been overwritten or removed
+                if (entry.getValue().retain()) {
+                    result.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return result;
         } finally {
             dataLock320.unlock(lockKey, lock);
         }
     }
 
+    /**
+     * Removes all entries that have expired. The backend may return the expired entries in batches, see
+     * {@link StorageMemory#subMapTimeout(long)}, which are removed one after the other until no entry is due anymore.
+     */
     public void checkTimeout() {
         long time = Timings.currentTimeMillis();
         Collection<Number480> toRemove = subMapTimeout(time);
-        if (toRemove.size() > 0) {
+        while (toRemove.size() > 0) {
             for (Number480 key : toRemove) {
-                remove(key.getLocationKey(), key.getDomainKey(), key.getContentKey());
+                Data data = remove(key.getLocationKey(), key.getDomainKey(), key.getContentKey());
+                // expired data is not returned to anyone, release the reference of the storage
+                if (data != null) {
+                    data.release();
+                }
             }
+            toRemove = subMapTimeout(time);
         }
     }
 
+    /**
+     * A backend that calls {@link #digestUpdate(Number480, Data, Data)} on every change and {@link #digestClear()} on
+     * close overrides this method and returns true. Then, the digests are maintained incrementally and the full
+     * digest of a location and domain is cached until the next change. Otherwise, the digests are calculated from
+     * the stored entries on every request.
+     * 
+     * @return True if the digests are maintained incrementally
+     */
+    protected boolean isDigestMaintained() {
+        return false;
+    }
+
+    /**
+     * Updates the digests after a change of the backend. A put has newData set, a remove has oldData set, and an
+     * overwrite has both set.
+     * 
+     * @param key
+     *            The key of the entry
+     * @param oldData
+     *            The data that was stored before or null
+     * @param newData
+     *            The data that is stored now or null
+     */
+    protected void digestUpdate(Number480 key, Data oldData, Data newData) {
+        domainDigests.update(key, oldData, newData);
+    }
+
+    /**
+     * Removes all digests after the backend has been cleared.
+     */
+    protected void digestClear() {
+        domainDigests.clear();
+    }
+
+    /**
+     * Returns the number of entries, the key digest, and the content digest of a location and domain, without the
+     * hashes of the entries. This is what the routing needs, and it costs O(1) if the digests are maintained.
+     * 
+     * @param locationKey
+     *            The location key
+     * @param domainKey
+     *            The domain key
+     * @return The digest without the hashes of the entries
+     */
+    public DigestInfo digestSummary(Number160 locationKey, Number160 domainKey) {
+        if (!isDigestMaintained()) {
+            final DigestInfo digestInfo = digest(locationKey, domainKey);
+            return new DigestInfo(digestInfo.getKeyDigest(), digestInfo.getContentDigest(), digestInfo.getSize());
+        }
+        return domainDigests.summary(new Number320(locationKey, domainKey));
+    }
+
     private DigestInfo digest(Number160 locationKey, Number160 domainKey) {
-        DigestInfo digestInfo = new DigestInfo();
         Number320 lockKey = new Number320(locationKey, domainKey);
+        long version = -1;
+        if (isDigestMaintained()) {
+            DigestInfo cached = domainDigests.cached(lockKey);
+            if (cached != null) {
+                return cached;
+            }
+            // read the version before the entries, a change in between prevents caching
+            version = domainDigests.version(lockKey);
+        }
+        DigestInfo digestInfo = new DigestInfo();
         Lock lock = dataLock320.lock(lockKey);
         try {
             SortedMap<Number480, Data> tmp = get(locationKey, domainKey, Number160.ZERO, Number160.MAX_VALUE);
@@ -285,12 +400,27 @@ public abstract class StorageGeneric implements Storage {
         } finally {
             dataLock320.unlock(lockKey, lock);
         }
+        if (isDigestMaintained()) {
+            domainDigests.cache(lockKey, version, digestInfo);
+        }
         return digestInfo;
     }
 
     @Override
     public DigestInfo digest(Number160 locationKey, Number160 domainKey,
             SimpleBloomFilter<Number160> keyBloomFilter, SimpleBloomFilter<Number160> contentBloomFilter) {
+        if (isDigestMaintained()) {
+            // filter the cached digest, the hashes are already there
+            DigestInfo digestInfo = new DigestInfo();
+            for (Map.Entry<Number480, Number160> entry : digest(locationKey, domainKey).getDigests().entrySet()) {
+                if (keyBloomFilter == null || keyBloomFilter.contains(entry.getKey().getContentKey())) {
+                    if (contentBloomFilter == null || contentBloomFilter.contains(entry.getValue())) {
+                        digestInfo.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            return digestInfo;
+        }
         DigestInfo digestInfo = new DigestInfo();
         Number320 lockKey = new Number320(locationKey, domainKey);
         SortedMap<Number480, Data> tmp = get(locationKey, domainKey, Number160.ZERO, Number160.MAX_VALUE);
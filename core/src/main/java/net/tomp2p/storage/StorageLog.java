@@ -0,0 +1,976 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.utils.Timings;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent storage that appends all modifications to a log of memory-mapped segment files. The keys and the
+ * position of their latest record are kept in memory, the payloads are never copied to the heap: a stored
+ * {@link Data} object is a view of the mapped segment. A put returns once the record is in the mapping, which means
+ * it survives a crash of the JVM. The mappings are forced to disk by a background thread every few milliseconds, all
+ * puts since the last force are thus written with one fsync (group commit). With syncWrites set, a put waits for the
+ * force that covers its record.
+ * <p>
+ * Segments whose records have mostly been overwritten or removed are compacted in the background by copying the live
+ * records to the current segment. At startup, the segments are replayed in order, which only reads the record
+ * headers and checksums. The first broken record, e.g., from a write that was torn by a crash, ends its segment.
+ * <p>
+ * Timeouts and responsibilities are kept in memory. The timeouts are restored from the records, the responsibilities
+ * are rebuilt by the replication once the peer is online again.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StorageLog extends StorageGeneric {
+    private static final Logger LOG = LoggerFactory.getLogger(StorageLog.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_SYNC_MILLIS = 10;
+    public static final int DEFAULT_COMPACTION_MILLIS = 10 * 1000;
+
+    // a segment is compacted once less than this fraction of its records are still live
+    private static final double COMPACTION_RATIO = 0.5;
+
+    private static final int MAGIC = 0x54503250;
+    private static final int SEGMENT_HEADER_SIZE = 4;
+    // record length and checksum
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+    private static final byte TYPE_PROTECT = 3;
+
+    private static final int FLAG_HASH = 0x01;
+    private static final int FLAG_PROTECTED_ENTRY = 0x02;
+    private static final int FLAG_PEER_ID = 0x04;
+    private static final int FLAG_PUBLIC_KEY = 0x08;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+
+    // Core
+    private final NavigableMap<Number480, Data> dataMap = new ConcurrentSkipListMap<Number480, Data>();
+
+    // Maintenance, protection, and replication are kept in memory
+    private final StorageMemory storageMemory = new StorageMemory();
+
+    private final File dir;
+    private final int segmentSize;
+    private final boolean syncWrites;
+
+    // guarded by appendLock
+    private final NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+    private final Map<Number480, Ref> index = new HashMap<Number480, Ref>();
+    private final Map<Number320, Ref> protectionIndex = new HashMap<Number320, Ref>();
+    private final Set<Segment> dirty = new LinkedHashSet<Segment>();
+    private Segment head;
+    private int nextSegmentId = 0;
+    private long appendedSequence = 0;
+    private final Object appendLock = new Object();
+
+    // guarded by syncMonitor
+    private long syncedSequence = 0;
+    private final Object syncMonitor = new Object();
+    // only one force at a time
+    private final Object syncLock = new Object();
+    private final AtomicBoolean syncRequested = new AtomicBoolean(false);
+
+    private final ScheduledExecutorService maintenance;
+    private volatile boolean closed = false;
+
+    // statistics
+    private final AtomicLong compactedSegments = new AtomicLong(0);
+
+    /**
+     * Opens or creates a log with the default settings. Puts do not wait for the fsync.
+     *
+     * @param dirName
+     *            The directory of the segment files
+     * @throws IOException
+     *             If the segments cannot be read or created
+     */
+    public StorageLog(final String dirName) throws IOException {
+        this(new File(dirName), DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_MILLIS, DEFAULT_COMPACTION_MILLIS, false);
+    }
+
+    /**
+     * Opens or creates a log. All existing segments in the directory are replayed.
+     *
+     * @param dir
+     *            The directory of the segment files
+     * @param segmentSize
+     *            The size of a segment file. Records that are larger get a segment of their own
+     * @param syncMillis
+     *            The interval in which the segments are forced to disk
+     * @param compactionMillis
+     *            The interval in which the segments are checked for compaction
+     * @param syncWrites
+     *            True if a put or remove should wait until its record has been forced to disk
+     * @throws IOException
+     *             If the segments cannot be read or created
+     */
+    public StorageLog(final File dir, final int segmentSize, final int syncMillis, final int compactionMillis,
+            final boolean syncWrites) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory " + dir);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.syncWrites = syncWrites;
+        recover();
+        // one thread for the group commit, one for the compaction, so that a force does not wait for a compaction
+        this.maintenance = new ScheduledThreadPoolExecutor(2, new DefaultThreadFactory("storage-log", true));
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        }, compactionMillis, compactionMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Core
+    @Override
+    public boolean put(final Number160 locationKey, final Number160 domainKey, final Number160 contentKey,
+            final Data value) {
+        final Number480 key = new Number480(locationKey, domainKey, contentKey);
+        final ByteBuf header = Unpooled.buffer();
+        header.writerIndex(RECORD_HEADER_SIZE);
+        header.writeByte(TYPE_PUT);
+        writeKey(header, key);
+        header.writeLong(value.expirationMillis());
+        header.writeInt(value.ttlSeconds());
+        header.writeInt(value.version());
+        final PublicKey publicKey = value.publicKey();
+        header.writeByte((value.hasHash() ? FLAG_HASH : 0) | (value.protectedEntry() ? FLAG_PROTECTED_ENTRY : 0)
+                | (value.peerId() != null ? FLAG_PEER_ID : 0) | (publicKey != null ? FLAG_PUBLIC_KEY : 0));
+        if (value.peerId() != null) {
+            value.peerId().toByteBuf(header);
+        }
+        if (publicKey != null) {
+            writePublicKey(header, publicKey);
+        }
+        final ByteBuf payload = value.buffer();
+        final int payloadLength = value.bufferLength();
+        // the reader index moves if the data was encoded before, the payload always ends at the writer index
+        final int payloadIndex = payload.writerIndex() - payloadLength;
+        header.writeInt(payloadLength);
+        final long sequence;
+        synchronized (appendLock) {
+            if (closed) {
+                return false;
+            }
+            final Ref ref;
+            try {
+                ref = append(header, payload, payloadIndex, payloadLength);
+            } catch (IOException e) {
+                LOG.error("cannot append to the log", e);
+                return false;
+            }
+            ref.segment.liveBytes.addAndGet(ref.size);
+            dead(index.put(key, ref));
+            final Data data = new Data(ref.segment.buf.slice(ref.offset + header.writerIndex(), payloadLength),
+                    value.version(), value.ttlSeconds(), value.hasHash(), value.protectedEntry());
+            data.peerId(value.peerId());
+            data.publicKey(new AtomicReference<PublicKey>(publicKey));
+            digestUpdate(key, dataMap.put(key, data), data);
+            sequence = appendedSequence;
+        }
+        awaitSync(sequence);
+        return true;
+    }
+
+    @Override
+    public Data get(final Number160 locationKey, final Number160 domainKey, final Number160 contentKey) {
+        return dataMap.get(new Number480(locationKey, domainKey, contentKey));
+    }
+
+    @Override
+    public boolean contains(final Number160 locationKey, final Number160 domainKey, final Number160 contentKey) {
+        return dataMap.containsKey(new Number480(locationKey, domainKey, contentKey));
+    }
+
+    @Override
+    public Data remove(final Number160 locationKey, final Number160 domainKey, final Number160 contentKey) {
+        final Number480 key = new Number480(locationKey, domainKey, contentKey);
+        final ByteBuf header = Unpooled.buffer(RECORD_HEADER_SIZE + 1 + 3 * Number160.BYTE_ARRAY_SIZE);
+        header.writerIndex(RECORD_HEADER_SIZE);
+        header.writeByte(TYPE_REMOVE);
+        writeKey(header, key);
+        final Data data;
+        final long sequence;
+        synchronized (appendLock) {
+            if (closed || !index.containsKey(key)) {
+                final Data removed = dataMap.remove(key);
+                digestUpdate(key, removed, null);
+                return removed;
+            }
+            try {
+                // a tombstone is never live, it only shadows older records
+                append(header, Unpooled.EMPTY_BUFFER, 0, 0);
+            } catch (IOException e) {
+                LOG.error("cannot append to the log", e);
+                return null;
+            }
+            dead(index.remove(key));
+            data = dataMap.remove(key);
+            digestUpdate(key, data, null);
+            sequence = appendedSequence;
+        }
+        awaitSync(sequence);
+        return data;
+    }
+
+    @Override
+    public SortedMap<Number480, Data> subMap(final Number160 locationKey, final Number160 domainKey,
+            final Number160 fromContentKey, final Number160 toContentKey) {
+        return dataMap.subMap(new Number480(locationKey, domainKey, fromContentKey), new Number480(locationKey,
+                domainKey, toContentKey));
+    }
+
+    @Override
+    public Map<Number480, Data> subMap(final Number160 locationKey) {
+        return dataMap.subMap(new Number480(locationKey, Number160.ZERO, Number160.ZERO), new Number480(locationKey,
+                Number160.MAX_VALUE, Number160.MAX_VALUE));
+    }
+
+    @Override
+    protected boolean isDigestMaintained() {
+        return true;
+    }
+
+    /**
+     * Modifications of this map are not written to the log.
+     */
+    @Override
+    public NavigableMap<Number480, Data> map() {
+        return dataMap;
+    }
+
+    // Maintenance
+    @Override
+    public void addTimeout(final Number160 locationKey, final Number160 domainKey, final Number160 contentKey,
+            final long expiration) {
+        storageMemory.addTimeout(locationKey, domainKey, contentKey, expiration);
+    }
+
+    @Override
+    public void removeTimeout(final Number160 locationKey, final Number160 domainKey, final Number160 contentKey) {
+        storageMemory.removeTimeout(locationKey, domainKey, contentKey);
+    }
+
+    @Override
+    public Collection<Number480> subMapTimeout(final long to) {
+        return storageMemory.subMapTimeout(to);
+    }
+
+    // Protection
+    @Override
+    public boolean protectDomain(final Number160 locationKey, final Number160 domainKey, final PublicKey publicKey) {
+        final Number320 key = new Number320(locationKey, domainKey);
+        final ByteBuf header = Unpooled.buffer();
+        header.writerIndex(RECORD_HEADER_SIZE);
+        header.writeByte(TYPE_PROTECT);
+        locationKey.toByteBuf(header);
+        domainKey.toByteBuf(header);
+        writePublicKey(header, publicKey);
+        final long sequence;
+        synchronized (appendLock) {
+            if (closed) {
+                return false;
+            }
+            final Ref ref;
+            try {
+                ref = append(header, Unpooled.EMPTY_BUFFER, 0, 0);
+            } catch (IOException e) {
+                LOG.error("cannot append to the log", e);
+                return false;
+            }
+            ref.segment.liveBytes.addAndGet(ref.size);
+            dead(protectionIndex.put(key, ref));
+            storageMemory.protectDomain(locationKey, domainKey, publicKey);
+            sequence = appendedSequence;
+        }
+        awaitSync(sequence);
+        return true;
+    }
+
+    @Override
+    public boolean isDomainProtectedByOthers(final Number160 locationKey, final Number160 domainKey,
+            final PublicKey publicKey) {
+        return storageMemory.isDomainProtectedByOthers(locationKey, domainKey, publicKey);
+    }
+
+    // Replication
+    @Override
+    public Number160 findPeerIDForResponsibleContent(final Number160 locationKey) {
+        return storageMemory.findPeerIDForResponsibleContent(locationKey);
+    }
+
+    @Override
+    public Collection<Number160> findContentForResponsiblePeerID(final Number160 peerID) {
+        return storageMemory.findContentForResponsiblePeerID(peerID);
+    }
+
+    @Override
+    public boolean updateResponsibilities(final Number160 locationKey, final Number160 peerId) {
+        return storageMemory.updateResponsibilities(locationKey, peerId);
+    }
+
+    @Override
+    public void removeResponsibility(final Number160 locationKey) {
+        storageMemory.removeResponsibility(locationKey);
+    }
+
+    // Misc
+    /**
+     * Stops the background threads and forces all segments to disk. The stored data objects stay readable, since
+     * the mappings are only released by the garbage collector.
+     */
+    @Override
+    public void close() {
+        synchronized (appendLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        maintenance.shutdown();
+        try {
+            maintenance.awaitTermination(DEFAULT_COMPACTION_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        storageMemory.close();
+        synchronized (syncMonitor) {
+            syncMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Forces all modified segments to disk. Every put and remove that returned before this call is durable once it
+     * returns. This is called periodically by a background thread.
+     */
+    public void sync() {
+        synchronized (syncLock) {
+            final long target;
+            final List<Segment> toForce;
+            synchronized (appendLock) {
+                target = appendedSequence;
+                toForce = new ArrayList<Segment>(dirty);
+                dirty.clear();
+            }
+            for (Segment segment : toForce) {
+                // a compacted segment may have been deleted in the meantime, its records live somewhere else
+                if (!segment.deleted) {
+                    segment.mapped.force();
+                }
+            }
+            synchronized (syncMonitor) {
+                syncedSequence = target;
+                syncMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Copies the live records of all segments that are mostly garbage to the current segment and deletes them. This
+     * is called periodically by a background thread.
+     */
+    public void compact() {
+        final List<Segment> candidates = new ArrayList<Segment>();
+        synchronized (appendLock) {
+            for (Segment segment : segments.values()) {
+                if (segment != head && segment.liveBytes.get() < segment.writerIndex * COMPACTION_RATIO) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        for (Segment segment : candidates) {
+            if (closed) {
+                return;
+            }
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                LOG.error("cannot compact segment " + segment.file, e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The number of segment files
+     */
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return The number of segment files that have been deleted by the compaction
+     */
+    public long compactedSegments() {
+        return compactedSegments.get();
+    }
+
+    /**
+     * Moves the live records of a segment to the current segment and deletes the segment file. Each record is
+     * checked and moved with the append lock held, so that puts can go on in between.
+     *
+     * @param segment
+     *            The segment to compact, must not be the current segment
+     * @throws IOException
+     *             If a record cannot be appended
+     */
+    private void compact(final Segment segment) throws IOException {
+        int offset = SEGMENT_HEADER_SIZE;
+        while (offset < segment.writerIndex) {
+            final Record record = Record.read(segment, offset);
+            synchronized (appendLock) {
+                if (closed) {
+                    return;
+                }
+                final ByteBuf raw = segment.buf.slice(offset, record.size);
+                switch (record.type) {
+                case TYPE_PUT:
+                    final Ref ref = index.get(record.key);
+                    if (ref != null && ref.segment == segment && ref.offset == offset) {
+                        // the record did not change, thus the checksum is still valid
+                        final Ref moved = append(raw, Unpooled.EMPTY_BUFFER, 0, 0);
+                        moved.segment.liveBytes.addAndGet(moved.size);
+                        dead(index.put(record.key, moved));
+                        dataMap.put(record.key, record.data(moved.segment, moved.offset - offset));
+                    }
+                    break;
+                case TYPE_REMOVE:
+                    // an older segment may still hold a put that this tombstone shadows
+                    if (!index.containsKey(record.key) && segments.firstKey() < segment.id) {
+                        append(raw, Unpooled.EMPTY_BUFFER, 0, 0);
+                    }
+                    break;
+                case TYPE_PROTECT:
+                    final Ref protectionRef = protectionIndex.get(record.domain);
+                    if (protectionRef != null && protectionRef.segment == segment && protectionRef.offset == offset) {
+                        final Ref movedProtection = append(raw, Unpooled.EMPTY_BUFFER, 0, 0);
+                        movedProtection.segment.liveBytes.addAndGet(movedProtection.size);
+                        dead(protectionIndex.put(record.domain, movedProtection));
+                    }
+                    break;
+                default:
+                    throw new IOException("unknown record type " + record.type);
+                }
+            }
+            offset += record.size;
+        }
+        // the copies need to be on disk before the originals are gone
+        sync();
+        synchronized (appendLock) {
+            segments.remove(segment.id);
+            dirty.remove(segment);
+            segment.deleted = true;
+        }
+        if (!segment.file.delete()) {
+            LOG.warn("cannot delete compacted segment {}", segment.file);
+        }
+        compactedSegments.incrementAndGet();
+        LOG.debug("compacted segment {}", segment.file);
+    }
+
+    /**
+     * Appends a record to the current segment, starts a new segment if the record does not fit. The caller needs to
+     * hold the append lock.
+     *
+     * @param header
+     *            The record without the payload. If the first 8 bytes are zero, the length and the checksum are
+     *            filled in
+     * @param payload
+     *            The buffer with the payload
+     * @param payloadIndex
+     *            The index of the payload in its buffer
+     * @param payloadLength
+     *            The length of the payload
+     * @return The position of the appended record
+     * @throws IOException
+     *             If a new segment cannot be created
+     */
+    private Ref append(final ByteBuf header, final ByteBuf payload, final int payloadIndex, final int payloadLength)
+            throws IOException {
+        final int headerLength = header.readableBytes();
+        final int size = headerLength + payloadLength;
+        if (header.getInt(header.readerIndex()) == 0) {
+            final CRC32 crc = new CRC32();
+            update(crc, header, header.readerIndex() + RECORD_HEADER_SIZE, headerLength - RECORD_HEADER_SIZE);
+            update(crc, payload, payloadIndex, payloadLength);
+            header.setInt(header.readerIndex(), size - RECORD_HEADER_SIZE);
+            header.setInt(header.readerIndex() + 4, (int) crc.getValue());
+        }
+        if (head == null || head.writerIndex + size > head.capacity) {
+            roll(size);
+        }
+        final Segment segment = head;
+        final int offset = segment.writerIndex;
+        segment.buf.setBytes(offset, header, header.readerIndex(), headerLength);
+        if (payloadLength > 0) {
+            segment.buf.setBytes(offset + headerLength, payload, payloadIndex, payloadLength);
+        }
+        segment.writerIndex += size;
+        dirty.add(segment);
+        appendedSequence++;
+        return new Ref(segment, offset, size);
+    }
+
+    /**
+     * Starts a new segment. The caller needs to hold the append lock.
+     *
+     * @param recordSize
+     *            The size of the record that needs to fit into the new segment
+     * @throws IOException
+     *             If the segment file cannot be created
+     */
+    private void roll(final int recordSize) throws IOException {
+        final int id = nextSegmentId++;
+        final int capacity = Math.max(segmentSize, SEGMENT_HEADER_SIZE + recordSize);
+        final Segment segment = Segment.create(new File(dir, "segment-" + id + ".log"), id, capacity);
+        segments.put(id, segment);
+        if (head != null) {
+            // the old head is forced by the next sync, it is still in the dirty set
+            LOG.debug("segment {} is full, continue with {}", head.file, segment.file);
+        }
+        head = segment;
+    }
+
+    /**
+     * Accounts the record that has been replaced as garbage.
+     *
+     * @param ref
+     *            The record that has been replaced, may be null
+     */
+    private static void dead(final Ref ref) {
+        if (ref != null) {
+            ref.segment.liveBytes.addAndGet(-ref.size);
+        }
+    }
+
+    /**
+     * Waits until the record with the given sequence number is on disk if syncWrites is set.
+     *
+     * @param sequence
+     *            The sequence number of the record
+     */
+    private void awaitSync(final long sequence) {
+        if (!syncWrites) {
+            return;
+        }
+        if (syncRequested.compareAndSet(false, true)) {
+            try {
+                maintenance.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // reset first, a put that comes in during the force needs another force
+                        syncRequested.set(false);
+                        sync();
+                    }
+                });
+            } catch (RuntimeException e) {
+                // rejected because we are closing, close will sync
+                syncRequested.set(false);
+            }
+        }
+        synchronized (syncMonitor) {
+            while (syncedSequence < sequence && !closed) {
+                try {
+                    syncMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replays all segments in the directory in the order they were written and restores the index, the timeouts and
+     * the domain protection. The last segment becomes the current segment.
+     *
+     * @throws IOException
+     *             If a segment cannot be mapped
+     */
+    private void recover() throws IOException {
+        final File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(final File pathname) {
+                return pathname.isFile() && SEGMENT_NAME.matcher(pathname.getName()).matches();
+            }
+        });
+        for (File file : files) {
+            final Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+            matcher.matches();
+            final int id = Integer.parseInt(matcher.group(1));
+            // never reuse the name of a file, even if we cannot read it
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+            final Segment segment = Segment.open(file, id);
+            if (segment == null) {
+                LOG.warn("ignore segment {} with an unknown format", file);
+                continue;
+            }
+            segments.put(segment.id, segment);
+        }
+        final Map<Number480, Long> expirations = new HashMap<Number480, Long>();
+        for (Segment segment : segments.values()) {
+            int offset = SEGMENT_HEADER_SIZE;
+            Record record;
+            while ((record = Record.readChecked(segment, offset)) != null) {
+                replay(segment, offset, record, expirations);
+                offset += record.size;
+            }
+            segment.writerIndex = offset;
+            if (offset < segment.capacity && segment.buf.getInt(offset) != 0) {
+                // a torn write, zero it out, otherwise a later record may be followed by stale bytes
+                LOG.warn("segment {} is broken at {}, the remaining records are lost", segment.file, offset);
+                segment.buf.setZero(offset, segment.capacity - offset);
+                dirty.add(segment);
+            }
+            head = segment;
+        }
+        final long now = Timings.currentTimeMillis();
+        for (Map.Entry<Number480, Long> entry : expirations.entrySet()) {
+            final Number480 key = entry.getKey();
+            if (entry.getValue() <= now) {
+                // expired while we were offline, the record is garbage now
+                digestUpdate(key, dataMap.remove(key), null);
+                dead(index.remove(key));
+            } else {
+                storageMemory.addTimeout(key.getLocationKey(), key.getDomainKey(), key.getContentKey(),
+                        entry.getValue());
+            }
+        }
+        LOG.debug("recovered {} entries from {} segments in {}", dataMap.size(), segments.size(), dir);
+    }
+
+    /**
+     * Applies one record during the recovery.
+     *
+     * @param segment
+     *            The segment of the record
+     * @param offset
+     *            The position of the record
+     * @param record
+     *            The record
+     * @param expirations
+     *            The expiration of the live entries
+     */
+    private void replay(final Segment segment, final int offset, final Record record,
+            final Map<Number480, Long> expirations) {
+        switch (record.type) {
+        case TYPE_PUT:
+            segment.liveBytes.addAndGet(record.size);
+            dead(index.put(record.key, new Ref(segment, offset, record.size)));
+            final Data data = record.data(segment, 0);
+            digestUpdate(record.key, dataMap.put(record.key, data), data);
+            expirations.put(record.key, record.expiration);
+            break;
+        case TYPE_REMOVE:
+            dead(index.remove(record.key));
+            digestUpdate(record.key, dataMap.remove(record.key), null);
+            expirations.remove(record.key);
+            break;
+        case TYPE_PROTECT:
+            segment.liveBytes.addAndGet(record.size);
+            dead(protectionIndex.put(record.domain, new Ref(segment, offset, record.size)));
+            if (record.publicKey != null) {
+                storageMemory.protectDomain(record.domain.getLocationKey(), record.domain.getDomainKey(),
+                        record.publicKey);
+            }
+            break;
+        default:
+            LOG.warn("ignore record of unknown type {} in {}", record.type, segment.file);
+        }
+    }
+
+    private static void writeKey(final ByteBuf buf, final Number480 key) {
+        key.getLocationKey().toByteBuf(buf);
+        key.getDomainKey().toByteBuf(buf);
+        key.getContentKey().toByteBuf(buf);
+    }
+
+    private static void writePublicKey(final ByteBuf buf, final PublicKey publicKey) {
+        final byte[] algorithm = publicKey.getAlgorithm().getBytes(ASCII);
+        final byte[] encoded = publicKey.getEncoded();
+        buf.writeByte(algorithm.length);
+        buf.writeBytes(algorithm);
+        buf.writeInt(encoded.length);
+        buf.writeBytes(encoded);
+    }
+
+    private static PublicKey readPublicKey(final ByteBuf buf) {
+        final byte[] algorithm = new byte[buf.readUnsignedByte()];
+        buf.readBytes(algorithm);
+        final byte[] encoded = new byte[buf.readInt()];
+        buf.readBytes(encoded);
+        try {
+            return KeyFactory.getInstance(new String(algorithm, ASCII)).generatePublic(
+                    new X509EncodedKeySpec(encoded));
+        } catch (GeneralSecurityException e) {
+            LOG.warn("cannot restore public key", e);
+            return null;
+        }
+    }
+
+    private static void update(final CRC32 crc, final ByteBuf buf, final int index, final int length) {
+        if (length == 0) {
+            return;
+        }
+        if (buf.hasArray()) {
+            crc.update(buf.array(), buf.arrayOffset() + index, length);
+            return;
+        }
+        final byte[] tmp = new byte[Math.min(length, 8192)];
+        for (int done = 0; done < length;) {
+            final int len = Math.min(tmp.length, length - done);
+            buf.getBytes(index + done, tmp, 0, len);
+            crc.update(tmp, 0, len);
+            done += len;
+        }
+    }
+
+    /**
+     * A memory-mapped segment file.
+     *
+     * @author Thomas Bocek
+     *
+     */
+    private static final class Segment {
+        private final int id;
+        private final File file;
+        private final MappedByteBuffer mapped;
+        // a view of the whole mapping, the data objects are slices of it
+        private final ByteBuf buf;
+        private final int capacity;
+        private final AtomicLong liveBytes = new AtomicLong(0);
+        // guarded by appendLock
+        private int writerIndex;
+        private volatile boolean deleted = false;
+
+        private Segment(final int id, final File file, final MappedByteBuffer mapped) {
+            this.id = id;
+            this.file = file;
+            this.mapped = mapped;
+            this.capacity = mapped.capacity();
+            this.buf = Unpooled.wrappedBuffer(mapped);
+        }
+
+        private static Segment create(final File file, final int id, final int capacity) throws IOException {
+            final Segment segment = new Segment(id, file, map(file, capacity));
+            segment.buf.setInt(0, MAGIC);
+            segment.writerIndex = SEGMENT_HEADER_SIZE;
+            return segment;
+        }
+
+        private static Segment open(final File file, final int id) throws IOException {
+            if (file.length() < SEGMENT_HEADER_SIZE || file.length() > Integer.MAX_VALUE) {
+                return null;
+            }
+            final Segment segment = new Segment(id, file, map(file, (int) file.length()));
+            return segment.buf.getInt(0) == MAGIC ? segment : null;
+        }
+
+        private static MappedByteBuffer map(final File file, final int capacity) throws IOException {
+            final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(capacity);
+                // the mapping stays valid after the channel is closed
+                return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    /**
+     * The position of the latest record of a key.
+     *
+     * @author Thomas Bocek
+     *
+     */
+    private static final class Ref {
+        private final Segment segment;
+        private final int offset;
+        private final int size;
+
+        private Ref(final Segment segment, final int offset, final int size) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A parsed record. The payload is not read, only its position.
+     *
+     * @author Thomas Bocek
+     *
+     */
+    private static final class Record {
+        private int size;
+        private byte type;
+        private Number480 key;
+        private Number320 domain;
+        private long expiration;
+        private int ttlSeconds;
+        private int version;
+        private int flags;
+        private Number160 peerId;
+        private PublicKey publicKey;
+        private int payloadOffset;
+        private int payloadLength;
+
+        /**
+         * Reads a record and verifies its checksum.
+         *
+         * @return The record or null if there is no complete record at this position
+         */
+        private static Record readChecked(final Segment segment, final int offset) {
+            if (offset + RECORD_HEADER_SIZE > segment.capacity) {
+                return null;
+            }
+            final int length = segment.buf.getInt(offset);
+            if (length <= 0 || length > segment.capacity - offset - RECORD_HEADER_SIZE) {
+                return null;
+            }
+            final CRC32 crc = new CRC32();
+            update(crc, segment.buf, offset + RECORD_HEADER_SIZE, length);
+            if ((int) crc.getValue() != segment.buf.getInt(offset + 4)) {
+                return null;
+            }
+            try {
+                return read(segment, offset);
+            } catch (IndexOutOfBoundsException e) {
+                LOG.warn("malformed record in {} at {}", segment.file, offset);
+                return null;
+            }
+        }
+
+        /**
+         * Reads a record that is known to be complete.
+         */
+        private static Record read(final Segment segment, final int offset) {
+            final Record record = new Record();
+            record.size = RECORD_HEADER_SIZE + segment.buf.getInt(offset);
+            final ByteBuf buf = segment.buf.slice(offset, record.size);
+            buf.skipBytes(RECORD_HEADER_SIZE);
+            record.type = buf.readByte();
+            switch (record.type) {
+            case TYPE_PUT:
+                record.key = new Number480(new Number160(buf), new Number160(buf), new Number160(buf));
+                record.expiration = buf.readLong();
+                record.ttlSeconds = buf.readInt();
+                record.version = buf.readInt();
+                record.flags = buf.readUnsignedByte();
+                if ((record.flags & FLAG_PEER_ID) != 0) {
+                    record.peerId = new Number160(buf);
+                }
+                if ((record.flags & FLAG_PUBLIC_KEY) != 0) {
+                    record.publicKey = readPublicKey(buf);
+                }
+                record.payloadLength = buf.readInt();
+                record.payloadOffset = offset + buf.readerIndex();
+                break;
+            case TYPE_REMOVE:
+                record.key = new Number480(new Number160(buf), new Number160(buf), new Number160(buf));
+                break;
+            case TYPE_PROTECT:
+                record.domain = new Number320(new Number160(buf), new Number160(buf));
+                record.publicKey = readPublicKey(buf);
+                break;
+            default:
+                break;
+            }
+            return record;
+        }
+
+        /**
+         * Creates a data object that is a view of the payload of this record.
+         *
+         * @param segment
+         *            The segment the record is in
+         * @param shift
+         *            The distance the record has been moved from where it was read
+         * @return The data object
+         */
+        private Data data(final Segment segment, final int shift) {
+            int ttl = ttlSeconds;
+            if (ttl > 0) {
+                // the data object counts the TTL from now on
+                final long remaining = expiration - Timings.currentTimeMillis();
+                ttl = (int) Math.max(1, (remaining + 999) / 1000);
+            }
+            final Data data = new Data(segment.buf.slice(payloadOffset + shift, payloadLength), version, ttl,
+                    (flags & FLAG_HASH) != 0, (flags & FLAG_PROTECTED_ENTRY) != 0);
+            data.peerId(peerId);
+            data.publicKey(new AtomicReference<PublicKey>(publicKey));
+            return data;
+        }
+    }
+}
@@ -17,17 +17,12 @@
 package net.tomp2p.storage;
 
 import java.security.PublicKey;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.NavigableMap;
-import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.locks.Lock;
 
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
@@ -37,22 +32,25 @@ public class StorageMemory extends StorageGeneric {
     // Core
     final private NavigableMap<Number480, Data> dataMap = new ConcurrentSkipListMap<Number480, Data>();
 
-    // Maintenance
-    final private Map<Number480, Long> timeoutMap = new ConcurrentHashMap<Number480, Long>();
+    // the resolution of the expiration
+    public static final int TIMEOUT_TICK_MILLIS = 10;
+
+    // the maximum number of expired entries that are returned at once, which bounds the memory of the expiration
+    public static final int MAX_EXPIRE_BATCH = 10000;
 
-    final private SortedMap<Long, Set<Number480>> timeoutMapRev = new ConcurrentSkipListMap<Long, Set<Number480>>();
+    // Maintenance
+    final private TimeoutWheel timeoutWheel = new TimeoutWheel(TIMEOUT_TICK_MILLIS);
 
     // Protection
     final private Map<Number320, PublicKey> protectedMap = new ConcurrentHashMap<Number320, PublicKey>();
 
     final private StorageMemoryReplication storageMemoryReplication = new StorageMemoryReplication();
 
-    final private KeyLock<Long> timeoutLock = new KeyLock<Long>();
-
     // Core
     @Override
     public boolean put(Number160 locationKey, Number160 domainKey, Number160 contentKey, Data value) {
-        dataMap.put(new Number480(locationKey, domainKey, contentKey), value);
+        Number480 key = new Number480(locationKey, domainKey, contentKey);
+        digestUpdate(key, dataMap.put(key, value), value);
         return true;
     }
 
@@ -68,7 +66,10 @@ public class StorageMemory extends StorageGeneric {
 
     @Override
     public Data remove(Number160 locationKey, Number160 domainKey, Number160 contentKey) {
-        return dataMap.remove(new Number480(locationKey, domainKey, contentKey));
+        Number480 key = new Number480(locationKey, domainKey, contentKey);
+        Data data = dataMap.remove(key);
+        digestUpdate(key, data, null);
+        return data;
     }
 
     @Override
@@ -89,70 +90,45 @@ public class StorageMemory extends StorageGeneric {
         return dataMap;
     }
 
+    @Override
+    protected boolean isDigestMaintained() {
+        return true;
+    }
+
     // Maintenance
     @Override
     public void addTimeout(Number160 locationKey, Number160 domainKey, Number160 contentKey, long expiration) {
-        Number480 key = new Number480(locationKey, domainKey, contentKey);
-        Long oldExpiration = timeoutMap.put(key, expiration);
-        Lock lock1 = timeoutLock.lock(expiration);
-        try {
-            Set<Number480> tmp = putIfAbsent2(expiration, new HashSet<Number480>());
-            tmp.add(key);
-        } finally {
-            timeoutLock.unlock(expiration, lock1);
-        }
-        if (oldExpiration == null) {
-            return;
-        }
-        Lock lock2 = timeoutLock.lock(oldExpiration);
-        try {
-            removeRevTimeout(key, oldExpiration);
-
-        } finally {
-            timeoutLock.unlock(oldExpiration, lock2);
-        }
+        timeoutWheel.add(new Number480(locationKey, domainKey, contentKey), expiration);
     }
 
     @Override
     public void removeTimeout(Number160 locationKey, Number160 domainKey, Number160 contentKey) {
-        Number480 key = new Number480(locationKey, domainKey, contentKey);
-        Long expiration = timeoutMap.remove(key);
-        if (expiration == null) {
-            return;
-        }
-        Lock lock = timeoutLock.lock(expiration);
-        try {
-            removeRevTimeout(key, expiration);
-        } finally {
-            timeoutLock.unlock(expiration, lock);
-        }
-    }
-
-    private void removeRevTimeout(Number480 key, Long expiration) {
-        if (expiration != null) {
-            Set<Number480> tmp2 = timeoutMapRev.get(expiration);
-            if (tmp2 != null) {
-                tmp2.remove(key);
-                if (tmp2.isEmpty()) {
-                    timeoutMapRev.remove(expiration);
-                }
-            }
-        }
+        timeoutWheel.remove(new Number480(locationKey, domainKey, contentKey));
     }
 
+    /**
+     * Returns the entries that expired before the given time and removes their timeouts. At most
+     * {@link #MAX_EXPIRE_BATCH} entries are returned, the remaining are returned by the next call. Thus, the
+     * maintenance thread removes a large number of expired entries in several batches, see
+     * {@link StorageGeneric#checkTimeout()}.
+     */
     @Override
     public Collection<Number480> subMapTimeout(long to) {
-        SortedMap<Long, Set<Number480>> tmp = timeoutMapRev.subMap(0L, to);
-        Collection<Number480> toRemove = new ArrayList<Number480>();
-        for (Map.Entry<Long, Set<Number480>> entry : tmp.entrySet()) {
-            Lock lock = timeoutLock.lock(entry.getKey());
-            try {
-                toRemove.addAll(entry.getValue());
-            } finally {
-                timeoutLock.unlock(entry.getKey(), lock);
-            }
-        }
-        return toRemove;
+        return timeoutWheel.expire(to, MAX_EXPIRE_BATCH);
+    }
+
+    /**
+     * @return The number of entries that have been expired so far
+     */
+    public long expiredCount() {
+        return timeoutWheel.expired();
+    }
+
+    /**
+     * @return The number of entries that are expired but have not been removed yet
+     */
+    public int expiredBacklog() {
+        return timeoutWheel.backlog();
     }
 
     // Protection
@@ -175,16 +151,9 @@ public class StorageMemory extends StorageGeneric {
     @Override
     public void close() {
         dataMap.clear();
+        digestClear();
         protectedMap.clear();
-        timeoutMap.clear();
-        timeoutMapRev.clear();
-    }
-
-    private Set<Number480> putIfAbsent2(long expiration, Set<Number480> hashSet) {
-        @SuppressWarnings("unchecked")
-        Set<Number480> timeouts = ((ConcurrentMap<Long, Set<Number480>>) timeoutMapRev)
-                .putIfAbsent(expiration, hashSet);
-        return timeouts == null ? hashSet : timeouts;
+        timeoutWheel.clear();
     }
 
     @Override
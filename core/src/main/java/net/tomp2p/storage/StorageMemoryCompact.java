@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.security.PublicKey;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number480;
+
+/**
+ * A memory storage for a large number of small entries. The keys are stored in a {@link CompactIndex}, which packs
+ * them into int arrays instead of keeping a {@link Number480} with three {@link Number160} objects per entry. Use this
+ * storage if most of the heap is spent on keys, e.g., for millions of entries with a payload of a few bytes.
+ * <p>
+ * The maps returned by the range queries and by {@link #map()} are copies, modifications are not written back to the
+ * storage.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StorageMemoryCompact extends StorageGeneric {
+    // Core
+    private final CompactIndex index = new CompactIndex();
+
+    // Maintenance, protection, and replication
+    private final StorageMemory storageMemory = new StorageMemory();
+
+    // Core
+    @Override
+    public boolean put(final Number160 locationKey, final Number160 domainKey, final Number160 contentKey,
+            final Data value) {
+        final Data oldData = index.put(CompactIndex.key(locationKey, domainKey, contentKey), value);
+        digestUpdate(new Number480(locationKey, domainKey, contentKey), oldData, value);
+        return true;
+    }
+
+    @Override
+    public Data get(final Number160 locationKey, final Number160 domainKey, final Number160 contentKey) {
+        return index.get(CompactIndex.key(locationKey, domainKey, contentKey));
+    }
+
+    @Override
+    public boolean contains(final Number160 locationKey, final Number160 domainKey, final Number160 contentKey) {
+        return index.get(CompactIndex.key(locationKey, domainKey, contentKey)) != null;
+    }
+
+    @Override
+    public Data remove(final Number160 locationKey, final Number160 domainKey, final Number160 contentKey) {
+        final Data data = index.remove(CompactIndex.key(locationKey, domainKey, contentKey));
+        if (data != null) {
+            digestUpdate(new Number480(locationKey, domainKey, contentKey), data, null);
+        }
+        return data;
+    }
+
+    @Override
+    public SortedMap<Number480, Data> subMap(final Number160 locationKey, final Number160 domainKey,
+            final Number160 fromContentKey, final Number160 toContentKey) {
+        return index.range(CompactIndex.key(locationKey, domainKey, fromContentKey),
+                CompactIndex.key(locationKey, domainKey, toContentKey), new TreeMap<Number480, Data>());
+    }
+
+    @Override
+    public Map<Number480, Data> subMap(final Number160 locationKey) {
+        return index.range(CompactIndex.key(locationKey, Number160.ZERO, Number160.ZERO),
+                CompactIndex.key(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE),
+                new TreeMap<Number480, Data>());
+    }
+
+    /**
+     * Creates a copy of all entries, which is expensive for a large storage.
+     */
+    @Override
+    public NavigableMap<Number480, Data> map() {
+        final TreeMap<Number480, Data> result = new TreeMap<Number480, Data>();
+        final int[] max = CompactIndex.key(Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE);
+        index.range(new int[CompactIndex.KEY_INTS], max, result);
+        // the range excludes the upper bound
+        final Data last = index.get(max);
+        if (last != null) {
+            result.put(new Number480(Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE), last);
+        }
+        return result;
+    }
+
+    @Override
+    protected boolean isDigestMaintained() {
+        return true;
+    }
+
+    /**
+     * @return The number of stored entries
+     */
+    public int size() {
+        return index.size();
+    }
+
+    // Maintenance
+    @Override
+    public void addTimeout(final Number160 locationKey, final Number160 domainKey, final Number160 contentKey,
+            final long expiration) {
+        storageMemory.addTimeout(locationKey, domainKey, contentKey, expiration);
+    }
+
+    @Override
+    public void removeTimeout(final Number160 locationKey, final Number160 domainKey, final Number160 contentKey) {
+        storageMemory.removeTimeout(locationKey, domainKey, contentKey);
+    }
+
+    @Override
+    public Collection<Number480> subMapTimeout(final long to) {
+        return storageMemory.subMapTimeout(to);
+    }
+
+    // Protection
+    @Override
+    public boolean protectDomain(final Number160 locationKey, final Number160 domainKey, final PublicKey publicKey) {
+        return storageMemory.protectDomain(locationKey, domainKey, publicKey);
+    }
+
+    @Override
+    public boolean isDomainProtectedByOthers(final Number160 locationKey, final Number160 domainKey,
+            final PublicKey publicKey) {
+        return storageMemory.isDomainProtectedByOthers(locationKey, domainKey, publicKey);
+    }
+
+    // Misc
+    @Override
+    public void close() {
+        index.clear();
+        digestClear();
+        storageMemory.close();
+    }
+
+    // Replication
+    @Override
+    public Number160 findPeerIDForResponsibleContent(final Number160 locationKey) {
+        return storageMemory.findPeerIDForResponsibleContent(locationKey);
+    }
+
+    @Override
+    public Collection<Number160> findContentForResponsiblePeerID(final Number160 peerID) {
+        return storageMemory.findContentForResponsiblePeerID(peerID);
+    }
+
+    @Override
+    public boolean updateResponsibilities(final Number160 locationKey, final Number160 peerId) {
+        return storageMemory.updateResponsibilities(locationKey, peerId);
+    }
+
+    @Override
+    public void removeResponsibility(final Number160 locationKey) {
+        storageMemory.removeResponsibility(locationKey);
+    }
+}
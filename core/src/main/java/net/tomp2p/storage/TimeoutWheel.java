@@ -0,0 +1,291 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.tomp2p.peers.Number480;
+import net.tomp2p.utils.Timings;
+
+/**
+ * A hierarchical timing wheel for the expiration of stored entries. Each entry is a node in a doubly linked slot list,
+ * thus adding, moving, and cancelling a timeout takes constant time. There are four levels of 256 slots each, the
+ * first level has a slot per tick, a slot of the next level spans all slots of the level below. When the wheel
+ * advances to a slot of a higher level, its entries are moved down (cascaded). Timeouts that are further away than the
+ * highest level are kept in an overflow list. Entries that are due are moved to a due list, from which they can be
+ * taken in batches, so that a large number of timeouts at the same time does not stall the caller.
+ * <p>
+ * An entry expires at the end of its tick, never before its expiration time.
+ *
+ * @author Thomas Bocek
+ *
+ */
+final class TimeoutWheel {
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private final long tickMillis;
+    private final Map<Number480, Node> nodes = new HashMap<Number480, Node>();
+    private final Node[][] wheel = new Node[LEVELS][SLOTS];
+    private final Node overflow = Node.head();
+    private final Node due = Node.head();
+
+    // the last tick that has been processed
+    private long currentTick;
+    // entries in the wheel and the overflow list, but not in the due list
+    private int scheduled = 0;
+    // entries per level, the overflow list is counted as the highest level
+    private final int[] levelCounts = new int[LEVELS];
+    private int backlog = 0;
+    private long expired = 0;
+
+    /**
+     * @param tickMillis
+     *            The resolution of the wheel
+     */
+    TimeoutWheel(final long tickMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = Timings.currentTimeMillis() / tickMillis - 1;
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheel[level][slot] = Node.head();
+            }
+        }
+    }
+
+    /**
+     * Adds or moves the timeout of an entry.
+     *
+     * @param key
+     *            The key of the entry
+     * @param expiration
+     *            The expiration time in milliseconds, {@link Long#MAX_VALUE} removes the timeout
+     */
+    synchronized void add(final Number480 key, final long expiration) {
+        if (expiration == Long.MAX_VALUE) {
+            remove(key);
+            return;
+        }
+        Node node = nodes.get(key);
+        if (node == null) {
+            node = new Node(key);
+            nodes.put(key, node);
+        } else {
+            unlink(node);
+        }
+        if (scheduled == 0) {
+            // nothing to cascade, we can skip the idle ticks
+            currentTick = Math.max(currentTick, Timings.currentTimeMillis() / tickMillis - 1);
+        }
+        node.tick = expiration / tickMillis;
+        place(node);
+    }
+
+    /**
+     * Cancels the timeout of an entry.
+     *
+     * @param key
+     *            The key of the entry
+     */
+    synchronized void remove(final Number480 key) {
+        final Node node = nodes.remove(key);
+        if (node != null) {
+            unlink(node);
+        }
+    }
+
+    /**
+     * Advances the wheel to the given time and returns the entries that expired before. The entries are removed from
+     * the wheel.
+     *
+     * @param to
+     *            The current time in milliseconds
+     * @param max
+     *            The maximum number of entries to return, the remaining expired entries are returned by the next call
+     * @return The keys of the expired entries
+     */
+    synchronized Collection<Number480> expire(final long to, final int max) {
+        // only ticks that are completely in the past
+        final long target = to / tickMillis - 1;
+        while (currentTick < target) {
+            if (scheduled == 0) {
+                currentTick = target;
+                break;
+            }
+            // if the lower levels are empty, nothing happens until the next slot of the lowest used level
+            int level = 0;
+            while (levelCounts[level] == 0) {
+                level++;
+            }
+            if (level > 0) {
+                final long boundary = ((currentTick >>> (SLOT_BITS * level)) + 1) << (SLOT_BITS * level);
+                if (boundary > target) {
+                    currentTick = target;
+                    break;
+                }
+                currentTick = boundary - 1;
+            }
+            tick(++currentTick);
+        }
+        final Collection<Number480> result = new ArrayList<Number480>(Math.min(max, backlog));
+        while (result.size() < max && due.next != due) {
+            final Node node = due.next;
+            unlink(node);
+            nodes.remove(node.key);
+            result.add(node.key);
+        }
+        expired += result.size();
+        return result;
+    }
+
+    /**
+     * @return The number of entries that are due but have not been returned by {@link #expire(long, int)}
+     */
+    synchronized int backlog() {
+        return backlog;
+    }
+
+    /**
+     * @return The number of entries that have been returned by {@link #expire(long, int)}
+     */
+    synchronized long expired() {
+        return expired;
+    }
+
+    /**
+     * @return The number of entries with a timeout
+     */
+    synchronized int size() {
+        return nodes.size();
+    }
+
+    synchronized void clear() {
+        for (Node node : nodes.values()) {
+            unlink(node);
+        }
+        nodes.clear();
+    }
+
+    /**
+     * Processes one tick: cascades the higher levels that start at this tick and moves the entries of the current
+     * slot to the due list.
+     */
+    private void tick(final long tick) {
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((tick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                if (level == LEVELS - 1) {
+                    cascade(overflow);
+                }
+                cascade(wheel[level][(int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK]);
+            }
+        }
+        cascade(wheel[0][(int) tick & SLOT_MASK]);
+    }
+
+    private void cascade(final Node head) {
+        // detach the list first, a node from the overflow list may be placed into the overflow list again
+        Node node = head.next;
+        head.next = head;
+        head.prev = head;
+        while (node != head) {
+            final Node next = node.next;
+            node.list = null;
+            levelCounts[node.level]--;
+            scheduled--;
+            place(node);
+            node = next;
+        }
+    }
+
+    private void place(final Node node) {
+        final long delta = node.tick - currentTick;
+        final Node head;
+        int level = 0;
+        if (delta <= 0) {
+            head = due;
+        } else if (delta >= 1L << (SLOT_BITS * LEVELS)) {
+            head = overflow;
+            level = LEVELS - 1;
+        } else {
+            while (delta >= 1L << (SLOT_BITS * (level + 1))) {
+                level++;
+            }
+            head = wheel[level][(int) (node.tick >>> (SLOT_BITS * level)) & SLOT_MASK];
+        }
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        node.list = head;
+        node.level = level;
+        if (head == due) {
+            backlog++;
+        } else {
+            levelCounts[level]++;
+            scheduled++;
+        }
+    }
+
+    private void unlink(final Node node) {
+        if (node.list == null) {
+            return;
+        }
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        if (node.list == due) {
+            backlog--;
+        } else {
+            levelCounts[node.level]--;
+            scheduled--;
+        }
+        node.prev = null;
+        node.next = null;
+        node.list = null;
+    }
+
+    /**
+     * An entry in a slot list, or the head of a slot list.
+     *
+     * @author Thomas Bocek
+     *
+     */
+    private static final class Node {
+        private final Number480 key;
+        private long tick;
+        private int level;
+        private Node prev;
+        private Node next;
+        // the head of the list this node is in
+        private Node list;
+
+        private Node(final Number480 key) {
+            this.key = key;
+        }
+
+        private static Node head() {
+            final Node head = new Node(null);
+            head.prev = head;
+            head.next = head;
+            return head;
+        }
+    }
+}
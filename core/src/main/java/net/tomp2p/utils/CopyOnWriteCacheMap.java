@@ -0,0 +1,178 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.utils;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A thread-safe map for a small number of entries that are read much more often than written. Reads access an
+ * immutable snapshot without locking. Each write copies the snapshot, modifies the copy, and publishes it. Writes are
+ * synchronized on this map, so a caller can synchronize on this map to make several calls atomic with respect to
+ * other writers, while readers are never blocked.
+ * <p>
+ * Like the {@link CacheMap}, the map has a fixed capacity, the entry that was inserted first is removed if a new entry
+ * does not fit anymore. The views returned by {@link #entrySet()}, {@link #keySet()}, and {@link #values()} are the
+ * unmodifiable snapshot at the time of the call.
+ *
+ * @author Thomas Bocek
+ * @param <K>
+ *            The key
+ * @param <V>
+ *            The value
+ */
+public class CopyOnWriteCacheMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+    private final int maxEntries;
+
+    private volatile Map<K, V> snapshot = Collections.emptyMap();
+
+    /**
+     * Creates a map without a capacity limit.
+     */
+    public CopyOnWriteCacheMap() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a new map with a fixed capacity.
+     *
+     * @param maxEntries
+     *            The number of entries that can be stored in this map
+     */
+    public CopyOnWriteCacheMap(final int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return The current content of this map, which is never modified
+     */
+    public Map<K, V> snapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public V get(final Object key) {
+        return snapshot.get(key);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return snapshot.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return snapshot.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return snapshot.isEmpty();
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return snapshot.entrySet();
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return snapshot.keySet();
+    }
+
+    @Override
+    public Collection<V> values() {
+        return snapshot.values();
+    }
+
+    @Override
+    public synchronized V put(final K key, final V value) {
+        final LinkedHashMap<K, V> copy = new LinkedHashMap<K, V>(snapshot);
+        final V old = copy.put(key, value);
+        if (copy.size() > maxEntries) {
+            final Iterator<K> iterator = copy.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        publish(copy);
+        return old;
+    }
+
+    @Override
+    public synchronized V putIfAbsent(final K key, final V value) {
+        final V old = snapshot.get(key);
+        if (old != null) {
+            return old;
+        }
+        return put(key, value);
+    }
+
+    @Override
+    public synchronized V remove(final Object key) {
+        if (!snapshot.containsKey(key)) {
+            return null;
+        }
+        final LinkedHashMap<K, V> copy = new LinkedHashMap<K, V>(snapshot);
+        final V old = copy.remove(key);
+        publish(copy);
+        return old;
+    }
+
+    @Override
+    public synchronized boolean remove(final Object key, final Object value) {
+        final V old = snapshot.get(key);
+        if (old == null || !old.equals(value)) {
+            return false;
+        }
+        remove(key);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean replace(final K key, final V oldValue, final V newValue) {
+        final V old = snapshot.get(key);
+        if (old == null || !old.equals(oldValue)) {
+            return false;
+        }
+        put(key, newValue);
+        return true;
+    }
+
+    @Override
+    public synchronized V replace(final K key, final V value) {
+        if (!snapshot.containsKey(key)) {
+            return null;
+        }
+        return put(key, value);
+    }
+
+    @Override
+    public synchronized void clear() {
+        snapshot = Collections.emptyMap();
+    }
+
+    private void publish(final Map<K, V> copy) {
+        snapshot = Collections.unmodifiableMap(copy);
+    }
+}
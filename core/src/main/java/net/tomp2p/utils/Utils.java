@@ -33,6 +33,7 @@ import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.security.MessageDigest;
@@ -87,13 +88,93 @@ public class Utils {
         }
     }
 
+    private static final ThreadLocal<MessageDigest> SHA_1 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return createSHA1();
+        }
+    };
+
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return createDigest("MD5");
+        }
+    };
+
+    // copies buffers without a backing array for the digest
+    private static final int SCRATCH_SIZE = 4096;
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SCRATCH_SIZE];
+        }
+    };
+
+    // constants of MurmurHash3, x64 128bit variant
+    private static final long MURMUR_C1 = 0x87c37b91114253d5L;
+    private static final long MURMUR_C2 = 0x4cf5ad432745937fL;
+    private static final int MURMUR_BLOCK_SIZE = 16;
+
+    /**
+     * Creates a new SHA-1 instance. Use this for a hash that is calculated incrementally over several calls, where
+     * other hashes may be calculated in between on the same thread. Otherwise, use the makeSHAHash methods, which reuse
+     * one instance per thread.
+     * 
+     * @return A new SHA-1 message digest
+     */
+    public static MessageDigest createSHA1() {
+        return createDigest("SHA-1");
+    }
+
+    private static MessageDigest createDigest(final String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1 and MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The SHA-1 instance of this thread, which is reset and ready to use
+     */
+    private static MessageDigest sha1() {
+        final MessageDigest md = SHA_1.get();
+        md.reset();
+        return md;
+    }
+
+    /**
+     * Updates a message digest with the readable bytes of a Netty byte buffer. The buffer positions are not modified.
+     * 
+     * @param md
+     *            The message digest to update
+     * @param buffer
+     *            The buffer that stores data
+     */
+    public static void updateDigest(final MessageDigest md, final ByteBuf buffer) {
+        if (buffer.hasArray()) {
+            md.update(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), buffer.readableBytes());
+        } else {
+            // the nioBuffers() of Netty 4.0.9 return wrong ranges for direct and composite buffers, thus, copy
+            final byte[] scratch = SCRATCH.get();
+            final int end = buffer.writerIndex();
+            for (int index = buffer.readerIndex(); index < end; index += scratch.length) {
+                final int length = Math.min(scratch.length, end - index);
+                buffer.getBytes(index, scratch, 0, length);
+                md.update(scratch, 0, length);
+            }
+        }
+    }
+
     public static Number160 makeSHAHash(File file) {
         FileInputStream fis = null;
         FileChannel channel = null;
         try {
             fis = new FileInputStream(file);
             channel = fis.getChannel();
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            MessageDigest md = sha1();
             for (long offest = 0; offest < channel.size(); offest += 10 * 1024) {
                 ByteBuffer buffer;
                 if (channel.size() - offest < 10 * 1024)
@@ -110,9 +191,6 @@ public class Utils {
         } catch (IOException e) {
             e.printStackTrace();
             return Number160.ZERO;
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return Number160.ZERO;
         } finally {
             bestEffortclose(channel, fis);
         }
@@ -124,15 +202,10 @@ public class Utils {
     }
 
     public static Number160 makeSHAHash(ByteBuffer buffer) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            md.update(buffer);
-            byte[] digest = md.digest();
-            return new Number160(digest);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return new Number160();
-        }
+        MessageDigest md = sha1();
+        md.update(buffer);
+        byte[] digest = md.digest();
+        return new Number160(digest);
     }
 
     /**
@@ -141,25 +214,118 @@ public class Utils {
      * @return The 160bit hash number
      */
     public static Number160 makeSHAHash(final ByteBuf buffer) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            for (int i = 0; i < buffer.nioBufferCount(); i++) {
-                md.update(buffer.nioBuffers()[i]);
-            }
-            byte[] digest = md.digest();
-            return new Number160(digest);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return new Number160();
-        }
+        MessageDigest md = sha1();
+        updateDigest(md, buffer);
+        byte[] digest = md.digest();
+        return new Number160(digest);
     }
 
     public static Number160 makeSHAHash(byte[] buffer) {
-        return makeSHAHash(ByteBuffer.wrap(buffer));
+        MessageDigest md = sha1();
+        md.update(buffer);
+        return new Number160(md.digest());
+    }
+
+    /**
+     * Calculates the MD5 hash of a part of a byte array.
+     * 
+     * @param buffer
+     *            The array that stores data
+     * @param offset
+     *            The start of the data
+     * @param length
+     *            The length of the data
+     * @return The 128bit hash
+     */
+    public static byte[] makeMD5Hash(final byte[] buffer, final int offset, final int length) {
+        final MessageDigest md = MD5.get();
+        md.reset();
+        md.update(buffer, offset, length);
+        return md.digest();
+    }
+
+    public static byte[] makeMD5Hash(final byte[] buffer) {
+        return makeMD5Hash(buffer, 0, buffer.length);
     }
 
     public static Number160 makeSHAHash(byte[] buffer, int offset, int length) {
-        return makeSHAHash(ByteBuffer.wrap(buffer, offset, length));
+        MessageDigest md = sha1();
+        md.update(buffer, offset, length);
+        return new Number160(md.digest());
+    }
+
+    /**
+     * Calculates a non-cryptographic 128bit hash (MurmurHash3, x64 variant) of the Netty byte buffer, which is much
+     * faster than SHA-1. Use it only to compare data locally, e.g., to find duplicates. It must not be sent to other
+     * peers in place of a SHA-1 hash, as it is not collision resistant against a malicious peer.
+     * 
+     * @param buffer
+     *            The buffer that stores data. The buffer positions are not modified.
+     * @return The 128bit hash number, stored in the lower bits of a 160bit number
+     */
+    public static Number160 makeFastHash(final ByteBuf buffer) {
+        final ByteBuf buf = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        final int start = buf.readerIndex();
+        final int len = buf.readableBytes();
+        final int blocks = len / MURMUR_BLOCK_SIZE;
+        long h1 = 0;
+        long h2 = 0;
+        for (int i = 0; i < blocks; i++) {
+            final int index = start + i * MURMUR_BLOCK_SIZE;
+            h1 ^= mixK1(buf.getLong(index));
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(buf.getLong(index + LONG_BYTE_SIZE));
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        // the remaining bytes, k1 takes the first 8 bytes, k2 the rest
+        final int tail = start + blocks * MURMUR_BLOCK_SIZE;
+        final int remaining = len - blocks * MURMUR_BLOCK_SIZE;
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = remaining - 1; i >= LONG_BYTE_SIZE; i--) {
+            k2 ^= ((long) buf.getUnsignedByte(tail + i)) << ((i - LONG_BYTE_SIZE) * BYTE_BITS);
+        }
+        for (int i = Math.min(remaining, LONG_BYTE_SIZE) - 1; i >= 0; i--) {
+            k1 ^= ((long) buf.getUnsignedByte(tail + i)) << (i * BYTE_BITS);
+        }
+        if (remaining > LONG_BYTE_SIZE) {
+            h2 ^= mixK2(k2);
+        }
+        if (remaining > 0) {
+            h1 ^= mixK1(k1);
+        }
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        final byte[] hash = new byte[Number160.BYTE_ARRAY_SIZE];
+        ByteBuffer.wrap(hash, Number160.BYTE_ARRAY_SIZE - MURMUR_BLOCK_SIZE, MURMUR_BLOCK_SIZE).putLong(h1)
+                .putLong(h2);
+        return new Number160(hash);
+    }
+
+    private static long mixK1(final long k1) {
+        return Long.rotateLeft(k1 * MURMUR_C1, 31) * MURMUR_C2;
+    }
+
+    private static long mixK2(final long k2) {
+        return Long.rotateLeft(k2 * MURMUR_C2, 33) * MURMUR_C1;
+    }
+
+    private static long fmix64(final long k) {
+        long h = k;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
     }
 
     public static Number160 createRandomNodeID() {
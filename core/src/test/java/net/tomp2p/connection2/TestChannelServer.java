@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection2;
+
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.PeerMaker;
+import net.tomp2p.peers.Number160;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the transport of the server.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class TestChannelServer {
+
+    /**
+     * The netty release of this build has no epoll transport, so a server that asks for it uses NIO with a single UDP
+     * socket and still answers.
+     *
+     * @throws Exception .
+     */
+    @Test
+    public void testNativeTransportFallback() throws Exception {
+        Peer server = null;
+        Peer client = null;
+        try {
+            final PeerMaker serverMaker = new PeerMaker(new Number160(1)).ports(4001).setBehindFirewall(false);
+            final ChannelServerConficuration configuration = serverMaker.createDefaultChannelServerConfiguration();
+            configuration.nativeTransport(true);
+            server = serverMaker.channelServerConfiguration(configuration).makeAndListen();
+            client = new PeerMaker(new Number160(2)).ports(4002).makeAndListen();
+            final ChannelServer channelServer = server.getConnectionBean().channelServer();
+            Assert.assertFalse(channelServer.isNativeTransport());
+            Assert.assertEquals(1, channelServer.nrUDPChannels());
+            final BaseFuture futurePing = client.ping().setPeerAddress(server.getPeerAddress()).start();
+            futurePing.awaitUninterruptibly();
+            Assert.assertTrue(futurePing.isSuccess());
+        } finally {
+            if (client != null) {
+                client.shutdown().await();
+            }
+            if (server != null) {
+                server.shutdown().await();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection2;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.message.Message2;
+import net.tomp2p.message.Message2.Type;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the bounded worker pool of the dispatcher.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class TestDispatchExecutor {
+
+    /**
+     * Blocks the only worker and fills the queue, the next request has to be rejected.
+     *
+     * @throws InterruptedException .
+     */
+    @Test
+    public void testBackpressure() throws InterruptedException {
+        final DispatchExecutor executor = new DispatchExecutor(1, 2);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        };
+        Assert.assertTrue(executor.execute(task));
+        Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(executor.execute(task));
+        Assert.assertTrue(executor.execute(task));
+        Assert.assertEquals(2, executor.queueSize());
+        Assert.assertFalse(executor.execute(task));
+        release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(3, executor.executedCount());
+        Assert.assertEquals(1, executor.rejectedCount());
+        Assert.assertEquals(2, executor.maxQueueSize());
+        Assert.assertTrue(executor.execute(task));
+    }
+
+    /**
+     * Only the commands that were assigned to an executor leave the event loop.
+     */
+    @Test
+    public void testPolicy() {
+        final Dispatcher dispatcher = new Dispatcher(1, new PeerBean(null));
+        final DispatchExecutor executor = new DispatchExecutor(1, 1);
+        dispatcher.executor(executor, 1, 2);
+        Assert.assertNull(dispatcher.executor(0));
+        Assert.assertSame(executor, dispatcher.executor(1));
+        Assert.assertSame(executor, dispatcher.executor(2));
+        dispatcher.executor(null, 2);
+        Assert.assertNull(dispatcher.executor(2));
+    }
+
+    /**
+     * The busy type is the last type that fits into the header.
+     */
+    @Test
+    public void testBusyType() {
+        Assert.assertEquals(0xf, Type.BUSY.ordinal());
+        Message2 message = new Message2().setType(Type.BUSY);
+        Assert.assertTrue(message.isBusy());
+        Assert.assertFalse(message.isOk() || message.isNotOk() || message.isError());
+        Assert.assertFalse(message.isRequest());
+    }
+}
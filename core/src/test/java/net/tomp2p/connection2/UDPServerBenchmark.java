@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection2;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.PeerMaker;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.utils.Utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmark of the UDP requests per second a peer can answer, depending on the number of server event loops, i.e.,
+ * the cores used, and whether the native transport with one UDP socket per event loop is used. Without the
+ * netty-transport-native-epoll jar on the classpath, the native runs fall back to NIO. Run it from the test classpath
+ * with the main method.
+ *
+ * @author Thomas Bocek
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UDPServerBenchmark {
+
+    private static final int PORT = 5123;
+
+    @Param({ "1", "2", "4", "8" })
+    private int workerThreads;
+
+    @Param({ "false", "true" })
+    private boolean nativeTransport;
+
+    private Peer server;
+
+    private Peer client;
+
+    @Setup
+    public void setup() throws IOException {
+        final PeerMaker serverMaker = new PeerMaker(new Number160(1)).ports(PORT).setBehindFirewall(false);
+        final ChannelServerConficuration configuration = serverMaker.createDefaultChannelServerConfiguration();
+        configuration.workerThreads(workerThreads).nativeTransport(nativeTransport);
+        server = serverMaker.channelServerConfiguration(configuration).makeAndListen();
+        client = new PeerMaker(new Number160(2)).ports(PORT + 1).makeAndListen();
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.shutdown().awaitUninterruptibly();
+        server.shutdown().awaitUninterruptibly();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean ping() {
+        final FutureChannelCreator futureChannelCreator = client.getConnectionBean().reservation().create(1, 0);
+        futureChannelCreator.awaitUninterruptibly();
+        final ChannelCreator channelCreator = futureChannelCreator.getChannelCreator();
+        final FutureResponse futureResponse = client.getHandshakeRPC().pingUDP(server.getPeerAddress(),
+                channelCreator, new DefaultConnectionConfiguration());
+        Utils.addReleaseListener(channelCreator, futureResponse);
+        return futureResponse.awaitUninterruptibly().isSuccess();
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder().include(UDPServerBenchmark.class.getSimpleName()).forks(1)
+                .build();
+        new Runner(options).run();
+    }
+}
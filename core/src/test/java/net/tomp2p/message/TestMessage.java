@@ -17,29 +17,39 @@
 package net.tomp2p.message;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
 import io.netty.util.Attribute;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.ImmediateEventExecutor;
 
 import java.net.InetSocketAddress;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import net.tomp2p.Utils2;
+import net.tomp2p.connection2.CryptoStage;
 import net.tomp2p.connection2.DefaultSignatureFactory;
 import net.tomp2p.message.Message2.Content;
 import net.tomp2p.peers.Number160;
@@ -197,6 +207,56 @@ public class TestMessage {
         compareMessage(m1, m2);
     }
 
+    @Test
+    public void testZeroCopyData() throws Exception {
+        Random rnd = new Random(42);
+        Message2 m1 = Utils2.createDummyMessage();
+        Map<Number480, Data> dataMap = new HashMap<Number480, Data>();
+        byte[] large = new byte[10000];
+        rnd.nextBytes(large);
+        Data data = new Data(large, true, false);
+        dataMap.put(new Number480(rnd), data);
+        m1.setDataMap(new DataMap(dataMap));
+        Message2 m2 = encodeDecode(m1);
+        compareMessage(m1, m2);
+        Data decoded = m2.getDataMap(0).dataMap().values().iterator().next();
+        // the decoded payload is a slice of the received buffer and needs to be released
+        Assert.assertEquals(true, decoded.buffer() instanceof CompositeByteBuf);
+        Assert.assertEquals(true, decoded.release());
+        Assert.assertEquals(0, decoded.buffer().refCnt());
+        // data created by the user is never released
+        Assert.assertEquals(false, data.release());
+    }
+
+    @Test
+    public void testSharedDataMap() throws Exception {
+        Random rnd = new Random(42);
+        Map<Number480, Data> dataMap = new HashMap<Number480, Data>();
+        byte[] large = new byte[10000];
+        rnd.nextBytes(large);
+        dataMap.put(new Number480(rnd), new Data(large, true, false));
+        for (int i = 0; i < 10; i++) {
+            dataMap.put(new Number480(rnd), new Data(new byte[] { (byte) i }, true, true));
+        }
+        DataMap shared = new DataMap(dataMap).encodeShared();
+        ByteBuf encoded = shared.encodedShared();
+        // two recipients, the entries are encoded only once
+        Message2 m1 = Utils2.createDummyMessage();
+        m1.setDataMap(shared);
+        Message2 m2 = encodeDecode(m1);
+        compareMessage(m1, m2);
+        Message2 m3 = Utils2.createDummyMessage();
+        m3.setDataMap(shared);
+        Message2 m4 = encodeDecode(m3);
+        compareMessage(m3, m4);
+        Assert.assertEquals(new DataMap(dataMap), m4.getDataMap(0));
+        // the two messages were copied into datagrams, which released their references
+        Assert.assertEquals(1, encoded.refCnt());
+        Assert.assertEquals(true, shared.releaseShared());
+        Assert.assertEquals(null, shared.encodedShared());
+        Assert.assertEquals(0, encoded.refCnt());
+    }
+
     @Test
     public void testEncodeDecode480Map() throws Exception { // encode
         Message2 m1 = Utils2.createDummyMessage();
@@ -217,6 +277,87 @@ public class TestMessage {
         compareMessage(m1, m2);
     }
 
+    @Test
+    public void testCryptoStage() throws Exception {
+        Message2 m1 = Utils2.createDummyMessage();
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("DSA");
+        KeyPair pair1 = gen.generateKeyPair();
+        m1.setPublicKeyAndSign(pair1);
+        m1.setKey(new Number160(new Random(42l)));
+        CryptoStage cryptoStage = new CryptoStage(2);
+        Message2 m2 = encodeDecode(m1, cryptoStage);
+        // signed and verified in the worker threads
+        Assert.assertEquals(true, m2.getPublicKey() != null);
+        compareMessage(m1, m2);
+        Assert.assertEquals(1, cryptoStage.signedCount());
+        Assert.assertEquals(1, cryptoStage.verifiedCount());
+        Assert.assertEquals(0, cryptoStage.verifyFailedCount());
+    }
+
+    @Test
+    public void testCryptoStageOrder() throws Exception {
+        final int nr = 20;
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("DSA");
+        KeyPair[] pairs = new KeyPair[] { gen.generateKeyPair(), gen.generateKeyPair() };
+        final List<ByteBuf> encoded = new ArrayList<ByteBuf>();
+        for (int i = 0; i < nr; i++) {
+            Message2 m1 = Utils2.createDummyMessage().setMessageId(i);
+            // alternating keys, a batch groups the messages by key
+            m1.setPublicKeyAndSign(pairs[i % pairs.length]);
+            AtomicReference<ByteBuf> sent = new AtomicReference<ByteBuf>();
+            CountDownLatch written = new CountDownLatch(1);
+            ChannelHandlerContext ctx = mockChannelHandlerContext(Unpooled.buffer(),
+                    Unpooled.compositeBuffer(Integer.MAX_VALUE), new AtomicReference<Message2>(), sent, written,
+                    new CountDownLatch(1));
+            new TomP2POutbound(true, new DefaultSignatureFactory(), null).write(ctx, m1, null);
+            Assert.assertEquals(true, written.await(10, TimeUnit.SECONDS));
+            encoded.add(sent.get());
+        }
+
+        // the messages of a channel are decoded in its event loop
+        final EventExecutorGroup eventLoop = new DefaultEventExecutorGroup(1);
+        final List<Integer> ids = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch received = new CountDownLatch(nr);
+        final ChannelHandlerContext ctx = mockChannelHandlerContext(Unpooled.buffer(),
+                Unpooled.compositeBuffer(Integer.MAX_VALUE), new AtomicReference<Message2>(),
+                new AtomicReference<ByteBuf>(), new CountDownLatch(1), new CountDownLatch(1));
+        when(ctx.executor()).thenReturn(eventLoop.next());
+        when(ctx.fireChannelRead(any())).then(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                ids.add(((Message2) invocation.getArguments()[0]).getMessageId());
+                received.countDown();
+                return null;
+            }
+        });
+        final CryptoStage cryptoStage = new CryptoStage(4);
+        final Message2 m1 = Utils2.createDummyMessage();
+        for (final ByteBuf buf : encoded) {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    TomP2PDecoder decoder = new TomP2PDecoder(new DefaultSignatureFactory(), cryptoStage);
+                    try {
+                        if (decoder.decode(ctx, buf, m1.getRecipient().createSocketTCP(), m1.getSender()
+                                .createSocketTCP())) {
+                            decoder.fireMessage(ctx);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        Assert.assertEquals(true, received.await(10, TimeUnit.SECONDS));
+        eventLoop.shutdownGracefully();
+        // passed on in the order of arrival, even if verified in other batches
+        for (int i = 0; i < nr; i++) {
+            Assert.assertEquals(Integer.valueOf(i), ids.get(i));
+        }
+        Assert.assertEquals(nr, cryptoStage.verifiedCount());
+        Assert.assertEquals(0, cryptoStage.droppedCount());
+    }
+
     @Test
     public void testEncodeDecode480Set() throws Exception { // encode
         Message2 m1 = Utils2.createDummyMessage();
@@ -244,13 +385,37 @@ public class TestMessage {
      * @throws Exception .
      */
     private Message2 encodeDecode(final Message2 m1) throws Exception {
+        return encodeDecode(m1, null);
+    }
+
+    /**
+     * Encodes and decodes a message.
+     * 
+     * @param m1
+     *            The message the will be encoded
+     * @param cryptoStage
+     *            The stage to sign and verify the message or null to do this inline
+     * @return The message that was decoded.
+     * @throws Exception .
+     */
+    private Message2 encodeDecode(final Message2 m1, final CryptoStage cryptoStage) throws Exception {
         AtomicReference<Message2> m2 = new AtomicReference<Message2>();
-        TomP2POutbound encoder = new TomP2POutbound(true, new DefaultSignatureFactory());
+        CountDownLatch written = new CountDownLatch(1);
+        CountDownLatch received = new CountDownLatch(1);
+        AtomicReference<ByteBuf> sent = new AtomicReference<ByteBuf>();
+        TomP2POutbound encoder = new TomP2POutbound(true, new DefaultSignatureFactory(), cryptoStage);
         ByteBuf buf = Unpooled.buffer();
-        ChannelHandlerContext ctx = mockChannelHandlerContext(buf, m2);
+        CompositeByteBuf compositeBuf = Unpooled.compositeBuffer(Integer.MAX_VALUE);
+        ChannelHandlerContext ctx = mockChannelHandlerContext(buf, compositeBuf, m2, sent, written, received);
         encoder.write(ctx, m1, null);
-        TomP2PDecoder decoder = new TomP2PDecoder(new DefaultSignatureFactory());
-        decoder.decode(ctx, buf, m1.getRecipient().createSocketTCP(), m1.getSender().createSocketTCP());
+        Assert.assertEquals(true, written.await(10, TimeUnit.SECONDS));
+        // decode what was written to the channel, messages with data are copied into one datagram
+        ByteBuf encoded = sent.get();
+        TomP2PDecoder decoder = new TomP2PDecoder(new DefaultSignatureFactory(), cryptoStage);
+        if (decoder.decode(ctx, encoded, m1.getRecipient().createSocketTCP(), m1.getSender().createSocketTCP())) {
+            decoder.fireMessage(ctx);
+        }
+        Assert.assertEquals(true, received.await(10, TimeUnit.SECONDS));
         return m2.get();
     }
 
@@ -259,20 +424,44 @@ public class TestMessage {
      * 
      * @param buf
      *            The buffer to use for decoding
+     * @param compositeBuf
+     *            The buffer to use for messages with data
      * @param m2
      *            The message reference to store the result
+     * @param sent
+     *            The reference to store the buffer that was written to the channel
+     * @param written
+     *            The latch that is counted down when the message was written
+     * @param received
+     *            The latch that is counted down when the message was decoded
      * @return The mocked ChannelHandlerContext
      */
     @SuppressWarnings("unchecked")
     private ChannelHandlerContext mockChannelHandlerContext(final ByteBuf buf,
-            final AtomicReference<Message2> m2) {
+            final CompositeByteBuf compositeBuf, final AtomicReference<Message2> m2,
+            final AtomicReference<ByteBuf> sent, final CountDownLatch written, final CountDownLatch received) {
         ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
         ByteBufAllocator alloc = mock(ByteBufAllocator.class);
         when(ctx.alloc()).thenReturn(alloc);
         when(alloc.ioBuffer()).thenReturn(buf);
+        when(alloc.compositeDirectBuffer(anyInt())).thenReturn(compositeBuf);
+        when(alloc.ioBuffer(anyInt())).then(new Answer<ByteBuf>() {
+            @Override
+            public ByteBuf answer(final InvocationOnMock invocation) throws Throwable {
+                return Unpooled.buffer((Integer) invocation.getArguments()[0]);
+            }
+        });
         DatagramChannel dc = mock(DatagramChannel.class);
         when(ctx.channel()).thenReturn(dc);
-        when(ctx.writeAndFlush(any(), any(ChannelPromise.class))).thenReturn(null);
+        when(ctx.writeAndFlush(any(), any(ChannelPromise.class))).then(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                sent.set(((DatagramPacket) invocation.getArguments()[0]).content());
+                written.countDown();
+                return null;
+            }
+        });
+        when(ctx.executor()).thenReturn(ImmediateEventExecutor.INSTANCE);
 
         Attribute<InetSocketAddress> attr = mock(Attribute.class);
         when(ctx.attr(any(AttributeKey.class))).thenReturn(attr);
@@ -282,6 +471,7 @@ public class TestMessage {
             public Void answer(final InvocationOnMock invocation) throws Throwable {
                 Object[] args = invocation.getArguments();
                 m2.set((Message2) args[0]);
+                received.countDown();
                 return null;
             }
         });
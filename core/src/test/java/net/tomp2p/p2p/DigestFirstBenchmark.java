@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.p2p;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.Utils2;
+import net.tomp2p.futures.FutureGet;
+import net.tomp2p.futures.FuturePut;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.storage.Data;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmark of a get from three replicas, where either every replica sends the data, or every replica sends the hash
+ * of the data and only one replica sends the data. The latency is the benchmark score, the payload bytes that were
+ * received per get are reported as an additional counter. Run it from the test classpath with the main method.
+ *
+ * @author Thomas Bocek
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DigestFirstBenchmark {
+
+    private static final int PORT = 5223;
+
+    private static final int REPLICAS = 3;
+
+    @Param({ "100", "10000", "1000000" })
+    private int size;
+
+    private Peer[] peers;
+
+    private Number160 locationKey;
+
+    private RequestP2PConfiguration requestP2PConfiguration;
+
+    /**
+     * The bytes of data received, summed up over all gets of an iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class Transferred {
+        public long bytes;
+
+        @Setup
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        peers = Utils2.createNodes(20, new Random(42L), PORT);
+        Utils2.perfectRouting(peers);
+        locationKey = Number160.createHash("benchmark");
+        requestP2PConfiguration = new RequestP2PConfiguration(REPLICAS, 5, 0);
+        final FuturePut futurePut = peers[1].put(locationKey).setData(new Data(new byte[size]))
+                .setRequestP2PConfiguration(requestP2PConfiguration).start();
+        if (!futurePut.awaitUninterruptibly().isSuccess()) {
+            throw new IllegalStateException("could not store the data: " + futurePut.getFailedReason());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        peers[0].shutdown().awaitUninterruptibly();
+    }
+
+    @Benchmark
+    public boolean getAll(final Transferred transferred) {
+        return get(false, transferred);
+    }
+
+    @Benchmark
+    public boolean getDigestFirst(final Transferred transferred) {
+        return get(true, transferred);
+    }
+
+    private boolean get(final boolean digestFirst, final Transferred transferred) {
+        final FutureGet futureGet = peers[2].get(locationKey).setDigestFirst(digestFirst)
+                .setRequestP2PConfiguration(requestP2PConfiguration).start();
+        if (!futureGet.awaitUninterruptibly().isSuccess()) {
+            return false;
+        }
+        for (Map<Number480, Data> dataMap : futureGet.getRawData().values()) {
+            for (Data data : dataMap.values()) {
+                transferred.bytes += data.length();
+            }
+        }
+        return true;
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder().include(DigestFirstBenchmark.class.getSimpleName()).forks(1)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -29,6 +29,7 @@ import net.tomp2p.connection2.PeerConnection;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.BaseFutureImpl;
+import net.tomp2p.futures.FutureBulk;
 import net.tomp2p.futures.FutureBootstrap;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureDirect;
@@ -41,6 +42,7 @@ import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureShutdown;
 import net.tomp2p.futures.FutureSuccessEvaluatorOperation;
 import net.tomp2p.message.Buffer;
+import net.tomp2p.p2p.builder.BulkBuilder;
 import net.tomp2p.p2p.builder.DHTBuilder;
 import net.tomp2p.p2p.builder.PutBuilder;
 import net.tomp2p.peers.Number160;
@@ -51,6 +53,7 @@ import net.tomp2p.peers.PeerMap;
 import net.tomp2p.rpc.ObjectDataReply;
 import net.tomp2p.rpc.RawDataReply;
 import net.tomp2p.rpc.StorageRPC;
+import net.tomp2p.storage.CompactSerializer;
 import net.tomp2p.storage.Data;
 import net.tomp2p.storage.HashData;
 import net.tomp2p.utils.Timings;
@@ -96,6 +99,130 @@ public class TestDHT {
         }
     }
     
+    @Test
+    public void testPutGetBulk() throws Exception {
+        Peer master = null;
+        try {
+            // setup
+            Peer[] peers = Utils2.createNodes(200, rnd, 4001);
+            master = peers[0];
+            Utils2.perfectRouting(peers);
+            // location keys that are close to each other share the close peers
+            Number160 base = Number160.createHash("bulk");
+            Map<Number480, Data> dataMap = new HashMap<Number480, Data>();
+            for (int i = 0; i < 50; i++) {
+                Number480 key = new Number480(base.xor(new Number160(i)), Number160.createHash("test"),
+                        new Number160(5));
+                dataMap.put(key, new Data("bulk " + i));
+            }
+            RequestP2PConfiguration pc = new RequestP2PConfiguration(3, 5, 0);
+            FutureBulk<FuturePut> fp = peers[44].putBulk(dataMap).setRequestP2PConfiguration(pc).start();
+            fp.awaitUninterruptibly();
+            Assert.assertEquals(true, fp.isSuccess());
+            Assert.assertEquals(50, fp.getFutures().size());
+            // the first routings cover all 50 location keys, no key needs a routing of its own
+            Assert.assertTrue(fp.getRoutings() <= BulkBuilder.DEFAULT_PARALLEL_ROUTINGS);
+            // the data is on the closest peers
+            for (Number480 key : dataMap.keySet()) {
+                Assert.assertEquals(true, fp.getFuture(key.getLocationKey()).isSuccess());
+                TreeSet<PeerAddress> closest = new TreeSet<PeerAddress>(PeerMap.createComparator(key
+                        .getLocationKey()));
+                for (Peer peer : peers) {
+                    closest.add(peer.getPeerAddress());
+                }
+                for (Peer peer : peers) {
+                    if (peer.getPeerAddress().equals(closest.first())) {
+                        Assert.assertNotNull(peer.getPeerBean().storage()
+                                .get(key.getLocationKey(), key.getDomainKey(), key.getContentKey()));
+                    }
+                }
+            }
+            FutureBulk<FutureGet> fg = peers[77].getBulk(dataMap.keySet()).setRequestP2PConfiguration(pc).start();
+            fg.awaitUninterruptibly();
+            Assert.assertEquals(true, fg.isSuccess());
+            Assert.assertTrue(fg.getRoutings() <= BulkBuilder.DEFAULT_PARALLEL_ROUTINGS);
+            for (Map.Entry<Number480, Data> entry : dataMap.entrySet()) {
+                FutureGet futureGet = fg.getFuture(entry.getKey().getLocationKey());
+                Assert.assertEquals(true, futureGet.isSuccess());
+                Assert.assertEquals(entry.getValue().object(), futureGet.getData().object());
+            }
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testPutBulkSmallNetwork() throws Exception {
+        Peer master = null;
+        try {
+            // setup
+            Peer[] peers = Utils2.createNodes(5, rnd, 4001);
+            master = peers[0];
+            Utils2.perfectRouting(peers);
+            Map<Number480, Data> dataMap = new HashMap<Number480, Data>();
+            for (int i = 0; i < 50; i++) {
+                Number480 key = new Number480(Number160.createHash("bulk " + i), Number160.createHash("test"),
+                        new Number160(5));
+                dataMap.put(key, new Data("bulk " + i));
+            }
+            RequestP2PConfiguration pc = new RequestP2PConfiguration(3, 5, 0);
+            FutureBulk<FuturePut> fp = peers[1].putBulk(dataMap).setRequestP2PConfiguration(pc).start();
+            fp.awaitUninterruptibly();
+            Assert.assertEquals(true, fp.isSuccess());
+            // every routing sees all peers, so the first routings cover all location keys
+            Assert.assertTrue(fp.getRoutings() <= BulkBuilder.DEFAULT_PARALLEL_ROUTINGS);
+            for (Number480 key : dataMap.keySet()) {
+                Assert.assertEquals(true, fp.getFuture(key.getLocationKey()).isSuccess());
+            }
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testGetDigestFirst() throws Exception {
+        Peer master = null;
+        try {
+            // setup
+            Peer[] peers = Utils2.createNodes(100, rnd, 4001);
+            master = peers[0];
+            Utils2.perfectRouting(peers);
+            Number160 locationKey = Number160.createHash("digest first");
+            RequestP2PConfiguration pc = new RequestP2PConfiguration(3, 5, 0);
+            FuturePut fp = peers[12].put(locationKey).setData(new Data("majority")).setRequestP2PConfiguration(pc)
+                    .start();
+            fp.awaitUninterruptibly();
+            Assert.assertEquals(true, fp.isSuccess());
+            // the closest replica disagrees with the others
+            TreeSet<PeerAddress> closest = new TreeSet<PeerAddress>(PeerMap.createComparator(locationKey));
+            for (Peer peer : peers) {
+                closest.add(peer.getPeerAddress());
+            }
+            for (Peer peer : peers) {
+                if (peer.getPeerAddress().equals(closest.first())) {
+                    peer.getPeerBean().storage().put(locationKey, DHTBuilder.DEFAULT_DOMAIN, Number160.ZERO,
+                            new Data("minority"), null, false, false);
+                }
+            }
+            // do testing
+            FutureGet fg = peers[34].get(locationKey).setDigestFirst().setRequestP2PConfiguration(pc).start();
+            fg.awaitUninterruptibly();
+            Assert.assertEquals(true, fg.isSuccess());
+            Assert.assertEquals(3, fg.getRawDigest().size());
+            // the data is only transferred once
+            Assert.assertEquals(1, fg.getRawData().size());
+            Assert.assertEquals("majority", fg.getData().object());
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
     @Test
     public void testPut() throws Exception {
         Peer master = null;
@@ -833,6 +960,48 @@ public class TestDHT {
         }
     }
 
+    /**
+     * A peer with the compact serializer sends objects to a peer with the Java serialization, which can decode them.
+     * Replies are encoded in the format of the request.
+     */
+    @Test
+    public void testObjectSendMixedSerializer() throws Exception {
+        Peer p1 = null;
+        Peer p2 = null;
+        try {
+            p1 = new PeerMaker(new Number160(rnd)).ports(4001).serializer(new CompactSerializer()).makeAndListen();
+            p2 = new PeerMaker(new Number160(rnd)).ports(4002).makeAndListen();
+            ObjectDataReply reply = new ObjectDataReply() {
+                @Override
+                public Object reply(PeerAddress sender, Object request) throws Exception {
+                    return "reply " + request;
+                }
+            };
+            p1.setObjectDataReply(reply);
+            p2.setObjectDataReply(reply);
+            FutureResponse futureData = p1.sendDirect(p2.getPeerAddress()).setObject("hello").start();
+            futureData.awaitUninterruptibly();
+            Assert.assertEquals(true, futureData.isSuccess());
+            Assert.assertEquals("reply hello", futureData.getResponse().getBuffer(0).object());
+            // the reply has the format of the request
+            byte first = futureData.getResponse().getBuffer(0).buffer().getByte(0);
+            Assert.assertEquals(CompactSerializer.SCHEMA_TAG, first);
+            futureData = p2.sendDirect(p1.getPeerAddress()).setObject("world").start();
+            futureData.awaitUninterruptibly();
+            Assert.assertEquals(true, futureData.isSuccess());
+            Assert.assertEquals("reply world", futureData.getResponse().getBuffer(0).object());
+            first = futureData.getResponse().getBuffer(0).buffer().getByte(0);
+            Assert.assertEquals(true, first != CompactSerializer.SCHEMA_TAG);
+        } finally {
+            if (p1 != null) {
+                p1.shutdown().await();
+            }
+            if (p2 != null) {
+                p2.shutdown().await();
+            }
+        }
+    }
+
     @Test
     public void testObjectSend() throws Exception {
         Peer master = null;
@@ -1087,6 +1256,98 @@ public class TestDHT {
         }
     }
 
+    @Test
+    public void testTreeBroadcast() throws Exception {
+        Peer master = null;
+        try {
+            // setup
+            Peer[] peers = new Peer[1000];
+            master = new PeerMaker(new Number160(rnd)).setEnableTreeBroadcast(true).ports(4001).makeAndListen();
+            peers[0] = master;
+            for (int i = 1; i < peers.length; i++) {
+                peers[i] = new PeerMaker(new Number160(rnd)).setEnableTreeBroadcast(true).masterPeer(master)
+                        .makeAndListen();
+            }
+            Utils2.perfectRouting(peers);
+            // do testing
+            master.broadcast(Number160.createHash("blub")).start();
+            int counter = 0;
+            int reached;
+            while ((reached = treeBroadcastReached(peers)) < peers.length) {
+                Thread.sleep(200);
+                counter++;
+                if (counter > 100) {
+                    Assert.fail("did not broadcast to 1000 peers, but to " + reached);
+                }
+            }
+            // with consistent peer maps, every peer gets the message exactly once
+            for (Peer peer : peers) {
+                TreeBroadcastHandler handler = (TreeBroadcastHandler) peer.getBroadcastRPC().broadcastHandler();
+                Assert.assertEquals(0, handler.duplicates());
+                Assert.assertEquals(1.0, handler.redundancyRatio(), 0.0);
+            }
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testTreeBroadcastOffline() throws Exception {
+        Peer master = null;
+        try {
+            // setup
+            Peer[] peers = new Peer[200];
+            master = new PeerMaker(new Number160(rnd)).setEnableTreeBroadcast(true).ports(4001).makeAndListen();
+            peers[0] = master;
+            for (int i = 1; i < peers.length; i++) {
+                peers[i] = new PeerMaker(new Number160(rnd)).setEnableTreeBroadcast(true).masterPeer(master)
+                        .makeAndListen();
+            }
+            Utils2.perfectRouting(peers);
+            // the peer maps still contain the offline peers
+            final int offline = 10;
+            for (int i = 1; i <= offline; i++) {
+                peers[i].shutdown().awaitUninterruptibly();
+            }
+            Peer[] online = new Peer[peers.length - offline];
+            online[0] = master;
+            System.arraycopy(peers, offline + 1, online, 1, online.length - 1);
+            // do testing
+            master.broadcast(Number160.createHash("blub")).start();
+            int counter = 0;
+            int reached;
+            while ((reached = treeBroadcastReached(online)) < online.length) {
+                Thread.sleep(200);
+                counter++;
+                if (counter > 300) {
+                    Assert.fail("did not broadcast to " + online.length + " peers, but to " + reached);
+                }
+            }
+            // the messages to the offline peers are not acknowledged and sent to other peers of the same bag
+            long retries = 0;
+            for (Peer peer : online) {
+                retries += ((TreeBroadcastHandler) peer.getBroadcastRPC().broadcastHandler()).retries();
+            }
+            Assert.assertTrue(retries > 0);
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
+    private static int treeBroadcastReached(final Peer[] peers) {
+        int reached = 0;
+        for (Peer peer : peers) {
+            if (((TreeBroadcastHandler) peer.getBroadcastRPC().broadcastHandler()).received() > 0) {
+                reached++;
+            }
+        }
+        return reached;
+    }
+
     /**
      * Test the quit messages if they set a peer as offline.
      * 
@@ -9,18 +9,23 @@ import java.util.List;
 import java.util.Random;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import net.tomp2p.Utils2;
 import net.tomp2p.connection2.ChannelCreator;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureRouting;
 import net.tomp2p.futures.FutureWrapper;
 import net.tomp2p.message.Message2.Type;
 import net.tomp2p.p2p.builder.RoutingBuilder;
+import net.tomp2p.peers.DefaultMaintenance;
+import net.tomp2p.peers.DefaultPeerFilter;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerMapConfiguration;
 import net.tomp2p.utils.Utils;
 
 import org.junit.Assert;
@@ -798,4 +803,40 @@ public class TestRouting {
             }
         }
     }
+
+    /**
+     * Among the close peers in the same distance class, the one with the lowest round-trip time is asked first.
+     */
+    @Test
+    public void testProximity() {
+        PeerMapConfiguration conf = new PeerMapConfiguration(new Number160(0x1));
+        conf.bagSizeVerified(10).bagSizeOverflow(10);
+        conf.offlineCount(1000).offlineTimeout(60);
+        conf.peerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+        PeerMap peerMap = new PeerMap(conf);
+        Number160 key = new Number160(0x100);
+        // 0x104 to 0x106 are in the same distance class, 0x110 is further away
+        PeerAddress slow = new PeerAddress(new Number160(0x104));
+        PeerAddress unknown = new PeerAddress(new Number160(0x105));
+        PeerAddress fast = new PeerAddress(new Number160(0x106));
+        PeerAddress far = new PeerAddress(new Number160(0x110));
+        TreeSet<PeerAddress> queue = new TreeSet<PeerAddress>(PeerMap.createComparator(key));
+        for (PeerAddress peerAddress : new PeerAddress[] { slow, unknown, fast, far }) {
+            peerMap.peerFound(peerAddress, null);
+            queue.add(peerAddress);
+        }
+        peerMap.peerStatistic(slow).addRTT(100);
+        peerMap.peerStatistic(fast).addRTT(10);
+        peerMap.peerStatistic(far).addRTT(1);
+
+        RoutingMechanism routingMechanism = new RoutingMechanism(new AtomicReferenceArray<FutureResponse>(1),
+                new FutureRouting());
+        routingMechanism.queueToAsk(queue);
+        Assert.assertEquals(fast, routingMechanism.pollProximityInQueueToAsk(key, peerMap, 4));
+        Assert.assertEquals(slow, routingMechanism.pollProximityInQueueToAsk(key, peerMap, 4));
+        // with one candidate, its XOR order
+        Assert.assertEquals(unknown, routingMechanism.pollProximityInQueueToAsk(key, peerMap, 1));
+        Assert.assertEquals(far, routingMechanism.pollProximityInQueueToAsk(key, peerMap, 4));
+        Assert.assertNull(routingMechanism.pollProximityInQueueToAsk(key, peerMap, 4));
+    }
 }
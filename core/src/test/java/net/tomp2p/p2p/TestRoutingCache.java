@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.p2p;
+
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import net.tomp2p.peers.DefaultMaintenance;
+import net.tomp2p.peers.DefaultPeerFilter;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerMapConfiguration;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the cache of routing results.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class TestRoutingCache {
+
+    private static final Number160 ID = new Number160("0x1");
+
+    /**
+     * Hits, misses, and saved RPCs are counted.
+     */
+    @Test
+    public void testHitRate() {
+        final RoutingCache routingCache = new RoutingCache();
+        final Number160 locationKey = new Number160("0x10");
+        Assert.assertNull(routingCache.get(locationKey));
+        routingCache.put(locationKey, closePeers(locationKey, 0x11, 0x12, 0x13), 5);
+        final RoutingCache.Route route = routingCache.get(locationKey);
+        Assert.assertNotNull(route);
+        Assert.assertEquals(5, route.rpcs());
+        Assert.assertEquals(new PeerAddress(new Number160("0x11")), route.closePeers().first());
+        routingCache.saved(route.rpcs());
+        routingCache.saved(-1);
+        Assert.assertEquals(1, routingCache.hitCount());
+        Assert.assertEquals(1, routingCache.missCount());
+        Assert.assertEquals(0.5, routingCache.hitRate(), 0);
+        Assert.assertEquals(5, routingCache.savedRPCs());
+    }
+
+    /**
+     * A route is removed if one of its peers is removed from the peer map.
+     */
+    @Test
+    public void testInvalidation() {
+        final PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.bagSizeVerified(4).bagSizeOverflow(4);
+        conf.offlineCount(1000).offlineTimeout(60);
+        conf.peerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+        final PeerMap peerMap = new PeerMap(conf);
+        final RoutingCache routingCache = new RoutingCache();
+        peerMap.addPeerMapChangeListener(routingCache);
+
+        final PeerAddress failing = new PeerAddress(new Number160("0x12"));
+        peerMap.peerFound(failing, null);
+        final Number160 locationKey1 = new Number160("0x10");
+        final Number160 locationKey2 = new Number160("0x20");
+        routingCache.put(locationKey1, closePeers(locationKey1, 0x11, 0x12), 3);
+        routingCache.put(locationKey2, closePeers(locationKey2, 0x21, 0x22), 3);
+        Assert.assertEquals(2, routingCache.size());
+
+        peerMap.peerFailed(failing, true);
+        Assert.assertNull(routingCache.get(locationKey1));
+        Assert.assertNotNull(routingCache.get(locationKey2));
+    }
+
+    private static NavigableSet<PeerAddress> closePeers(final Number160 locationKey, final int... ids) {
+        final NavigableSet<PeerAddress> closePeers = new TreeSet<PeerAddress>(PeerMap.createComparator(locationKey));
+        for (int id : ids) {
+            closePeers.add(new PeerAddress(new Number160(id)));
+        }
+        return closePeers;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.peers;
+
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Micro benchmark for the close peer lookups of the {@link PeerMap}. Run it from the test classpath with the main
+ * method, or with "-prof gc" on the JMH command line to see the allocation rate.
+ *
+ * @author Thomas Bocek
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PeerMapBenchmark {
+
+    @Param({ "10000", "100000" })
+    private int peers;
+
+    @Param({ "20" })
+    private int number;
+
+    private PeerMap peerMap;
+
+    private Number160[] keys;
+
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42L);
+        final PeerMapConfiguration conf = new PeerMapConfiguration(new Number160(random));
+        // large bags, so that all peers are kept in the verified map
+        conf.bagSizeVerified(peers).bagSizeOverflow(1);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.peerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+        peerMap = new PeerMap(conf);
+        for (int i = 0; i < peers; i++) {
+            final PeerAddress peerAddress = new PeerAddress(new Number160(random));
+            peerMap.peerFound(peerAddress, null);
+        }
+        keys = new Number160[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Number160(random);
+        }
+    }
+
+    private Number160 nextKey() {
+        next = (next + 1) & (keys.length - 1);
+        return keys[next];
+    }
+
+    @Benchmark
+    public Collection<PeerAddress> closePeers() {
+        return peerMap.closePeers(nextKey(), number);
+    }
+
+    @Benchmark
+    public Collection<PeerAddress> closestPeers() {
+        return peerMap.closestPeers(nextKey(), number);
+    }
+
+    @Benchmark
+    public int compareDistance() {
+        final Number160 key = nextKey();
+        return key.compareDistance(keys[(next + 1) & (keys.length - 1)], keys[(next + 2) & (keys.length - 1)]);
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder().include(PeerMapBenchmark.class.getSimpleName()).forks(1)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NavigableSet;
@@ -529,4 +530,73 @@ public class TestPeerMap {
             }
         }
     }
+
+    @Test
+    public void testClosestPeers() throws UnknownHostException {
+        Random rnd = new Random(42);
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.bagSizeVerified(1000).bagSizeOverflow(10);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.peerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+        final PeerMap peerMap = new PeerMap(conf);
+        List<PeerAddress> peers = new ArrayList<PeerAddress>();
+        for (int i = 0; i < 500; i++) {
+            PeerAddress r1 = new PeerAddress(new Number160(rnd));
+            peers.add(r1);
+            peerMap.peerFound(r1, null);
+        }
+        Assert.assertEquals(0, peerMap.getAllOverflow().size());
+        for (int j = 0; j < 100; j++) {
+            Number160 key = j == 0 ? ID : new Number160(rnd);
+            Collections.sort(peers, PeerMap.createComparator(key));
+            for (int number : new int[] { 1, 5, 20, 600 }) {
+                List<PeerAddress> closest = peerMap.closestPeers(key, number);
+                Assert.assertEquals(peers.subList(0, Math.min(number, peers.size())), closest);
+                // the same peers come first as with close peers
+                Iterator<PeerAddress> iterator = peerMap.closePeers(key, number).iterator();
+                for (PeerAddress peerAddress : closest) {
+                    Assert.assertEquals(peerAddress, iterator.next());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCompareDistance() {
+        Random rnd = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            Number160 key = new Number160(rnd);
+            Number160 key1 = rnd.nextBoolean() ? new Number160(rnd) : key.xor(new Number160(rnd.nextInt()));
+            Number160 key2 = rnd.nextInt(10) == 0 ? key1 : new Number160(rnd);
+            Assert.assertEquals(Integer.signum(key.xor(key1).compareTo(key.xor(key2))),
+                    key.compareDistance(key1, key2));
+            Assert.assertEquals(key.xor(key1).bitLength(), key.distanceBitLength(key1));
+        }
+        Assert.assertEquals(0, ID.distanceBitLength(ID));
+    }
+
+    @Test
+    public void testRTT() {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.bagSizeVerified(4).bagSizeOverflow(4);
+        conf.offlineCount(1000).offlineTimeout(60);
+        conf.peerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+        PeerMap peerMap = new PeerMap(conf);
+        PeerAddress pa = new PeerAddress(new Number160("0x2"));
+        Assert.assertNull(peerMap.peerStatistic(pa));
+        peerMap.peerFound(pa, null);
+        PeerStatatistic peerStatatistic = peerMap.peerStatistic(pa);
+        Assert.assertEquals(-1, peerStatatistic.getSmoothedRTT());
+        Assert.assertEquals(-1, peerStatatistic.getRTO());
+        // the first measurement sets the RTT, the variance is half of it
+        peerStatatistic.addRTT(80);
+        Assert.assertEquals(80, peerStatatistic.getSmoothedRTT());
+        Assert.assertEquals(40, peerStatatistic.getRTTVariance());
+        Assert.assertEquals(240, peerStatatistic.getRTO());
+        // then 1/8 of the new RTT and 1/4 of the new deviation
+        peerStatatistic.addRTT(160);
+        Assert.assertEquals(90, peerStatatistic.getSmoothedRTT());
+        Assert.assertEquals(50, peerStatatistic.getRTTVariance());
+        Assert.assertEquals(290, peerStatatistic.getRTO());
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.replication;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Micro benchmark of the delta synchronization for large values with a few changes. 100 bytes are inserted in the
+ * middle of the old value, which shifts all following blocks, and 100 random bytes are changed. Run it from the test
+ * classpath with the main method, e.g., with -p sizeMB=1 for a quick run.
+ *
+ * @author Thomas Bocek
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SynchronizationBenchmark {
+
+    private static final int BLOCK_SIZE = 2048;
+
+    private static final int CHANGES = 100;
+
+    @Param({ "1", "10", "100" })
+    private int sizeMB;
+
+    private byte[] oldValue;
+
+    private byte[] newValue;
+
+    private ArrayList<Checksum> checksums;
+
+    private ByteBuf delta;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+        oldValue = new byte[sizeMB * 1024 * 1024];
+        random.nextBytes(oldValue);
+        newValue = new byte[oldValue.length + CHANGES];
+        final int middle = oldValue.length / 2;
+        System.arraycopy(oldValue, 0, newValue, 0, middle);
+        System.arraycopy(oldValue, middle, newValue, middle + CHANGES, oldValue.length - middle);
+        for (int i = 0; i < CHANGES; i++) {
+            newValue[random.nextInt(newValue.length)] ^= 1;
+        }
+        checksums = Synchronization.getChecksums(oldValue, BLOCK_SIZE);
+        delta = Unpooled.buffer();
+    }
+
+    @Benchmark
+    public ArrayList<Checksum> checksums() {
+        return Synchronization.getChecksums(oldValue, BLOCK_SIZE);
+    }
+
+    @Benchmark
+    public ByteBuf delta() {
+        delta.clear();
+        return Synchronization.getDelta(newValue, checksums, BLOCK_SIZE, delta);
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder().include(SynchronizationBenchmark.class.getSimpleName())
+                .forks(1).build();
+        new Runner(options).run();
+    }
+}
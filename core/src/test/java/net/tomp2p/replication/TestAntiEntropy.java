@@ -0,0 +1,103 @@
+package net.tomp2p.replication;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.PeerMaker;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.storage.Data;
+import net.tomp2p.storage.StorageGeneric;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestAntiEntropy {
+    private static final Number160 LOCATION_KEY = new Number160(33);
+
+    @Test
+    public void testMerkleTree() throws Exception {
+        Random rnd = new Random(42);
+        Map<Number480, Data> entries1 = new TreeMap<Number480, Data>();
+        for (int i = 0; i < 1000; i++) {
+            entries1.put(new Number480(LOCATION_KEY, Number160.ZERO, new Number160(rnd)), new Data(i));
+        }
+        Map<Number480, Data> entries2 = new TreeMap<Number480, Data>(entries1);
+        int depth = MerkleTree.depth(entries1.size());
+        Assert.assertEquals(7, depth);
+        MerkleTree tree1 = new MerkleTree(entries1, depth);
+        Assert.assertEquals(tree1.hash(1), new MerkleTree(entries2, depth).hash(1));
+        // change one entry, only the path to its leaf differs
+        Number480 changed = entries2.keySet().iterator().next();
+        entries2.put(changed, new Data(-1));
+        MerkleTree tree2 = new MerkleTree(entries2, depth);
+        Set<Integer> path = new HashSet<Integer>();
+        for (int node = tree1.leaf(changed); node > 0; node >>= 1) {
+            path.add(node);
+        }
+        for (int node = 1; node < (2 << depth); node++) {
+            Assert.assertEquals(path.contains(node), !tree1.hash(node).equals(tree2.hash(node)));
+        }
+        Assert.assertEquals(entries1.size(), tree1.keys(1).size());
+        List<Integer> children = tree1.descendants(1, AntiEntropy.DESCEND_LEVELS);
+        Assert.assertEquals(16, children.size());
+        Assert.assertEquals(Number160.ZERO, new MerkleTree(new TreeMap<Number480, Data>(), depth).hash(1));
+    }
+
+    @Test
+    public void testAntiEntropy() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        try {
+            sender = new PeerMaker(new Number160("0x50")).p2pId(55).ports(2424).makeAndListen();
+            recv1 = new PeerMaker(new Number160("0x20")).p2pId(55).ports(8088).makeAndListen();
+            StorageGeneric storeSender = sender.getPeerBean().storage();
+            StorageGeneric storeRecv = recv1.getPeerBean().storage();
+            Random rnd = new Random(42);
+            for (int i = 0; i < 100; i++) {
+                Number160 contentKey = new Number160(rnd);
+                storeSender.put(LOCATION_KEY, Number160.ZERO, contentKey, new Data(i));
+                // the replica misses 10 entries and has one in a different version
+                if (i == 0) {
+                    storeRecv.put(LOCATION_KEY, Number160.ZERO, contentKey, new Data(-1));
+                } else if (i > 10) {
+                    storeRecv.put(LOCATION_KEY, Number160.ZERO, contentKey, new Data(i));
+                }
+            }
+            AntiEntropyStatistics statistics = new AntiEntropyStatistics();
+            FutureDone<Void> future = new AntiEntropy(sender).synchronize(recv1.getPeerAddress(), LOCATION_KEY,
+                    statistics);
+            future.awaitUninterruptibly();
+            Assert.assertEquals(true, future.isSuccess());
+            Assert.assertEquals(11, statistics.entriesSent());
+            Assert.assertEquals(100, statistics.entries());
+            Assert.assertTrue(statistics.bytesSaved() > 0);
+            Map<Number480, Data> expected = storeSender.subMap(LOCATION_KEY);
+            Map<Number480, Data> actual = storeRecv.subMap(LOCATION_KEY);
+            Assert.assertEquals(expected.keySet(), actual.keySet());
+            for (Map.Entry<Number480, Data> entry : expected.entrySet()) {
+                Assert.assertEquals(entry.getValue().hash(), actual.get(entry.getKey()).hash());
+            }
+            // in sync now, nothing is sent
+            statistics = new AntiEntropyStatistics();
+            future = new AntiEntropy(sender).synchronize(recv1.getPeerAddress(), LOCATION_KEY, statistics);
+            future.awaitUninterruptibly();
+            Assert.assertEquals(true, future.isSuccess());
+            Assert.assertEquals(0, statistics.entriesSent());
+            Assert.assertEquals(1, statistics.requests());
+        } finally {
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
-package net.tomp2p.test;
+package net.tomp2p.replication;
 
 import static org.junit.Assert.*;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 
 import java.io.IOException;
 import java.math.BigInteger;
@@ -9,12 +11,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.atomic.AtomicReference;
 
-import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.connection2.ChannelCreator;
 import net.tomp2p.futures.FutureChannelCreator;
-import net.tomp2p.futures.FutureDHT;
-import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.message.Buffer;
 import net.tomp2p.message.DataMap;
@@ -22,22 +21,16 @@ import net.tomp2p.message.Message2.Type;
 import net.tomp2p.p2p.Peer;
 import net.tomp2p.p2p.PeerMaker;
 import net.tomp2p.p2p.builder.DHTBuilder;
-import net.tomp2p.p2p.builder.PutBuilder;
 import net.tomp2p.p2p.builder.SynchronizationBuilder;
-import net.tomp2p.p2p.builder.SynchronizationStatistics;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number480;
-import net.tomp2p.replication.Checksum;
-import net.tomp2p.replication.Instruction;
-import net.tomp2p.replication.Synchronization;
 import net.tomp2p.storage.Data;
 import net.tomp2p.utils.Utils;
 
-import org.hamcrest.Matcher;
 import org.junit.Assert;
 import org.junit.Test;
 
-public class SynchronizationTest {
+public class TestSynchronization {
 
     @Test
     public void testGetAdler() throws IOException {
@@ -241,217 +234,6 @@ public class SynchronizationTest {
              assertArrayEquals(newValue.getBytes(), reconstructedValue);
     }        
 
-    @Test
-    public void testInfoMessageSAME() throws IOException, InterruptedException {
-        
-        final AtomicReference<Type> ref = new AtomicReference<Type>(Type.UNKNOWN_ID);
-        final AtomicReference<DataMap> ref2 = new AtomicReference<DataMap>();
-        
-        final Peer sender = new PeerMaker(new Number160(1)).ports(4001).makeAndListen();
-        final Peer receiver = new PeerMaker(new Number160(2)).ports(4002).makeAndListen();
-        
-        final Number160 locationKey = new Number160(100);
-        final Number160 domainKey = DHTBuilder.DEFAULT_DOMAIN;
-        final Number160 contentKey = Number160.ZERO;
-        final String value = "Test";
-        
-        HashMap<Number480, Data> map = new HashMap<Number480, Data>();
-        final DataMap dataMap = new DataMap(map);
-        map.put(new Number480(locationKey, domainKey, contentKey), new Data("Test"));
-        
-        FutureDHT f1 = sender.put(locationKey).setData(new Data(value)).start();
-        f1.awaitUninterruptibly();
-        FutureDHT f2 = receiver.put(locationKey).setData(new Data(value)).start();
-        f2.awaitUninterruptibly();
-        
-        sender.bootstrap().setPeerAddress(receiver.getPeerAddress()).start().awaitUninterruptibly();
-        
-        FutureChannelCreator futureChannelCreator = sender.getConnectionBean().reservation().create(0, 1);
-        futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
-            @Override
-            public void operationComplete(final FutureChannelCreator future2) throws Exception {
-                if (future2.isSuccess()) {
-                    SynchronizationBuilder synchronizationBuilder = new SynchronizationBuilder(sender, receiver.getPeerAddress());
-                    synchronizationBuilder.dataMap(dataMap);
-                    final FutureResponse futureResponse = sender.getSynchronizationRPC().infoMessage(receiver.getPeerAddress(), synchronizationBuilder, future2.getChannelCreator());
-                    futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
-                        @Override
-                        public void operationComplete(FutureResponse future) throws Exception {
-                            System.err.println(future.getFailedReason());
-                            ref.set(future.getResponse().getType());
-                            ref2.set(future.getResponse().getDataMap(0));
-                            Utils.addReleaseListener(future2.getChannelCreator(), futureResponse);
-                        }
-                    });
-                }
-            }
-        });
-        Thread.sleep(500);
-        assertEquals(Type.OK, ref.get());
-        assertEquals(1, ref2.get().size());
-        assertEquals(0, ref2.get().dataMap().values().iterator().next().toBytes()[0]);
-    }
-
-    @Test
-    public void testInfoMessageNO() throws IOException, InterruptedException {
-        
-        final AtomicReference<DataMap> ref = new AtomicReference<DataMap>();
-        
-        final Peer sender = new PeerMaker(new Number160(3)).ports(4003).makeAndListen();
-        final Peer receiver = new PeerMaker(new Number160(4)).ports(4004).makeAndListen();
-        
-        final Number160 locationKey = new Number160(200);
-        final Number160 domainKey = DHTBuilder.DEFAULT_DOMAIN;
-        final Number160 contentKey = Number160.ZERO;
-        final String value = "Test";
-        
-        HashMap<Number480, Data> map = new HashMap<Number480, Data>();
-        final DataMap dataMap = new DataMap(map);
-        map.put(new Number480(locationKey, domainKey, contentKey), new Data("Test"));
-        
-        FutureDHT f1 = sender.put(locationKey).setData(new Data(value)).start();
-        f1.awaitUninterruptibly();
-        
-        sender.bootstrap().setPeerAddress(receiver.getPeerAddress()).start().awaitUninterruptibly();
-        
-        FutureChannelCreator futureChannelCreator = sender.getConnectionBean().reservation().create(0, 1);
-        futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
-            @Override
-            public void operationComplete(final FutureChannelCreator future2) throws Exception {
-                if (future2.isSuccess()) {
-                    SynchronizationBuilder synchronizationBuilder = new SynchronizationBuilder(sender, receiver.getPeerAddress());
-                    synchronizationBuilder.dataMap(dataMap);
-                    final FutureResponse futureResponse = sender.getSynchronizationRPC().infoMessage(receiver.getPeerAddress(), synchronizationBuilder, future2.getChannelCreator());
-                    futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
-                        @Override
-                        public void operationComplete(FutureResponse future) throws Exception {
-                            ref.set(future.getResponse().getDataMap(0));
-                            Utils.addReleaseListener(future2.getChannelCreator(), futureResponse);
-                        }
-                    });
-                }
-            }
-        });
-        
-        Thread.sleep(500);
-        assertEquals(1, ref.get().size());
-        assertEquals(1, ref.get().dataMap().values().iterator().next().toBytes()[0]);
-    }
-    
-//    private static Type actualNOTSAME;
-//    
-//    static void infoMessageNOTSAME(Type a) {
-//        actualNOTSAME=a;
-//    }
-
-    @Test
-    public void testInfoMessageNOTSAME() throws IOException, InterruptedException {
-        
-        final AtomicReference<DataMap> ref = new AtomicReference<DataMap>();
-        
-        final Peer sender = new PeerMaker(new Number160(5)).ports(4005).makeAndListen();
-        final Peer receiver = new PeerMaker(new Number160(6)).ports(4006).makeAndListen();
-        
-        final Number160 locationKey = new Number160(300);
-        final Number160 domainKey = DHTBuilder.DEFAULT_DOMAIN;
-        final Number160 contentKey = Number160.ZERO;
-       
-        final String value = "Test";
-        final String value1 = "Test1";
-        
-        FutureDHT f1 = sender.put(locationKey).setData(new Data(value)).start();
-        f1.awaitUninterruptibly();
-        FutureDHT f2 = receiver.put(locationKey).setData(new Data(value1)).start();
-        f2.awaitUninterruptibly();
-        
-        HashMap<Number480, Data> map = new HashMap<Number480, Data>();
-        final DataMap dataMap = new DataMap(map);
-        map.put(new Number480(locationKey, domainKey, contentKey), new Data("Test"));
-        
-        sender.bootstrap().setPeerAddress(receiver.getPeerAddress()).start().awaitUninterruptibly();
-        
-        FutureChannelCreator futureChannelCreator = sender.getConnectionBean().reservation().create(0, 1);
-        futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
-            @Override
-            public void operationComplete(final FutureChannelCreator future2) throws Exception {
-                if (future2.isSuccess()) {
-                    SynchronizationBuilder synchronizationBuilder = new SynchronizationBuilder(sender, receiver.getPeerAddress());
-                    synchronizationBuilder.dataMap(dataMap);
-                    final FutureResponse futureResponse = sender.getSynchronizationRPC().infoMessage(receiver.getPeerAddress(), synchronizationBuilder, future2.getChannelCreator());
-                    futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
-                        @Override
-                        public void operationComplete(FutureResponse future) throws Exception {
-                            ref.set(future.getResponse().getDataMap(0));
-                            Utils.addReleaseListener(future2.getChannelCreator(), futureResponse);
-                        }
-                    });
-                }
-            }
-        });
-
-        Thread.sleep(500);
-        assertEquals(1, ref.get().size());
-        assertEquals(0, ref.get().dataMap().values().iterator().next().toBytes()[0]);
-    }
-
-    @Test
-    public void testSyncMessageDiff() throws IOException, InterruptedException, ClassNotFoundException {
-        final Peer sender = new PeerMaker(new Number160(9)).ports(4009).makeAndListen();
-        final Peer receiver = new PeerMaker(new Number160(10)).ports(4010).makeAndListen();
-        
-        
-        final Number160 locationKey = new Number160(500);
-        final Number160 domainKey = DHTBuilder.DEFAULT_DOMAIN;
-        final Number160 contentKey = Number160.ZERO;
-        Number480 key = new Number480(locationKey, domainKey, contentKey);
-        final String newValue = "Test1Test2Test3Test4";
-        final String oldValue = "test0Test2test0Test4";
-        
-        Data test1 = new Data(newValue.getBytes());
-        Data test2 = new Data(oldValue.getBytes());
-        
-        sender.put(locationKey).setData(test1).start().awaitUninterruptibly();
-        receiver.put(locationKey).setData(test2).start().awaitUninterruptibly();
-        
-        FutureDone<SynchronizationStatistics> future = sender.synchronize(receiver.getPeerAddress()).key(key).start();
-        future.awaitUninterruptibly();
-        
-        System.err.println(future.getObject().toString());
-        
-        Thread.sleep(1000);
-        
-        Data data = receiver.getPeerBean().storage().get(locationKey, domainKey, contentKey);
-        byte[] reconstructedValue = data.toBytes();
-        assertArrayEquals(newValue.getBytes(), reconstructedValue);
-    }
-    
-    @Test
-    public void testSyncMessageCopy() throws IOException, InterruptedException, ClassNotFoundException {
-        final Peer sender = new PeerMaker(new Number160(11)).ports(4011).makeAndListen();
-        final Peer receiver = new PeerMaker(new Number160(12)).ports(4012).makeAndListen();
-        
-        
-        final Number160 locationKey = new Number160(600);
-        final Number160 domainKey = DHTBuilder.DEFAULT_DOMAIN;
-        final Number160 contentKey = Number160.ZERO;
-        Number480 key = new Number480(locationKey, domainKey, contentKey);
-        final String newValue = "Test1Test2Test3Test4";
-        
-        Data test1 = new Data(newValue.getBytes());
-        
-        sender.put(locationKey).setData(test1).start().awaitUninterruptibly();
-        
-        FutureDone<SynchronizationStatistics> future = sender.synchronize(receiver.getPeerAddress()).key(key).start();
-        future.awaitUninterruptibly();
-        
-        System.err.println(future.getObject().toString());
-        Thread.sleep(1000);
-        
-        Data data = receiver.getPeerBean().storage().get(locationKey, domainKey, contentKey);
-        byte[] reconstructedValue = data.toBytes();
-        assertArrayEquals(newValue.getBytes(), reconstructedValue);        
-    }    
-    
     @Test
     public void testGetObjectAndBuffer() throws NoSuchAlgorithmException, IOException, ClassNotFoundException {
         Synchronization synchronization = new Synchronization();
@@ -532,4 +314,187 @@ public class SynchronizationTest {
 
         assertEquals(key, Synchronization.decodeHash(bytes));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGetDelta() {
+        int size = 6;
+        String oldValue = "ZurichGenevaLuganoAAA";
+        String newValue = "AzurichGenevaLuganoAbbLuganoAAA";
+        ArrayList<Checksum> checksums = Synchronization.getChecksums(oldValue.getBytes(), size);
+        ByteBuf delta = Synchronization.getDelta(newValue.getBytes(), checksums, size, Unpooled.buffer());
+        // length, literal "Azurich", 1, 2, literal "Abb", 2, 3
+        assertEquals(4 + 4 + 7 + 4 + 4 + 4 + 3 + 4 + 4, delta.readableBytes());
+        byte[] reconstructedValue = Synchronization.getReconstructedValue(oldValue.getBytes(), delta, size);
+        assertArrayEquals(newValue.getBytes(), reconstructedValue);
+    }
+
+    @Test
+    public void testGetDeltaShifted() {
+        int blockSize = 64;
+        Random random = new Random(42);
+        byte[] oldValue = new byte[64 * 1024];
+        random.nextBytes(oldValue);
+        // insert 10 bytes in the middle, which shifts all following blocks
+        byte[] newValue = new byte[oldValue.length + 10];
+        int middle = oldValue.length / 2 + 7;
+        System.arraycopy(oldValue, 0, newValue, 0, middle);
+        System.arraycopy(oldValue, middle, newValue, middle + 10, oldValue.length - middle);
+        ArrayList<Checksum> checksums = Synchronization.getChecksums(oldValue, blockSize);
+        ByteBuf delta = Synchronization.getDelta(newValue, checksums, blockSize, Unpooled.buffer());
+        // only the block with the insertion is sent as literal
+        int references = oldValue.length / blockSize - 1;
+        assertEquals(4 + references * 4 + 4 + blockSize + 10, delta.readableBytes());
+        assertArrayEquals(newValue, Synchronization.getReconstructedValue(oldValue, delta, blockSize));
+    }
+
+    @Test
+    public void testInfoMessageSAME() throws Exception {
+        Peer sender = null;
+        Peer receiver = null;
+        ChannelCreator cc = null;
+        try {
+            sender = new PeerMaker(new Number160(1)).ports(4001).makeAndListen();
+            receiver = new PeerMaker(new Number160(2)).ports(4002).makeAndListen();
+            final Number160 locationKey = new Number160(100);
+            receiver.getPeerBean().storage().put(locationKey, DHTBuilder.DEFAULT_DOMAIN, Number160.ZERO,
+                    new Data("Test"));
+            cc = createChannelCreator(sender);
+            FutureResponse futureResponse = info(sender, receiver, locationKey, "Test", cc);
+            assertEquals(true, futureResponse.isSuccess());
+            assertEquals(Type.OK, futureResponse.getResponse().getType());
+        } finally {
+            shutdown(cc, sender, receiver);
+        }
+    }
+
+    @Test
+    public void testInfoMessageNO() throws Exception {
+        Peer sender = null;
+        Peer receiver = null;
+        ChannelCreator cc = null;
+        try {
+            sender = new PeerMaker(new Number160(3)).ports(4001).makeAndListen();
+            receiver = new PeerMaker(new Number160(4)).ports(4002).makeAndListen();
+            cc = createChannelCreator(sender);
+            FutureResponse futureResponse = info(sender, receiver, new Number160(200), "Test", cc);
+            assertEquals(true, futureResponse.isSuccess());
+            assertEquals(Type.NOT_FOUND, futureResponse.getResponse().getType());
+        } finally {
+            shutdown(cc, sender, receiver);
+        }
+    }
+
+    @Test
+    public void testInfoMessageNOTSAME() throws Exception {
+        Peer sender = null;
+        Peer receiver = null;
+        ChannelCreator cc = null;
+        try {
+            sender = new PeerMaker(new Number160(5)).ports(4001).makeAndListen();
+            receiver = new PeerMaker(new Number160(6)).ports(4002).makeAndListen();
+            final Number160 locationKey = new Number160(300);
+            receiver.getPeerBean().storage().put(locationKey, DHTBuilder.DEFAULT_DOMAIN, Number160.ZERO,
+                    new Data("Test1"));
+            cc = createChannelCreator(sender);
+            FutureResponse futureResponse = info(sender, receiver, locationKey, "Test", cc);
+            assertEquals(true, futureResponse.isSuccess());
+            assertEquals(Type.PARTIALLY_OK, futureResponse.getResponse().getType());
+            // the reply contains the checksums of the old value
+            @SuppressWarnings("unchecked")
+            ArrayList<Checksum> checksums = (ArrayList<Checksum>) new Synchronization().getObject(futureResponse
+                    .getResponse().getBuffer(0));
+            assertEquals(Synchronization.getChecksums("Test1".getBytes(), Synchronization.SIZE), checksums);
+        } finally {
+            shutdown(cc, sender, receiver);
+        }
+    }
+
+    @Test
+    public void testSyncMessageDiff() throws Exception {
+        Peer sender = null;
+        Peer receiver = null;
+        ChannelCreator cc = null;
+        try {
+            sender = new PeerMaker(new Number160(9)).ports(4001).makeAndListen();
+            receiver = new PeerMaker(new Number160(10)).ports(4002).makeAndListen();
+            final Number160 locationKey = new Number160(500);
+            final String newValue = "Test1Test2Test3Test4";
+            final String oldValue = "test0Test2test0Test4";
+            receiver.getPeerBean().storage().put(locationKey, DHTBuilder.DEFAULT_DOMAIN, Number160.ZERO,
+                    new Data(oldValue));
+            cc = createChannelCreator(sender);
+            FutureResponse futureInfo = info(sender, receiver, locationKey, newValue, cc);
+            assertEquals(Type.PARTIALLY_OK, futureInfo.getResponse().getType());
+            @SuppressWarnings("unchecked")
+            ArrayList<Checksum> checksums = (ArrayList<Checksum>) new Synchronization().getObject(futureInfo
+                    .getResponse().getBuffer(0));
+            ByteBuf delta = Synchronization.getDelta(newValue.getBytes(), checksums, Synchronization.SIZE,
+                    Unpooled.buffer());
+            SynchronizationBuilder synchronizationBuilder = new SynchronizationBuilder(sender, locationKey,
+                    DHTBuilder.DEFAULT_DOMAIN, Number160.ZERO, Number160.createHash(newValue), delta);
+            FutureResponse futureSync = sender.getSynchronizationRPC().syncMessage(receiver.getPeerAddress(),
+                    synchronizationBuilder, cc);
+            futureSync.awaitUninterruptibly();
+            assertEquals(true, futureSync.isSuccess());
+            Data data = receiver.getPeerBean().storage().get(locationKey, DHTBuilder.DEFAULT_DOMAIN, Number160.ZERO);
+            assertEquals(newValue, data.object());
+        } finally {
+            shutdown(cc, sender, receiver);
+        }
+    }
+
+    @Test
+    public void testSyncMessageCopy() throws Exception {
+        Peer sender = null;
+        Peer receiver = null;
+        ChannelCreator cc = null;
+        try {
+            sender = new PeerMaker(new Number160(11)).ports(4001).makeAndListen();
+            receiver = new PeerMaker(new Number160(12)).ports(4002).makeAndListen();
+            final Number160 locationKey = new Number160(600);
+            final String newValue = "Test1Test2Test3Test4";
+            cc = createChannelCreator(sender);
+            FutureResponse futureInfo = info(sender, receiver, locationKey, newValue, cc);
+            assertEquals(Type.NOT_FOUND, futureInfo.getResponse().getType());
+            Map<Number480, Data> map = new HashMap<Number480, Data>();
+            map.put(new Number480(locationKey, DHTBuilder.DEFAULT_DOMAIN, Number160.ZERO), new Data(newValue));
+            SynchronizationBuilder synchronizationBuilder = new SynchronizationBuilder(sender, new DataMap(map));
+            FutureResponse futureCopy = sender.getSynchronizationRPC().copyMessage(receiver.getPeerAddress(),
+                    synchronizationBuilder, cc);
+            futureCopy.awaitUninterruptibly();
+            assertEquals(true, futureCopy.isSuccess());
+            Data data = receiver.getPeerBean().storage().get(locationKey, DHTBuilder.DEFAULT_DOMAIN, Number160.ZERO);
+            assertEquals(newValue, data.object());
+        } finally {
+            shutdown(cc, sender, receiver);
+        }
+    }
+
+    private static ChannelCreator createChannelCreator(final Peer peer) {
+        FutureChannelCreator fcc = peer.getConnectionBean().reservation().create(0, 2);
+        fcc.awaitUninterruptibly();
+        return fcc.getChannelCreator();
+    }
+
+    private static FutureResponse info(final Peer sender, final Peer receiver, final Number160 locationKey,
+            final String value, final ChannelCreator cc) {
+        SynchronizationBuilder synchronizationBuilder = new SynchronizationBuilder(sender, locationKey,
+                DHTBuilder.DEFAULT_DOMAIN, Number160.ZERO, Number160.createHash(value));
+        FutureResponse futureResponse = sender.getSynchronizationRPC().infoMessage(receiver.getPeerAddress(),
+                synchronizationBuilder, cc);
+        futureResponse.awaitUninterruptibly();
+        return futureResponse;
+    }
+
+    private static void shutdown(final ChannelCreator cc, final Peer sender, final Peer receiver) {
+        if (cc != null) {
+            cc.shutdown().awaitListenersUninterruptibly();
+        }
+        if (sender != null) {
+            sender.shutdown().awaitUninterruptibly();
+        }
+        if (receiver != null) {
+            receiver.shutdown().awaitUninterruptibly();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.rpc;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.peers.Number160;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Micro benchmark of the {@link SimpleBloomFilter} against the previous implementation, which seeded a
+ * java.util.Random with the hash code of every element and stored the bits in a BitSet. Run it from the test classpath
+ * with the main method.
+ *
+ * @author Thomas Bocek
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BloomFilterBenchmark {
+
+    // the sizes of the DefaultBloomfilterFactory and the tracker
+    @Param({ "100", "1024" })
+    private int byteArraySize;
+
+    @Param({ "1000" })
+    private int expectedElements;
+
+    private SimpleBloomFilter<Number160> bloomFilter;
+
+    private RandomBloomFilter randomBloomFilter;
+
+    private Number160[] keys;
+
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42L);
+        bloomFilter = new SimpleBloomFilter<Number160>(byteArraySize, expectedElements, true);
+        randomBloomFilter = new RandomBloomFilter(byteArraySize, expectedElements);
+        keys = new Number160[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Number160(random);
+            if (i % 2 == 0) {
+                bloomFilter.add(keys[i]);
+                randomBloomFilter.add(keys[i]);
+            }
+        }
+    }
+
+    private Number160 nextKey() {
+        next = (next + 1) & (keys.length - 1);
+        return keys[next];
+    }
+
+    @Benchmark
+    public boolean add() {
+        return bloomFilter.add(nextKey());
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return bloomFilter.contains(nextKey());
+    }
+
+    @Benchmark
+    public boolean addRandom() {
+        return randomBloomFilter.add(nextKey());
+    }
+
+    @Benchmark
+    public boolean containsRandom() {
+        return randomBloomFilter.contains(nextKey());
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder().include(BloomFilterBenchmark.class.getSimpleName()).forks(1)
+                .build();
+        new Runner(options).run();
+    }
+
+    /**
+     * The add and contains methods of the previous bloom filter implementation, as baseline.
+     */
+    private static final class RandomBloomFilter {
+        private final int k;
+        private final int bitArraySize;
+        private final BitSet bitSet;
+
+        private RandomBloomFilter(final int byteArraySize, final int expectedElements) {
+            this.bitArraySize = byteArraySize * Byte.SIZE;
+            this.k = (int) Math.ceil((bitArraySize / (double) expectedElements) * Math.log(2.0));
+            this.bitSet = new BitSet(bitArraySize);
+        }
+
+        private boolean add(final Object o) {
+            Random r = new Random(o.hashCode());
+            for (int x = 0; x < k; x++) {
+                bitSet.set(r.nextInt(bitArraySize), true);
+            }
+            return false;
+        }
+
+        private boolean contains(final Object o) {
+            Random r = new Random(o.hashCode());
+            for (int x = 0; x < k; x++) {
+                if (!bitSet.get(r.nextInt(bitArraySize))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
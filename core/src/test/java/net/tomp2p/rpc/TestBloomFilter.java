@@ -16,6 +16,7 @@
 
 package net.tomp2p.rpc;
 
+import java.util.Arrays;
 import java.util.Random;
 
 import io.netty.buffer.ByteBuf;
@@ -59,6 +60,60 @@ public class TestBloomFilter {
         Assert.assertEquals(bloomFilter, bloomFilter2);
     }
 
+    /**
+     * Test that the double hashing is flagged in the header and that unflagged filters keep java.util.Random.
+     */
+    @Test
+    public void testDoubleHashingHeader() {
+        SimpleBloomFilter<Number160> bloomFilter = new SimpleBloomFilter<Number160>(bfSize, 10, true);
+        bloomFilter.add(new Number160(77));
+        ByteBuf buf = Unpooled.buffer();
+        bloomFilter.toByteBuf(buf);
+        Assert.assertEquals(true, buf.getInt(2) < 0);
+        SimpleBloomFilter<Number160> bloomFilter2 = new SimpleBloomFilter<Number160>(buf);
+        Assert.assertEquals(true, bloomFilter2.isDoubleHashing());
+        Assert.assertEquals(10, bloomFilter2.getExpectedElements());
+        Assert.assertEquals(true, bloomFilter2.contains(new Number160(77)));
+        Assert.assertEquals(bloomFilter, bloomFilter2);
+
+        SimpleBloomFilter<Number160> legacy = new SimpleBloomFilter<Number160>(bfSize, 10);
+        legacy.add(new Number160(77));
+        buf = Unpooled.buffer();
+        legacy.toByteBuf(buf);
+        Assert.assertEquals(10, buf.getInt(2));
+        SimpleBloomFilter<Number160> legacy2 = new SimpleBloomFilter<Number160>(buf);
+        Assert.assertEquals(false, legacy2.isDoubleHashing());
+        Assert.assertEquals(true, legacy2.contains(new Number160(77)));
+        Assert.assertEquals(legacy, legacy2);
+        Assert.assertEquals(false, legacy.equals(bloomFilter));
+    }
+
+    /**
+     * Test the merge and that the serialized bits have the layout of java.util.BitSet.
+     */
+    @Test
+    public void testMergeLayout() {
+        final int filterSize = 13;
+        final int expected = 5;
+        SimpleBloomFilter<Number160> bloomFilter1 = new SimpleBloomFilter<Number160>(filterSize, expected);
+        bloomFilter1.add(new Number160(5));
+        SimpleBloomFilter<Number160> bloomFilter2 = new SimpleBloomFilter<Number160>(filterSize, expected);
+        bloomFilter2.add(new Number160(6));
+        SimpleBloomFilter<Number160> merged = bloomFilter1.merge(bloomFilter2);
+        Assert.assertEquals(true, merged.contains(new Number160(5)));
+        Assert.assertEquals(true, merged.contains(new Number160(6)));
+
+        ByteBuf buf = Unpooled.buffer(filterSize + SimpleBloomFilter.SIZE_HEADER);
+        merged.toByteBuf(buf);
+        Assert.assertEquals(filterSize + SimpleBloomFilter.SIZE_HEADER, buf.readableBytes());
+        byte[] bits = new byte[filterSize];
+        buf.getBytes(SimpleBloomFilter.SIZE_HEADER, bits);
+        byte[] bitSet = merged.getBitSet().toByteArray();
+        Assert.assertArrayEquals(bitSet, Arrays.copyOf(bits, bitSet.length));
+        Assert.assertEquals(merged, new SimpleBloomFilter<Number160>(buf));
+        Assert.assertEquals(merged, new SimpleBloomFilter<Number160>(filterSize, expected, merged.getBitSet()));
+    }
+
     /**
      * Test with a small set of additions.
      */
@@ -328,4 +328,49 @@ public class TestDirect {
             }
         }
     }
+
+    @Test
+    public void testDirectPipelined() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        try {
+            sender = new PeerMaker(new Number160("0x50")).p2pId(55).ports(2424).setEnableMaintenance(false)
+                    .makeAndListen();
+            recv1 = new PeerMaker(new Number160("0x20")).p2pId(55).ports(8088).setEnableMaintenance(false)
+                    .makeAndListen();
+            recv1.setObjectDataReply(new ObjectDataReply() {
+                @Override
+                public Object reply(PeerAddress sender, Object request) throws Exception {
+                    // the request object itself would mean that there is no reply
+                    return "reply " + request;
+                }
+            });
+            FuturePeerConnection peerConnection = sender.createPeerConnection(recv1.getPeerAddress(), true);
+            ChannelCreator.resetConnectionCounts();
+            // all requests are in flight at the same time on the same connection
+            FutureResponse[] futures = new FutureResponse[10];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = sender.sendDirect(peerConnection).setObject("test" + i).start();
+            }
+            // each request gets its own reply
+            for (int i = 0; i < futures.length; i++) {
+                futures[i].awaitUninterruptibly();
+                Assert.assertEquals(true, futures[i].isSuccess());
+                Assert.assertEquals("reply test" + i, futures[i].getResponse().getBuffer(0).object());
+            }
+            Assert.assertEquals(1, ChannelCreator.tcpConnectionCount());
+            Assert.assertEquals(0, ChannelCreator.udpConnectionCount());
+            Assert.assertEquals(0, peerConnection.getObject().requestMultiplexer().pendingRequests());
+            Assert.assertEquals(true, peerConnection.getObject().requestMultiplexer().pendingResponses().isEmpty());
+            Assert.assertNull(peerConnection.getObject().currentFutureResponse());
+            peerConnection.close().await();
+        } finally {
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
 }
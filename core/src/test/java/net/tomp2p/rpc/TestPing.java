@@ -3,12 +3,18 @@ package net.tomp2p.rpc;
 import java.util.ArrayList;
 import java.util.List;
 
+import net.tomp2p.Utils2;
 import net.tomp2p.connection2.Bindings;
 import net.tomp2p.connection2.ChannelCreator;
+import net.tomp2p.connection2.ChannelPoolTCP;
 import net.tomp2p.connection2.DefaultConnectionConfiguration;
+import net.tomp2p.connection2.RequestHandler;
+import net.tomp2p.connection2.RequestMultiplexer;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message2;
+import net.tomp2p.message.Message2.Type;
 import net.tomp2p.p2p.Peer;
 import net.tomp2p.p2p.PeerReachable;
 import net.tomp2p.p2p.PeerMaker;
@@ -167,6 +173,117 @@ public class TestPing {
         }
     }
 
+    @Test
+    public void testPingPooledTCP() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        ChannelCreator cc = null;
+        try {
+            PeerMaker pm = new PeerMaker(new Number160("0x9876")).p2pId(55).ports(2424);
+            pm.channelClientConfiguration(pm.createDefaultChannelClientConfiguration().maxPooledTCP(10)
+                    .maxPooledTCPPerPeer(2));
+            sender = pm.makeAndListen();
+            recv1 = new PeerMaker(new Number160("0x1234")).p2pId(55).ports(8088).makeAndListen();
+            FutureChannelCreator fcc = sender.getConnectionBean().reservation().create(0, 1);
+            fcc.awaitUninterruptibly();
+            cc = fcc.getChannelCreator();
+            // with one permit, the second ping only works if the first connection was released
+            for (int i = 0; i < 2; i++) {
+                FutureResponse fr = sender.getHandshakeRPC().pingTCP(recv1.getPeerAddress(), cc,
+                        new DefaultConnectionConfiguration());
+                fr.awaitUninterruptibly();
+                Assert.assertEquals(true, fr.isSuccess());
+            }
+            ChannelPoolTCP pool = sender.getConnectionBean().sender().channelPoolTCP();
+            Assert.assertEquals(1, pool.misses());
+            Assert.assertEquals(1, pool.hits());
+            Assert.assertEquals(1, pool.idleConnections());
+        } finally {
+            if (cc != null) {
+                cc.shutdown().await();
+            }
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testPingSharedUDP() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        ChannelCreator cc = null;
+        try {
+            PeerMaker pm = new PeerMaker(new Number160("0x9876")).p2pId(55).ports(2424);
+            pm.channelClientConfiguration(pm.createDefaultChannelClientConfiguration().sharedUDP(true));
+            sender = pm.makeAndListen();
+            recv1 = new PeerMaker(new Number160("0x1234")).p2pId(55).ports(8088).makeAndListen();
+            FutureChannelCreator fcc = sender.getConnectionBean().reservation().create(3, 0);
+            fcc.awaitUninterruptibly();
+            cc = fcc.getChannelCreator();
+            int created = ChannelCreator.udpConnectionCount();
+            List<FutureResponse> list = new ArrayList<FutureResponse>();
+            for (int i = 0; i < 3; i++) {
+                list.add(sender.getHandshakeRPC().pingUDP(recv1.getPeerAddress(), cc,
+                        new DefaultConnectionConfiguration()));
+            }
+            for (FutureResponse fr : list) {
+                fr.awaitUninterruptibly();
+                Assert.assertEquals(true, fr.isSuccess());
+            }
+            // all requests went over the shared channel
+            Assert.assertEquals(created, ChannelCreator.udpConnectionCount());
+            Assert.assertEquals(0, sender.getConnectionBean().sender().channelMultiplexerUDP().pendingRequests());
+        } finally {
+            if (cc != null) {
+                cc.shutdown().await();
+            }
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testMultiplexedReplyFromOtherPeer() throws Exception {
+        Peer sender = null;
+        try {
+            sender = new PeerMaker(new Number160("0x9876")).p2pId(55).ports(2424).makeAndListen();
+            Message2 request = Utils2.createDummyMessage().setMessageId(42);
+            RequestMultiplexer requestMultiplexer = new RequestMultiplexer(null, sender.getConnectionBean()
+                    .timer());
+            FutureResponse futureResponse = new FutureResponse(request);
+            requestMultiplexer.register(new RequestHandler<FutureResponse>(futureResponse, sender.getPeerBean(),
+                    sender.getConnectionBean(), new DefaultConnectionConfiguration()), 5);
+            // same message id, but not from the peer the request was sent to
+            requestMultiplexer.received(new Message2().setMessageId(42).setType(Type.OK)
+                    .setSender(Utils2.createAddress("0x5678")).setRecipient(request.getSender()).setDone());
+            Assert.assertEquals(false, futureResponse.isCompleted());
+            Assert.assertEquals(1, requestMultiplexer.pendingRequests());
+            requestMultiplexer.received(new Message2().setMessageId(42).setType(Type.OK)
+                    .setSender(request.getRecipient()).setRecipient(request.getSender()).setDone());
+            Assert.assertEquals(true, futureResponse.isSuccess());
+            Assert.assertEquals(0, requestMultiplexer.pendingRequests());
+            // the timer stops with the peer
+            sender.shutdown().await();
+            futureResponse = new FutureResponse(request);
+            requestMultiplexer.register(new RequestHandler<FutureResponse>(futureResponse, sender.getPeerBean(),
+                    sender.getConnectionBean(), new DefaultConnectionConfiguration()), 5);
+            Assert.assertEquals(true, futureResponse.isFailed());
+            Assert.assertEquals(0, requestMultiplexer.pendingRequests());
+        } finally {
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+        }
+    }
+
     @Test
     public void testPingHandlerError() throws Exception {
         Peer sender = null;
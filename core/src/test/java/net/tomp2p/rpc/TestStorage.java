@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -18,6 +19,7 @@ import net.tomp2p.Utils2;
 import net.tomp2p.connection2.ChannelClientConfiguration;
 import net.tomp2p.connection2.ChannelCreator;
 import net.tomp2p.connection2.ChannelServerConficuration;
+import net.tomp2p.connection2.ConnectionBean;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureSuccessEvaluatorCommunication;
@@ -412,6 +414,63 @@ public class TestStorage {
         }
     }
 
+    /**
+     * Data larger than the zero copy threshold is added as a component of the outgoing buffer, the datagram must
+     * still contain all of it. The message has to fit into {@link ConnectionBean#UDP_LIMIT}.
+     */
+    @Test
+    public void testStorePutGetUDPLarge() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        ChannelCreator cc = null;
+        try {
+            sender = new PeerMaker(new Number160("0x50")).p2pId(55).ports(2424).makeAndListen();
+            recv1 = new PeerMaker(new Number160("0x20")).p2pId(55).ports(8088).makeAndListen();
+            StorageRPC smmSender = new StorageRPC(sender.getPeerBean(), sender.getConnectionBean());
+            Map<Number160, Data> tmp = new HashMap<Number160, Data>();
+            byte[] me1 = new byte[1100];
+            byte[] me2 = new byte[] { 2, 3, 4 };
+            Arrays.fill(me1, (byte) 1);
+            tmp.put(new Number160(77), new Data(me1));
+            tmp.put(new Number160(88), new Data(me2));
+
+            FutureChannelCreator fcc = recv1.getConnectionBean().reservation().create(1, 0);
+            fcc.awaitUninterruptibly();
+            cc = fcc.getChannelCreator();
+
+            PutBuilder putBuilder = new PutBuilder(recv1, new Number160(33));
+            putBuilder.setDomainKey(Number160.createHash("test"));
+            DataMap dataMap = new DataMap(new Number160(33), Number160.createHash("test"), tmp);
+            putBuilder.setDataMapContent(tmp);
+            putBuilder.setForceUDP();
+
+            FutureResponse fr = smmSender.put(recv1.getPeerAddress(), putBuilder, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(true, fr.isSuccess());
+
+            GetBuilder getBuilder = new GetBuilder(recv1, new Number160(33));
+            getBuilder.setDomainKey(Number160.createHash("test"));
+            getBuilder.setContentKeys(tmp.keySet());
+            getBuilder.setForceUDP();
+
+            fr = smmSender.get(recv1.getPeerAddress(), getBuilder, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(true, fr.isSuccess());
+            Map<Number480, Data> stored = fr.getResponse().getDataMap(0).dataMap();
+            compare(dataMap.convertToMap480(), stored);
+        } finally {
+            if (cc != null) {
+                cc.shutdown().awaitListenersUninterruptibly();
+            }
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
     private void compare(Map<Number480, Data> tmp, Map<Number480, Data> stored) {
         Assert.assertEquals(tmp.size(), stored.size());
         Iterator<Number480> iterator1 = tmp.keySet().iterator();
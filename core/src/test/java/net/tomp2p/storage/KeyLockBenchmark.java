@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.tomp2p.peers.Number160;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Micro benchmark of the {@link KeyLock} against the previous implementation, which guards its map with one global
+ * lock. Many threads lock and unlock random keys of a small key set, as the storage does for puts and gets. Run it
+ * from the test classpath with the main method, or with "-t" on the JMH command line to change the number of threads.
+ *
+ * @author Thomas Bocek
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+public class KeyLockBenchmark {
+
+    @Param({ "key", "global" })
+    private String lockName;
+
+    private final Number160[] keys = new Number160[1024];
+
+    private KeyLock<Number160> keyLock;
+
+    private GlobalKeyLock<Number160> globalKeyLock;
+
+    /**
+     * The random generator of each benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private final Random random = new Random();
+    }
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Number160(i);
+        }
+        keyLock = "key".equals(lockName) ? new KeyLock<Number160>() : null;
+        globalKeyLock = "global".equals(lockName) ? new GlobalKeyLock<Number160>() : null;
+    }
+
+    @Benchmark
+    public void lockUnlock(final ThreadState state) {
+        final Number160 key = keys[state.random.nextInt(keys.length)];
+        if (keyLock != null) {
+            final Lock lock = keyLock.lock(key);
+            keyLock.unlock(key, lock);
+        } else {
+            final Lock lock = globalKeyLock.lock(key);
+            globalKeyLock.unlock(key, lock);
+        }
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder().include(KeyLockBenchmark.class.getSimpleName()).forks(1).build();
+        new Runner(options).run();
+    }
+
+    /**
+     * The previous key lock, which guards its map with one global lock.
+     */
+    private static class GlobalKeyLock<K> {
+        private static class RefCounterLock {
+            private final ReentrantLock sem = new ReentrantLock();
+            private int counter = 0;
+        }
+
+        private final ReentrantLock lockInternal = new ReentrantLock();
+
+        private final HashMap<K, RefCounterLock> cache = new HashMap<K, RefCounterLock>();
+
+        public Lock lock(final K key) {
+            RefCounterLock cur;
+            lockInternal.lock();
+            try {
+                cur = cache.get(key);
+                if (cur == null) {
+                    cur = new RefCounterLock();
+                    cache.put(key, cur);
+                }
+                cur.counter++;
+            } finally {
+                lockInternal.unlock();
+            }
+            cur.sem.lock();
+            return cur.sem;
+        }
+
+        public void unlock(final K key, final Lock lock) {
+            lockInternal.lock();
+            try {
+                RefCounterLock cur = cache.get(key);
+                if (cur != null) {
+                    cur.counter--;
+                    cur.sem.unlock();
+                    if (cur.counter == 0) {
+                        cache.remove(key);
+                    }
+                }
+            } finally {
+                lockInternal.unlock();
+            }
+        }
+    }
+}
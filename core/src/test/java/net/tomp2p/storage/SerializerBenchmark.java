@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.peers.Number160;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Micro benchmark of the {@link CompactSerializer} against the {@link JavaSerializer} for small objects. The encoded
+ * sizes of both are printed once in the setup. Run it from the test classpath with the main method.
+ *
+ * @author Thomas Bocek
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerializerBenchmark {
+
+    @Param({ "string", "bytes", "number160", "map" })
+    private String type;
+
+    @Param({ "java", "compact" })
+    private String serializerName;
+
+    private Serializer serializer;
+
+    private Object object;
+
+    private ByteBuf encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        serializer = "java".equals(serializerName) ? new JavaSerializer() : new CompactSerializer();
+        if ("string".equals(type)) {
+            object = "hello world";
+        } else if ("bytes".equals(type)) {
+            object = new byte[64];
+        } else if ("number160".equals(type)) {
+            object = Number160.createHash("hello world");
+        } else {
+            final Map<String, Integer> map = new HashMap<String, Integer>();
+            for (int i = 0; i < 10; i++) {
+                map.put("key" + i, i);
+            }
+            object = map;
+        }
+        encoded = serializer.encode(object);
+        System.out.println(serializerName + " encodes " + type + " with " + encoded.readableBytes() + " bytes");
+    }
+
+    @Benchmark
+    public ByteBuf encode() throws IOException {
+        return serializer.encode(object);
+    }
+
+    @Benchmark
+    public Object decode() throws ClassNotFoundException, IOException {
+        return serializer.decode(encoded);
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder().include(SerializerBenchmark.class.getSimpleName()).forks(1)
+                .build();
+        new Runner(options).run();
+    }
+}
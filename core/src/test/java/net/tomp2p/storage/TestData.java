@@ -74,4 +74,59 @@ public class TestData {
         ByteBuf test = newData.buffer();
         Assert.assertEquals(100000, test.readableBytes());
     }
+
+    @Test
+    public void testDecodeHash() throws IOException {
+        byte[] payload = new byte[10000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        Data data = new Data(payload);
+        ByteBuf transfer = Unpooled.buffer();
+        data.encode(transfer);
+        data.encodeDone(transfer);
+
+        // the payload arrives in two packets, the hash is calculated on the fly
+        Data newData = Data.decodeHeader(transfer);
+        Assert.assertEquals(false, newData.decodeBuffer(transfer.readSlice(4000)));
+        Assert.assertEquals(true, newData.decodeBuffer(transfer));
+        newData.decodeDone(transfer);
+
+        Assert.assertEquals(data.hash(), newData.hash());
+        Assert.assertEquals(data.fastHash(), newData.fastHash());
+    }
+
+    @Test
+    public void testDecodeRetainLarge() throws IOException {
+        ByteBuf transfer = encode(new Data(new byte[Data.ZERO_COPY_THRESHOLD], true, false));
+        Data newData = decode(transfer);
+        // the payload is a slice of the received buffer
+        Assert.assertEquals(2, transfer.refCnt());
+        newData.release();
+        Assert.assertEquals(1, transfer.refCnt());
+    }
+
+    @Test
+    public void testDecodeCopySmall() throws IOException {
+        ByteBuf transfer = encode(new Data(new byte[Data.ZERO_COPY_THRESHOLD - 1], true, false));
+        Data newData = decode(transfer);
+        // the payload is copied and does not pin the received buffer
+        Assert.assertEquals(1, transfer.refCnt());
+        Assert.assertEquals(Data.ZERO_COPY_THRESHOLD - 1, newData.buffer().readableBytes());
+        Assert.assertEquals(true, newData.retain());
+    }
+
+    static ByteBuf encode(Data data) {
+        ByteBuf transfer = Unpooled.buffer();
+        data.encode(transfer);
+        data.encodeDone(transfer);
+        return transfer;
+    }
+
+    static Data decode(ByteBuf transfer) {
+        Data newData = Data.decodeHeader(transfer);
+        newData.decodeBuffer(transfer);
+        newData.decodeDone(transfer);
+        return newData;
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.tomp2p.peers.Number160;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the serializers.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class TestSerializer {
+
+    private final Serializer compact = new CompactSerializer();
+
+    private final Serializer java = new JavaSerializer();
+
+    /**
+     * All supported types survive the round trip.
+     */
+    @Test
+    public void testCompact() throws ClassNotFoundException, IOException {
+        Map<Object, Object> map = new HashMap<Object, Object>();
+        map.put("string", "äöü");
+        map.put(Number160.createHash("key"), new byte[] { 1, 2, 3 });
+        map.put(-1, Long.MIN_VALUE);
+        map.put(Integer.MAX_VALUE, null);
+        map.put('c', (short) -5);
+        map.put((byte) 7, true);
+        map.put(1.5f, 2.5d);
+        List<Object> list = new ArrayList<Object>();
+        list.add(map);
+        list.add(new TreeMap<String, String>());
+        Object copy = compact.decode(compact.encode(list));
+        Assert.assertEquals(ArrayList.class, copy.getClass());
+        @SuppressWarnings("unchecked")
+        Map<Object, Object> mapCopy = (Map<Object, Object>) ((List<Object>) copy).get(0);
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) mapCopy.remove(Number160.createHash("key")));
+        map.remove(Number160.createHash("key"));
+        Assert.assertEquals(map, mapCopy);
+        // classes without a compact format keep their class
+        Assert.assertEquals(TreeMap.class, ((List<?>) copy).get(1).getClass());
+    }
+
+    /**
+     * Objects of peers that use the Java serialization can be decoded.
+     */
+    @Test
+    public void testCompatible() throws ClassNotFoundException, IOException {
+        ByteBuf buffer = java.encode("test");
+        Assert.assertEquals("test", compact.decode(buffer));
+        Assert.assertEquals("test", new Data(buffer, -1, -1, false, false).object());
+        Data data = new Data("test", compact);
+        Assert.assertEquals(CompactSerializer.SCHEMA_TAG, data.buffer().getByte(0));
+        Assert.assertEquals("test", data.object());
+        Assert.assertEquals("test", data.object(compact));
+    }
+
+    /**
+     * Deeply nested lists from the network fail with an exception instead of overflowing the stack.
+     */
+    @Test
+    public void testDepth() throws ClassNotFoundException, IOException {
+        List<Object> list = new ArrayList<Object>();
+        for (int i = 1; i < CompactSerializer.MAX_DEPTH; i++) {
+            List<Object> outer = new ArrayList<Object>();
+            outer.add(list);
+            list = outer;
+        }
+        Assert.assertEquals(list, compact.decode(compact.encode(list)));
+        ByteBuf buffer = Unpooled.buffer();
+        buffer.writeByte(CompactSerializer.SCHEMA_TAG);
+        for (int i = 0; i < 100000; i++) {
+            // a list with one element
+            buffer.writeByte(14).writeByte(1);
+        }
+        buffer.writeByte(0);
+        try {
+            compact.decode(buffer);
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Small objects need fewer bytes.
+     */
+    @Test
+    public void testSize() throws IOException {
+        Assert.assertTrue(compact.encode(42).readableBytes() < java.encode(42).readableBytes());
+        Number160 key = Number160.createHash("key");
+        Assert.assertEquals(1 + 1 + Number160.BYTE_ARRAY_SIZE, compact.encode(key).readableBytes());
+    }
+}
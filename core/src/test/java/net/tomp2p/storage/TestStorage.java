@@ -1,18 +1,29 @@
 package net.tomp2p.storage;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.PublicKey;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number480;
+import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.storage.StorageGeneric.PutStatus;
+import net.tomp2p.utils.Timings;
 import net.tomp2p.utils.Utils;
 
 import org.junit.After;
@@ -43,12 +54,17 @@ public class TestStorage {
 
     @After
     public void after() {
-        File f = new File(DIR);
+        delete(new File(DIR));
+    }
+
+    private static void delete(File f) {
         f.listFiles(new FileFilter() {
             @Override
             public boolean accept(File pathname) {
                 if (pathname.isFile())
                     pathname.delete();
+                else if (pathname.isDirectory())
+                    delete(pathname);
                 return false;
             }
         });
@@ -188,6 +204,51 @@ public class TestStorage {
         Assert.assertEquals(true, tmp == null);
     }
 
+    @Test
+    public void testTimeoutDrain() throws Exception {
+        StorageMemory storageM = new StorageMemory();
+        final long now = Timings.currentTimeMillis();
+        final int nr = 2 * StorageMemory.MAX_EXPIRE_BATCH + 100;
+        for (int i = 0; i < nr; i++) {
+            storageM.put(locationKey, domainKey, new Number160(i + 1), new Data(i));
+            storageM.addTimeout(locationKey, domainKey, new Number160(i + 1), now - 1);
+        }
+        storageM.put(locationKey, domainKey, new Number160(nr + 1), new Data(nr));
+        storageM.addTimeout(locationKey, domainKey, new Number160(nr + 1), now + 100000);
+        // one maintenance run removes all entries that are due, not only one batch
+        storageM.checkTimeout();
+        Assert.assertEquals(0, storageM.expiredBacklog());
+        Assert.assertEquals(nr, storageM.expiredCount());
+        Assert.assertEquals(1, storageM.map().size());
+        storageM.close();
+    }
+
+    @Test
+    public void testTimeoutBatch() throws Exception {
+        StorageMemory storageM = new StorageMemory();
+        final long now = Timings.currentTimeMillis();
+        final int nr = StorageMemory.MAX_EXPIRE_BATCH + 100;
+        for (int i = 0; i < nr; i++) {
+            storageM.addTimeout(locationKey, domainKey, new Number160(i + 1), now + (i % 50));
+        }
+        // cancelled and moved timeouts are not returned
+        storageM.removeTimeout(locationKey, domainKey, new Number160(1));
+        storageM.addTimeout(locationKey, domainKey, new Number160(2), now + 100000);
+        storageM.addTimeout(locationKey, domainKey, new Number160(3), Long.MAX_VALUE);
+        Collection<Number480> expired = storageM.subMapTimeout(now + 1000);
+        Assert.assertEquals(StorageMemory.MAX_EXPIRE_BATCH, expired.size());
+        Assert.assertEquals(nr - 3 - StorageMemory.MAX_EXPIRE_BATCH, storageM.expiredBacklog());
+        expired = storageM.subMapTimeout(now + 1000);
+        Assert.assertEquals(nr - 3 - StorageMemory.MAX_EXPIRE_BATCH, expired.size());
+        Assert.assertEquals(0, storageM.expiredBacklog());
+        Assert.assertEquals(nr - 3, storageM.expiredCount());
+        Assert.assertEquals(0, storageM.subMapTimeout(now + 1000).size());
+        expired = storageM.subMapTimeout(now + 200000);
+        Assert.assertEquals(1, expired.size());
+        Assert.assertEquals(new Number480(locationKey, domainKey, new Number160(2)), expired.iterator().next());
+        storageM.close();
+    }
+
     @Test
     public void testResponsibility() throws Exception {
         StorageGeneric storageM = new StorageMemory();
@@ -229,6 +290,197 @@ public class TestStorage {
         Assert.assertEquals(PutStatus.FAILED, result2);
     }
 
+    @Test
+    public void testLog() throws Exception {
+        StorageGeneric storageL = new StorageLog(DIR);
+        testGet(storageL);
+        storageL.close();
+        storageL = new StorageLog(new File(DIR, "put").getPath());
+        testPut(storageL);
+        storageL.close();
+        storageL = new StorageLog(new File(DIR, "putIfAbsent").getPath());
+        testPutIfAbsent(storageL);
+        storageL.close();
+        storageL = new StorageLog(new File(DIR, "remove").getPath());
+        testRemove(storageL);
+        storageL.close();
+        storageL = new StorageLog(new File(DIR, "ttl").getPath());
+        testTTL2(storageL);
+        storageL.close();
+        storageL = new StorageLog(new File(DIR, "responsibility").getPath());
+        testResponsibility(storageL);
+        storageL.close();
+        storageL = new StorageLog(new File(DIR, "publicKey").getPath());
+        testPublicKeyDomain(storageL);
+        storageL.close();
+    }
+
+    @Test
+    public void testLogRecover() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("DSA");
+        KeyPair pair1 = gen.generateKeyPair();
+        KeyPair pair2 = gen.generateKeyPair();
+        StorageGeneric storageL = new StorageLog(DIR);
+        store(storageL, pair1.getPublic(), true);
+        storageL.put(locationKey, domainKey, content1, new Data("test3"), pair1.getPublic(), false, false);
+        storageL.remove(locationKey, domainKey, content2, pair1.getPublic());
+        Data data = new Data(new byte[5000]);
+        data.ttlSeconds(1);
+        storageL.put(locationKey, domainKey, content3, data, null, false, false);
+        storageL.close();
+        // the content3 expires while the storage is closed
+        Thread.sleep(1500);
+        storageL = new StorageLog(DIR);
+        Assert.assertEquals("test3", storageL.get(locationKey, domainKey, content1).object());
+        Assert.assertEquals(null, storageL.get(locationKey, domainKey, content2));
+        Assert.assertEquals(null, storageL.get(locationKey, domainKey, content3));
+        Assert.assertEquals(true, storageL.isDomainProtectedByOthers(locationKey, domainKey, pair2.getPublic()));
+        Assert.assertEquals(false, storageL.isDomainProtectedByOthers(locationKey, domainKey, pair1.getPublic()));
+        storageL.close();
+    }
+
+    @Test
+    public void testLogCompact() throws Exception {
+        StorageLog storageL = new StorageLog(new File(DIR), 16 * 1024, StorageLog.DEFAULT_SYNC_MILLIS,
+                Integer.MAX_VALUE, true);
+        // overwrite the same two entries, so that the old segments only contain garbage
+        for (int i = 0; i < 1000; i++) {
+            storageL.put(locationKey, domainKey, content1, new Data(new byte[100]), null, false, false);
+            storageL.put(locationKey, domainKey, content2, new Data("test" + i), null, false, false);
+        }
+        int before = storageL.segmentCount();
+        Assert.assertTrue(before > 2);
+        storageL.compact();
+        Assert.assertTrue(storageL.segmentCount() < before);
+        Assert.assertTrue(storageL.compactedSegments() > 0);
+        Assert.assertEquals("test999", storageL.get(locationKey, domainKey, content2).object());
+        storageL.close();
+        storageL = new StorageLog(DIR);
+        Assert.assertEquals(2, storageL.map().size());
+        Assert.assertEquals("test999", storageL.get(locationKey, domainKey, content2).object());
+        storageL.close();
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        StorageGeneric storageC = new StorageMemoryCompact();
+        testGet(storageC);
+        storageC.close();
+        storageC = new StorageMemoryCompact();
+        testPut(storageC);
+        storageC.close();
+        storageC = new StorageMemoryCompact();
+        testPutIfAbsent(storageC);
+        storageC.close();
+        storageC = new StorageMemoryCompact();
+        testRemove(storageC);
+        storageC.close();
+        storageC = new StorageMemoryCompact();
+        testTTL2(storageC);
+        storageC.close();
+        storageC = new StorageMemoryCompact();
+        testResponsibility(storageC);
+        storageC.close();
+        storageC = new StorageMemoryCompact();
+        testPublicKeyDomain(storageC);
+        storageC.close();
+    }
+
+    @Test
+    public void testCompactRange() throws Exception {
+        StorageMemoryCompact storageC = new StorageMemoryCompact();
+        SortedMap<Number480, Data> expected = new TreeMap<Number480, Data>();
+        Random rnd = new Random(42);
+        Number160[] locations = new Number160[] { Number160.ZERO, new Number160(rnd), Number160.MAX_VALUE };
+        for (int i = 0; i < 20000; i++) {
+            Number480 key = new Number480(locations[rnd.nextInt(locations.length)], new Number160(rnd.nextInt(3)),
+                    new Number160(rnd));
+            if (rnd.nextInt(4) == 0 && !expected.isEmpty()) {
+                // remove an existing entry
+                key = expected.tailMap(key).isEmpty() ? expected.firstKey() : expected.tailMap(key).firstKey();
+                Assert.assertEquals(expected.remove(key),
+                        storageC.remove(key.getLocationKey(), key.getDomainKey(), key.getContentKey()));
+            } else {
+                Data data = new Data(i);
+                expected.put(key, data);
+                storageC.put(key.getLocationKey(), key.getDomainKey(), key.getContentKey(), data);
+            }
+        }
+        Assert.assertEquals(expected.size(), storageC.size());
+        Assert.assertEquals(expected, storageC.map());
+        for (Number160 location : locations) {
+            Assert.assertEquals(
+                    expected.subMap(new Number480(location, Number160.ZERO, Number160.ZERO), new Number480(location,
+                            Number160.MAX_VALUE, Number160.MAX_VALUE)), storageC.subMap(location));
+            Number160 from = new Number160(rnd);
+            Number160 to = new Number160(rnd);
+            if (from.compareTo(to) > 0) {
+                Number160 tmp = from;
+                from = to;
+                to = tmp;
+            }
+            Number160 domain = new Number160(1);
+            Assert.assertEquals(
+                    expected.subMap(new Number480(location, domain, from), new Number480(location, domain, to)),
+                    storageC.subMap(location, domain, from, to));
+        }
+        storageC.close();
+        Assert.assertEquals(0, storageC.size());
+    }
+
+    @Test
+    public void testDigest() throws Exception {
+        StorageGeneric storageM = new StorageMemory();
+        Random rnd = new Random(42);
+        Number160[] contentKeys = new Number160[50];
+        for (int i = 0; i < contentKeys.length; i++) {
+            contentKeys[i] = new Number160(rnd);
+        }
+        for (int i = 0; i < 1000; i++) {
+            Number160 contentKey = contentKeys[rnd.nextInt(contentKeys.length)];
+            if (rnd.nextInt(3) == 0) {
+                storageM.remove(locationKey, domainKey, contentKey, null);
+            } else {
+                storageM.put(locationKey, domainKey, contentKey, new Data(i), null, false, false);
+            }
+            // the maintained digest is the same as the one calculated from the entries
+            DigestInfo expected = new DigestInfo();
+            for (Map.Entry<Number480, Data> entry : storageM.subMap(locationKey, domainKey, Number160.ZERO,
+                    Number160.MAX_VALUE).entrySet()) {
+                expected.put(entry.getKey(), entry.getValue().hash());
+            }
+            Assert.assertEquals(expected, storageM.digestSummary(locationKey, domainKey));
+            Assert.assertEquals(expected, storageM.digest(locationKey, domainKey, null));
+        }
+        // cached until the next change
+        DigestInfo digestInfo = storageM.digest(locationKey, domainKey, null);
+        Assert.assertSame(digestInfo, storageM.digest(locationKey, domainKey, null));
+        storageM.put(locationKey, domainKey, content1, new Data("test"), null, false, false);
+        Assert.assertNotSame(digestInfo, storageM.digest(locationKey, domainKey, null));
+        storageM.close();
+        Assert.assertEquals(0, storageM.digestSummary(locationKey, domainKey).getSize());
+    }
+
+    @Test
+    public void testDigestReordered() throws Exception {
+        DomainDigests digests = new DomainDigests();
+        Number320 domain = new Number320(locationKey, domainKey);
+        Number480 key1 = new Number480(locationKey, domainKey, content1);
+        Number480 key2 = new Number480(locationKey, domainKey, content2);
+        Data data1 = new Data("test1");
+        Data data2 = new Data("test2");
+        // the remove of key1 is applied before its put, and a put of key2 comes in between
+        digests.update(key1, data1, null);
+        digests.update(key2, null, data2);
+        digests.update(key1, null, data1);
+        DigestInfo expected = new DigestInfo();
+        expected.put(key2, data2.hash());
+        Assert.assertEquals(expected, digests.summary(domain));
+        digests.update(key2, data2, null);
+        Assert.assertEquals(new DigestInfo(), digests.summary(domain));
+        Assert.assertEquals(-1, digests.version(domain));
+    }
+
     @Test
     public void testLock1() {
         KeyLock<Number160> lock = new KeyLock<Number160>();
@@ -289,6 +541,52 @@ public class TestStorage {
         Assert.assertEquals(1, lock.cacheSize());
     }
 
+    /**
+     * Many threads lock and unlock random keys of a small key set, as the storage does for puts and gets. Each key is
+     * held by only one thread at a time and no lock is left in the cache. The performance is measured in
+     * {@link KeyLockBenchmark}.
+     * 
+     * @throws InterruptedException .
+     */
+    @Test
+    public void testLockContention() throws InterruptedException {
+        final int nrThreads = 8;
+        final int rounds = 10000;
+        final Number160[] keys = new Number160[16];
+        final AtomicInteger[] holders = new AtomicInteger[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Number160(i);
+            holders[i] = new AtomicInteger();
+        }
+        final KeyLock<Number160> keyLock = new KeyLock<Number160>();
+        final CountDownLatch latch = new CountDownLatch(nrThreads);
+        final AtomicInteger counter = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        for (int i = 0; i < nrThreads; i++) {
+            final Random random = new Random(i);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < rounds; j++) {
+                        int index = random.nextInt(keys.length);
+                        Lock lock = keyLock.lock(keys[index]);
+                        if (holders[index].incrementAndGet() != 1) {
+                            errors.incrementAndGet();
+                        }
+                        counter.incrementAndGet();
+                        holders[index].decrementAndGet();
+                        keyLock.unlock(keys[index], lock);
+                    }
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        Assert.assertEquals(0, errors.get());
+        Assert.assertEquals(nrThreads * rounds, counter.get());
+        Assert.assertEquals(0, keyLock.cacheSize());
+    }
+
     @Test
     public void testConcurrency() throws InterruptedException, IOException {
         final StorageGeneric sM = new StorageMemory();
@@ -317,4 +615,34 @@ public class TestStorage {
         Assert.assertEquals(0, counter.get());
         sM.close();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testReleaseStoredData() throws Exception {
+        StorageGeneric storage = new StorageMemory();
+        ByteBuf transfer1 = TestData.encode(new Data(Unpooled.wrappedBuffer(new byte[2000]), -1, 1, false, false));
+        Data data1 = TestData.decode(transfer1);
+        ByteBuf transfer2 = TestData.encode(new Data(new byte[2000]));
+        Data data2 = TestData.decode(transfer2);
+        storage.put(locationKey, domainKey, content1, data1, null, false, false);
+        storage.put(locationKey, domainKey, content2, data2, null, false, false);
+        // a range get hands out an own reference
+        SortedMap<Number480, Data> result = storage.get(locationKey, domainKey, Number160.ZERO, Number160.MAX_VALUE);
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(2, data2.buffer().refCnt());
+        for (Data data : result.values()) {
+            data.release();
+        }
+        Assert.assertEquals(1, data2.buffer().refCnt());
+        // an overwrite releases the replaced data
+        storage.put(locationKey, domainKey, content2, new Data(new byte[2000]), null, false, false);
+        Assert.assertEquals(0, data2.buffer().refCnt());
+        Assert.assertEquals(1, transfer2.refCnt());
+        // an expiration releases the expired data
+        Assert.assertEquals(2, transfer1.refCnt());
+        Thread.sleep(1100);
+        storage.checkTimeout();
+        Assert.assertEquals(null, storage.get(locationKey, domainKey, content1));
+        Assert.assertEquals(1, transfer1.refCnt());
+        storage.close();
+    }
+}
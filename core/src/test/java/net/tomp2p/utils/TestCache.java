@@ -1,5 +1,6 @@
 package net.tomp2p.utils;
 
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -137,4 +138,28 @@ public class TestCache {
         // putIfAbsent will refresh test0
         Assert.assertEquals("test0", val);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCopyOnWrite() {
+        CopyOnWriteCacheMap<String, String> test = new CopyOnWriteCacheMap<String, String>(2);
+        test.put("hallo0", "test0");
+        test.put("hallo1", "test1");
+        Map<String, String> snapshot = test.snapshot();
+        // the oldest entry is removed
+        test.put("hallo2", "test2");
+        Assert.assertEquals(2, test.size());
+        Assert.assertNull(test.get("hallo0"));
+        Assert.assertEquals("test2", test.get("hallo2"));
+        // a snapshot does not change
+        Assert.assertEquals(2, snapshot.size());
+        Assert.assertEquals("test0", snapshot.get("hallo0"));
+        Assert.assertEquals("test1", test.putIfAbsent("hallo1", "test3"));
+        Assert.assertEquals("test1", test.remove("hallo1"));
+        Assert.assertFalse(test.containsKey("hallo1"));
+        for (String value : test.values()) {
+            // iterating while writing is allowed
+            test.put("hallo3", value);
+        }
+        Assert.assertEquals("test2", test.get("hallo3"));
+    }
+}
@@ -1,10 +1,15 @@
 package net.tomp2p.utils;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
 import java.util.ArrayList;
 import java.util.Collection;
 
 import junit.framework.Assert;
 
+import net.tomp2p.peers.Number160;
+
 import org.junit.Test;
 
 public class TestUtils {
@@ -24,4 +29,26 @@ public class TestUtils {
         Utils.difference(collection1, result, collection2, collection3);
         Assert.assertEquals(0, result.size());
     }
+
+    @Test
+    public void testSHAHash() {
+        byte[] payload = "The quick brown fox jumps over the lazy dog".getBytes();
+        Number160 hash = new Number160("0x2fd4e1c67a2d28fced849ee1bb76e7391b93eb12");
+        Assert.assertEquals(hash, Utils.makeSHAHash(payload));
+        // the thread local instance is reset
+        Assert.assertEquals(hash, Utils.makeSHAHash(payload));
+        Assert.assertEquals(hash, Utils.makeSHAHash(Unpooled.wrappedBuffer(payload)));
+        Assert.assertEquals(hash, Utils.makeSHAHash(Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(payload, 0, 10),
+                Unpooled.directBuffer().writeBytes(payload, 10, payload.length - 10))));
+    }
+
+    @Test
+    public void testFastHash() {
+        ByteBuf buffer = Unpooled.wrappedBuffer("The quick brown fox jumps over the lazy dog".getBytes());
+        Assert.assertEquals(new Number160("0xe34bbc7bbc071b6c7a433ca9c49a9347"), Utils.makeFastHash(buffer));
+        Assert.assertEquals(new Number160("0xcbd8a7b341bd9b025b1e906a48ae1d19"),
+                Utils.makeFastHash(Unpooled.wrappedBuffer("hello".getBytes())));
+        // the buffer is not modified
+        Assert.assertEquals(43, buffer.readableBytes());
+    }
 }